@@ -124,6 +124,9 @@ public abstract class AbstractBlockChain {
     // were downloading the block chain.
     private final LinkedHashMap<Sha256Hash, OrphanBlock> orphanBlocks = new LinkedHashMap<Sha256Hash, OrphanBlock>();
 
+    // Used by code feeding us batches of blocks (eg, a Peer receiving headers) to hash them before taking our lock.
+    @Nullable private volatile ScryptHashPipeline hashPipeline;
+
     /**
      * Constructs a BlockChain connected to the given list of listeners (eg, wallets) and a store.
      */
@@ -177,6 +180,21 @@ public abstract class AbstractBlockChain {
         ListenerRegistration.removeFromList(listener, listeners);
     }
     
+    /**
+     * Sets a {@link ScryptHashPipeline} that code delivering batches of blocks to this chain, such as a {@link Peer}
+     * processing a headers message, should use to calculate proof of work hashes in parallel before calling
+     * {@link #add(Block)}. Pass null to go back to hashing each block inside add().
+     */
+    public void setScryptHashPipeline(@Nullable ScryptHashPipeline hashPipeline) {
+        this.hashPipeline = hashPipeline;
+    }
+
+    /** Returns the pipeline set with {@link #setScryptHashPipeline(ScryptHashPipeline)}, or null. */
+    @Nullable
+    public ScryptHashPipeline getScryptHashPipeline() {
+        return hashPipeline;
+    }
+
     /**
      * Returns the {@link BlockStore} the chain was constructed with. You can use this to iterate over the chain.
      */
@@ -280,6 +298,34 @@ public abstract class AbstractBlockChain {
         }
     }
     
+    /**
+     * Like {@link #add(Block)}, but skips looking for orphan blocks to connect if the block goes on top of the best
+     * chain and no orphan blocks are waiting. Used by importers that add many blocks which mostly come in chain order.
+     */
+    protected boolean addInOrder(Block block) throws VerificationException, PrunedException {
+        lock.lock();
+        try {
+            if (!orphanBlocks.isEmpty() || !block.getPrevBlockHash().equals(getChainHead().getHeader().getHash()))
+                return add(block);
+            try {
+                return add(block, false, null, null);
+            } catch (BlockStoreException e) {
+                // TODO: Figure out a better way to propagate this exception to the user.
+                throw new RuntimeException(e);
+            } catch (VerificationException e) {
+                try {
+                    notSettingChainHead();
+                } catch (BlockStoreException e1) {
+                    throw new RuntimeException(e1);
+                }
+                throw new VerificationException("Could not verify block " + block.getHashAsString() + "\n" +
+                        block.toString(), e);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Whether or not we are maintaining a set of unspent outputs and are verifying all transactions.
      * Also indicates that all calls to add() should provide a block containing transactions
@@ -817,26 +863,29 @@ public abstract class AbstractBlockChain {
             return;
         }
 
-        // We need to find a block far back in the chain. It's OK that this is expensive because it only occurs every
-        // two weeks after the initial block chain download.
+        // We need to find a block far back in the chain. Since the new difficulty algorithm this happens on every
+        // block, so the block is looked up by height, which stores that keep an index or skip pointers do quickly.
         long now = System.currentTimeMillis();
-        StoredBlock cursor = blockStore.get(prev.getHash());
         int goBack = retargetInterval - 1;
-        if (cursor.getHeight()+1 != retargetInterval)
+        if (storedPrev.getHeight()+1 != retargetInterval)
             goBack = retargetInterval;
-
-        for (int i = 0; i < goBack; i++) {
-            if (cursor == null) {
-                // This should never happen. If it does, it means we are following an incorrect or busted chain.
-                throw new VerificationException(
-                        "Difficulty transition point but we did not find a way back to the genesis block.");
-            }
-            cursor = blockStore.get(cursor.getHeader().getPrevBlockHash());
+        if (storedPrev.getHeight() - goBack < 0) {
+            // This should never happen. If it does, it means we are following an incorrect or busted chain.
+            throw new VerificationException(
+                    "Difficulty transition point but we did not find a way back to the genesis block.");
         }
+        int intervalStartHeight = storedPrev.getHeight() - goBack;
+        StoredBlock cursor = storedPrev.getAncestor(blockStore, intervalStartHeight);
 
         //We used checkpoints...
         if(cursor == null)
         {
+            // Only the block before the first one in the store, which is the checkpoint, may be missing. Anything
+            // else missing means the chain in the store is broken.
+            StoredBlock first = storedPrev.getAncestor(blockStore, intervalStartHeight + 1);
+            if (first == null || first.getPrev(blockStore) != null)
+                throw new VerificationException(
+                        "Difficulty transition point but block at height " + intervalStartHeight + " is missing.");
             log.debug("Difficulty transition: Hit checkpoint!");
             return;
         }
@@ -1006,11 +1055,12 @@ public abstract class AbstractBlockChain {
 
     /**
      * Returns a future that completes when the block chain has reached the given height. Yields the
-     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread.
+     * {@link StoredBlock} of the block that reaches that height first. The future completes on a peer thread, or
+     * straight away if the best chain is already that high.
      */
     public ListenableFuture<StoredBlock> getHeightFuture(final int height) {
         final SettableFuture<StoredBlock> result = SettableFuture.create();
-        addListener(new AbstractBlockChainListener() {
+        AbstractBlockChainListener listener = new AbstractBlockChainListener() {
             @Override
             public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
                 if (block.getHeight() >= height) {
@@ -1018,7 +1068,22 @@ public abstract class AbstractBlockChain {
                     result.set(block);
                 }
             }
-        }, Threading.SAME_THREAD);
+        };
+        addListener(listener, Threading.SAME_THREAD);
+        // If the height was already reached, the block can be looked up rather than waiting for the next one.
+        StoredBlock head = getChainHead();
+        if (height >= 0 && head.getHeight() >= height) {
+            try {
+                StoredBlock block = head.getAncestor(blockStore, height);
+                if (block != null) {
+                    removeListener(listener);
+                    result.set(block);
+                }
+            } catch (BlockStoreException e) {
+                // Wait for the next block instead.
+                log.warn("Failed to look up block at height " + height, e);
+            }
+        }
         return result;
     }
 }
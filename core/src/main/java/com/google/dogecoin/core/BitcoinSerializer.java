@@ -17,6 +17,8 @@
 package com.google.dogecoin.core;
 
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -24,6 +26,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -97,19 +100,7 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(String name, byte[] message, OutputStream out) throws IOException {
-        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
-        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
-
-        // The header array is initialized to zero by Java so we don't have to worry about
-        // NULL terminating the string here.
-        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
-            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
-        }
-
-        Utils.uint32ToByteArrayLE(message.length, header, 4 + COMMAND_LEN);
-
-        byte[] hash = doubleDigest(message);
-        System.arraycopy(hash, 0, header, 4 + COMMAND_LEN + 4, 4);
+        byte[] header = makeHeader(name, message.length, doubleDigest(message));
         out.write(header);
         out.write(message);
 
@@ -121,11 +112,59 @@ public class BitcoinSerializer {
      * Writes message to to the output stream.
      */
     public void serialize(Message message, OutputStream out) throws IOException {
+        ChannelBuffer buffer = serialize(message);
+        buffer.readBytes(out, buffer.readableBytes());
+    }
+
+    /**
+     * <p>Returns the message in wire format, as a buffer made of a new header followed by the serialized payload, which
+     * isn't copied. Nothing must write to the buffer.</p>
+     *
+     * <p>Transactions and blocks keep their payload and its checksum until they next change, so one that is relayed
+     * to many peers is only serialized and hashed once. One parsed in retain mode isn't serialized again at all.</p>
+     */
+    public ChannelBuffer serialize(Message message) {
         String name = names.get(message.getClass());
         if (name == null) {
             throw new Error("BitcoinSerializer doesn't currently know how to serialize " + message.getClass());
         }
-        serialize(name, message.bitcoinSerialize(), out);
+        byte[] payload, checksum;
+        // Other messages may change without uncaching themselves, VersionMessage has public fields for instance, so
+        // only these two keep what was sent.
+        if (message instanceof Transaction || message instanceof Block) {
+            payload = message.serializedPayload;
+            checksum = message.getChecksum();
+            if (payload == null || checksum == null) {
+                // Block.bitcoinSerialize() returns its cached bytes without copying them, the others copy.
+                payload = message instanceof Block ? message.bitcoinSerialize() : message.unsafeBitcoinSerialize();
+                checksum = Arrays.copyOf(doubleDigest(payload), 4);
+                message.serializedPayload = payload;
+                message.setChecksum(checksum);
+            }
+        } else {
+            payload = message.bitcoinSerialize();
+            checksum = doubleDigest(payload);
+        }
+        byte[] header = makeHeader(name, payload.length, checksum);
+
+        if (log.isDebugEnabled())
+            log.debug("Sending {} message: {}", name, bytesToHexString(header) + bytesToHexString(payload));
+        return ChannelBuffers.wrappedBuffer(header, payload);
+    }
+
+    private byte[] makeHeader(String name, int length, byte[] checksum) {
+        byte[] header = new byte[4 + COMMAND_LEN + 4 + 4 /* checksum */];
+        uint32ToByteArrayBE(params.getPacketMagic(), header, 0);
+
+        // The header array is initialized to zero by Java so we don't have to worry about
+        // NULL terminating the string here.
+        for (int i = 0; i < name.length() && i < COMMAND_LEN; i++) {
+            header[4 + i] = (byte) (name.codePointAt(i) & 0xFF);
+        }
+
+        Utils.uint32ToByteArrayLE(length, header, 4 + COMMAND_LEN);
+        System.arraycopy(checksum, 0, header, 4 + COMMAND_LEN + 4, 4);
+        return header;
     }
 
     /**
@@ -167,17 +206,35 @@ public class BitcoinSerializer {
     public Message deserializePayload(BitcoinPacketHeader header, InputStream in) throws ProtocolException, IOException {
         int readCursor = 0;
         byte[] payloadBytes = new byte[header.size];
-        while (readCursor < payloadBytes.length - 1) {
+        while (readCursor < payloadBytes.length) {
             int bytesRead = in.read(payloadBytes, readCursor, header.size - readCursor);
             if (bytesRead == -1) {
                 throw new IOException("Socket is disconnected");
             }
             readCursor += bytesRead;
         }
+        return deserializePayload(header, payloadBytes);
+    }
 
+    /**
+     * Deserialize a payload that has already been read in full, checking it against the checksum in the header.
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] payloadBytes) throws ProtocolException {
+        return deserializePayload(header, payloadBytes, 0, doubleDigest(payloadBytes));
+    }
+
+    /**
+     * <p>Deserialize the header.size bytes of payload that start at offset in the given array, checking them against
+     * the checksum in the header. The caller passes in the double SHA-256 hash of the payload, so one that hashed the
+     * bytes as they arrived doesn't have to read them all again.</p>
+     *
+     * <p>The array may hold other data around the payload. Transactions and inventory lists are then parsed where
+     * they lie, unless the serializer is in lazy mode, and other messages are copied out first. Messages parsed in
+     * place in retain mode keep a reference to the whole array.</p>
+     */
+    public Message deserializePayload(BitcoinPacketHeader header, byte[] bytes, int offset, byte[] hash)
+            throws ProtocolException {
         // Verify the checksum.
-        byte[] hash;
-        hash = doubleDigest(payloadBytes);
         if (header.checksum[0] != hash[0] || header.checksum[1] != hash[1] ||
                 header.checksum[2] != hash[2] || header.checksum[3] != hash[3]) {
             throw new ProtocolException("Checksum failed to verify, actual " +
@@ -189,32 +246,45 @@ public class BitcoinSerializer {
             log.debug("Received {} byte '{}' message: {}", new Object[]{
                     header.size,
                     header.command,
-                    Utils.bytesToHexString(payloadBytes)
+                    Utils.bytesToHexString(Arrays.copyOfRange(bytes, offset, offset + header.size))
             });
         }
 
+        boolean inPlace = !parseLazy && (header.command.equals("tx") || header.command.equals("inv") ||
+                header.command.equals("getdata"));
+        if (!inPlace && (offset != 0 || bytes.length != header.size)) {
+            bytes = Arrays.copyOfRange(bytes, offset, offset + header.size);
+            offset = 0;
+        }
+        Message message;
         try {
-            return makeMessage(header.command, header.size, payloadBytes, hash, header.checksum);
+            message = makeMessage(header.command, header.size, bytes, offset, hash, header.checksum);
         } catch (Exception e) {
-            throw new ProtocolException("Error deserializing message " + Utils.bytesToHexString(payloadBytes) + "\n", e);
+            throw new ProtocolException("Error deserializing message " +
+                    Utils.bytesToHexString(Arrays.copyOfRange(bytes, offset, offset + header.size)) + "\n", e);
         }
+        // Parsing in place doesn't stop at the end of the payload, so check it didn't run into whatever follows.
+        if (inPlace && message.getMessageSize() > header.size)
+            throw new ProtocolException("Message is longer than its " + header.size + " byte payload");
+        return message;
     }
 
-    private Message makeMessage(String command, int length, byte[] payloadBytes, byte[] hash, byte[] checksum) throws ProtocolException {
+    private Message makeMessage(String command, int length, byte[] payloadBytes, int offset, byte[] hash,
+                                byte[] checksum) throws ProtocolException {
         // We use an if ladder rather than reflection because reflection is very slow on Android.
         Message message;
         if (command.equals("version")) {
             return new VersionMessage(params, payloadBytes);
         } else if (command.equals("inv")) {
-            message = new InventoryMessage(params, payloadBytes, parseLazy, parseRetain, length);
+            message = new InventoryMessage(params, payloadBytes, offset, parseLazy, parseRetain, length);
         } else if (command.equals("block")) {
             message = new Block(params, payloadBytes, parseLazy, parseRetain, length);
         } else if (command.equals("merkleblock")) {
             message = new FilteredBlock(params, payloadBytes);
         } else if (command.equals("getdata")) {
-            message = new GetDataMessage(params, payloadBytes, parseLazy, parseRetain, length);
+            message = new GetDataMessage(params, payloadBytes, offset, parseLazy, parseRetain, length);
         } else if (command.equals("tx")) {
-            Transaction tx = new Transaction(params, payloadBytes, null, parseLazy, parseRetain, length);
+            Transaction tx = new Transaction(params, payloadBytes, offset, null, parseLazy, parseRetain, length);
             if (hash != null)
                 tx.setHash(new Sha256Hash(Utils.reverseBytes(hash)));
             message = tx;
@@ -24,6 +24,7 @@ import com.google.common.collect.ImmutableList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
@@ -512,6 +513,7 @@ public class Block extends Message {
             bytes = null;
         hash = null;
         checksum = null;
+        serializedPayload = null;
     }
 
     private void unCacheTransactions() {
@@ -580,6 +582,28 @@ public class Block extends Message {
         return scryptHash;
     }
 
+    /**
+     * Returns the scrypt hash that has to be below the difficulty target for this block to be valid. For merge mined
+     * (AuxPoW) blocks this is the hash of the parent block header, otherwise it is the hash of this header. The result
+     * is cached, so calling this ahead of time (eg from a {@link ScryptHashPipeline}) makes the later proof of work
+     * check cheap.
+     */
+    public Sha256Hash getProofOfWorkHash() {
+        maybeParseHeader();
+        if (Block.isAuxBlock(version))
+            return parentBlock.getScryptHash();
+        return getScryptHash();
+    }
+
+    /**
+     * Returns the header of the parent block that was mined to solve this block, or null if it is not merge mined
+     * (AuxPoW) or the parent header was not kept.
+     */
+    @Nullable
+    public Block getParentBlock() {
+        return parentBlock;
+    }
+
     /**
      * The number that is one greater than the largest representable SHA-256
      * hash.
@@ -699,12 +723,7 @@ public class Block extends Message {
         // field is of the right value. This requires us to have the preceeding blocks.
         BigInteger target = getDifficultyTargetAsInteger();
 
-        BigInteger h;
-        if (Block.isAuxBlock(version)) {
-            h = this.parentBlock.getScryptHash().toBigInteger();
-        } else {
-            h  = getScryptHash().toBigInteger();
-        }
+        BigInteger h = getProofOfWorkHash().toBigInteger();
 
         if (h.compareTo(target) > 0) {
             // Proof of work check failed!
@@ -782,9 +801,11 @@ public class Block extends Message {
         // t1 t2 t3 t4 t5 t5
         maybeParseTransactions();
         ArrayList<byte[]> tree = new ArrayList<byte[]>();
-        // Start by adding all the hashes of the transactions as leaves of the tree.
+        // Start by adding all the hashes of the transactions as leaves of the tree. The tree is built in the byte
+        // order that gets hashed and only flipped to the usual big endian display order once it's complete, which
+        // saves reversing (and allocating) each pair of nodes again on the way up.
         for (Transaction t : transactions) {
-            tree.add(t.getHash().getBytes());
+            tree.add(Utils.reverseBytes(t.getHash().getBytes()));
         }
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
@@ -794,16 +815,27 @@ public class Block extends Message {
                 // The right hand node can be the same as the left hand, in the case where we don't have enough
                 // transactions.
                 int right = Math.min(left + 1, levelSize - 1);
-                byte[] leftBytes = Utils.reverseBytes(tree.get(levelOffset + left));
-                byte[] rightBytes = Utils.reverseBytes(tree.get(levelOffset + right));
-                tree.add(Utils.reverseBytes(doubleDigestTwoBuffers(leftBytes, 0, 32, rightBytes, 0, 32)));
+                byte[] node = new byte[32];
+                doubleDigestTwoBuffers(tree.get(levelOffset + left), 0, 32, tree.get(levelOffset + right), 0, 32,
+                        node, 0);
+                tree.add(node);
             }
             // Move to the next level.
             levelOffset += levelSize;
         }
+        for (byte[] node : tree)
+            reverseInPlace(node);
         return tree;
     }
 
+    private static void reverseInPlace(byte[] bytes) {
+        for (int i = 0, j = bytes.length - 1; i < j; i++, j--) {
+            byte tmp = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = tmp;
+        }
+    }
+
     private void checkTransactions() throws VerificationException {
         // The first transaction in a block must always be a coinbase transaction.
         if (!transactions.get(0).isCoinBase())
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import javax.annotation.Nullable;
+import java.io.Serializable;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>Counts the blocks and work added to the best chain as seen by a {@link Wallet}, so that the
+ * {@link TransactionConfidence} objects of its transactions can work out their depth and work done when asked, rather
+ * than the wallet having to update every one of them for every new block.</p>
+ *
+ * <p>The height and work counted here only mean anything relative to each other: a confidence remembers where the
+ * tracker stood when its depth was last set and adds on however far the tracker has moved since. Re-organizations move
+ * the tracker backwards.</p>
+ *
+ * <p>Confidences that have listeners waiting for a particular depth are queued up by the tracker height at which they
+ * will reach it, so a new block only has to look at the transactions that actually crossed a threshold.</p>
+ */
+class DepthTracker implements Serializable {
+    private static final long serialVersionUID = 2917455130426373406L;
+
+    private int height;
+    private BigInteger work = BigInteger.ZERO;
+    @Nullable private Sha256Hash lastBlockHash;
+    // Tracker height -> confidences that reach their next depth threshold at that height.
+    private final TreeMap<Integer, Set<TransactionConfidence>> watched = new TreeMap<Integer, Set<TransactionConfidence>>();
+
+    /** Returns the number of best chain blocks counted so far, less those removed by re-orgs. */
+    synchronized int getHeight() {
+        return height;
+    }
+
+    /** Returns the total work of the blocks counted by {@link #getHeight()}. */
+    synchronized BigInteger getWork() {
+        return work;
+    }
+
+    /**
+     * Counts the given block as the new top of the best chain. Does nothing if it is already the top, as both
+     * receiving transactions from a block and being told about the block itself advance the tracker. Returns true if
+     * the tracker moved.
+     */
+    synchronized boolean advance(StoredBlock block) throws VerificationException {
+        Sha256Hash hash = block.getHeader().getHash();
+        if (hash.equals(lastBlockHash))
+            return false;
+        height++;
+        work = work.add(block.getHeader().getWork());
+        lastBlockHash = hash;
+        return true;
+    }
+
+    /**
+     * Moves the tracker back to the split point of a re-org, uncounting the blocks that are no longer on the best
+     * chain. The old blocks are ordered top first, as given to {@link Wallet#reorganize}.
+     */
+    synchronized void rollBack(StoredBlock splitPoint, List<StoredBlock> oldBlocks) throws VerificationException {
+        for (StoredBlock block : oldBlocks)
+            work = work.subtract(block.getHeader().getWork());
+        height -= oldBlocks.size();
+        lastBlockHash = splitPoint.getHeader().getHash();
+    }
+
+    /** Queues the confidence to be returned by {@link #takeDue()} once the tracker reaches the given height. */
+    synchronized void watch(TransactionConfidence confidence, int atHeight) {
+        Set<TransactionConfidence> confidences = watched.get(atHeight);
+        if (confidences == null) {
+            confidences = new LinkedHashSet<TransactionConfidence>();
+            watched.put(atHeight, confidences);
+        }
+        confidences.add(confidence);
+    }
+
+    /**
+     * Removes and returns the watched confidences whose height has been reached. The caller should ask each one
+     * whether it really crossed a threshold, as a re-org may have moved it since it was queued.
+     */
+    List<TransactionConfidence> takeDue() {
+        List<TransactionConfidence> due = new ArrayList<TransactionConfidence>();
+        // Confidences must not be called back whilst holding our lock, as they lock themselves before calling us.
+        synchronized (this) {
+            SortedMap<Integer, Set<TransactionConfidence>> reached = watched.headMap(height + 1);
+            for (Set<TransactionConfidence> confidences : reached.values())
+                due.addAll(confidences);
+            reached.clear();
+        }
+        return due;
+    }
+
+    /** Returns how many confidences are waiting for a depth threshold. */
+    synchronized int getNumWatched() {
+        int count = 0;
+        for (Set<TransactionConfidence> confidences : watched.values())
+            count += confidences.size();
+        return count;
+    }
+}
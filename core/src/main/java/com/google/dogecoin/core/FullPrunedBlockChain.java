@@ -19,16 +19,20 @@ package com.google.dogecoin.core;
 import com.google.dogecoin.script.Script;
 import com.google.dogecoin.store.BlockStoreException;
 import com.google.dogecoin.store.FullPrunedBlockStore;
+import com.google.dogecoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.ListIterator;
+import java.util.*;
 import java.util.concurrent.*;
 
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -97,30 +101,359 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     
     //TODO: Remove lots of duplicated code in the two connectTransactions
     
-    // TODO: execute in order of largest transaction (by input count) first
-    ExecutorService scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-    
-    class Verifyer implements Callable<VerificationException> {
-        final Transaction tx;
-        final List<Script> prevOutScripts;
-        final boolean enforcePayToScriptHash;
-        Verifyer(final Transaction tx, final List<Script> prevOutScripts, final boolean enforcePayToScriptHash) {
-            this.tx = tx; this.prevOutScripts = prevOutScripts; this.enforcePayToScriptHash = enforcePayToScriptHash;
+    // Verifies scripts input by input, most expensive first, on threads shared by all the blocks we connect.
+    @GuardedBy("lock") ScriptVerificationScheduler scriptVerificationScheduler = new ScriptVerificationScheduler();
+
+    /**
+     * Replaces the scheduler used to verify scripts, eg to change how many threads are used. The threads of the one
+     * replaced are shut down, so it must not be shared with another chain. Checks still using it, such as those of
+     * {@link #verifyUnconfirmedTransaction(Transaction)}, finish on the threads waiting for them.
+     */
+    public void setScriptVerificationScheduler(ScriptVerificationScheduler scheduler) {
+        checkNotNull(scheduler);
+        lock.lock();
+        try {
+            if (scheduler != scriptVerificationScheduler)
+                scriptVerificationScheduler.shutdown();
+            scriptVerificationScheduler = scheduler;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** How many relayed transactions may wait to be checked by {@link #verifyUnconfirmedTransactionLater(Transaction)}. */
+    public static final int MAX_UNCONFIRMED_CHECKS_QUEUED = 1000;
+    // Checks relayed transactions off the network threads, see verifyUnconfirmedTransactionLater(). Guarded by this.
+    private ExecutorService unconfirmedExecutor;
+
+    // Looks up the outputs spent by upcoming blocks whilst the current one is connected, see addAll().
+    private ExecutorService prefetchExecutor;
+    private final Map<Sha256Hash, PrefetchedOutputs> prefetches =
+            Collections.synchronizedMap(new HashMap<Sha256Hash, PrefetchedOutputs>());
+    // What the block most recently connected to the top of the chain spent and created. Lookups prefetched before it
+    // was committed are checked against this.
+    @Nullable private BlockChanges lastConnected;
+
+    private static class BlockChanges {
+        final Sha256Hash hash, prevHash;
+        final Set<StoredTransactionOutput> spent;
+        final Set<Sha256Hash> createdTxHashes;
+
+        BlockChanges(Block block, TransactionOutputChanges changes) {
+            this.hash = block.getHash();
+            this.prevHash = block.getPrevBlockHash();
+            this.spent = new HashSet<StoredTransactionOutput>(changes.txOutsSpent);
+            this.createdTxHashes = new HashSet<Sha256Hash>();
+            for (StoredTransactionOutput out : changes.txOutsCreated)
+                createdTxHashes.add(out.getHash());
         }
+    }
+
+    /**
+     * The results of looking up a block's spent outputs and BIP30 checks in the store ahead of time, whilst the chain
+     * head was <tt>baseHead</tt>. The answers are only used where nothing connected since could have changed them,
+     * otherwise the store is asked again.
+     */
+    private class PrefetchedOutputs implements Callable<Void> {
+        final Block block;
+        final Sha256Hash baseHead;
+        final Map<TransactionOutPoint, StoredTransactionOutput> outputs =
+                new ConcurrentHashMap<TransactionOutPoint, StoredTransactionOutput>();
+        final Set<Sha256Hash> txsWithoutOutputs = Collections.synchronizedSet(new HashSet<Sha256Hash>());
+        Future<Void> future;
+        // Changes made to the store since the lookups, or null if there were none.
+        @Nullable BlockChanges since;
+
+        PrefetchedOutputs(Block block, Sha256Hash baseHead) {
+            this.block = block;
+            this.baseHead = baseHead;
+        }
+
         @Override
-        public VerificationException call() throws Exception {
-            try{
-                ListIterator<Script> prevOutIt = prevOutScripts.listIterator();
-                for (int index = 0; index < tx.getInputs().size(); index++) {
-                    tx.getInputs().get(index).getScriptSig().correctlySpends(tx, index, prevOutIt.next(), enforcePayToScriptHash);
+        public Void call() throws BlockStoreException {
+            for (Transaction tx : block.transactions) {
+                if (!blockStore.hasUnspentOutputs(tx.getHash(), tx.getOutputs().size()))
+                    txsWithoutOutputs.add(tx.getHash());
+                if (tx.isCoinBase())
+                    continue;
+                for (TransactionInput in : tx.getInputs()) {
+                    TransactionOutPoint outpoint = in.getOutpoint();
+                    StoredTransactionOutput out = blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+                    if (out != null)
+                        outputs.put(outpoint, out);
                 }
-            } catch (VerificationException e) {
-                return e;
             }
             return null;
         }
+
+        StoredTransactionOutput getTransactionOutput(TransactionOutPoint outpoint) throws BlockStoreException {
+            // Each answer is only used once, so that a second spend of the same output in this block sees the first.
+            StoredTransactionOutput out = outputs.remove(outpoint);
+            if (out != null && (since == null || !since.spent.contains(out)))
+                return out;
+            // Either it didn't exist before, in which case the last block or this one may have created it, or the last
+            // block spent it.
+            return blockStore.getTransactionOutput(outpoint.getHash(), outpoint.getIndex());
+        }
+
+        boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+            if (txsWithoutOutputs.contains(hash) && (since == null || !since.createdTxHashes.contains(hash)))
+                return false;
+            return blockStore.hasUnspentOutputs(hash, numOutputs);
+        }
+    }
+
+    /**
+     * <p>Adds the given blocks in order, as {@link #add(Block)} would, whilst looking up the unspent outputs each block
+     * spends in the background as the block before it is being verified and committed. This keeps the disk busy
+     * whilst the scripts are checked, which speeds up syncing the chain from a store that is not held in memory.</p>
+     *
+     * <p>The lookups are only used if the block is connected straight on top of the one added before it, and anything
+     * that block changed is looked up again, so the result is the same as adding the blocks one by one.</p>
+     */
+    public void addAll(Iterator<Block> blocks) throws VerificationException, PrunedException {
+        synchronized (prefetches) {
+            if (prefetchExecutor == null) {
+                ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Output prefetch thread %d");
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    builder.setUncaughtExceptionHandler(handler);
+                prefetchExecutor = Executors.newSingleThreadExecutor(builder.build());
+            }
+        }
+        Block block = blocks.hasNext() ? blocks.next() : null;
+        while (block != null) {
+            Block next = blocks.hasNext() ? blocks.next() : null;
+            // The next block will most likely connect on top of this one, whose changes are not in the store yet.
+            if (next != null && next.transactions != null) {
+                PrefetchedOutputs prefetch = new PrefetchedOutputs(next, getChainHead().getHeader().getHash());
+                prefetch.future = prefetchExecutor.submit(prefetch);
+                prefetches.put(next.getHash(), prefetch);
+            }
+            try {
+                add(block);
+            } finally {
+                prefetches.remove(block.getHash());
+            }
+            block = next;
+        }
+    }
+
+    // Set whilst importBlocks() is running: the store transaction is left open across blocks until a batch is complete.
+    private boolean importing;
+    private int blocksInBatch;
+    // Scripts of blocks up to this height aren't checked during an import, see trustScriptsUpTo().
+    private int trustedHeight = -1;
+    @Nullable private Sha256Hash trustedHash;
+
+    /**
+     * <p>Makes {@link #importBlocks(Iterator, int)} skip checking the scripts of blocks at or below the given height,
+     * which is by far the most expensive part of verifying old blocks. Everything else, such as the unspent outputs
+     * spent and the amounts, is still checked. The block imported at that height must have the given hash, which
+     * commits to all the blocks before it, otherwise the import fails.</p>
+     *
+     * <p>As the failure can only be noticed once that height is reached, the batches committed before it were not
+     * fully verified and the store should be thrown away if it happens. Only use a hash you got from a source you
+     * trust, such as a checkpoint.</p>
+     */
+    public void trustScriptsUpTo(int height, Sha256Hash hash) {
+        lock.lock();
+        try {
+            this.trustedHeight = height;
+            this.trustedHash = checkNotNull(hash);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * <p>Adds blocks read from a bootstrap file or the reference client's block files, which are expected to be in
+     * chain order. Each block that connects to the top of the chain is added without looking for orphans that could
+     * now connect, and the changes of <tt>blocksPerBatch</tt> blocks are written to the store in a single
+     * transaction, instead of one per block. Blocks that don't connect to the top of the chain are handled as
+     * {@link #add(Block)} would handle them. Progress is logged every ten seconds or so.</p>
+     *
+     * <p>If a block fails to verify, or the store fails, the whole batch it was in is rolled back and the chain head
+     * goes back to the last block that was committed before the exception is thrown. Listeners will already have been told about the
+     * blocks before it in that batch. Unlike {@link #addAll(Iterator)}, outputs aren't looked up ahead of time,
+     * because the lookups can't see the changes of the batch until it is committed.</p>
+     *
+     * @return the number of blocks read from the iterator.
+     */
+    public int importBlocks(Iterator<Block> blocks, int blocksPerBatch) throws VerificationException, PrunedException {
+        checkArgument(blocksPerBatch > 0);
+        long start = System.currentTimeMillis(), lastReport = start;
+        long bytes = 0, bytesSinceReport = 0;
+        int count = 0, countSinceReport = 0;
+        while (blocks.hasNext()) {
+            lock.lock();
+            StoredBlock lastCommitted = getChainHead();
+            boolean committed = false;
+            try {
+                importing = true;
+                while (blocksInBatch < blocksPerBatch && blocks.hasNext()) {
+                    Block block = blocks.next();
+                    addInOrder(block);
+                    count++;
+                    countSinceReport++;
+                    bytesSinceReport += block.getMessageSize();
+                }
+                importing = false;
+                if (blocksInBatch > 0) {
+                    blockStore.commitDatabaseBatchWrite();
+                    blocksInBatch = 0;
+                }
+                committed = true;
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            } finally {
+                // Whatever went wrong, including unchecked exceptions from the store, the chain head must not be left
+                // ahead of what the store has committed.
+                try {
+                    if (!committed)
+                        abortImport(lastCommitted);
+                } finally {
+                    importing = false;
+                    lock.unlock();
+                }
+            }
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= 10000 || !blocks.hasNext()) {
+                double seconds = (now - lastReport) / 1000.0;
+                log.info(String.format("Imported %d blocks at %.1f blocks/sec, %.2f MB/sec, now at height %d",
+                        countSinceReport, countSinceReport / seconds, bytesSinceReport / seconds / (1024 * 1024),
+                        getBestChainHeight()));
+                bytes += bytesSinceReport;
+                bytesSinceReport = 0;
+                countSinceReport = 0;
+                lastReport = now;
+            }
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        if (count > 0)
+            log.info(String.format("Imported %d blocks (%.1f MB) in %.1f seconds", count, bytes / (1024.0 * 1024),
+                    seconds));
+        return count;
+    }
+
+    // Rolls back the batch, and points the store and our chain head at the last block that was committed again. Only
+    // logs its own failures, so that the exception which caused the rollback is the one thrown.
+    private void abortImport(StoredBlock lastCommitted) {
+        importing = false;
+        blocksInBatch = 0;
+        try {
+            blockStore.abortDatabaseBatchWrite();
+            blockStore.beginDatabaseBatchWrite();
+            setChainHead(lastCommitted);
+        } catch (BlockStoreException e) {
+            log.error("Failed to roll back import to block " + lastCommitted.getHeader().getHashAsString(), e);
+        } catch (RuntimeException e) {
+            log.error("Failed to roll back import to block " + lastCommitted.getHeader().getHashAsString(), e);
+        }
+    }
+
+    // Returns the lookups made ahead of time for the given block if they can still be used, or null.
+    @Nullable
+    private PrefetchedOutputs takePrefetched(Block block) {
+        PrefetchedOutputs prefetch = prefetches.remove(block.getHash());
+        if (prefetch == null)
+            return null;
+        try {
+            Uninterruptibles.getUninterruptibly(prefetch.future);
+        } catch (ExecutionException e) {
+            log.warn("Failed to prefetch outputs of block {}: {}", block.getHashAsString(), e.getCause().toString());
+            return null;
+        }
+        if (prefetch.baseHead.equals(block.getPrevBlockHash()))
+            return prefetch;
+        BlockChanges last = lastConnected;
+        if (last != null && last.hash.equals(block.getPrevBlockHash()) && last.prevHash.equals(prefetch.baseHead)) {
+            prefetch.since = last;
+            return prefetch;
+        }
+        return null;
     }
     
+    /**
+     * <p>Checks the scripts of a transaction that is not in a block yet, such as one relayed to us by a peer, against
+     * the unspent outputs it spends. The valid signatures are remembered by the {@link SignatureCache}, so when the
+     * transaction turns up in a block its inputs can be verified without doing the ECDSA work again.</p>
+     *
+     * <p>Returns false without checking anything if some of the outputs spent are not in the unspent set, eg because
+     * they were created by other unconfirmed transactions.</p>
+     *
+     * @throws VerificationException if the scripts don't verify.
+     */
+    public boolean verifyUnconfirmedTransaction(Transaction tx) throws VerificationException, BlockStoreException {
+        if (tx.isCoinBase())
+            return false;
+        List<Script> prevOutScripts = new ArrayList<Script>(tx.getInputs().size());
+        ScriptVerificationScheduler scheduler;
+        // Only hold the lock for the lookups, so blocks can be connected whilst the signatures are checked.
+        lock.lock();
+        try {
+            scheduler = scriptVerificationScheduler;
+            for (TransactionInput in : tx.getInputs()) {
+                StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
+                                                                                  in.getOutpoint().getIndex());
+                if (prevOut == null)
+                    return false;
+                prevOutScripts.add(new Script(prevOut.getScriptBytes()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        ScriptVerificationScheduler.Batch scriptChecks = scheduler.newBatch();
+        scriptChecks.add(tx, prevOutScripts, Utils.now().getTime() / 1000 >= NetworkParameters.BIP16_ENFORCE_TIME);
+        scriptChecks.verify();
+        return true;
+    }
+
+    /**
+     * <p>Does {@link #verifyUnconfirmedTransaction(Transaction)} on a background thread, for callers like the network
+     * thread that shouldn't be held up by the lookups, the chain lock or the ECDSA work. The check is done on a copy,
+     * so the caller can carry on using the transaction.</p>
+     *
+     * <p>As the check only fills the {@link SignatureCache}, transactions are dropped unchecked once
+     * {@link #MAX_UNCONFIRMED_CHECKS_QUEUED} are waiting. They are checked in full if they are mined anyway.</p>
+     */
+    public void verifyUnconfirmedTransactionLater(Transaction tx) {
+        final Transaction copy;
+        try {
+            copy = new Transaction(params, tx.bitcoinSerialize());
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen, we just serialized it.
+        }
+        synchronized (this) {
+            if (unconfirmedExecutor == null) {
+                ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                        .setDaemon(true)
+                        .setNameFormat("Unconfirmed transaction verification thread %d");
+                Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+                if (handler != null)
+                    builder.setUncaughtExceptionHandler(handler);
+                unconfirmedExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                        new LinkedBlockingQueue<Runnable>(MAX_UNCONFIRMED_CHECKS_QUEUED), builder.build(),
+                        new ThreadPoolExecutor.DiscardPolicy());
+            }
+        }
+        unconfirmedExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    verifyUnconfirmedTransaction(copy);
+                } catch (VerificationException e) {
+                    // Leave it to the block chain to reject it if it's ever mined.
+                    log.warn("Transaction {} failed script verification: {}", copy.getHashAsString(), e.toString());
+                } catch (BlockStoreException e) {
+                    log.error("Could not look up outputs spent by {}", copy.getHashAsString());
+                }
+            }
+        });
+    }
+
     @Override
     protected TransactionOutputChanges connectTransactions(int height, Block block)
             throws VerificationException, BlockStoreException {
@@ -129,6 +462,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new RuntimeException("connectTransactions called with Block that didn't have transactions!");
         if (!params.passesCheckpoint(height, block.getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + height);
+        boolean checkScripts = !importing || height > trustedHeight;
+        if (importing && height == trustedHeight && !block.getHash().equals(trustedHash))
+            throw new VerificationException("Block at trusted height " + height + " is not the trusted block");
 
         blockStore.beginDatabaseBatchWrite();
 
@@ -137,10 +473,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         long sigOps = 0;
         final boolean enforcePayToScriptHash = block.getTimeSeconds() >= NetworkParameters.BIP16_ENFORCE_TIME;
         
-        if (scriptVerificationExecutor.isShutdown())
-            scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-        
-        List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(block.transactions.size());
+        ScriptVerificationScheduler.Batch scriptChecks = scriptVerificationScheduler.newBatch();
+        PrefetchedOutputs prefetched = takePrefetched(block);
+        // Only worth remembering what this block changes if the next block's outputs are being looked up already.
+        boolean recordChanges = !prefetches.isEmpty();
+        lastConnected = null;
         try {
             if (!params.isCheckpoint(height)) {
                 // BIP30 violator blocks are ones that contain a duplicated transaction. They are all in the
@@ -150,7 +487,10 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     Sha256Hash hash = tx.getHash();
                     // If we already have unspent outputs for this hash, we saw the tx already. Either the block is
                     // being added twice (bug) or the block is a BIP30 violator.
-                    if (blockStore.hasUnspentOutputs(hash, tx.getOutputs().size()))
+                    boolean hasUnspentOutputs = prefetched != null ?
+                            prefetched.hasUnspentOutputs(hash, tx.getOutputs().size()) :
+                            blockStore.hasUnspentOutputs(hash, tx.getOutputs().size());
+                    if (hasUnspentOutputs)
                         throw new VerificationException("Block failed BIP30 test!");
                     if (enforcePayToScriptHash) // We already check non-BIP16 sigops in Block.verifyTransactions(true)
                         sigOps += tx.getSigOpCount();
@@ -168,8 +508,9 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     // outputs.
                     for (int index = 0; index < tx.getInputs().size(); index++) {
                         TransactionInput in = tx.getInputs().get(index);
-                        StoredTransactionOutput prevOut = blockStore.getTransactionOutput(in.getOutpoint().getHash(),
-                                                                                          in.getOutpoint().getIndex());
+                        StoredTransactionOutput prevOut = prefetched != null ?
+                                prefetched.getTransactionOutput(in.getOutpoint()) :
+                                blockStore.getTransactionOutput(in.getOutpoint().getHash(), in.getOutpoint().getIndex());
                         if (prevOut == null)
                             throw new VerificationException("Attempted to spend a non-existent or already spent output!");
                         // Coinbases can't be spent until they mature, to avoid re-orgs destroying entire transaction
@@ -215,38 +556,27 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     totalFees = totalFees.add(valueIn.subtract(valueOut));
                 }
                 
-                if (!isCoinBase) {
+                if (!isCoinBase && checkScripts) {
                     // Because correctlySpends modifies transactions, this must come after we are done with tx
-                    FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifyer(tx, prevOutScripts, enforcePayToScriptHash));
-                    scriptVerificationExecutor.execute(future);
-                    listScriptVerificationResults.add(future);
+                    scriptChecks.add(tx, prevOutScripts, enforcePayToScriptHash);
                 }
             }
             if (totalFees.compareTo(params.MAX_MONEY) > 0 || block.getBlockInflation(height).add(totalFees).compareTo(coinbaseValue) < 0)
                 throw new VerificationException("Transaction fees out of range");
-            for (Future<VerificationException> future : listScriptVerificationResults) {
-                VerificationException e;
-                try {
-                    e = future.get();
-                } catch (InterruptedException thrownE) {
-                    throw new RuntimeException(thrownE); // Shouldn't happen
-                } catch (ExecutionException thrownE) {
-                    log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                    throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                }
-                if (e != null)
-                    throw e;
-            }
+            scriptChecks.verify();
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
-        return new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+        TransactionOutputChanges changes = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
+        if (recordChanges)
+            lastConnected = new BlockChanges(block, changes);
+        return changes;
     }
 
     @Override
@@ -258,6 +588,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
         checkState(lock.isHeldByCurrentThread());
         if (!params.passesCheckpoint(newBlock.getHeight(), newBlock.getHeader().getHash()))
             throw new VerificationException("Block failed checkpoint lockin at " + newBlock.getHeight());
+        lastConnected = null;
         
         blockStore.beginDatabaseBatchWrite();
         StoredUndoableBlock block = blockStore.getUndoBlock(newBlock.getHeader().getHash());
@@ -267,6 +598,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
             throw new PrunedException(newBlock.getHeader().getHash());
         }
         TransactionOutputChanges txOutChanges;
+        ScriptVerificationScheduler.Batch scriptChecks = null;
         try {
             List<Transaction> transactions = block.getTransactions();
             if (transactions != null) {
@@ -284,9 +616,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                 BigInteger totalFees = BigInteger.ZERO;
                 BigInteger coinbaseValue = null;
                 
-                if (scriptVerificationExecutor.isShutdown())
-                    scriptVerificationExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-                List<Future<VerificationException>> listScriptVerificationResults = new ArrayList<Future<VerificationException>>(transactions.size());
+                scriptChecks = scriptVerificationScheduler.newBatch();
                 for(final Transaction tx : transactions) {
                     boolean isCoinBase = tx.isCoinBase();
                     BigInteger valueIn = BigInteger.ZERO;
@@ -339,28 +669,14 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     
                     if (!isCoinBase) {
                         // Because correctlySpends modifies transactions, this must come after we are done with tx
-                        FutureTask<VerificationException> future = new FutureTask<VerificationException>(new Verifyer(tx, prevOutScripts, enforcePayToScriptHash));
-                        scriptVerificationExecutor.execute(future);
-                        listScriptVerificationResults.add(future);
+                        scriptChecks.add(tx, prevOutScripts, enforcePayToScriptHash);
                     }
                 }
                 if (totalFees.compareTo(params.MAX_MONEY) > 0 ||
                         newBlock.getHeader().getBlockInflation(newBlock.getHeight()).add(totalFees).compareTo(coinbaseValue) < 0)
                     throw new VerificationException("Transaction fees out of range");
                 txOutChanges = new TransactionOutputChanges(txOutsCreated, txOutsSpent);
-                for (Future<VerificationException> future : listScriptVerificationResults) {
-                    VerificationException e;
-                    try {
-                        e = future.get();
-                    } catch (InterruptedException thrownE) {
-                        throw new RuntimeException(thrownE); // Shouldn't happen
-                    } catch (ExecutionException thrownE) {
-                        log.error("Script.correctlySpends threw a non-normal exception: " + thrownE.getCause());
-                        throw new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", thrownE);
-                    }
-                    if (e != null)
-                        throw e;
-                }
+                scriptChecks.verify();
             } else {
                 txOutChanges = block.getTxOutChanges();
                 if (!params.isCheckpoint(newBlock.getHeight()))
@@ -375,11 +691,13 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
                     blockStore.removeUnspentTransactionOutput(out);
             }
         } catch (VerificationException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptChecks != null)
+                scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         } catch (BlockStoreException e) {
-            scriptVerificationExecutor.shutdownNow();
+            if (scriptChecks != null)
+                scriptChecks.cancel();
             blockStore.abortDatabaseBatchWrite();
             throw e;
         }
@@ -393,6 +711,7 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     @Override
     protected void disconnectTransactions(StoredBlock oldBlock) throws PrunedException, BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
+        lastConnected = null;
         blockStore.beginDatabaseBatchWrite();
         try {
             StoredUndoableBlock undoBlock = blockStore.getUndoBlock(oldBlock.getHeader().getHash());
@@ -415,6 +734,11 @@ public class FullPrunedBlockChain extends AbstractBlockChain {
     protected void doSetChainHead(StoredBlock chainHead) throws BlockStoreException {
         checkState(lock.isHeldByCurrentThread());
         blockStore.setVerifiedChainHead(chainHead);
+        if (importing) {
+            // importBlocks() commits once the batch is complete.
+            blocksInBatch++;
+            return;
+        }
         blockStore.commitDatabaseBatchWrite();
     }
 
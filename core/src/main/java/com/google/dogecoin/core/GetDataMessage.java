@@ -44,6 +44,15 @@ public class GetDataMessage extends ListMessage {
         super(params, msg, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Deserializes a 'getdata' message that starts offset bytes into the given array.
+     * @see #GetDataMessage(NetworkParameters, byte[], boolean, boolean, int)
+     */
+    public GetDataMessage(NetworkParameters params, byte[] msg, int offset, boolean parseLazy, boolean parseRetain,
+            int length) throws ProtocolException {
+        super(params, msg, offset, parseLazy, parseRetain, length);
+    }
+
     public GetDataMessage(NetworkParameters params) {
         super(params);
     }
@@ -0,0 +1,570 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.store.BlockStore;
+import com.google.dogecoin.store.BlockStoreException;
+import com.google.dogecoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Downloads the block chain headers first, then fetches the blocks from all the peers it is given at once, and
+ * adds them to the chain in order. Used by {@link PeerGroup} when {@link PeerGroup#setHeadersFirstDownload(boolean)}
+ * is set.</p>
+ *
+ * <p>Headers are requested from one peer at a time with getheaders. Each one must connect to the one before and carry
+ * valid proof of work, which covers scrypt and merge mined headers, before its block is asked for. Its target may not
+ * be easier than the network's proof of work limit, nor easier than the header before it by more than one retarget can
+ * make it, so a peer can't have blocks fetched for a run of headers that were cheap to make. The exact difficulty is
+ * checked by the chain when the block is added, as that needs the timestamps of the blocks before it. Headers that pre
+ * date the fast catchup time go into the chain as they are, without their block being fetched.</p>
+ *
+ * <p>Blocks are requested only within a window of headers after the next block the chain needs, so the blocks held
+ * waiting for an earlier one to arrive are bounded. How many are outstanding at each peer is limited by its
+ * {@link RequestWindow}, which adapts to how fast the peer answers, so faster peers are given more. A request that
+ * isn't answered within the stall timeout is given to another peer. Headers are requested only while few are queued,
+ * so memory use doesn't grow with the length of the chain.</p>
+ *
+ * <p>Once the headers run out and every block has been added, {@link #isComplete()} returns true and the peer group
+ * goes back to following the chain with a single download peer.</p>
+ */
+class HeadersFirstDownload {
+    private static final Logger log = LoggerFactory.getLogger(HeadersFirstDownload.class);
+
+    /** How many headers after the next block the chain needs may have their blocks requested. */
+    public static final int DEFAULT_WINDOW = 1024;
+    /** How long a request may go unanswered before it is given to another peer. */
+    public static final long DEFAULT_STALL_TIMEOUT_MSEC = 20 * 1000;
+
+    // Another batch of headers is requested once fewer than this many are queued.
+    private static final int MAX_QUEUED_HEADERS = DEFAULT_WINDOW + HeadersMessage.MAX_HEADERS;
+
+    // A header in the queue, and the block for it once it has arrived.
+    private static class Entry {
+        final Block header;
+        final Sha256Hash hash;
+        final int height;
+        // The peer the block was requested from and when, or null if it is not requested.
+        @Nullable Peer peer;
+        long requestTimeMsec;
+        // The last peer a request for the block stalled at, which isn't asked again while there are others.
+        @Nullable Peer stalledPeer;
+        // The block, a FilteredBlock, or the header itself if the block isn't needed.
+        @Nullable Object block;
+        @Nullable Peer supplier;
+
+        Entry(Block header, int height) {
+            this.header = header;
+            this.hash = header.getHash();
+            this.height = height;
+        }
+    }
+
+    private final ReentrantLock lock = Threading.lock("headersfirst");
+    private final NetworkParameters params;
+    private final AbstractBlockChain chain;
+    private final long fastCatchupTimeSecs;
+    private final boolean useFilteredBlocks;
+    private final int window;
+    private final long stallTimeoutMsec;
+
+    @GuardedBy("lock") private final Set<Peer> peers = new LinkedHashSet<Peer>();
+    // Headers in chain order, oldest first. The first is the next block to go into the chain.
+    @GuardedBy("lock") private final LinkedList<Entry> queue = new LinkedList<Entry>();
+    @GuardedBy("lock") private final Map<Sha256Hash, Entry> entries = new HashMap<Sha256Hash, Entry>();
+    // The hash of the last header queued, or of the chain head before any are.
+    @GuardedBy("lock") private Sha256Hash tipHash;
+    @GuardedBy("lock") @Nullable private Peer headersPeer;
+    @GuardedBy("lock") private long headersRequestTimeMsec;
+    @GuardedBy("lock") private boolean headersRequested, headersCaughtUp;
+    // Set while a thread is adding blocks to the chain, so they go in one at a time and in order.
+    @GuardedBy("lock") private boolean adding;
+
+    HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain, long fastCatchupTimeSecs,
+                         boolean useFilteredBlocks) {
+        this(params, chain, fastCatchupTimeSecs, useFilteredBlocks, DEFAULT_WINDOW, DEFAULT_STALL_TIMEOUT_MSEC);
+    }
+
+    HeadersFirstDownload(NetworkParameters params, AbstractBlockChain chain, long fastCatchupTimeSecs,
+                         boolean useFilteredBlocks, int window, long stallTimeoutMsec) {
+        this.params = params;
+        this.chain = chain;
+        this.fastCatchupTimeSecs = fastCatchupTimeSecs;
+        this.useFilteredBlocks = useFilteredBlocks;
+        this.window = window;
+        this.stallTimeoutMsec = stallTimeoutMsec;
+        this.tipHash = chain.getChainHead().getHeader().getHash();
+    }
+
+    /** Starts using the given peer to download headers and blocks. */
+    void addPeer(Peer peer) {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            if (!peers.add(peer))
+                return;
+            peer.setHeadersFirstDownload(this);
+            sends = makeRequests();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /** Stops using the given peer, and gives whatever was requested from it to the others. */
+    void removePeer(Peer peer) {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            if (!peers.remove(peer))
+                return;
+            peer.setHeadersFirstDownload(null);
+            for (Entry entry : queue) {
+                if (entry.peer == peer) {
+                    peer.getRequestWindow().onCancel();
+                    entry.peer = null;
+                }
+            }
+            if (headersPeer == peer) {
+                headersPeer = null;
+                headersRequested = false;
+            }
+            sends = makeRequests();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    /** Stops using all peers. */
+    void stop() {
+        lock.lock();
+        try {
+            for (Peer peer : peers)
+                peer.setHeadersFirstDownload(null);
+            peers.clear();
+            cancelRequests();
+            queue.clear();
+            entries.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns true once every header the peers had has been downloaded and every block added to the chain. */
+    boolean isComplete() {
+        lock.lock();
+        try {
+            return headersCaughtUp && queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Called by a peer that received headers. Returns false if they weren't asked for, in which case the peer deals
+     * with them as usual.
+     */
+    boolean onHeaders(Peer peer, HeadersMessage m) {
+        List<Block> headers = m.getBlockHeaders();
+        // Hash the whole batch in parallel up front, as in Peer.
+        ScryptHashPipeline hashPipeline = chain.getScryptHashPipeline();
+        lock.lock();
+        try {
+            if (peer != headersPeer || !headersRequested)
+                return false;
+        } finally {
+            lock.unlock();
+        }
+        if (hashPipeline != null)
+            hashPipeline.precompute(headers);
+
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            if (peer != headersPeer || !headersRequested)
+                return true;
+            headersRequested = false;
+            int firstHeight = 0;
+            try {
+                Block prev = null;
+                int prevHeight = 0;
+                if (!queue.isEmpty()) {
+                    prev = queue.getLast().header;
+                    prevHeight = queue.getLast().height;
+                } else if (!headers.isEmpty()) {
+                    // The peer picks the first header from our locator, so it may fork off below the chain head.
+                    StoredBlock stored = chain.getBlockStore().get(headers.get(0).getPrevBlockHash());
+                    if (stored != null) {
+                        prev = stored.getHeader();
+                        prevHeight = stored.getHeight();
+                    }
+                }
+                firstHeight = prevHeight + 1;
+                for (Block header : headers) {
+                    if (prev == null || !header.getPrevBlockHash().equals(prev.getHash()))
+                        throw new VerificationException("Header " + header.getHashAsString() + " doesn't connect");
+                    header.verifyHeader();
+                    checkDifficulty(header, prev, ++prevHeight);
+                    prev = header;
+                }
+            } catch (VerificationException e) {
+                log.warn("{}: Bad headers, asking another peer", peer, e);
+                rotateHeadersPeer();
+                headers = Collections.emptyList();
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+            for (int i = 0; i < headers.size(); i++) {
+                Block header = headers.get(i);
+                Entry entry = new Entry(header, firstHeight + i);
+                if (header.getTimeSeconds() < fastCatchupTimeSecs) {
+                    // No transactions we care about can be in it, so the header is all the chain needs.
+                    entry.block = header;
+                    entry.supplier = peer;
+                }
+                queue.add(entry);
+                entries.put(entry.hash, entry);
+                tipHash = entry.hash;
+            }
+            if (headers.size() < HeadersMessage.MAX_HEADERS && headersPeer == peer) {
+                log.info("{}: Downloaded all headers, {} blocks still to add to the chain", peer, queue.size());
+                headersCaughtUp = true;
+            }
+            sends = makeRequests();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+        addReadyBlocks();
+        return true;
+    }
+
+    /**
+     * Called by a peer that received a {@link Block} or {@link FilteredBlock}. Returns false if it wasn't asked for,
+     * in which case the peer deals with it as usual.
+     */
+    boolean onBlock(Peer peer, Object block, Sha256Hash hash) {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            Entry entry = entries.get(hash);
+            if (entry == null)
+                return false;
+            if (entry.block == null) {
+                // This may come from a peer the request was taken off after it stalled, which is fine.
+                entry.block = block;
+                entry.supplier = peer;
+            }
+            if (entry.peer == peer) {
+                entry.peer.getRequestWindow().onAnswer(entry.requestTimeMsec, ((Message) block).getMessageSize());
+                entry.peer = null;
+            } else if (entry.peer != null) {
+                // Another peer answered first, so the request made of this one is no longer needed.
+                entry.peer.getRequestWindow().onCancel();
+                entry.peer = null;
+            }
+            sends = makeRequests();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+        addReadyBlocks();
+        return true;
+    }
+
+    /**
+     * Gives requests that have gone unanswered for longer than the stall timeout to other peers, and asks another peer
+     * for headers if the headers peer hasn't answered. Called regularly by the peer group.
+     */
+    void checkForStalls() {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            long now = Utils.now().getTime();
+            if (headersRequested && now - headersRequestTimeMsec > stallTimeoutMsec) {
+                log.warn("{}: Headers request stalled, asking another peer", headersPeer);
+                rotateHeadersPeer();
+            }
+            // A peer that stalls usually does so on everything it was asked for, so its window is only halved once
+            // per check, however many of its requests timed out.
+            Set<Peer> stalledPeers = new HashSet<Peer>();
+            for (Entry entry : queue) {
+                if (entry.peer != null && now - entry.requestTimeMsec > stallTimeoutMsec) {
+                    log.info("{}: Request for block {} stalled", entry.peer, entry.hash);
+                    if (stalledPeers.add(entry.peer))
+                        entry.peer.getRequestWindow().onTimeout();
+                    else
+                        entry.peer.getRequestWindow().onCancel();
+                    entry.stalledPeer = entry.peer;
+                    entry.peer = null;
+                }
+            }
+            sends = makeRequests();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+
+    // Rejects a header whose target is easier than the one before it by more than a retarget can make it, or that
+    // changes between retargets under the original algorithm. verifyHeader() has already rejected any target easier
+    // than the network's proof of work limit.
+    private void checkDifficulty(Block header, Block prev, int height) throws VerificationException {
+        // Testnet allows minimum difficulty blocks after a gap, so only the limit applies there.
+        if (params.getId().equals(NetworkParameters.ID_TESTNET))
+            return;
+        boolean newDiffAlgo = height >= params.getDiffChangeTarget();
+        if (!newDiffAlgo && height % params.getInterval() != 0) {
+            if (header.getDifficultyTarget() != prev.getDifficultyTarget())
+                throw new VerificationException("Unexpected change in difficulty at height " + height);
+            return;
+        }
+        // The new algorithm eases the target by at most half again at each block, the original by at most four times.
+        BigInteger prevTarget = prev.getDifficultyTargetAsInteger();
+        BigInteger easiest = newDiffAlgo ? prevTarget.multiply(BigInteger.valueOf(3)).shiftRight(1)
+                                         : prevTarget.shiftLeft(2);
+        if (header.getDifficultyTargetAsInteger().compareTo(easiest) > 0)
+            throw new VerificationException("Header " + header.getHashAsString() + " eases the difficulty too far");
+    }
+
+    @GuardedBy("lock")
+    private void rotateHeadersPeer() {
+        // Move the peer to the back so another one is picked next.
+        Peer peer = headersPeer;
+        if (peer != null && peers.remove(peer))
+            peers.add(peer);
+        headersPeer = null;
+        headersRequested = false;
+    }
+
+    // Works out what to request next. The requests are sent once the lock is released.
+    @GuardedBy("lock")
+    private List<Runnable> makeRequests() {
+        List<Runnable> sends = new ArrayList<Runnable>();
+        if (peers.isEmpty())
+            return sends;
+        long now = Utils.now().getTime();
+        if (!headersCaughtUp && !headersRequested && queue.size() < MAX_QUEUED_HEADERS) {
+            headersPeer = pickHeadersPeer();
+            headersRequested = true;
+            headersRequestTimeMsec = now;
+            final Peer peer = headersPeer;
+            final GetHeadersMessage getheaders = new GetHeadersMessage(params, buildLocator(), Sha256Hash.ZERO_HASH);
+            sends.add(new Runnable() {
+                @Override
+                public void run() {
+                    peer.sendMessage(getheaders);
+                }
+            });
+        }
+        Map<Peer, GetDataMessage> getdatas = new HashMap<Peer, GetDataMessage>();
+        Iterator<Peer> candidates = null;
+        int index = 0;
+        for (Entry entry : queue) {
+            if (index++ >= window)
+                break;
+            if (entry.block != null || entry.peer != null)
+                continue;
+            // Hand out requests to each peer in turn, skipping those whose window is full, and the one the request
+            // last stalled at unless it is the only one with room.
+            Peer chosen = null, fallback = null;
+            for (int tries = 0; tries < peers.size() && chosen == null; tries++) {
+                if (candidates == null || !candidates.hasNext())
+                    candidates = peers.iterator();
+                Peer candidate = candidates.next();
+                if (candidate.getRequestWindow().available() <= 0)
+                    continue;
+                if (candidate == entry.stalledPeer)
+                    fallback = candidate;
+                else
+                    chosen = candidate;
+            }
+            if (chosen == null)
+                chosen = fallback;
+            if (chosen == null)
+                break;  // Every peer is busy.
+            chosen.getRequestWindow().onRequest();
+            entry.peer = chosen;
+            entry.requestTimeMsec = now;
+            GetDataMessage getdata = getdatas.get(entry.peer);
+            if (getdata == null) {
+                getdata = new GetDataMessage(params);
+                getdatas.put(entry.peer, getdata);
+            }
+            if (usesFilteredBlocks(entry.peer))
+                getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, entry.hash));
+            else
+                getdata.addBlock(entry.hash);
+        }
+        for (final Map.Entry<Peer, GetDataMessage> getdata : getdatas.entrySet()) {
+            sends.add(new Runnable() {
+                @Override
+                public void run() {
+                    getdata.getKey().sendMessage(getdata.getValue());
+                    // A ping marks the end of the transactions that follow the last filtered block, see Peer.
+                    if (usesFilteredBlocks(getdata.getKey()))
+                        getdata.getKey().sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+                }
+            });
+        }
+        return sends;
+    }
+
+    @GuardedBy("lock")
+    private void cancelRequests() {
+        for (Entry entry : queue) {
+            if (entry.peer != null)
+                entry.peer.getRequestWindow().onCancel();
+        }
+    }
+
+    // As in Peer, whole blocks are fetched from peers that can't filter them.
+    private boolean usesFilteredBlocks(Peer peer) {
+        return useFilteredBlocks && peer.getPeerVersionMessage().isBloomFilteringSupported();
+    }
+
+    @GuardedBy("lock")
+    private Peer pickHeadersPeer() {
+        // The peer that claims the longest chain, or the first of those that claim the same.
+        Peer best = null;
+        for (Peer peer : peers) {
+            if (best == null || peer.getBestHeight() > best.getBestHeight())
+                best = peer;
+        }
+        return checkNotNull(best);
+    }
+
+    @GuardedBy("lock")
+    private List<Sha256Hash> buildLocator() {
+        // The last header we have, then the top of the chain and the genesis block as in Peer.blockChainDownloadLocked,
+        // so the peer can find where we are even if the chain moved on by itself.
+        List<Sha256Hash> locator = new ArrayList<Sha256Hash>(102);
+        StoredBlock cursor = chain.getChainHead();
+        if (!tipHash.equals(cursor.getHeader().getHash()))
+            locator.add(tipHash);
+        BlockStore store = chain.getBlockStore();
+        for (int i = 100; cursor != null && i > 0; i--) {
+            locator.add(cursor.getHeader().getHash());
+            try {
+                cursor = cursor.getPrev(store);
+            } catch (BlockStoreException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (cursor != null)
+            locator.add(params.getGenesisBlock().getHash());
+        return locator;
+    }
+
+    private static void send(List<Runnable> sends) {
+        for (Runnable send : sends) {
+            try {
+                send.run();
+            } catch (Exception e) {
+                // The peer is going away, and what was asked of it will be given to another once it has.
+                log.warn("Failed to send request", e);
+            }
+        }
+    }
+
+    // Adds the blocks at the front of the queue to the chain for as long as they have arrived.
+    private void addReadyBlocks() {
+        lock.lock();
+        try {
+            if (adding)
+                return;
+            adding = true;
+        } finally {
+            lock.unlock();
+        }
+        boolean stopped = false;
+        try {
+            while (true) {
+                Entry entry;
+                lock.lock();
+                try {
+                    entry = queue.peek();
+                    if (entry == null || entry.block == null) {
+                        // Cleared under the same lock as the check, so a block arriving now is added by its own thread.
+                        adding = false;
+                        stopped = true;
+                        return;
+                    }
+                    queue.remove();
+                    entries.remove(entry.hash);
+                } finally {
+                    lock.unlock();
+                }
+                boolean connected;
+                try {
+                    if (entry.block instanceof FilteredBlock)
+                        connected = chain.add((FilteredBlock) entry.block);
+                    else
+                        connected = chain.add((Block) entry.block);
+                } catch (Exception e) {
+                    log.warn("{}: Block {} failed to go into the chain", entry.supplier, entry.hash, e);
+                    connected = false;
+                }
+                if (connected) {
+                    checkNotNull(entry.supplier).invokeOnBlocksDownloaded(entry.header);
+                } else {
+                    restart();
+                }
+            }
+        } finally {
+            if (!stopped) {
+                // A listener or the restart threw, so let the next block to arrive carry on adding.
+                lock.lock();
+                try {
+                    adding = false;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    // Something went wrong adding a block, eg the chain moved onto another fork underneath us or a peer sent junk,
+    // so throw away what is queued and start again from the chain head with another headers peer.
+    private void restart() {
+        List<Runnable> sends;
+        lock.lock();
+        try {
+            log.warn("Restarting headers first download from the chain head");
+            cancelRequests();
+            queue.clear();
+            entries.clear();
+            tipHash = chain.getChainHead().getHeader().getHash();
+            headersCaughtUp = false;
+            rotateHeadersPeer();
+            sends = makeRequests();
+        } finally {
+            lock.unlock();
+        }
+        send(sends);
+    }
+}
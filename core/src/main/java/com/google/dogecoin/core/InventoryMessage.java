@@ -48,6 +48,15 @@ public class InventoryMessage extends ListMessage {
         super(params, msg, parseLazy, parseRetain, length);
     }
 
+    /**
+     * Deserializes an 'inv' message that starts offset bytes into the given array.
+     * @see #InventoryMessage(NetworkParameters, byte[], boolean, boolean, int)
+     */
+    public InventoryMessage(NetworkParameters params, byte[] msg, int offset, boolean parseLazy, boolean parseRetain,
+            int length) throws ProtocolException {
+        super(params, msg, offset, parseLazy, parseRetain, length);
+    }
+
     public InventoryMessage(NetworkParameters params) {
         super(params);
     }
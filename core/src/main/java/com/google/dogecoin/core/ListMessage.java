@@ -44,6 +44,11 @@ public abstract class ListMessage extends Message {
         super(params, msg, 0, parseLazy, parseRetain, length);
     }
 
+    public ListMessage(NetworkParameters params, byte[] msg, int offset, boolean parseLazy, boolean parseRetain,
+                       int length) throws ProtocolException {
+        super(params, msg, offset, parseLazy, parseRetain, length);
+    }
+
 
     public ListMessage(NetworkParameters params) {
         super(params);
@@ -60,6 +60,9 @@ public abstract class Message implements Serializable {
     protected transient int protocolVersion;
 
     protected transient byte[] checksum;
+    // The payload as last serialized by BitcoinSerializer#serialize(Message), kept along with the checksum until the
+    // message next changes so a message relayed to many peers is only serialized and hashed once.
+    protected transient byte[] serializedPayload;
 
     // This will be saved by subclasses that implement Serializable.
     protected NetworkParameters params;
@@ -217,6 +220,7 @@ public abstract class Message implements Serializable {
     protected void unCache() {
         maybeParse();
         checksum = null;
+        serializedPayload = null;
         bytes = null;
         recached = false;
     }
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.channel.Channels;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.channel.SimpleChannelUpstreamHandler;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * <p>Splits the bytes arriving from a peer into messages, and passes each message upstream once all of it has
+ * arrived.</p>
+ *
+ * <p>Bytes are consumed as they arrive: anything before the packet magic is skipped, the header is parsed once all of
+ * it is here, and the payload is then copied into an array of the size the header gives until it is full. So a large
+ * block that arrives in many small segments is copied once, rather than parsed again from the start on every segment
+ * as it would be by a decoder that replays. The checksum is worked out as the payload arrives too, so the payload isn't
+ * read a second time to hash it.</p>
+ *
+ * <p>When all of a payload is already in a buffer backed by an array, as small messages like inv and tx usually are,
+ * it isn't copied at all: it is hashed and parsed where it lies, see
+ * {@link BitcoinSerializer#deserializePayload(BitcoinSerializer.BitcoinPacketHeader, byte[], int, byte[])}. So the
+ * buffers passed in must not be reused afterwards. Netty allocates a new one for every read, so those are fine.</p>
+ *
+ * <p>Each connection needs its own instance, as it holds the message that is partly received.</p>
+ */
+public class MessageFrameDecoder extends SimpleChannelUpstreamHandler {
+    // The packet magic, then the command, size and checksum.
+    private static final int HEADER_LENGTH = 4 + 12 + 4 + 4;
+
+    private final BitcoinSerializer serializer;
+    private final byte[] magic = new byte[4];
+    private final MessageDigest digest;
+
+    private final byte[] headerBytes = new byte[HEADER_LENGTH];
+    private int headerCursor;
+    @Nullable private BitcoinSerializer.BitcoinPacketHeader header;
+    @Nullable private byte[] payload;
+    private int payloadCursor;
+
+    public MessageFrameDecoder(NetworkParameters params, BitcoinSerializer serializer) {
+        this.serializer = serializer;
+        Utils.uint32ToByteArrayBE(params.getPacketMagic(), magic, 0);
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        if (!(e.getMessage() instanceof ChannelBuffer)) {
+            ctx.sendUpstream(e);
+            return;
+        }
+        ChannelBuffer buffer = (ChannelBuffer) e.getMessage();
+        while (buffer.readable()) {
+            Message message = decode(buffer);
+            if (message != null)
+                Channels.fireMessageReceived(ctx, message, e.getRemoteAddress());
+        }
+    }
+
+    /**
+     * Reads bytes from the buffer until either a message is complete, which is then returned, or the buffer is empty,
+     * in which case null is returned and the bytes read so far are kept for the next call.
+     *
+     * @throws ProtocolException if the message is too large, its checksum doesn't match or it can't be parsed. The
+     * message is dropped, and the next call starts looking for the next one.
+     */
+    @Nullable
+    public Message decode(ChannelBuffer buffer) throws ProtocolException {
+        if (header == null) {
+            // Satoshi's implementation ignores garbage before the magic bytes, so we do the same.
+            while (headerCursor < magic.length) {
+                if (!buffer.readable())
+                    return null;
+                byte b = buffer.readByte();
+                if (b == magic[headerCursor])
+                    headerBytes[headerCursor++] = b;
+                else
+                    headerCursor = b == magic[0] ? 1 : 0;
+            }
+            int length = Math.min(buffer.readableBytes(), HEADER_LENGTH - headerCursor);
+            buffer.readBytes(headerBytes, headerCursor, length);
+            headerCursor += length;
+            if (headerCursor < HEADER_LENGTH)
+                return null;
+            headerCursor = 0;
+            try {
+                header = serializer.deserializeHeader(
+                        new ByteArrayInputStream(headerBytes, magic.length, HEADER_LENGTH - magic.length));
+            } catch (IOException e) {
+                throw new RuntimeException(e);  // Cannot happen, all of the header is in the array.
+            }
+            if (buffer.hasArray() && buffer.readableBytes() >= header.size) {
+                BitcoinSerializer.BitcoinPacketHeader completeHeader = header;
+                header = null;
+                int offset = buffer.arrayOffset() + buffer.readerIndex();
+                buffer.skipBytes(completeHeader.size);
+                byte[] hash = Utils.doubleDigest(buffer.array(), offset, completeHeader.size);
+                return serializer.deserializePayload(completeHeader, buffer.array(), offset, hash);
+            }
+            payload = new byte[header.size];
+            payloadCursor = 0;
+            digest.reset();
+        }
+        int length = Math.min(buffer.readableBytes(), payload.length - payloadCursor);
+        buffer.readBytes(payload, payloadCursor, length);
+        digest.update(payload, payloadCursor, length);
+        payloadCursor += length;
+        if (payloadCursor < payload.length)
+            return null;
+        BitcoinSerializer.BitcoinPacketHeader completeHeader = header;
+        byte[] completePayload = payload;
+        header = null;
+        payload = null;
+        byte[] hash = digest.digest(digest.digest());
+        return serializer.deserializePayload(completeHeader, completePayload, 0, hash);
+    }
+}
@@ -73,6 +73,9 @@ public class Peer {
     // primary peer. This is to avoid redundant work and concurrency problems with downloading the same chain
     // in parallel.
     private volatile boolean vDownloadData;
+    // Set by PeerGroup while this peer is one of several the chain is downloaded from at once. Headers and blocks
+    // it asked for are handed to it, instead of being dealt with here.
+    @Nullable private volatile HeadersFirstDownload vHeadersFirstDownload;
     // The version data to announce to the other side of the connections we make: useful for setting our "user agent"
     // equivalent and other things.
     private final VersionMessage versionMessage;
@@ -110,7 +113,14 @@ public class Peer {
     //
     // It is important to avoid a nasty edge case where we can end up with parallel chain downloads proceeding
     // simultaneously if we were to receive a newly solved block whilst parts of the chain are streaming to us.
-    private final HashSet<Sha256Hash> pendingBlockDownloads = new HashSet<Sha256Hash>();
+    //
+    // Maps each hash to when it was requested. No more are requested at once than requestWindow allows: the rest of
+    // those announced wait in queuedBlockDownloads, in order, and are requested as the earlier ones arrive. So a peer
+    // isn't sent a getdata for every block of a long inv at once, and blocks are requested no faster than the chain
+    // takes them.
+    @GuardedBy("lock") private final LinkedHashMap<Sha256Hash, Long> pendingBlockDownloads = new LinkedHashMap<Sha256Hash, Long>();
+    @GuardedBy("lock") private final LinkedHashSet<Sha256Hash> queuedBlockDownloads = new LinkedHashSet<Sha256Hash>();
+    private final RequestWindow requestWindow = new RequestWindow();
     // The lowest version number we're willing to accept. Lower than this will result in an immediate disconnect.
     private volatile int vMinProtocolVersion = FilteredBlock.MIN_PROTOCOL_VERSION;
     // A string to be checked inside the subversion to distinguis true 70001 nodes from 1.4.2 nodes.
@@ -422,6 +432,9 @@ public class Peer {
         // likely when we've requested them as part of chain download using fast catchup. We need to add each block to
         // the chain if it pre-dates the fast catchup time. If we go past it, we can stop processing the headers and
         // request the full blocks from that point on instead.
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null && headersFirstDownload.onHeaders(this, m))
+            return;
         boolean downloadBlockBodies;
         long fastCatchupTimeSecs;
 
@@ -438,6 +451,11 @@ public class Peer {
             lock.unlock();
         }
 
+        // Hash the whole batch in parallel up front, so the chain lock is only taken for the cheap checks below.
+        ScryptHashPipeline hashPipeline = blockChain.getScryptHashPipeline();
+        if (hashPipeline != null && !downloadBlockBodies)
+            hashPipeline.precompute(m.getBlockHeaders());
+
         try {
             checkState(!downloadBlockBodies, toString());
             for (int i = 0; i < m.getBlockHeaders().size(); i++) {
@@ -518,6 +536,11 @@ public class Peer {
 
         // Check a few basic syntax issues to ensure the received TX isn't nonsense.
         tx.verify();
+        // A full node checks the scripts now, so that when the transaction is mined its signatures are already in the
+        // signature cache and the block connects faster. That takes the chain lock and does the ECDSA work, so it's
+        // done on another thread rather than holding up this peer's messages.
+        if (blockChain instanceof FullPrunedBlockChain)
+            ((FullPrunedBlockChain) blockChain).verifyUnconfirmedTransactionLater(tx);
         final Transaction fTx;
         lock.lock();
         try {
@@ -769,12 +792,15 @@ public class Peer {
             log.warn("Received block but was not configured with an AbstractBlockChain");
             return;
         }
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null && headersFirstDownload.onBlock(this, m, m.getHash()))
+            return;
+        blockDownloaded(m.getHash(), m);
         // Did we lose download peer status after requesting block data?
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHashAsString());
             return;
         }
-        pendingBlockDownloads.remove(m.getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             if (blockChain.add(m)) {
@@ -825,6 +851,10 @@ public class Peer {
         if (log.isDebugEnabled()) {
             log.debug("{}: Received broadcast filtered block {}", vAddress, m.getHash().toString());
         }
+        HeadersFirstDownload headersFirstDownload = vHeadersFirstDownload;
+        if (headersFirstDownload != null && headersFirstDownload.onBlock(this, m, m.getHash()))
+            return;
+        blockDownloaded(m.getHash(), m);
         if (!vDownloadData) {
             log.debug("{}: Received block we did not ask for: {}", vAddress, m.getHash().toString());
             return;
@@ -836,7 +866,6 @@ public class Peer {
         // Note that we currently do nothing about peers which maliciously do not include transactions which
         // actually match our filter or which simply do not send us all the transactions we need: it can be fixed
         // by cross-checking peers against each other.
-        pendingBlockDownloads.remove(m.getBlockHeader().getHash());
         try {
             // Otherwise it's a block sent to us because the peer thought we needed it, so add it to the block chain.
             // The FilteredBlock m here contains a list of hashes, and may contain Transaction objects for a subset
@@ -891,6 +920,108 @@ public class Peer {
         }
     }
 
+    // Records that a block requested as part of chain download arrived, and requests more of those waiting for room in
+    // the request window.
+    private void blockDownloaded(Sha256Hash hash, Message m) throws IOException {
+        GetDataMessage getdata = new GetDataMessage(params);
+        boolean pingAfterGetData;
+        lock.lock();
+        try {
+            Long requestTimeMsec = pendingBlockDownloads.remove(hash);
+            if (requestTimeMsec == null)
+                return;
+            requestWindow.onAnswer(requestTimeMsec, m.getMessageSize());
+            // Refill once half the window is free rather than as each block arrives, so there's one getdata (and for
+            // filtered blocks one ping) per batch of blocks instead of per block.
+            if (!pendingBlockDownloads.isEmpty() && requestWindow.available() * 2 < requestWindow.getSize())
+                return;
+            pingAfterGetData = requestQueuedBlocksLocked(getdata);
+        } finally {
+            lock.unlock();
+        }
+        sendQueuedBlockRequests(getdata, pingAfterGetData);
+    }
+
+    private void sendQueuedBlockRequests(GetDataMessage getdata, boolean pingAfterGetData) {
+        if (!getdata.getItems().isEmpty())
+            sendMessage(getdata);
+        if (pingAfterGetData)
+            sendMessage(new Ping((long) (Math.random() * Long.MAX_VALUE)));
+    }
+
+    /** Requests as many of the blocks waiting for room in the request window as it now allows. */
+    void requestQueuedBlocks() {
+        GetDataMessage getdata = new GetDataMessage(params);
+        boolean pingAfterGetData;
+        lock.lock();
+        try {
+            pingAfterGetData = requestQueuedBlocksLocked(getdata);
+        } finally {
+            lock.unlock();
+        }
+        sendQueuedBlockRequests(getdata, pingAfterGetData);
+    }
+
+    /**
+     * Returns true if a block requested from this peer to download the chain has gone unanswered for longer than the
+     * given time. Those requests are given up on and the request window is halved. The blocks go back to the front of
+     * the queue, so they are downloaded from another peer if the caller switches to one, or can be asked for again with
+     * {@link #requestQueuedBlocks()} if there is no other.
+     */
+    boolean checkForStalledBlockDownloads(long timeoutMsec) {
+        lock.lock();
+        try {
+            long now = Utils.now().getTime();
+            List<Sha256Hash> stalled = new ArrayList<Sha256Hash>();
+            // Oldest first.
+            Iterator<Map.Entry<Sha256Hash, Long>> it = pendingBlockDownloads.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Sha256Hash, Long> entry = it.next();
+                if (now - entry.getValue() <= timeoutMsec)
+                    break;
+                log.info("{}: Request for block {} stalled", vAddress, entry.getKey());
+                it.remove();
+                // The peer has most likely stalled on all of them at once, so only halve the window for the first.
+                if (stalled.isEmpty())
+                    requestWindow.onTimeout();
+                else
+                    requestWindow.onCancel();
+                stalled.add(entry.getKey());
+            }
+            if (stalled.isEmpty())
+                return false;
+            stalled.addAll(queuedBlockDownloads);
+            queuedBlockDownloads.clear();
+            queuedBlockDownloads.addAll(stalled);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Moves as many queued blocks as the request window has room for into the getdata. Returns true if they are
+    // filtered blocks, which need a ping after them.
+    @GuardedBy("lock")
+    private boolean requestQueuedBlocksLocked(GetDataMessage getdata) {
+        if (!vDownloadData) {
+            queuedBlockDownloads.clear();
+            return false;
+        }
+        boolean filtered = vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks;
+        long now = Utils.now().getTime();
+        boolean requested = false;
+        Iterator<Sha256Hash> it = queuedBlockDownloads.iterator();
+        for (int available = requestWindow.available(); available > 0 && it.hasNext(); available--) {
+            Sha256Hash hash = it.next();
+            it.remove();
+            getdata.addItem(new InventoryItem(filtered ? InventoryItem.Type.FilteredBlock : InventoryItem.Type.Block, hash));
+            pendingBlockDownloads.put(hash, now);
+            requestWindow.onRequest();
+            requested = true;
+        }
+        return filtered && requested;
+    }
+
     private boolean maybeHandleRequestedData(Message m) {
         boolean found = false;
         Sha256Hash hash = m.getHash();
@@ -905,7 +1036,7 @@ public class Peer {
         return found;
     }
 
-    private void invokeOnBlocksDownloaded(final Block m) {
+    void invokeOnBlocksDownloaded(final Block m) {
         // It is possible for the peer block height difference to be negative when blocks have been solved and broadcast
         // since the time we first connected to the peer. However, it's weird and unexpected to receive a callback
         // with negative "blocks left" in this case, so we clamp to zero so the API user doesn't have to think about it.
@@ -1014,17 +1145,11 @@ public class Peer {
                         // part of chain download with newly announced blocks, so it should always be taken care of by
                         // the duplicate check in blockChainDownloadLocked(). But the satoshi client may change in future so
                         // it's better to be safe here.
-                        if (!pendingBlockDownloads.contains(item.hash)) {
-                            if (vPeerVersionMessage.isBloomFilteringSupported() && useFilteredBlocks) {
-                                getdata.addItem(new InventoryItem(InventoryItem.Type.FilteredBlock, item.hash));
-                                pingAfterGetData = true;
-                            } else {
-                                getdata.addItem(item);
-                            }
-                            pendingBlockDownloads.add(item.hash);
-                        }
+                        if (!pendingBlockDownloads.containsKey(item.hash))
+                            queuedBlockDownloads.add(item.hash);
                     }
                 }
+                pingAfterGetData = requestQueuedBlocksLocked(getdata);
                 // If we're downloading the chain, doing a getdata on the last block we were told about will cause the
                 // peer to advertize the head block to us in a single-item inv. When we download THAT, it will be an
                 // orphan block, meaning we'll re-enter blockChainDownloadLocked() to trigger another getblocks between the
@@ -1350,6 +1475,57 @@ public class Peer {
         }
     }
 
+    /** Returns how many blocks this peer has sent that were requested from it to download the chain. */
+    public long getBlocksDownloaded() {
+        return requestWindow.getBlocksReceived();
+    }
+
+    /**
+     * Returns how many blocks a second this peer sent over the last few that were requested from it to download the
+     * chain, or zero if not enough have arrived yet to tell.
+     */
+    public double getBlockDownloadRate() {
+        return requestWindow.getBlocksPerSecond();
+    }
+
+    /** Returns how many bytes a second the blocks counted by {@link #getBlockDownloadRate()} amounted to. */
+    public double getBlockDownloadByteRate() {
+        return requestWindow.getBytesPerSecond();
+    }
+
+    /**
+     * Returns a moving average of the milliseconds between requesting a block from this peer and receiving it, or zero
+     * if none have been received yet. Unlike {@link #getPingTime()} this includes the time spent waiting for earlier
+     * blocks to be sent.
+     */
+    public long getBlockRequestLatency() {
+        return requestWindow.getAverageLatencyMsec();
+    }
+
+    /**
+     * Returns how many blocks may currently be requested from this peer at once. This adapts to how quickly the peer
+     * sends them, up to {@link #getMaxBlocksInFlight()}.
+     */
+    public int getBlocksInFlightWindow() {
+        return requestWindow.getSize();
+    }
+
+    /** Returns the most blocks that may be requested from this peer at once. */
+    public int getMaxBlocksInFlight() {
+        return requestWindow.getMaxSize();
+    }
+
+    /**
+     * Sets the most blocks that may be requested from this peer at once while downloading the chain. Defaults to 128.
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        requestWindow.setMaxSize(maxBlocksInFlight);
+    }
+
+    RequestWindow getRequestWindow() {
+        return requestWindow;
+    }
+
     private void processPong(Pong m) {
         // Iterates over a snapshot of the list, so we can run unlocked here.
         for (PendingPing ping : pendingPings) {
@@ -1398,6 +1574,14 @@ public class Peer {
         this.vDownloadData = downloadData;
     }
 
+    /**
+     * Hands headers and blocks that the given download asked this peer for to it, or stops doing so if null. Used by
+     * {@link PeerGroup} when downloading the chain from several peers at once.
+     */
+    void setHeadersFirstDownload(@Nullable HeadersFirstDownload download) {
+        this.vHeadersFirstDownload = download;
+    }
+
     /**
      * @return the IP address and port of peer.
      */
@@ -89,6 +89,10 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     @GuardedBy("lock") private Peer downloadPeer;
     // Callback for events related to chain download
     @GuardedBy("lock") private PeerEventListener downloadListener;
+    // Whether to download the chain from all peers at once, see setHeadersFirstDownload, and the download if one is
+    // in progress.
+    @GuardedBy("lock") private boolean useHeadersFirstDownload;
+    @GuardedBy("lock") @Nullable private HeadersFirstDownload headersFirstDownload;
     // Callbacks for events related to peer connection/disconnection
     private final CopyOnWriteArrayList<ListenerRegistration<PeerEventListener>> peerEventListeners;
     // Peer discovery sources, will be polled occasionally if there aren't enough inactives.
@@ -110,6 +114,11 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     /** How many milliseconds to wait after receiving a pong before sending another ping. */
     public static final long DEFAULT_PING_INTERVAL_MSEC = 2000;
     private long pingIntervalMsec = DEFAULT_PING_INTERVAL_MSEC;
+    // How often the chain download is checked for stalled requests, and a headers first download for whether it has
+    // finished.
+    private static final long DOWNLOAD_CHECK_INTERVAL_MSEC = 1000;
+    // The most blocks that may be requested from each peer at once.
+    @GuardedBy("lock") private int maxBlocksInFlight = RequestWindow.DEFAULT_MAX_SIZE;
 
     private final NetworkParameters params;
     private final AbstractBlockChain chain;
@@ -575,6 +584,17 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
     protected void startUp() throws Exception {
         // This is run in a background thread by the AbstractIdleService implementation.
         vPingTimer = new Timer("Peer pinging thread", true);
+        vPingTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    checkBlockChainDownload();
+                } catch (Exception e) {
+                    // Don't let it take down the timer, which the pings run on too.
+                    log.error("Exception whilst checking chain download", e);
+                }
+            }
+        }, DOWNLOAD_CHECK_INTERVAL_MSEC, DOWNLOAD_CHECK_INTERVAL_MSEC);
         // Bring up the requested number of connections. If a connect attempt fails,
         // new peers will be tried until there is a success, so just calling connectToAnyPeer for the wanted number
         // of peers is sufficient.
@@ -807,6 +827,11 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         lock.lock();
         try {
             this.downloadListener = listener;
+            if (useHeadersFirstDownload && chain != null) {
+                if (headersFirstDownload == null)
+                    startHeadersFirstDownload();
+                return;
+            }
             // TODO: be more nuanced about which peer to download from.  We can also try
             // downloading from multiple peers and handle the case when a new peer comes along
             // with a longer chain after we thought we were done.
@@ -818,6 +843,108 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         }
     }
 
+    /**
+     * <p>If set, {@link #startBlockChainDownload(PeerEventListener)} downloads the headers of the chain first, then
+     * fetches the blocks (or filtered blocks, once a Bloom filter is set) from every connected peer at once rather than
+     * all from one. This is much faster when catching up on a long stretch of the chain, as no one peer's upload speed
+     * or latency limits the download. Blocks are still added to the chain in order.</p>
+     *
+     * <p>Once the chain has caught up, a single download peer is chosen to follow it as usual. Defaults to false.
+     * Call this before starting block chain download.</p>
+     */
+    public void setHeadersFirstDownload(boolean headersFirstDownload) {
+        lock.lock();
+        try {
+            this.useHeadersFirstDownload = headersFirstDownload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void startHeadersFirstDownload() {
+        log.info("Starting headers first chain download from {} peers", peers.size());
+        // No one peer fetches the blocks it hears about while the download is going on.
+        setDownloadPeer(null);
+        headersFirstDownload = new HeadersFirstDownload(params, chain, fastCatchupTimeSecs, bloomFilter != null);
+        boolean started = false;
+        for (Peer peer : peers) {
+            addToHeadersFirstDownload(peer, !started);
+            started = true;
+        }
+    }
+
+    @GuardedBy("lock")
+    private void addToHeadersFirstDownload(Peer peer, boolean first) {
+        peer.addEventListener(downloadListener, Threading.SAME_THREAD);
+        if (first && downloadListener != null) {
+            // Peer.startBlockChainDownload does this for the usual download.
+            downloadListener.onChainDownloadStarted(peer, Math.max(0, peer.getPeerBlockHeightDifference()));
+        }
+        checkNotNull(headersFirstDownload).addPeer(peer);
+    }
+
+    /**
+     * Gives requests for blocks that have stalled to other peers. When downloading from a single peer that means
+     * switching to another one. A headers first download goes back to a single download peer once it has finished.
+     * Called regularly on the ping timer.
+     */
+    void checkBlockChainDownload() {
+        HeadersFirstDownload download;
+        lock.lock();
+        try {
+            download = headersFirstDownload;
+            if (download == null) {
+                checkDownloadPeerStalled();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        download.checkForStalls();
+        if (!download.isComplete())
+            return;
+        lock.lock();
+        try {
+            if (headersFirstDownload != download)
+                return;
+            log.info("Headers first chain download finished");
+            for (Peer peer : peers) {
+                log.info("{}: Sent {} blocks, last at {} blocks/sec, {} KB/sec, {} msec latency", peer,
+                        peer.getBlocksDownloaded(), String.format("%.1f", peer.getBlockDownloadRate()),
+                        (long) peer.getBlockDownloadByteRate() / 1024, peer.getBlockRequestLatency());
+            }
+            download.stop();
+            headersFirstDownload = null;
+            for (Peer peer : peers)
+                peer.removeEventListener(downloadListener);
+            // Anything solved since the headers were downloaded is fetched the usual way.
+            Peer newDownloadPeer = selectDownloadPeer(peers);
+            if (newDownloadPeer != null)
+                startBlockChainDownloadFromPeer(newDownloadPeer);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private void checkDownloadPeerStalled() {
+        if (downloadPeer == null || downloadListener == null || chain == null)
+            return;
+        if (!downloadPeer.checkForStalledBlockDownloads(HeadersFirstDownload.DEFAULT_STALL_TIMEOUT_MSEC))
+            return;
+        List<Peer> others = new ArrayList<Peer>(peers);
+        others.remove(downloadPeer);
+        Peer newDownloadPeer = selectDownloadPeer(others);
+        if (newDownloadPeer == null) {
+            // Nobody else to ask, so ask the same peer again for what it was sent before.
+            downloadPeer.requestQueuedBlocks();
+            return;
+        }
+        log.warn("{}: Block download stalled, switching to {}", downloadPeer, newDownloadPeer);
+        startBlockChainDownloadFromPeer(newDownloadPeer);
+    }
+
     /**
      * Download the blockchain from peers. Convenience that uses a {@link DownloadListener} for you.<p>
      * 
@@ -854,12 +981,15 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             }
             // Link the peer to the memory pool so broadcast transactions have their confidence levels updated.
             peer.setDownloadData(false);
+            peer.setMaxBlocksInFlight(maxBlocksInFlight);
             // TODO: The peer should calculate the fast catchup time from the added wallets here.
             for (Wallet wallet : wallets)
                 peer.addWallet(wallet);
             // Re-evaluate download peers.
             Peer newDownloadPeer = selectDownloadPeer(peers);
-            if (downloadPeer != newDownloadPeer) {
+            if (headersFirstDownload != null) {
+                addToHeadersFirstDownload(peer, peers.size() == 1);
+            } else if (downloadPeer != newDownloadPeer) {
                 setDownloadPeer(newDownloadPeer);
                 boolean shouldDownloadChain = downloadListener != null && chain != null;
                 if (shouldDownloadChain) {
@@ -1026,6 +1156,8 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
             pendingPeers.remove(peer);
             peers.remove(peer);
             log.info("{}: Peer died", peer.getAddress());
+            if (headersFirstDownload != null)
+                headersFirstDownload.removePeer(peer);
             if (peer == downloadPeer) {
                 log.info("Download peer died. Picking a new one.");
                 setDownloadPeer(null);
@@ -1310,6 +1442,22 @@ public class PeerGroup extends AbstractIdleService implements TransactionBroadca
         }
     }
 
+    /**
+     * Sets the most blocks that may be requested from each peer at once while downloading the chain. Fewer are
+     * requested from peers that don't send them quickly enough to need that many, see
+     * {@link Peer#getBlocksInFlightWindow()}. Defaults to 128.
+     */
+    public void setMaxBlocksInFlight(int maxBlocksInFlight) {
+        lock.lock();
+        try {
+            this.maxBlocksInFlight = maxBlocksInFlight;
+            for (Peer peer : peers)
+                peer.setMaxBlocksInFlight(maxBlocksInFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * If a peer is connected to that claims to speak a protocol version lower than the given version, it will
      * be disconnected and another one will be tried instead.
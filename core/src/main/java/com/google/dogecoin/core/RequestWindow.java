@@ -0,0 +1,241 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.utils.Threading;
+import net.jcip.annotations.GuardedBy;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Decides how many blocks may be requested from a peer at once, and measures how fast the peer sends them. Each
+ * {@link Peer} has one, used by whichever download is asking it for blocks.</p>
+ *
+ * <p>The window is sized to cover the round trip at the rate the peer is delivering blocks, with as much again to
+ * spare so the peer never sits idle. It grows while the peer keeps up with everything asked of it, and shrinks once
+ * answers come back much slower than the fastest one seen, which means requests are queueing up at the peer rather
+ * than being sent. So a slow peer isn't handed blocks that faster ones could send first. It is halved when a request
+ * times out.</p>
+ */
+class RequestWindow {
+    /** How many blocks may be requested from a peer at once before anything is known about it. */
+    public static final int DEFAULT_INITIAL_SIZE = 16;
+    /** The most blocks that may be requested from a peer at once, however fast it is. */
+    public static final int DEFAULT_MAX_SIZE = 128;
+    private static final int MIN_SIZE = 2;
+    // How many of the last answers the rates are worked out over.
+    private static final int RATE_WINDOW = 20;
+
+    private final ReentrantLock lock = Threading.lock("requestwindow");
+    @GuardedBy("lock") private int size = DEFAULT_INITIAL_SIZE;
+    @GuardedBy("lock") private int maxSize = DEFAULT_MAX_SIZE;
+    @GuardedBy("lock") private int outstanding;
+    // The quickest any block was answered in, which is about the round trip time plus the time to send one block.
+    @GuardedBy("lock") private long minLatencyMsec = Long.MAX_VALUE;
+    @GuardedBy("lock") private long averageLatencyMsec;
+    @GuardedBy("lock") private long blocksReceived, bytesReceived;
+    // When the last few answers arrived and how large they were, oldest first from the cursor.
+    @GuardedBy("lock") private final long[] answerTimesMsec = new long[RATE_WINDOW];
+    @GuardedBy("lock") private final int[] answerSizes = new int[RATE_WINDOW];
+    @GuardedBy("lock") private int answerCursor;
+
+    /** Returns how many more blocks may be requested from the peer now. */
+    int available() {
+        lock.lock();
+        try {
+            return Math.max(0, size - outstanding);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks may be requested from the peer at once. */
+    int getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks have been requested from the peer and not answered yet. */
+    int getOutstanding() {
+        lock.lock();
+        try {
+            return outstanding;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the most blocks that may be requested from the peer at once. */
+    void setMaxSize(int maxSize) {
+        checkArgument(maxSize >= 1);
+        lock.lock();
+        try {
+            this.maxSize = maxSize;
+            size = Math.min(size, maxSize);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getMaxSize() {
+        lock.lock();
+        try {
+            return maxSize;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a block was requested. */
+    void onRequest() {
+        lock.lock();
+        try {
+            outstanding++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a request was answered with a block of the given size, and resizes the window. */
+    void onAnswer(long requestTimeMsec, int bytes) {
+        lock.lock();
+        try {
+            boolean saturated = outstanding >= size;
+            outstanding = Math.max(0, outstanding - 1);
+            long now = Utils.now().getTime();
+            long latency = Math.max(0, now - requestTimeMsec);
+            minLatencyMsec = Math.min(minLatencyMsec, latency);
+            averageLatencyMsec = blocksReceived == 0 ? latency : (averageLatencyMsec * 7 + latency) / 8;
+            blocksReceived++;
+            bytesReceived += bytes;
+            answerTimesMsec[answerCursor] = now;
+            answerSizes[answerCursor] = bytes;
+            answerCursor = (answerCursor + 1) % RATE_WINDOW;
+
+            double blocksPerSec = getBlocksPerSecondLocked();
+            if (blocksPerSec <= 0)
+                return;  // Not enough known yet.
+            int target = (int) Math.ceil(2 * blocksPerSec * Math.max(minLatencyMsec, 1) / 1000.0) + 1;
+            if (size < target && saturated)
+                size = Math.min(size + 1, maxSize);
+            else if (size > target)
+                size = Math.max(size - 1, MIN_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a request went unanswered for too long, and halves the window. */
+    void onTimeout() {
+        lock.lock();
+        try {
+            outstanding = Math.max(0, outstanding - 1);
+            size = Math.max(size / 2, MIN_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Records that a request is no longer expected to be answered, eg because another peer answered it first. */
+    void onCancel() {
+        lock.lock();
+        try {
+            outstanding = Math.max(0, outstanding - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBlocksReceived() {
+        lock.lock();
+        try {
+            return blocksReceived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getBytesReceived() {
+        lock.lock();
+        try {
+            return bytesReceived;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns the moving average of how long a block takes to arrive once requested, or 0 if none have yet. */
+    long getAverageLatencyMsec() {
+        lock.lock();
+        try {
+            return averageLatencyMsec;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many blocks a second arrived over the last few, or 0 if it isn't known yet. */
+    double getBlocksPerSecond() {
+        lock.lock();
+        try {
+            return getBlocksPerSecondLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Returns how many bytes of blocks a second arrived over the last few, or 0 if it isn't known yet. */
+    double getBytesPerSecond() {
+        lock.lock();
+        try {
+            int count = (int) Math.min(blocksReceived, RATE_WINDOW);
+            long elapsed = getElapsedLocked(count);
+            if (elapsed <= 0)
+                return 0;
+            // The first answer marks the start of the period, so its bytes arrived before it.
+            long bytes = 0;
+            for (int i = 1; i < count; i++)
+                bytes += answerSizes[(answerCursor - i + RATE_WINDOW) % RATE_WINDOW];
+            return bytes * 1000.0 / elapsed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @GuardedBy("lock")
+    private double getBlocksPerSecondLocked() {
+        int count = (int) Math.min(blocksReceived, RATE_WINDOW);
+        long elapsed = getElapsedLocked(count);
+        return elapsed <= 0 ? 0 : (count - 1) * 1000.0 / elapsed;
+    }
+
+    // Time between the first and last of the given number of most recent answers.
+    @GuardedBy("lock")
+    private long getElapsedLocked(int count) {
+        if (count < 2)
+            return 0;
+        long last = answerTimesMsec[(answerCursor - 1 + RATE_WINDOW) % RATE_WINDOW];
+        long first = answerTimesMsec[(answerCursor - count + RATE_WINDOW) % RATE_WINDOW];
+        return last - first;
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.script.Script;
+import com.google.dogecoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Runs the script checks of a block's inputs on a pool of threads shared by all blocks.</p>
+ *
+ * <p>Each input is checked on its own, so one transaction with hundreds of inputs is spread over all the threads rather
+ * than holding up the block on one of them. The inputs of a {@link Batch} wait in a queue ordered by an estimate of how
+ * expensive they are, and whichever thread is free takes the most expensive one left, which keeps the threads evenly
+ * loaded without having to know the cost of a block up front. The thread connecting the block joins in once it has
+ * queued everything.</p>
+ *
+ * <p>Checking a signature rewrites the input scripts of the transaction while its hash is worked out, so the inputs of a
+ * transaction can't share it across threads. The transaction is serialized once when it is added, and each of its
+ * inputs is checked against a copy parsed from those bytes on whichever thread takes it.</p>
+ *
+ * <p>The first input to fail stops the batch: checks that have not started yet are skipped.</p>
+ */
+public class ScriptVerificationScheduler {
+    private static final Logger log = LoggerFactory.getLogger(ScriptVerificationScheduler.class);
+
+    private final ExecutorService executor;
+    private final int numThreads;
+
+    /** Creates a scheduler with one verification thread per available processor. */
+    public ScriptVerificationScheduler() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a scheduler that verifies on the given number of threads, plus whichever thread waits for a batch. */
+    public ScriptVerificationScheduler(int numThreads) {
+        checkArgument(numThreads >= 0);
+        this.numThreads = numThreads;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Script verification thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.executor = numThreads > 0 ? Executors.newFixedThreadPool(numThreads, builder.build()) : null;
+    }
+
+    /** Returns the number of threads in the pool, not counting the threads that wait for batches. */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /** Starts a new batch of checks, usually one per block. */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Stops the verification threads once they have finished what they are doing. Batches that are still running
+     * carry on, with their remaining checks done by the thread that calls {@link Batch#verify()}.
+     */
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    private static class Check implements Comparable<Check> {
+        // Either the transaction itself, if it has only the one input, or the bytes to parse a copy from.
+        @Nullable final Transaction tx;
+        @Nullable final byte[] txBytes;
+        final NetworkParameters params;
+        final int index;
+        final Script scriptSig, scriptPubKey;
+        final boolean enforceP2SH;
+        final int cost;
+
+        Check(@Nullable Transaction tx, @Nullable byte[] txBytes, NetworkParameters params, int index, Script scriptSig,
+              Script scriptPubKey, boolean enforceP2SH) {
+            this.tx = tx;
+            this.txBytes = txBytes;
+            this.params = params;
+            this.index = index;
+            this.scriptSig = scriptSig;
+            this.scriptPubKey = scriptPubKey;
+            this.enforceP2SH = enforceP2SH;
+            // Signatures and public keys make up the bulk of most scripts, so their size is a fair guess at how many
+            // ECDSA operations the check will do.
+            this.cost = scriptSig.getProgram().length + scriptPubKey.getProgram().length;
+        }
+
+        @Override
+        public int compareTo(Check other) {
+            return other.cost < cost ? -1 : (other.cost == cost ? 0 : 1);
+        }
+    }
+
+    /**
+     * The checks for one block. Inputs are added with {@link #add(Transaction, List, boolean)} as the block is
+     * connected and start being verified straight away. {@link #verify()} then waits for them all.
+     */
+    public class Batch {
+        private final PriorityBlockingQueue<Check> queue = new PriorityBlockingQueue<Check>();
+        private final AtomicInteger activeThreads = new AtomicInteger();
+        private volatile VerificationException failure;
+        private volatile boolean cancelled;
+        // Guarded by this.
+        private int added, finished;
+
+        private Batch() {}
+
+        /**
+         * Queues the scripts of every input of the given transaction to be checked against the outputs they spend.
+         * The transaction must not be changed afterwards. Throws the failure of an earlier check, if there was one,
+         * so the caller can stop connecting the block early.
+         */
+        public void add(Transaction tx, List<Script> prevOutScripts, boolean enforceP2SH) throws VerificationException {
+            checkArgument(tx.getInputs().size() == prevOutScripts.size());
+            throwIfFailed();
+            int numInputs = tx.getInputs().size();
+            byte[] txBytes = numInputs > 1 ? tx.bitcoinSerialize() : null;
+            int index = 0;
+            for (Script prevOutScript : prevOutScripts) {
+                // Parse the script here rather than on the verification threads, as the input caches it.
+                Script scriptSig = tx.getInputs().get(index).getScriptSig();
+                synchronized (this) {
+                    added++;
+                }
+                queue.add(new Check(txBytes == null ? tx : null, txBytes, tx.getParams(), index, scriptSig, prevOutScript,
+                        enforceP2SH));
+                index++;
+            }
+            while (executor != null) {
+                int active = activeThreads.get();
+                if (active >= numThreads || active >= queue.size())
+                    break;
+                if (!activeThreads.compareAndSet(active, active + 1))
+                    continue;
+                boolean submitted = false;
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                drain();
+                            } finally {
+                                activeThreads.decrementAndGet();
+                            }
+                        }
+                    });
+                    submitted = true;
+                } catch (RejectedExecutionException e) {
+                    // The scheduler was shut down while the batch was running, eg because it was replaced. The thread
+                    // that calls verify() checks whatever is left.
+                    break;
+                } finally {
+                    if (!submitted)
+                        activeThreads.decrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Helps with the remaining checks, waits for them all to finish and throws the first failure, if any. No more
+         * inputs may be added afterwards.
+         */
+        public void verify() throws VerificationException {
+            // Pool threads that gave up on an empty queue just before the last inputs were added won't come back, so
+            // this thread must make sure the queue is emptied.
+            drain();
+            synchronized (this) {
+                while (finished < added) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);  // Shouldn't happen
+                    }
+                }
+            }
+            throwIfFailed();
+        }
+
+        /**
+         * Skips the checks that have not started yet, for when the block is being abandoned for some other reason.
+         * Does not wait for those in progress.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /** Returns the number of inputs added so far. */
+        public synchronized int getNumChecks() {
+            return added;
+        }
+
+        private void throwIfFailed() throws VerificationException {
+            VerificationException e = failure;
+            if (e != null)
+                throw e;
+        }
+
+        private void drain() {
+            Check check;
+            while ((check = queue.poll()) != null) {
+                if (failure == null && !cancelled)
+                    run(check);
+                synchronized (this) {
+                    if (++finished == added)
+                        notifyAll();
+                }
+            }
+        }
+
+        private void run(Check check) {
+            try {
+                Transaction tx = check.tx != null ? check.tx : new Transaction(check.params, check.txBytes);
+                check.scriptSig.correctlySpends(tx, check.index, check.scriptPubKey, check.enforceP2SH);
+            } catch (VerificationException e) {
+                fail(e);
+            } catch (RuntimeException e) {
+                log.error("Script.correctlySpends threw a non-normal exception: " + e);
+                fail(new VerificationException("Bug in Script.correctlySpends, likely script malformed in some new and interesting way.", e));
+            }
+        }
+
+        private synchronized void fail(VerificationException e) {
+            // Only the first failure is reported, the others are likely to be knock-on effects or just as bad.
+            if (failure == null)
+                failure = e;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.utils.Threading;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * <p>Calculates the scrypt proof of work hashes of blocks on a pool of threads, ahead of them being added to an
+ * {@link AbstractBlockChain}.</p>
+ *
+ * <p>Scrypt is by far the most expensive part of checking a Dogecoin header, and the block chain does it one block at a
+ * time whilst holding its lock. The hash is cached inside the {@link Block} object once calculated, so running a batch
+ * of blocks through this class first means that {@link Block#verifyHeader()} only has to do a cheap comparison against
+ * the target, and the chain lock is held only for the linkage and difficulty checks.</p>
+ *
+ * <p>Nothing is verified here. Blocks that cannot be hashed (eg because they are malformed) are passed through
+ * untouched, and the usual exception is thrown when the chain tries to verify them.</p>
+ */
+public class ScryptHashPipeline {
+    private static final Logger log = LoggerFactory.getLogger(ScryptHashPipeline.class);
+
+    /** How many blocks {@link #readAhead(java.util.Iterator)} keeps in flight ahead of the consumer by default. */
+    public static final int DEFAULT_READ_AHEAD = 512;
+
+    // Batches are split into roughly this many tasks per thread, so a slow thread doesn't hold up the whole batch.
+    private static final int TASKS_PER_THREAD = 4;
+
+    private final ExecutorService executor;
+    private final int numThreads;
+
+    /** Creates a pipeline with one hashing thread per available processor. */
+    public ScryptHashPipeline() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Creates a pipeline that hashes on the given number of threads. */
+    public ScryptHashPipeline(int numThreads) {
+        checkArgument(numThreads > 0);
+        this.numThreads = numThreads;
+        ThreadFactoryBuilder builder = new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("Scrypt hashing thread %d");
+        Thread.UncaughtExceptionHandler handler = Threading.uncaughtExceptionHandler;
+        if (handler != null)
+            builder.setUncaughtExceptionHandler(handler);
+        this.executor = Executors.newFixedThreadPool(numThreads, builder.build());
+    }
+
+    /** Returns the number of threads used for hashing. */
+    public int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Calculates and caches the proof of work hash of every block in the list, in parallel. Returns once all blocks
+     * have been hashed.
+     */
+    public void precompute(List<? extends Block> blocks) {
+        if (blocks.isEmpty())
+            return;
+        int chunkSize = Math.max(1, blocks.size() / (numThreads * TASKS_PER_THREAD));
+        List<Future<?>> futures = new ArrayList<Future<?>>(blocks.size() / chunkSize + 1);
+        for (int i = 0; i < blocks.size(); i += chunkSize) {
+            final List<? extends Block> chunk = blocks.subList(i, Math.min(i + chunkSize, blocks.size()));
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (Block block : chunk)
+                        hash(block);
+                }
+            }));
+        }
+        for (Future<?> future : futures)
+            waitFor(future);
+    }
+
+    /**
+     * Returns an iterator over the same blocks as the given one, in the same order, which hashes up to
+     * {@link #DEFAULT_READ_AHEAD} blocks in the background ahead of the caller. Useful for wrapping a
+     * {@link com.google.dogecoin.utils.BlockFileLoader}.
+     */
+    public Iterator<Block> readAhead(Iterator<Block> blocks) {
+        return readAhead(blocks, DEFAULT_READ_AHEAD);
+    }
+
+    /**
+     * Returns an iterator over the same blocks as the given one, in the same order, which hashes up to
+     * <tt>window</tt> blocks in the background ahead of the caller. The source iterator is only ever used from the
+     * thread calling the returned iterator.
+     */
+    public Iterator<Block> readAhead(final Iterator<Block> blocks, final int window) {
+        checkArgument(window > 0);
+        return new Iterator<Block>() {
+            private final LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+
+            @Override
+            public boolean hasNext() {
+                while (pending.size() < window && blocks.hasNext()) {
+                    final Block block = blocks.next();
+                    pending.add(executor.submit(new Callable<Block>() {
+                        @Override
+                        public Block call() {
+                            hash(block);
+                            return block;
+                        }
+                    }));
+                }
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public Block next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return waitFor(pending.poll());
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /** Stops the hashing threads. Blocks already submitted are still hashed. */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    private static void hash(Block block) {
+        try {
+            block.getProofOfWorkHash();
+        } catch (RuntimeException e) {
+            // Leave it to the block chain to reject the block with a proper error.
+            log.debug("Could not pre-compute proof of work hash: {}", e.toString());
+        }
+    }
+
+    private static <T> T waitFor(Future<T> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());  // Cannot happen, hash() doesn't throw.
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Remembers which (signature hash, public key, signature) combinations have already been found valid, so the same
+ * ECDSA check is not done twice. A full node checks the scripts of a transaction when it is relayed to us, see
+ * {@link FullPrunedBlockChain#verifyUnconfirmedTransaction(Transaction)}, and then again when it is mined. With the
+ * cache the second check is nearly free.</p>
+ *
+ * <p>Only valid signatures are remembered, so a hit can never make an invalid script pass. Entries are keyed by a hash
+ * of all three parts, and the least recently used are dropped once the cache is full. The cache is safe to use from
+ * many threads at once, as {@link ScriptVerificationScheduler} does.</p>
+ */
+public class SignatureCache {
+    /** The number of signatures remembered by the default cache. */
+    public static final int DEFAULT_MAX_SIZE = 50000;
+
+    private static volatile SignatureCache defaultCache = new SignatureCache(DEFAULT_MAX_SIZE);
+
+    private final Cache<Sha256Hash, Boolean> validSignatures;
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /** Creates a cache holding up to the given number of signatures. Zero disables caching but keeps the counters. */
+    public SignatureCache(long maxSize) {
+        checkArgument(maxSize >= 0);
+        this.maxSize = maxSize;
+        this.validSignatures = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .concurrencyLevel(Runtime.getRuntime().availableProcessors())
+                .build();
+    }
+
+    /** Returns the cache used by {@link com.google.dogecoin.script.Script} to check signatures. */
+    public static SignatureCache get() {
+        return defaultCache;
+    }
+
+    /** Replaces the cache used by {@link com.google.dogecoin.script.Script}, eg to change its size. */
+    public static void set(SignatureCache cache) {
+        defaultCache = checkNotNull(cache);
+    }
+
+    /**
+     * Returns whether the signature is valid for the given signature hash and public key, using the remembered result
+     * if there is one.
+     *
+     * @param sigHash   The hash the signature is supposed to sign, as calculated by
+     *                  {@link Transaction#hashForSignature(int, byte[], byte)}.
+     * @param sigBytes  The signature as found in the script, used to identify it.
+     * @param signature The decoded signature, used if it has to be checked.
+     * @param pubKey    The public key bytes.
+     */
+    public boolean verify(Sha256Hash sigHash, byte[] sigBytes, ECKey.ECDSASignature signature, byte[] pubKey) {
+        Sha256Hash key = keyFor(sigHash, sigBytes, pubKey);
+        if (validSignatures.getIfPresent(key) != null) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        boolean valid = ECKey.verify(sigHash.getBytes(), signature, pubKey);
+        if (valid)
+            validSignatures.put(key, Boolean.TRUE);
+        return valid;
+    }
+
+    static Sha256Hash keyFor(Sha256Hash sigHash, byte[] sigBytes, byte[] pubKey) {
+        // The lengths are included in full so that moving bytes from the signature into the key can't produce the same
+        // input. Scripts can push far more than 255 bytes, so a single byte each isn't enough.
+        byte[] hashBytes = sigHash.getBytes();
+        byte[] data = new byte[hashBytes.length + 8 + sigBytes.length + pubKey.length];
+        System.arraycopy(hashBytes, 0, data, 0, hashBytes.length);
+        int offset = hashBytes.length;
+        Utils.uint32ToByteArrayLE(sigBytes.length, data, offset);
+        Utils.uint32ToByteArrayLE(pubKey.length, data, offset + 4);
+        offset += 8;
+        System.arraycopy(sigBytes, 0, data, offset, sigBytes.length);
+        System.arraycopy(pubKey, 0, data, offset + sigBytes.length, pubKey.length);
+        return Sha256Hash.create(data);
+    }
+
+    /** Returns the maximum number of signatures remembered. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Returns the number of signatures currently remembered. */
+    public long size() {
+        return validSignatures.size();
+    }
+
+    /** Returns how many checks were answered from the cache. */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /** Returns how many checks had to do the ECDSA work. */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Returns the fraction of checks answered from the cache, or zero if there weren't any. */
+    public double getHitRate() {
+        long hits = this.hits.get(), total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /** Sets the hit and miss counters back to zero. */
+    public void resetCounters() {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /** Forgets all remembered signatures. */
+    public void clear() {
+        validSignatures.invalidateAll();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Signature cache: %d of %d entries, %d hits, %d misses (%.1f%% hit rate)", size(),
+                maxSize, getHits(), getMisses(), getHitRate() * 100);
+    }
+}
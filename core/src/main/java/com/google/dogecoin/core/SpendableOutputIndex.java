@@ -0,0 +1,239 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>The outputs a {@link Wallet} could spend, kept sorted by value and by depth in the chain so that coin selectors
+ * can find the ones they want without looking at every output in the wallet. It holds the same outputs that
+ * {@link Wallet#calculateAllSpendCandidates(boolean)} would return, including those of immature coinbases, which
+ * selectors must skip themselves.</p>
+ *
+ * <p>The wallet keeps the index up to date as transactions move between pools. It may only be used whilst holding
+ * the wallet lock, which is always the case inside {@link Wallet.IndexedCoinSelector#select}.</p>
+ */
+public class SpendableOutputIndex implements Iterable<TransactionOutput> {
+    private static class Entry {
+        final TransactionOutput output;
+        final BigInteger value;
+        final BigInteger txHash;
+        final int index;
+        // Depth less the tracker height when the entry was made. As all building transactions get deeper together,
+        // adding the current tracker height back on gives the current depth. PENDING marks unconfirmed outputs.
+        final int depthOffset;
+
+        Entry(TransactionOutput output, BigInteger txHash, int index, int depthOffset) {
+            this.output = output;
+            this.value = output.getValue();
+            this.txHash = txHash;
+            this.index = index;
+            this.depthOffset = depthOffset;
+        }
+    }
+
+    private static final int PENDING = Integer.MIN_VALUE;
+
+    // Puts the outputs in a total order once the interesting properties are equal.
+    private static int compareIdentity(Entry a, Entry b) {
+        int c = a.txHash.compareTo(b.txHash);
+        if (c != 0) return c;
+        return a.index < b.index ? -1 : (a.index == b.index ? 0 : 1);
+    }
+
+    private static final Comparator<Entry> LARGEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = b.value.compareTo(a.value);
+            if (c != 0) return c;
+            c = compareDepth(a, b);
+            if (c != 0) return c;
+            return compareIdentity(a, b);
+        }
+    };
+
+    private static final Comparator<Entry> DEEPEST_FIRST = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            int c = compareDepth(a, b);
+            if (c != 0) return c;
+            c = b.value.compareTo(a.value);
+            if (c != 0) return c;
+            return compareIdentity(a, b);
+        }
+    };
+
+    private static int compareDepth(Entry a, Entry b) {
+        return a.depthOffset > b.depthOffset ? -1 : (a.depthOffset == b.depthOffset ? 0 : 1);
+    }
+
+    private final DepthTracker depthTracker;
+    private final TreeSet<Entry> byValue = new TreeSet<Entry>(LARGEST_FIRST);
+    private final TreeSet<Entry> byDepth = new TreeSet<Entry>(DEEPEST_FIRST);
+    private final HashMap<Sha256Hash, List<Entry>> byTransaction = new HashMap<Sha256Hash, List<Entry>>();
+    private BigInteger totalValue = BigInteger.ZERO;
+
+    SpendableOutputIndex(DepthTracker depthTracker) {
+        this.depthTracker = depthTracker;
+    }
+
+    /** Adds an output, which must not already be in the index. */
+    void add(TransactionOutput output) {
+        Transaction tx = output.getParentTransaction();
+        TransactionConfidence confidence = tx.getConfidence();
+        int depthOffset = PENDING;
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            depthOffset = confidence.getDepthInBlocks() - depthTracker.getHeight();
+        Entry entry = new Entry(output, tx.getHash().toBigInteger(), tx.getOutputs().indexOf(output), depthOffset);
+        List<Entry> entries = byTransaction.get(tx.getHash());
+        if (entries == null) {
+            entries = new ArrayList<Entry>(2);
+            byTransaction.put(tx.getHash(), entries);
+        }
+        entries.add(entry);
+        byValue.add(entry);
+        byDepth.add(entry);
+        totalValue = totalValue.add(entry.value);
+    }
+
+    /** Removes all outputs of the given transaction. */
+    void remove(Sha256Hash txHash) {
+        List<Entry> entries = byTransaction.remove(txHash);
+        if (entries == null)
+            return;
+        for (Entry entry : entries) {
+            byValue.remove(entry);
+            byDepth.remove(entry);
+            totalValue = totalValue.subtract(entry.value);
+        }
+    }
+
+    /** Returns the number of outputs in the index. */
+    public int size() {
+        return byValue.size();
+    }
+
+    /** Returns the total value of all outputs in the index. */
+    public BigInteger getTotalValue() {
+        return totalValue;
+    }
+
+    /** Iterates over the outputs from the largest value to the smallest. */
+    @Override
+    public Iterator<TransactionOutput> iterator() {
+        return outputs(byValue.iterator());
+    }
+
+    /** Iterates over the outputs from the deepest in the chain to the shallowest, with unconfirmed outputs last. */
+    public Iterator<TransactionOutput> deepestFirst() {
+        return outputs(byDepth.iterator());
+    }
+
+    /**
+     * <p>Iterates over the outputs in order of value multiplied by depth (coin-days, roughly), highest first, breaking
+     * ties by value and then by transaction hash, which is the order {@link Wallet.DefaultCoinSelector} picks coins
+     * in.</p>
+     *
+     * <p>This is worked out lazily by walking the value and depth orders side by side: no output that has not been
+     * reached in either can beat the largest value left times the deepest depth left, so anything already reached
+     * that does is next. A selector that stops once it has enough value only looks at the outputs near the top.</p>
+     */
+    public Iterator<TransactionOutput> highestCoinDepthFirst() {
+        return new Iterator<TransactionOutput>() {
+            private final int height = depthTracker.getHeight();
+            private final Iterator<Entry> values = byValue.iterator();
+            private final Iterator<Entry> depths = byDepth.iterator();
+            private Entry nextValue = advance(values), nextDepth = advance(depths);
+            private final Set<Entry> reached = Collections.newSetFromMap(new IdentityHashMap<Entry, Boolean>());
+            private final PriorityQueue<Entry> candidates = new PriorityQueue<Entry>(11, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry a, Entry b) {
+                    int c = coinDepth(b.value, b.depthOffset).compareTo(coinDepth(a.value, a.depthOffset));
+                    if (c != 0) return c;
+                    c = b.value.compareTo(a.value);
+                    if (c != 0) return c;
+                    return compareIdentity(a, b);
+                }
+            });
+
+            private Entry advance(Iterator<Entry> it) {
+                return it.hasNext() ? it.next() : null;
+            }
+
+            private BigInteger coinDepth(BigInteger value, int depthOffset) {
+                if (depthOffset == PENDING)
+                    return BigInteger.ZERO;
+                return value.multiply(BigInteger.valueOf(depthOffset + height));
+            }
+
+            private void reach(Entry entry) {
+                if (reached.add(entry))
+                    candidates.add(entry);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !candidates.isEmpty() || nextValue != null;
+            }
+
+            @Override
+            public TransactionOutput next() {
+                while (true) {
+                    Entry top = candidates.peek();
+                    if (nextValue == null || nextDepth == null) {
+                        // One order has been walked to the end, so every output has been reached.
+                        if (top == null)
+                            throw new NoSuchElementException();
+                        return candidates.poll().output;
+                    }
+                    BigInteger bound = coinDepth(nextValue.value, nextDepth.depthOffset);
+                    if (top != null && coinDepth(top.value, top.depthOffset).compareTo(bound) > 0)
+                        return candidates.poll().output;
+                    reach(nextValue);
+                    reach(nextDepth);
+                    nextValue = advance(values);
+                    nextDepth = advance(depths);
+                }
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private static Iterator<TransactionOutput> outputs(final Iterator<Entry> entries) {
+        return new Iterator<TransactionOutput>() {
+            @Override
+            public boolean hasNext() {
+                return entries.hasNext();
+            }
+
+            @Override
+            public TransactionOutput next() {
+                return entries.next().output;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
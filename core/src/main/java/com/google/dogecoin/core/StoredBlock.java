@@ -16,13 +16,16 @@
 
 package com.google.dogecoin.core;
 
+import com.google.dogecoin.store.AncestorBlockStore;
 import com.google.dogecoin.store.BlockStore;
 import com.google.dogecoin.store.BlockStoreException;
 
+import javax.annotation.Nullable;
 import java.io.*;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
@@ -46,6 +49,9 @@ public class StoredBlock implements Serializable {
     private Block header;
     private BigInteger chainWork;
     private int height;
+    // An ancestor further back than the previous block, which lets getAncestor() skip over the blocks in between.
+    // Only set by block stores that keep StoredBlock objects in memory, see buildSkip().
+    private transient StoredBlock skip;
 
     public StoredBlock(Block header, BigInteger chainWork, int height) {
         this.header = header;
@@ -116,6 +122,59 @@ public class StoredBlock implements Serializable {
         return store.get(getHeader().getPrevBlockHash());
     }
 
+    /**
+     * Returns the block at the given height in the chain that ends with this block, or null if it can't be found in
+     * the given store. If the store is an {@link AncestorBlockStore} it is asked directly. Otherwise the chain is
+     * walked back, which takes O(log n) lookups if the blocks on the way were given skip pointers by
+     * {@link #buildSkip(BlockStore)}, and one lookup per block if they weren't.
+     */
+    @Nullable
+    public StoredBlock getAncestor(BlockStore store, int height) throws BlockStoreException {
+        checkArgument(height >= 0 && height <= this.height, "Height %s is not below block at %s", height, this.height);
+        if (store instanceof AncestorBlockStore)
+            return ((AncestorBlockStore) store).getAncestor(this, height);
+        StoredBlock cursor = this;
+        while (cursor.height > height) {
+            int skipHeight = getSkipHeight(cursor.height);
+            int prevSkipHeight = getSkipHeight(cursor.height - 1);
+            // Take the skip if it doesn't overshoot, unless the skip of the previous block gets closer.
+            if (cursor.skip != null && (skipHeight == height ||
+                    (skipHeight > height && !(prevSkipHeight < skipHeight - 2 && prevSkipHeight >= height))))
+                cursor = cursor.skip;
+            else
+                cursor = cursor.getPrev(store);
+            if (cursor == null)
+                return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Points this block at an ancestor further back than the previous block, so that {@link #getAncestor(BlockStore,
+     * int)} can skip over the blocks in between. Block stores that keep the StoredBlock objects they are given call
+     * this when a block is put, after its previous block. Stores that create new objects on every lookup needn't.
+     */
+    public void buildSkip(BlockStore store) throws BlockStoreException {
+        if (height < 2 || skip != null)
+            return;
+        StoredBlock prev = getPrev(store);
+        if (prev != null)
+            skip = prev.getAncestor(store, getSkipHeight(height));
+    }
+
+    // Clears the lowest set bit.
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+
+    // The height a block skips back to. Any height can be reached from any block above it in O(log n) skips and steps
+    // back, as with the skip lists that Bitcoin Core keeps in its block index.
+    static int getSkipHeight(int height) {
+        if (height < 2)
+            return 0;
+        return (height & 1) != 0 ? invertLowestOne(invertLowestOne(height - 1)) + 1 : invertLowestOne(height);
+    }
+
     /** Serializes the stored block to a custom packed format. Used by {@link CheckpointManager}. */
     public void serializeCompact(ByteBuffer buffer) {
         byte[] chainWorkBytes = getChainWork().toByteArray();
@@ -134,13 +193,22 @@ public class StoredBlock implements Serializable {
 
     /** De-serializes the stored block from a custom packed format. Used by {@link CheckpointManager}. */
     public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer) throws ProtocolException {
+        return deserializeCompact(params, buffer, null);
+    }
+
+    /**
+     * De-serializes the stored block from a custom packed format, giving the header the AuxPoW parent block header
+     * which the packed format doesn't hold.
+     */
+    public static StoredBlock deserializeCompact(NetworkParameters params, ByteBuffer buffer,
+                                                 @Nullable Block parentBlock) throws ProtocolException {
         byte[] chainWorkBytes = new byte[StoredBlock.CHAIN_WORK_BYTES];
         buffer.get(chainWorkBytes);
         BigInteger chainWork = new BigInteger(1, chainWorkBytes);
         int height = buffer.getInt();  // +4 bytes
         byte[] header = new byte[Block.HEADER_SIZE + 1];    // Extra byte for the 00 transactions length.
         buffer.get(header, 0, Block.HEADER_SIZE);
-        return new StoredBlock(new Block(params, header), chainWork, height);
+        return new StoredBlock(new Block(params, header, parentBlock), chainWork, height);
     }
 
     @Override
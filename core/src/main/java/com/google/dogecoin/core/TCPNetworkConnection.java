@@ -20,13 +20,8 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 import org.jboss.netty.bootstrap.ClientBootstrap;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
-import org.jboss.netty.buffer.ChannelBufferOutputStream;
-import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.channel.socket.nio.NioClientSocketChannelFactory;
-import org.jboss.netty.handler.codec.replay.ReplayingDecoder;
-import org.jboss.netty.handler.codec.replay.VoidEnum;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -183,7 +178,11 @@ public class TCPNetworkConnection implements NetworkConnection {
         return "[" + remoteIp.getHostAddress() + "]:" + params.getPort();
     }
 
-    public class NetworkHandler extends ReplayingDecoder<VoidEnum> implements ChannelDownstreamHandler {
+    public class NetworkHandler extends MessageFrameDecoder implements ChannelDownstreamHandler {
+        public NetworkHandler() {
+            super(params, serializer);
+        }
+
         @Override
         public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
             super.channelConnected(ctx, e);
@@ -197,22 +196,17 @@ public class TCPNetworkConnection implements NetworkConnection {
             // useful data in it. We need to know the peer protocol version before we can talk to it.
         }
 
-        // Attempt to decode a Bitcoin message passing upstream in the channel.
-        //
-        // By extending ReplayingDecoder, reading past the end of buffer will throw a special Error
-        // causing the channel to read more and retry.
-        //
-        // On VMs/systems where exception handling is slow, this will impact performance.  On the
-        // other hand, implementing a FrameDecoder will increase code complexity due to having
-        // to implement retries ourselves.
-        //
-        // TODO: consider using a decoder state and checkpoint() if performance is an issue.
+        // Decode the Bitcoin messages passing upstream in the channel, watching for the version message.
         @Override
-        protected Object decode(ChannelHandlerContext ctx, Channel chan,
-                                ChannelBuffer buffer, VoidEnum state) throws Exception {
-            Message message = serializer.deserialize(new ChannelBufferInputStream(buffer));
-            if (message instanceof VersionMessage)
-                onVersionMessage(message);
+        public Message decode(ChannelBuffer buffer) throws ProtocolException {
+            Message message = super.decode(buffer);
+            if (message instanceof VersionMessage) {
+                try {
+                    onVersionMessage(message);
+                } catch (IOException e) {
+                    throw new ProtocolException(e);
+                }
+            }
             return message;
         }
 
@@ -226,9 +220,7 @@ public class TCPNetworkConnection implements NetworkConnection {
             MessageEvent e = (MessageEvent) evt;
             Message message = (Message)e.getMessage();
 
-            ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
-            serializer.serialize(message, new ChannelBufferOutputStream(buffer));
-            write(ctx, e.getFuture(), buffer, e.getRemoteAddress());
+            write(ctx, e.getFuture(), serializer.serialize(message), e.getRemoteAddress());
         }
 
         public TCPNetworkConnection getOwnerObject() {
@@ -25,8 +25,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Serializable;
+import javax.annotation.Nullable;
 import java.math.BigInteger;
 import java.util.ListIterator;
+import java.util.TreeSet;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
@@ -53,8 +55,10 @@ import java.util.concurrent.CopyOnWriteArrayList;
  * <p>Alternatively, you may know that the transaction is "dead", that is, one or more of its inputs have
  * been double spent and will never confirm unless there is another re-org.</p>
  *
- * <p>TransactionConfidence is updated via the {@link com.google.dogecoin.core.TransactionConfidence#notifyWorkDone(Block)}
- * method to ensure the block depth and work done are up to date.</p>
+ * <p>Once the transaction is in a {@link Wallet}, the block depth and work done are worked out on demand from how far
+ * the wallet has seen the best chain move on since they were last set, so they are always up to date without the
+ * wallet touching every transaction for every block. Listeners are only told about depth changes that were asked for
+ * with {@link TransactionConfidence#watchDepth(int)} or {@link TransactionConfidence#getDepthFuture(int)}.</p>
  * To make a copy that won't be changed, use {@link com.google.dogecoin.core.TransactionConfidence#duplicate()}.
  */
 public class TransactionConfidence implements Serializable, IsMultiBitClass {
@@ -80,6 +84,13 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
     private int depth;
     // The cumulative work done for the blocks that bury this transaction.
     private BigInteger workDone = BigInteger.ZERO;
+    // Set by the wallet holding the transaction. Whilst BUILDING, depth and workDone are the values as of when the
+    // tracker stood at trackerHeight and trackerWork, and the getters add on however far it has moved since.
+    @Nullable private DepthTracker depthTracker;
+    private int trackerHeight;
+    private BigInteger trackerWork = BigInteger.ZERO;
+    // Depths that somebody wants to hear about and which haven't been reached yet. Lazily created.
+    private TreeSet<Integer> depthThresholds;
 
     /** Describes the state of the transaction in general terms. Properties can be read to learn specifics. */
     public enum ConfidenceType {
@@ -232,8 +243,12 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         if (appearedAtChainHeight < 0)
             throw new IllegalArgumentException("appearedAtChainHeight out of range");
         this.appearedAtChainHeight = appearedAtChainHeight;
-        this.depth = 1;
-        setConfidenceType(ConfidenceType.BUILDING);
+        if (confidenceType == ConfidenceType.BUILDING) {
+            setDepthInBlocks(1);
+        } else {
+            this.depth = 1;
+            setConfidenceType(ConfidenceType.BUILDING);
+        }
     }
 
     /**
@@ -251,12 +266,18 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         // Don't inform the event listeners if the confidence didn't really change.
         if (confidenceType == this.confidenceType)
             return;
+        // Depth and work done stop moving when we leave the best chain, and start moving again from wherever the
+        // tracker is now if we come back.
+        depth = getDepthInBlocks();
+        workDone = getWorkDone();
         this.confidenceType = confidenceType;
+        rebase();
         if (confidenceType == ConfidenceType.PENDING) {
             depth = 0;
             appearedAtChainHeight = -1;
             workDone = BigInteger.ZERO;
         }
+        registerNextThreshold();
     }
 
 
@@ -329,13 +350,16 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
     }
 
     /**
-     * Called by the wallet when the tx appears on the best chain and a new block is added to the top.
-     * Updates the internal counter that tracks how deeply buried the block is.
-     * Work is the value of block.getWork().
+     * Called when the tx appears on the best chain and a new block is added to the top, for confidences that are not
+     * held by a wallet. Updates the internal counter that tracks how deeply buried the block is.
+     * Work is the value of block.getWork(). Once the transaction is in a wallet the depth is worked out from the
+     * wallet's view of the chain instead, so this changes nothing and returns false.
      */
     public synchronized boolean notifyWorkDone(Block block) throws VerificationException {
         if (getConfidenceType() != ConfidenceType.BUILDING)
             return false;   // Should this be an assert?
+        if (depthTracker != null)
+            return false;
 
         this.depth++;
         this.workDone = this.workDone.add(block.getWork());
@@ -353,7 +377,9 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * the depth is zero.</p>
      */
     public synchronized int getDepthInBlocks() {
-        return depth;
+        if (depthTracker == null || confidenceType != ConfidenceType.BUILDING)
+            return depth;
+        return depth + depthTracker.getHeight() - trackerHeight;
     }
 
     /*
@@ -361,6 +387,9 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      */
     public synchronized void setDepthInBlocks(int depth) {
         this.depth = depth;
+        if (depthTracker != null)
+            trackerHeight = depthTracker.getHeight();
+        registerNextThreshold();
     }
 
     /**
@@ -371,11 +400,96 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
      * @return estimated number of hashes needed to reverse the transaction.
      */
     public synchronized BigInteger getWorkDone() {
-        return workDone;
+        if (depthTracker == null || confidenceType != ConfidenceType.BUILDING)
+            return workDone;
+        return workDone.add(depthTracker.getWork()).subtract(trackerWork);
     }
 
     public synchronized void setWorkDone(BigInteger workDone) {
         this.workDone = workDone;
+        if (depthTracker != null)
+            trackerWork = depthTracker.getWork();
+    }
+
+    /**
+     * Asks for listeners to be invoked with {@link Listener.ChangeReason#DEPTH} once the transaction is buried under
+     * the given number of blocks. Depth is not pushed to every transaction on every block, so this is how to hear
+     * about a transaction getting deeper. Nothing happens for depths that have already been reached.
+     */
+    public synchronized void watchDepth(int depth) {
+        Preconditions.checkArgument(depth > 0);
+        if (getDepthInBlocks() >= depth)
+            return;
+        if (depthThresholds == null)
+            depthThresholds = new TreeSet<Integer>();
+        depthThresholds.add(depth);
+        registerNextThreshold();
+    }
+
+    /**
+     * Attaches this confidence to the tracker of the wallet holding its transaction, keeping the current depth and
+     * work done. A transaction held by several wallets stays with the tracker of the first one, as swapping trackers
+     * would lose the depths the first wallet is waiting for. Returns false if the confidence already belongs to a
+     * different tracker, in which case the caller has to keep an eye on the depth itself.
+     */
+    synchronized boolean setDepthTracker(DepthTracker tracker) {
+        if (tracker == depthTracker)
+            return true;
+        if (depthTracker != null) {
+            log.warn("Transaction {} is already tracked by another wallet, not switching trackers",
+                    transaction.getHashAsString());
+            return false;
+        }
+        depth = getDepthInBlocks();
+        workDone = getWorkDone();
+        depthTracker = tracker;
+        rebase();
+        registerNextThreshold();
+        return true;
+    }
+
+    /** Returns the tracker this confidence works out its depth from, or null if it isn't held by a wallet. */
+    @Nullable
+    synchronized DepthTracker getDepthTracker() {
+        return depthTracker;
+    }
+
+    /**
+     * Called by the wallet when the tracker has reached the height this confidence was waiting for. Forgets about
+     * the thresholds that have now been reached and waits for the next one. Returns true if any were reached, in
+     * which case the listeners should be told.
+     */
+    synchronized boolean checkDepthThresholds() {
+        if (depthThresholds == null || confidenceType != ConfidenceType.BUILDING)
+            return false;
+        int currentDepth = getDepthInBlocks();
+        boolean reached = false;
+        while (!depthThresholds.isEmpty() && depthThresholds.first() <= currentDepth) {
+            depthThresholds.pollFirst();
+            reached = true;
+        }
+        registerNextThreshold();
+        return reached;
+    }
+
+    Transaction getTransaction() {
+        return transaction;
+    }
+
+    // Makes the stored depth and work done relative to where the tracker is now.
+    private void rebase() {
+        if (depthTracker == null)
+            return;
+        trackerHeight = depthTracker.getHeight();
+        trackerWork = depthTracker.getWork();
+    }
+
+    private void registerNextThreshold() {
+        if (depthTracker == null || depthThresholds == null || depthThresholds.isEmpty() ||
+                confidenceType != ConfidenceType.BUILDING)
+            return;
+        int blocksToGo = depthThresholds.first() - getDepthInBlocks();
+        depthTracker.watch(this, depthTracker.getHeight() + Math.max(blocksToGo, 0));
     }
 
     /**
@@ -462,6 +576,8 @@ public class TransactionConfidence implements Serializable, IsMultiBitClass {
         final SettableFuture<Transaction> result = SettableFuture.create();
         if (getDepthInBlocks() >= depth) {
             result.set(transaction);
+        } else if (depth > 0) {
+            watchDepth(depth);
         }
         addEventListener(new Listener() {
             @Override public void onConfidenceChanged(Transaction tx, ChangeReason reason) {
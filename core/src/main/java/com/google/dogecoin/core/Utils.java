@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
@@ -40,15 +41,47 @@ import static com.google.common.base.Preconditions.checkArgument;
  */
 public class Utils {
     public static final BigInteger NEGATIVE_ONE = BigInteger.valueOf(-1);
-    private static final MessageDigest digest;
-    static {
-        try {
-            digest = MessageDigest.getInstance("SHA-256");
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Can't happen.
+
+    // MessageDigest objects aren't thread safe and are slow to create, and sharing a single one behind a lock makes
+    // every thread that hashes anything (peer threads, script verification threads, the wallet) queue up on it. So
+    // each thread gets its own digest, plus a scratch buffer for the intermediate result of double hashing.
+    private static final ThreadLocal<Sha256Engine> sha256Engines = new ThreadLocal<Sha256Engine>() {
+        @Override
+        protected Sha256Engine initialValue() {
+            return new Sha256Engine();
+        }
+    };
+
+    private static class Sha256Engine {
+        final MessageDigest digest;
+        final byte[] scratch = new byte[32];
+
+        Sha256Engine() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);  // Can't happen.
+            }
+        }
+
+        void finishDouble(byte[] output, int outputOffset) {
+            try {
+                digest.digest(scratch, 0, 32);
+                digest.update(scratch, 0, 32);
+                digest.digest(output, outputOffset, 32);
+            } catch (DigestException e) {
+                throw new IllegalArgumentException(e);  // Output buffer too small.
+            }
         }
     }
 
+    /** Returns the calling thread's SHA-256 digest, reset and ready for use. */
+    private static MessageDigest sha256Digest() {
+        MessageDigest digest = sha256Engines.get().digest;
+        digest.reset();
+        return digest;
+    }
+
     /** The string that prefixes all text messages signed using Bitcoin keys. */
     public static final String BITCOIN_SIGNED_MESSAGE_HEADER = "Dogecoin Signed Message:\n";
     public static final byte[] BITCOIN_SIGNED_MESSAGE_HEADER_BYTES = BITCOIN_SIGNED_MESSAGE_HEADER.getBytes(Charsets.UTF_8);
@@ -191,12 +224,20 @@ public class Utils {
      * standard procedure in Bitcoin. The resulting hash is in big endian form.
      */
     public static byte[] doubleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] output = new byte[32];
+        doubleDigest(input, offset, length, output, 0);
+        return output;
+    }
+
+    /**
+     * Like {@link Utils#doubleDigest(byte[], int, int)} but writes the 32 byte result into the given buffer instead of
+     * allocating a new one.
+     */
+    public static void doubleDigest(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+        Sha256Engine engine = sha256Engines.get();
+        engine.digest.reset();
+        engine.digest.update(input, offset, length);
+        engine.finishDouble(output, outputOffset);
     }
 
     public static byte[] scryptDigest(byte[] input) {
@@ -208,11 +249,9 @@ public class Utils {
     }
 
     public static byte[] singleDigest(byte[] input, int offset, int length) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input, offset, length);
-            return digest.digest();
-        }
+        MessageDigest digest = sha256Digest();
+        digest.update(input, offset, length);
+        return digest.digest();
     }
 
     /**
@@ -220,13 +259,23 @@ public class Utils {
      */
     public static byte[] doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
                                                 byte[] input2, int offset2, int length2) {
-        synchronized (digest) {
-            digest.reset();
-            digest.update(input1, offset1, length1);
-            digest.update(input2, offset2, length2);
-            byte[] first = digest.digest();
-            return digest.digest(first);
-        }
+        byte[] output = new byte[32];
+        doubleDigestTwoBuffers(input1, offset1, length1, input2, offset2, length2, output, 0);
+        return output;
+    }
+
+    /**
+     * Calculates SHA256(SHA256(byte range 1 + byte range 2)) into the given buffer without allocating. The output may
+     * overlap either of the inputs.
+     */
+    public static void doubleDigestTwoBuffers(byte[] input1, int offset1, int length1,
+                                              byte[] input2, int offset2, int length2,
+                                              byte[] output, int outputOffset) {
+        Sha256Engine engine = sha256Engines.get();
+        engine.digest.reset();
+        engine.digest.update(input1, offset1, length1);
+        engine.digest.update(input2, offset2, length2);
+        engine.finishDouble(output, outputOffset);
     }
 
     /**
@@ -317,16 +366,12 @@ public class Utils {
      * Calculates RIPEMD160(SHA256(input)). This is used in Address calculations.
      */
     public static byte[] sha256hash160(byte[] input) {
-        try {
-            byte[] sha256 = MessageDigest.getInstance("SHA-256").digest(input);
-            RIPEMD160Digest digest = new RIPEMD160Digest();
-            digest.update(sha256, 0, sha256.length);
-            byte[] out = new byte[20];
-            digest.doFinal(out, 0);
-            return out;
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);  // Cannot happen.
-        }
+        byte[] sha256 = singleDigest(input, 0, input.length);
+        RIPEMD160Digest digest = new RIPEMD160Digest();
+        digest.update(sha256, 0, sha256.length);
+        byte[] out = new byte[20];
+        digest.doFinal(out, 0);
+        return out;
     }
 
     /**
@@ -38,6 +38,7 @@ import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import com.google.protobuf.ByteString;
 import org.bitcoinj.wallet.Protos.Wallet.EncryptionType;
 import org.multibit.store.MultiBitWalletExtension;
 import org.multibit.store.MultiBitWalletProtobufSerializer;
@@ -137,6 +138,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // A list of public/private EC keys owned by this user. Access it using addKey[s], hasKey[s] and findPubKeyFromHash.
     private ArrayList<ECKey> keychain;
 
+    // Indexes over the keychain by public key hash and by public key, so relevance checks don't have to scan every key
+    // for every output. They must be updated whenever the keychain changes, see rebuildKeyIndexes().
+    private transient HashMap<ByteString, ECKey> keysByPubKeyHash;
+    private transient HashMap<ByteString, ECKey> keysByPubKey;
+
     private NetworkParameters params;
 
     private Sha256Hash lastBlockSeenHash;
@@ -148,10 +154,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     // as a convenience to API users so they don't have to register on every transaction themselves.
     private transient TransactionConfidence.Listener txConfidenceListener;
 
-    // If a TX hash appears in this set then notifyNewBestBlock will ignore it, as its confidence was already set up
-    // in receive() via Transaction.setBlockAppearance(). As the BlockChain always calls notifyNewBestBlock even if
-    // it sent transactions to the wallet, without this we'd double count.
-    private transient HashSet<Sha256Hash> ignoreNextNewBlock;
+    // Counts the best chain blocks we have seen, so the confidences of our transactions can work out their depth and
+    // work done themselves instead of being updated one by one for every block.
+    private DepthTracker depthTracker;
+    // Transactions also held by another wallet whose tracker their confidence follows. Our tracker never hears about
+    // the depths they reach, so these are looked at on every block like all transactions used to be.
+    private transient HashSet<Transaction> trackedElsewhere;
+
+    // Running totals of what the transactions in the unspent pool add to the ESTIMATED and AVAILABLE balances, the
+    // latter as seen by the DefaultCoinSelector. Transactions whose share may have changed are queued in balanceDirty
+    // and recounted the next time a balance is needed. A null balanceContributions means everything must be recounted.
+    // The pending pool is always counted live, as it's small and peers can change what is selectable in it without
+    // taking the wallet lock.
+    private transient HashMap<Sha256Hash, BalanceContribution> balanceContributions;
+    private transient HashSet<Sha256Hash> balanceDirty;
+    private transient BigInteger unspentEstimated, unspentAvailable;
+    // The outputs of the unspent and pending pools we could spend, ordered for coin selection. Kept up to date along
+    // with the running balances, from the same dirty set.
+    private transient SpendableOutputIndex spendableOutputs;
     // Whether or not to ignore nLockTime > 0 transactions that are received to the mempool.
     private boolean acceptTimeLockedTransactions;
 
@@ -189,13 +209,25 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         public CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates);
     }
 
+    /**
+     * A {@link CoinSelector} that can also pick outputs straight from the wallet's {@link SpendableOutputIndex}, which
+     * keeps them sorted by value and depth. The wallet calls this instead of building and passing the list of all
+     * candidates, so a selector that only needs the best few outputs does not have to look at the rest. The index
+     * includes immature coinbases, which must be skipped.
+     */
+    public interface IndexedCoinSelector extends CoinSelector {
+        public CoinSelection select(BigInteger target, SpendableOutputIndex index);
+    }
+
     /**
      * This class implements a {@link CoinSelector} which attempts to get the highest priority possible. This means that
      * the transaction is the most likely to get confirmed
      * Note that this means we may end up "spending" more priority than would be required to get the transaction we are
      * creating confirmed.
+     * The wallet uses {@link #select(BigInteger, SpendableOutputIndex)} when it can. Sub-classes that override
+     * {@link #select(BigInteger, LinkedList)} but not the former are given the list of all candidates instead.
      */
-    public static class DefaultCoinSelector implements CoinSelector {
+    public static class DefaultCoinSelector implements IndexedCoinSelector {
         public CoinSelection select(BigInteger biTarget, LinkedList<TransactionOutput> candidates) {
             HashSet<TransactionOutput> selected = new HashSet<TransactionOutput>();
             // Sort the inputs by age*value so we get the highest "coindays" spent.
@@ -243,6 +275,24 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             return new CoinSelection(biTotal, selected);
         }
 
+        public CoinSelection select(BigInteger biTarget, SpendableOutputIndex index) {
+            HashSet<TransactionOutput> selected = new HashSet<TransactionOutput>();
+            // The index gives us the outputs in the same order as sorting the candidates above would, but only works
+            // out as many as we look at. As above, don't bother ordering them when selecting everything.
+            Iterator<TransactionOutput> outputs = biTarget.equals(NetworkParameters.MAX_MONEY) ?
+                    index.iterator() : index.highestCoinDepthFirst();
+            BigInteger biTotal = BigInteger.ZERO;
+            while (outputs.hasNext() && biTotal.compareTo(biTarget) < 0) {
+                TransactionOutput output = outputs.next();
+                // The index has immature coinbases in it, which the protocol forbids us from spending.
+                if (!output.parentTransaction.isMature()) continue;
+                if (!shouldSelect(output.parentTransaction)) continue;
+                selected.add(output);
+                biTotal = biTotal.add(output.getValue());
+            }
+            return new CoinSelection(biTotal, selected);
+        }
+
         /** Sub-classes can override this to just customize whether transactions are usable, but keep age sorting. */
         protected boolean shouldSelect(Transaction tx) {
             return isSelectable(tx);
@@ -322,6 +372,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         transactions = new HashMap<Sha256Hash, Transaction>();
         eventListeners = new CopyOnWriteArrayList<ListenerRegistration<WalletEventListener>>();
         extensions = new HashMap<String, WalletExtension>();
+        depthTracker = new DepthTracker();
         
         if (keyCrypter != null) {
             // If the wallet is encrypted, add a wallet protect extension.
@@ -339,7 +390,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     private void createTransientState() {
-        ignoreNextNewBlock = new HashSet<Sha256Hash>();
+        rebuildKeyIndexes();
+        balanceDirty = new HashSet<Sha256Hash>();
+        balanceContributions = null;
+        trackedElsewhere = new HashSet<Transaction>();
+        for (Transaction tx : transactions.values()) {
+            if (tx.getConfidence().getDepthTracker() != depthTracker)
+                trackedElsewhere.add(tx);
+        }
         txConfidenceListener = new TransactionConfidence.Listener() {
             @Override
             public void onConfidenceChanged(Transaction tx, TransactionConfidence.Listener.ChangeReason reason) {
@@ -398,24 +456,43 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public boolean removeKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.remove(key);
+            if (!keychain.remove(key))
+                return false;
+            keysByPubKeyHash.remove(ByteString.copyFrom(key.getPubKeyHash()));
+            keysByPubKey.remove(ByteString.copyFrom(key.getPubKey()));
+            invalidateBalances();  // Outputs to the key are no longer ours.
+            return true;
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * Returns a snapshot of the keychain. This view is live.
+     * Returns a read-only view of the keychain. This view is live, but is replaced by a new keychain when the wallet is
+     * encrypted or decrypted. Use {@link #addKeys(java.util.List)} and {@link #removeKey(ECKey)} to change it.
      */
     public List<ECKey> getKeychain() {
         lock.lock();
         try {
-            return keychain;
+            return Collections.unmodifiableList(keychain);
         } finally {
             lock.unlock();
         }
     }
 
+    private void indexKey(ECKey key) {
+        keysByPubKeyHash.put(ByteString.copyFrom(key.getPubKeyHash()), key);
+        keysByPubKey.put(ByteString.copyFrom(key.getPubKey()), key);
+    }
+
+    // Called when the keychain is created or replaced wholesale.
+    private void rebuildKeyIndexes() {
+        keysByPubKeyHash = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        keysByPubKey = new HashMap<ByteString, ECKey>(keychain.size() * 2);
+        for (ECKey key : keychain)
+            indexKey(key);
+    }
+
     /**
      * Returns the number of keys in the keychain.
      */
@@ -604,6 +681,57 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         return true;
     }
 
+    /**
+     * Checks that the running balance totals agree with the balances calculated from scratch. This scans the whole
+     * wallet, so is for tests and debugging only. If the totals are wrong they are thrown away, so that later calls to
+     * {@link #getBalance(BalanceType)} are correct again.
+     */
+    boolean isBalanceCacheConsistent() {
+        lock.lock();
+        try {
+            BigInteger estimated = BigInteger.ZERO;
+            for (TransactionOutput output : scanAllSpendCandidates(false))
+                estimated = estimated.add(output.getValue());
+            BigInteger available = new DefaultCoinSelector().select(NetworkParameters.MAX_MONEY,
+                    scanAllSpendCandidates(true)).valueGathered;
+            updateCachedBalances();
+            BigInteger cachedEstimated = unspentEstimated.add(getPendingBalance(false));
+            BigInteger cachedAvailable = unspentAvailable.add(getPendingBalance(true));
+            if (!estimated.equals(cachedEstimated) || !available.equals(cachedAvailable)) {
+                log.error("Cached balances are wrong: estimated {} vs {}, available {} vs {}",
+                        new Object[]{cachedEstimated, estimated, cachedAvailable, available});
+                invalidateBalances();
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks that the index of spendable outputs holds the same outputs as a scan of the whole wallet finds. For tests
+     * and debugging only.
+     */
+    boolean isSpendableIndexConsistent() {
+        lock.lock();
+        try {
+            updateCachedBalances();
+            LinkedList<TransactionOutput> candidates = scanAllSpendCandidates(false);
+            BigInteger total = BigInteger.ZERO;
+            for (TransactionOutput output : candidates)
+                total = total.add(output.getValue());
+            if (candidates.size() != spendableOutputs.size() || !total.equals(spendableOutputs.getTotalValue())) {
+                log.error("Spendable output index is wrong: {} outputs worth {} vs {} worth {}",
+                        new Object[]{spendableOutputs.size(), spendableOutputs.getTotalValue(), candidates.size(), total});
+                return false;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
      * Returns a wallet deserialized from the given input stream.
      */
@@ -620,6 +748,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
     private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
+        if (depthTracker == null) {
+            // Serialized before depth tracking existed.
+            depthTracker = new DepthTracker();
+            for (Transaction tx : transactions.values())
+                tx.getConfidence().setDepthTracker(depthTracker);
+        }
         createTransientState();
     }
     
@@ -945,8 +1079,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
 
         boolean wasPending = pending.remove(txHash) != null;
-        if (wasPending)
+        if (wasPending) {
             log.info("  <-pending");
+            markBalanceDirty(tx);
+        }
 
         if (bestChain) {
             if (wasPending) {
@@ -980,15 +1116,15 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
 
         if (block != null) {
+            // Count the block before the confidence learns about it, so its depth of one is relative to this block
+            // and notifyNewBestBlock, which BlockChain calls straight after, doesn't count it a second time.
+            if (bestChain)
+                depthTracker.advance(block);
             // Mark the tx as appearing in this block so we can find it later after a re-org. This also tells the tx
             // confidence object about the block and sets its work done/depth appropriately.
             tx.setBlockAppearance(block, bestChain, relativityOffset);
-            if (bestChain) {
-                // Don't notify this tx of work done in notifyNewBestBlock which will be called immediately after
-                // this method has been called by BlockChain for all relevant transactions. Otherwise we'd double
-                // count.
-                ignoreNextNewBlock.add(txHash);
-            }
+            // The tx is now BUILDING, which may make its outputs selectable.
+            markBalanceDirty(tx);
         }
 
         onWalletChangedSuppressions--;
@@ -1066,20 +1202,37 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 setLastBlockSeenHash(newBlockHash);
                 setLastBlockSeenHeight(block.getHeight());                    
             }
-            // TODO: Clarify the code below.
-            // Notify all the BUILDING transactions of the new block.
-            // This is so that they can update their work done and depth.
-            Set<Transaction> transactions = getTransactions(true);
-            for (Transaction tx : transactions) {
-                if (ignoreNextNewBlock.contains(tx.getHash())) {
-                    // tx was already processed in receive() due to it appearing in this block, so we don't want to
-                    // notify the tx confidence of work done twice, it'd result in miscounting.
-                    ignoreNextNewBlock.remove(tx.getHash());
-                } else {
-                    tx.getConfidence().notifyWorkDone(block.getHeader());
+            // The depth and work done of BUILDING transactions are worked out from the tracker when asked for, so
+            // we only have to count the block (unless receive() already did) and then inform the transactions
+            // which someone asked to hear about at this depth.
+            depthTracker.advance(block);
+            boolean depthsChanged = false;
+            for (TransactionConfidence confidence : depthTracker.takeDue()) {
+                if (!confidence.checkDepthThresholds())
+                    continue;
+                Transaction tx = confidence.getTransaction();
+                if (transactions.get(tx.getHash()) != tx)
+                    continue;  // Removed from the wallet since it registered.
+                depthsChanged = true;
+                markBalanceDirty(tx);
+                if (!confidenceChanged.containsKey(tx))
                     confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
+            }
+            for (Iterator<Transaction> it = trackedElsewhere.iterator(); it.hasNext(); ) {
+                Transaction tx = it.next();
+                if (transactions.get(tx.getHash()) != tx) {
+                    it.remove();
+                    continue;
                 }
+                if (tx.getConfidence().getConfidenceType() != ConfidenceType.BUILDING)
+                    continue;
+                depthsChanged = true;
+                markBalanceDirty(tx);
+                if (!confidenceChanged.containsKey(tx))
+                    confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
             }
+            if (depthsChanged && !insideReorg)
+                checkBalanceFuturesLocked(null);  // Coinbases may have become spendable.
 
             informConfidenceListenersIfNotReorganizing();
             maybeQueueOnWalletChanged();
@@ -1276,6 +1429,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
      */
     private void maybeMovePool(Transaction tx, String context) {
         checkState(lock.isHeldByCurrentThread());
+        // Called whenever the spent flags of the outputs change, so even if the tx stays put its balance may not.
+        markBalanceDirty(tx);
         if (tx.isEveryOwnedOutputSpent(this)) {
             // There's nothing left I can spend in this transaction.
             if (unspent.remove(tx.getHash()) != null) {
@@ -1469,6 +1624,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         // This is safe even if the listener has been added before, as TransactionConfidence ignores duplicate
         // registration requests. That makes the code in the wallet simpler.
         tx.getConfidence().addEventListener(txConfidenceListener);
+        if (!tx.getConfidence().setDepthTracker(depthTracker))
+            trackedElsewhere.add(tx);
+        if (tx.isCoinBase()) {
+            // Coinbase outputs become spendable at a certain depth, so we need to know when that happens.
+            tx.getConfidence().watchDepth(params.getSpendableCoinbaseDepth());
+        }
+        markBalanceDirty(tx);
     }
 
     /**
@@ -1541,6 +1703,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 pending.clear();
                 dead.clear();
                 transactions.clear();
+                invalidateBalances();
                 //saveLater();
             } else {
                 throw new UnsupportedOperationException();
@@ -1977,11 +2140,12 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // with the actual outputs that'll be used to gather the required amount of value. In this way, users
             // can customize coin selection policies.
             //
-            // Note that this code is poorly optimized: the spend candidates only alter when transactions in the wallet
-            // change - it could be pre-calculated and held in RAM, and this is probably an optimization worth doing.
-            // Note that output.isMine(this) needs to test the keychain which is currently an array, so it's
-            // O(candidate outputs ^ keychain.size())! There's lots of low hanging fruit here.
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
+            // Selectors that can use the index of spendable outputs pick from it directly. Others get the list of
+            // candidates, which is worked out once here as the fee calculation may select several times.
+            CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
+            LinkedList<TransactionOutput> candidates = null;
+            if (!usesSpendableOutputIndex(selector))
+                candidates = calculateAllSpendCandidates(true);
             CoinSelection bestCoinSelection;
             TransactionOutput bestChangeOutput = null;
             if (!req.emptyWallet) {
@@ -1999,8 +2163,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 // We're being asked to empty the wallet. What this means is ensuring "tx" has only a single output
                 // of the total value we can currently spend as determined by the selector, and then subtracting the fee.
                 checkState(req.tx.getOutputs().size() == 1, "Empty wallet TX must have a single output only.");
-                CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                bestCoinSelection = selector.select(NetworkParameters.MAX_MONEY, candidates);
+                bestCoinSelection = selectCoins(selector, NetworkParameters.MAX_MONEY, candidates);
                 req.tx.getOutput(0).setValue(bestCoinSelection.valueGathered);
                 totalOutput = bestCoinSelection.valueGathered;
                 if (totalOutput.compareTo(BigInteger.valueOf(2)) < 0)
@@ -2107,14 +2270,10 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
-            for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            for (TransactionOutput output : getSpendableOutputs()) {
                 // Do not try and spend coinbases that were mined too recently, the protocol forbids it.
-                if (excludeImmatureCoinbases && !tx.isMature()) continue;
-                for (TransactionOutput output : tx.getOutputs()) {
-                    if (!output.isAvailableForSpending()) continue;
-                    if (!output.isMine(this)) continue;
-                    candidates.add(output);
-                }
+                if (excludeImmatureCoinbases && !output.parentTransaction.isMature()) continue;
+                candidates.add(output);
             }
             return candidates;
         } finally {
@@ -2122,6 +2281,21 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         }
     }
 
+    // Finds the spend candidates by looking at every transaction that could have any, rather than using the index.
+    private LinkedList<TransactionOutput> scanAllSpendCandidates(boolean excludeImmatureCoinbases) {
+        checkState(lock.isHeldByCurrentThread());
+        LinkedList<TransactionOutput> candidates = Lists.newLinkedList();
+        for (Transaction tx : Iterables.concat(unspent.values(), pending.values())) {
+            if (excludeImmatureCoinbases && !tx.isMature()) continue;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (!output.isAvailableForSpending()) continue;
+                if (!output.isMine(this)) continue;
+                candidates.add(output);
+            }
+        }
+        return candidates;
+    }
+
     /** Returns the address used for change outputs. Note: this will probably go away in future. */
     public Address getChangeAddress() {
         lock.lock();
@@ -2164,9 +2338,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             int added = 0;
-            // TODO: Consider making keys a sorted list or hashset so membership testing is faster.
             for (final ECKey key : keys) {
-                if (keychain.contains(key)) continue;
+                if (keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()))) continue;
 
                 // If the key has a keyCrypter that does not match the Wallet's then a KeyCrypterException is thrown.
                 // This is done because only one keyCrypter is persisted per Wallet and hence all the keys must be homogenous.
@@ -2176,8 +2349,11 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                     }
                 }
                 keychain.add(key);
+                indexKey(key);
                 added++;
             }
+            if (added > 0)
+                invalidateBalances();  // Outputs we already hold may pay to the new keys.
             queueOnKeysAdded(keys);
             // Force an auto-save immediately rather than queueing one, as keys are too important to risk losing.
             //saveNow();
@@ -2196,20 +2372,17 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubHash(byte[] pubkeyHash) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKeyHash(), pubkeyHash)) return key;
-            }
-            return null;
+            return keysByPubKeyHash.get(ByteString.copyFrom(pubkeyHash));
         } finally {
             lock.unlock();
         }
     }
 
-    /** Returns true if the given key is in the wallet, false otherwise. Currently an O(N) operation. */
+    /** Returns true if the given key is in the wallet, false otherwise. */
     public boolean hasKey(ECKey key) {
         lock.lock();
         try {
-            return keychain.contains(key);
+            return keysByPubKey.containsKey(ByteString.copyFrom(key.getPubKey()));
         } finally {
             lock.unlock();
         }
@@ -2229,10 +2402,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     public ECKey findKeyFromPubKey(byte[] pubkey) {
         lock.lock();
         try {
-            for (ECKey key : keychain) {
-                if (Arrays.equals(key.getPubKey(), pubkey)) return key;
-            }
-            return null;
+            return keysByPubKey.get(ByteString.copyFrom(pubkey));
         } finally {
             lock.unlock();
         }
@@ -2284,12 +2454,14 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             if (balanceType == BalanceType.AVAILABLE) {
-                return getBalance(coinSelector);
+                // The running total only knows how the default selector picks coins.
+                if (coinSelector.getClass() != DefaultCoinSelector.class)
+                    return getBalance(coinSelector);
+                updateCachedBalances();
+                return unspentAvailable.add(getPendingBalance(true));
             } else if (balanceType == BalanceType.ESTIMATED) {
-                LinkedList<TransactionOutput> all = calculateAllSpendCandidates(false);
-                BigInteger value = BigInteger.ZERO;
-                for (TransactionOutput out : all) value = value.add(out.getValue());
-                return value;
+                updateCachedBalances();
+                return unspentEstimated.add(getPendingBalance(false));
             } else {
                 throw new AssertionError("Unknown balance type");  // Unreachable.
             }
@@ -2306,14 +2478,147 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         lock.lock();
         try {
             checkNotNull(selector);
-            LinkedList<TransactionOutput> candidates = calculateAllSpendCandidates(true);
-            CoinSelection selection = selector.select(NetworkParameters.MAX_MONEY, candidates);
-            return selection.valueGathered;
+            return selectCoins(selector, NetworkParameters.MAX_MONEY, null).valueGathered;
         } finally {
             lock.unlock();
         }
     }
 
+    // What one unspent transaction adds to the running balances.
+    private static class BalanceContribution {
+        final BigInteger estimated, available;
+
+        BalanceContribution(BigInteger estimated, BigInteger available) {
+            this.estimated = estimated;
+            this.available = available;
+        }
+    }
+
+    // Queues the tx to have its share of the balances recounted, because its pool, outputs or confidence changed.
+    private void markBalanceDirty(Transaction tx) {
+        if (balanceContributions != null)
+            balanceDirty.add(tx.getHash());
+    }
+
+    private void invalidateBalances() {
+        balanceContributions = null;
+        balanceDirty.clear();
+    }
+
+    // Brings unspentEstimated and unspentAvailable up to date by recounting the dirty transactions, or everything if
+    // the totals were thrown away.
+    private void updateCachedBalances() {
+        checkState(lock.isHeldByCurrentThread());
+        if (balanceContributions == null) {
+            balanceContributions = new HashMap<Sha256Hash, BalanceContribution>();
+            unspentEstimated = BigInteger.ZERO;
+            unspentAvailable = BigInteger.ZERO;
+            spendableOutputs = new SpendableOutputIndex(depthTracker);
+            for (Transaction tx : unspent.values()) {
+                addBalanceContribution(tx);
+                addSpendableOutputs(tx);
+            }
+            for (Transaction tx : pending.values())
+                addSpendableOutputs(tx);
+        } else {
+            for (Sha256Hash hash : balanceDirty) {
+                BalanceContribution old = balanceContributions.remove(hash);
+                if (old != null) {
+                    unspentEstimated = unspentEstimated.subtract(old.estimated);
+                    unspentAvailable = unspentAvailable.subtract(old.available);
+                }
+                spendableOutputs.remove(hash);
+                Transaction tx = unspent.get(hash);
+                if (tx != null) {
+                    addBalanceContribution(tx);
+                    addSpendableOutputs(tx);
+                } else if ((tx = pending.get(hash)) != null) {
+                    addSpendableOutputs(tx);
+                }
+            }
+        }
+        balanceDirty.clear();
+    }
+
+    private void addSpendableOutputs(Transaction tx) {
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (output.isAvailableForSpending() && output.isMine(this))
+                spendableOutputs.add(output);
+        }
+    }
+
+    /**
+     * Returns the outputs of this wallet that could be spent, sorted for coin selection. The index is only valid
+     * whilst the wallet lock is held, and is for use by {@link IndexedCoinSelector}s.
+     */
+    SpendableOutputIndex getSpendableOutputs() {
+        checkState(lock.isHeldByCurrentThread());
+        updateCachedBalances();
+        return spendableOutputs;
+    }
+
+    // Returns true if the selector can pick from the index. A subclass of DefaultCoinSelector that overrides only
+    // select(BigInteger, LinkedList) was written before the index existed, so it is given the list so that its policy
+    // is still applied.
+    private static boolean usesSpendableOutputIndex(CoinSelector selector) {
+        if (!(selector instanceof IndexedCoinSelector))
+            return false;
+        if (!(selector instanceof DefaultCoinSelector))
+            return true;
+        try {
+            Class<?> listSelect = selector.getClass().getMethod("select", BigInteger.class, LinkedList.class)
+                    .getDeclaringClass();
+            Class<?> indexSelect = selector.getClass().getMethod("select", BigInteger.class, SpendableOutputIndex.class)
+                    .getDeclaringClass();
+            return listSelect.isAssignableFrom(indexSelect);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);  // Cannot happen, both are declared by DefaultCoinSelector.
+        }
+    }
+
+    // Asks the selector to pick coins worth the target, straight from the index if it knows how to. Otherwise the
+    // candidates are calculated, unless the caller already did so.
+    private CoinSelection selectCoins(CoinSelector selector, BigInteger target,
+                                      @Nullable LinkedList<TransactionOutput> candidates) {
+        checkState(lock.isHeldByCurrentThread());
+        if (candidates == null && usesSpendableOutputIndex(selector))
+            return ((IndexedCoinSelector) selector).select(target, getSpendableOutputs());
+        if (candidates == null)
+            candidates = calculateAllSpendCandidates(true);
+        return selector.select(target, candidates);
+    }
+
+    private void addBalanceContribution(Transaction tx) {
+        BigInteger estimated = BigInteger.ZERO;
+        BigInteger available = BigInteger.ZERO;
+        boolean selectable = tx.isMature() && DefaultCoinSelector.isSelectable(tx);
+        for (TransactionOutput output : tx.getOutputs()) {
+            if (!output.isAvailableForSpending() || !output.isMine(this)) continue;
+            estimated = estimated.add(output.getValue());
+            if (selectable)
+                available = available.add(output.getValue());
+        }
+        if (estimated.signum() == 0)
+            return;
+        balanceContributions.put(tx.getHash(), new BalanceContribution(estimated, available));
+        unspentEstimated = unspentEstimated.add(estimated);
+        unspentAvailable = unspentAvailable.add(available);
+    }
+
+    // Adds up the outputs of pending transactions we could spend, as calculateAllSpendCandidates would find them.
+    // If available is true only counts those the default coin selector would pick.
+    private BigInteger getPendingBalance(boolean available) {
+        BigInteger value = BigInteger.ZERO;
+        for (Transaction tx : pending.values()) {
+            if (available && !(tx.isMature() && DefaultCoinSelector.isSelectable(tx))) continue;
+            for (TransactionOutput output : tx.getOutputs()) {
+                if (output.isAvailableForSpending() && output.isMine(this))
+                    value = value.add(output.getValue());
+            }
+        }
+        return value;
+    }
+
     @Override
     public String toString() {
         return toString(false, true, true, null);
@@ -2445,6 +2750,8 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             insideReorg = true;
             checkState(onWalletChangedSuppressions == 0);
             onWalletChangedSuppressions++;
+            // Too much moves around in a re-org to track, so recount the balances from scratch afterwards.
+            invalidateBalances();
 
             // Map block hash to transactions that appear in it. We ensure that the map values are sorted according
             // to their relative position within those blocks.
@@ -2525,18 +2832,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
             // mempool and so T1 is still seen as a losing double spend.
 
             // The old blocks have contributed to the depth and work done for all the transactions in the
-            // wallet that are in blocks up to and including the chain split block.
-            // The total depth and work done is calculated here and then subtracted from the appropriate transactions.
-            int depthToSubtract = oldBlocks.size();
-            BigInteger workDoneToSubtract = BigInteger.ZERO;
-            for (StoredBlock b : oldBlocks) {
-                workDoneToSubtract = workDoneToSubtract.add(b.getHeader().getWork());
-            }
-            log.info("depthToSubtract = " + depthToSubtract + ", workDoneToSubtract = " + workDoneToSubtract);
-            // Remove depthToSubtract and workDoneToSubtract from all transactions in the wallet except for pending.
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, spent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, unspent.values());
-            subtractDepthAndWorkDone(depthToSubtract, workDoneToSubtract, dead.values());
+            // wallet that are in blocks up to and including the chain split block. Uncounting them from the
+            // tracker takes them off all of those transactions at once.
+            log.info("depthToSubtract = {}", oldBlocks.size());
+            depthTracker.rollBack(splitPoint, oldBlocks);
+            markDepthChanged(spent.values());
+            markDepthChanged(unspent.values());
+            markDepthChanged(dead.values());
 
             // The effective last seen block is now the split point so set the lastSeenBlockHash.
             setLastBlockSeenHash(splitPoint.getHeader().getHash());
@@ -2557,6 +2859,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
                 }
                 notifyNewBestBlock(block);
             }
+            invalidateBalances();
             checkState(isConsistent());
             final BigInteger balance = getBalance();
             log.info("post-reorg balance is {}", Utils.bitcoinValueToFriendlyString(balance));
@@ -2574,16 +2877,13 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
     }
 
     /**
-     * Subtract the supplied depth and work done from the given transactions.
+     * Queues a depth change notification for the given transactions that are building, as a re-org made them
+     * shallower.
      */
-    private void subtractDepthAndWorkDone(int depthToSubtract, BigInteger workDoneToSubtract,
-                                          Collection<Transaction> transactions) {
+    private void markDepthChanged(Collection<Transaction> transactions) {
         for (Transaction tx : transactions) {
-            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING) {
-                tx.getConfidence().setDepthInBlocks(tx.getConfidence().getDepthInBlocks() - depthToSubtract);
-                tx.getConfidence().setWorkDone(tx.getConfidence().getWorkDone().subtract(workDoneToSubtract));
+            if (tx.getConfidence().getConfidenceType() == ConfidenceType.BUILDING)
                 confidenceChanged.put(tx, TransactionConfidence.Listener.ChangeReason.DEPTH);
-            }
         }
     }
 
@@ -2776,6 +3076,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the encrypted one.
             keychain = encryptedKeyChain;
+            rebuildKeyIndexes();
 
             // The wallet is now encrypted.
             this.keyCrypter = keyCrypter;
@@ -2821,6 +3122,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
             // Replace the old keychain with the unencrypted one.
             keychain = decryptedKeyChain;
+            rebuildKeyIndexes();
 
             // The wallet is now unencrypted.
             keyCrypter = null;
@@ -3334,7 +3636,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
         private TransactionOutput bestChangeOutput;
 
         public FeeCalculation(SendRequest req, BigInteger value, List<TransactionInput> originalInputs,
-                              boolean needAtLeastReferenceFee, LinkedList<TransactionOutput> candidates,
+                              boolean needAtLeastReferenceFee, @Nullable LinkedList<TransactionOutput> candidates,
                               int txOutDustFeeCount  ) throws InsufficientMoneyException {
             checkState(lock.isHeldByCurrentThread());
             // There are 3 possibilities for what adding change might do:
@@ -3378,7 +3680,7 @@ public class Wallet implements Serializable, BlockChainListener, PeerFilterProvi
 
                 // Of the coins we could spend, pick some that we actually will spend.
                 CoinSelector selector = req.coinSelector == null ? coinSelector : req.coinSelector;
-                CoinSelection selection = selector.select(valueNeeded, candidates);
+                CoinSelection selection = selectCoins(selector, valueNeeded, candidates);
                 // Can we afford this?
                 if (selection.valueGathered.compareTo(valueNeeded) < 0)
                     break;
@@ -89,9 +89,10 @@ public interface WalletEventListener {
      * TransactionConfidence.ConfidenceType.DEAD</tt>. If it is, you should notify the user
      * in some way so they know the thing they bought may not arrive/the thing they sold should not be dispatched.</p>
      *
-     * <p>Note that this callback will be invoked for every transaction in the wallet, for every new block that is
-     * received (because the depth has changed). <b>If you want to update a UI view from the contents of the wallet
-     * it is more efficient to use onWalletChanged instead.</b></p>
+     * <p>Note that this callback is not invoked for every transaction each time a new block makes it deeper, only when
+     * it reaches a depth that was asked for using {@link TransactionConfidence#watchDepth(int)} (or a future from
+     * {@link TransactionConfidence#getDepthFuture(int)}), or a coinbase becomes spendable. <b>If you want to update a
+     * UI view from the contents of the wallet it is more efficient to use onWalletChanged instead.</b></p>
      */
     void onTransactionConfidenceChanged(Wallet wallet, Transaction tx);
 
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.script;
+
+import java.util.Arrays;
+
+import static com.google.dogecoin.script.ScriptOpCodes.*;
+
+/**
+ * <p>Stores scriptPubKeys in fewer bytes, for block stores that keep the unspent outputs. The standard pay to address
+ * and pay to script hash templates are replaced by a one byte type followed by the 20 byte hash, and any other script
+ * is kept as it is after a type byte.</p>
+ *
+ * <p>The templates are matched against the exact bytes of the script, so decompressing always gives back exactly what
+ * was compressed.</p>
+ */
+public class ScriptCompressor {
+    /** The rest of the compressed script is the script itself. */
+    public static final int TYPE_RAW = 0;
+    /** OP_DUP OP_HASH160 &lt;20 bytes> OP_EQUALVERIFY OP_CHECKSIG */
+    public static final int TYPE_PAY_TO_ADDRESS = 1;
+    /** OP_HASH160 &lt;20 bytes> OP_EQUAL */
+    public static final int TYPE_PAY_TO_SCRIPT_HASH = 2;
+
+    private static final int HASH_LENGTH = 20;
+
+    private ScriptCompressor() {
+    }
+
+    /** Returns the type byte that {@link #compress(byte[])} would start its result with. */
+    public static int getType(byte[] script) {
+        if (script.length == 25 &&
+                (script[0] & 0xff) == OP_DUP &&
+                (script[1] & 0xff) == OP_HASH160 &&
+                script[2] == HASH_LENGTH &&
+                (script[23] & 0xff) == OP_EQUALVERIFY &&
+                (script[24] & 0xff) == OP_CHECKSIG)
+            return TYPE_PAY_TO_ADDRESS;
+        if (script.length == 23 &&
+                (script[0] & 0xff) == OP_HASH160 &&
+                script[1] == HASH_LENGTH &&
+                (script[22] & 0xff) == OP_EQUAL)
+            return TYPE_PAY_TO_SCRIPT_HASH;
+        return TYPE_RAW;
+    }
+
+    /** Returns the given scriptPubKey in compressed form. */
+    public static byte[] compress(byte[] script) {
+        byte[] compressed;
+        switch (getType(script)) {
+            case TYPE_PAY_TO_ADDRESS:
+                compressed = new byte[1 + HASH_LENGTH];
+                compressed[0] = TYPE_PAY_TO_ADDRESS;
+                System.arraycopy(script, 3, compressed, 1, HASH_LENGTH);
+                return compressed;
+            case TYPE_PAY_TO_SCRIPT_HASH:
+                compressed = new byte[1 + HASH_LENGTH];
+                compressed[0] = TYPE_PAY_TO_SCRIPT_HASH;
+                System.arraycopy(script, 2, compressed, 1, HASH_LENGTH);
+                return compressed;
+            default:
+                compressed = new byte[1 + script.length];
+                compressed[0] = TYPE_RAW;
+                System.arraycopy(script, 0, compressed, 1, script.length);
+                return compressed;
+        }
+    }
+
+    /**
+     * Returns the scriptPubKey that was compressed by {@link #compress(byte[])}.
+     *
+     * @throws IllegalArgumentException if the bytes are not a compressed script.
+     */
+    public static byte[] decompress(byte[] compressed) {
+        if (compressed.length == 0)
+            throw new IllegalArgumentException("Empty compressed script");
+        byte[] script;
+        switch (compressed[0]) {
+            case TYPE_PAY_TO_ADDRESS:
+                checkHashLength(compressed);
+                script = new byte[25];
+                script[0] = (byte) OP_DUP;
+                script[1] = (byte) OP_HASH160;
+                script[2] = HASH_LENGTH;
+                System.arraycopy(compressed, 1, script, 3, HASH_LENGTH);
+                script[23] = (byte) OP_EQUALVERIFY;
+                script[24] = (byte) OP_CHECKSIG;
+                return script;
+            case TYPE_PAY_TO_SCRIPT_HASH:
+                checkHashLength(compressed);
+                script = new byte[23];
+                script[0] = (byte) OP_HASH160;
+                script[1] = HASH_LENGTH;
+                System.arraycopy(compressed, 1, script, 2, HASH_LENGTH);
+                script[22] = (byte) OP_EQUAL;
+                return script;
+            case TYPE_RAW:
+                return Arrays.copyOfRange(compressed, 1, compressed.length);
+            default:
+                throw new IllegalArgumentException("Unknown compressed script type " + compressed[0]);
+        }
+    }
+
+    private static void checkHashLength(byte[] compressed) {
+        if (compressed.length != 1 + HASH_LENGTH)
+            throw new IllegalArgumentException("Compressed script has the wrong length: " + compressed.length);
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.StoredBlock;
+
+import javax.annotation.Nullable;
+
+/**
+ * A BlockStore that can find the ancestor of a block at a given height without looking up every block in between.
+ * Stores don't have to implement it: {@link StoredBlock#getAncestor(BlockStore, int)} uses it when they do, and walks
+ * back through the chain otherwise.
+ */
+public interface AncestorBlockStore extends BlockStore {
+    /**
+     * Returns the block at the given height in the chain that ends with the given block, or null if the store doesn't
+     * have it, for example because the chain was started from a checkpoint above that height. The height must be
+     * between zero and the height of the given block.
+     */
+    @Nullable
+    StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException;
+}
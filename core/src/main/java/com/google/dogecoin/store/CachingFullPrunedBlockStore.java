@@ -0,0 +1,382 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.Sha256Hash;
+import com.google.dogecoin.core.StoredBlock;
+import com.google.dogecoin.core.StoredTransactionOutput;
+import com.google.dogecoin.core.StoredUndoableBlock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>Keeps recently used and recently changed unspent outputs of another {@link FullPrunedBlockStore} in memory, and
+ * writes changes to the outputs back to it in bulk rather than one at a time.</p>
+ *
+ * <p>Most outputs are spent soon after they are created, so an output that is created and then spent before the next
+ * write-back never reaches the underlying store at all. Changes are written back during
+ * {@link #commitDatabaseBatchWrite()} once the cache grows beyond its memory budget or enough blocks have been
+ * verified since the last write-back, together with the verified chain head, so the underlying store is always
+ * consistent with itself and a crash only loses the blocks since the last write-back. Outputs that don't need writing
+ * back are dropped oldest first to keep within the budget.</p>
+ *
+ * <p>Blocks and undo blocks go straight to the underlying store. The cache must be the only user of the underlying
+ * store, and it must be {@link #close()}d or {@link #flush()}ed to make the latest changes permanent.</p>
+ */
+public class CachingFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(CachingFullPrunedBlockStore.class);
+
+    /** The default memory budget of the cache, in bytes. */
+    public static final long DEFAULT_MAX_CACHE_BYTES = 64 * 1024 * 1024;
+    /** The default number of blocks verified between write-backs. */
+    public static final int DEFAULT_MAX_BLOCKS_BETWEEN_FLUSHES = 500;
+    // A rough guess at the memory taken by an entry apart from its script: the output, its hash, the key and the map.
+    private static final int ENTRY_OVERHEAD = 200;
+
+    private final FullPrunedBlockStore store;
+    private final long maxCacheBytes;
+    private final int maxBlocksBetweenFlushes;
+
+    private static class Entry {
+        // The output as it is now and as it is in the underlying store. Either is null if there is no such output.
+        StoredTransactionOutput current, stored;
+
+        Entry(StoredTransactionOutput current, StoredTransactionOutput stored) {
+            this.current = current;
+            this.stored = stored;
+        }
+
+        int size() {
+            return ENTRY_OVERHEAD + (current == null ? 0 : current.getScriptBytes().length);
+        }
+    }
+
+    // Outputs that are the same as in the underlying store, least recently used first.
+    private final LinkedHashMap<StoredTransactionOutPoint, Entry> clean =
+            new LinkedHashMap<StoredTransactionOutPoint, Entry>(16, 0.75f, true);
+    // Outputs that have been created or spent since the last write-back.
+    private final HashMap<StoredTransactionOutPoint, Entry> dirty = new HashMap<StoredTransactionOutPoint, Entry>();
+    private long cacheBytes;
+    private StoredBlock verifiedChainHead;
+    private int blocksSinceFlush;
+
+    // Changes made by a thread since it called beginDatabaseBatchWrite, which other threads must not see yet.
+    private static class Batch {
+        // Spent outputs map to null.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> changes =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // The outputs that were spent, as they were before.
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> spent =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        StoredBlock verifiedChainHead;
+    }
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /** Wraps the given store with the default memory budget and write-back interval. */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store) {
+        this(store, DEFAULT_MAX_CACHE_BYTES, DEFAULT_MAX_BLOCKS_BETWEEN_FLUSHES);
+    }
+
+    /**
+     * Wraps the given store.
+     * @param maxCacheBytes A rough limit on the memory used by cached outputs. Changes are written back when it is
+     *                      reached.
+     * @param maxBlocksBetweenFlushes How many blocks may be verified before changes are written back regardless.
+     */
+    public CachingFullPrunedBlockStore(FullPrunedBlockStore store, long maxCacheBytes, int maxBlocksBetweenFlushes) {
+        checkArgument(maxCacheBytes >= 0);
+        checkArgument(maxBlocksBetweenFlushes > 0);
+        this.store = checkNotNull(store);
+        this.maxCacheBytes = maxCacheBytes;
+        this.maxBlocksBetweenFlushes = maxBlocksBetweenFlushes;
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        store.put(block);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        store.put(storedBlock, undoableBlock);
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return store.get(hash);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getOnceUndoableStoredBlock(hash);
+    }
+
+    public StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        return store.getUndoBlock(hash);
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        // The underlying store only moves its chain head up to the verified one when that is written back.
+        StoredBlock chainHead = store.getChainHead();
+        StoredBlock verifiedChainHead = getVerifiedChainHead();
+        return verifiedChainHead.getHeight() > chainHead.getHeight() ? verifiedChainHead : chainHead;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        store.setChainHead(chainHead);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null && b.verifiedChainHead != null)
+            return b.verifiedChainHead;
+        return verifiedChainHead != null ? verifiedChainHead : store.getVerifiedChainHead();
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch b = batch.get();
+        if (b != null) {
+            b.verifiedChainHead = chainHead;
+        } else {
+            verifiedChainHead = chainHead;
+            blocksSinceFlush++;
+        }
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, index);
+        Batch b = batch.get();
+        if (b != null && b.changes.containsKey(outpoint))
+            return b.changes.get(outpoint);
+        Entry entry = getEntry(outpoint);
+        if (entry != null)
+            return entry.current;
+        StoredTransactionOutput out = store.getTransactionOutput(hash, index);
+        if (out != null)
+            putClean(outpoint, new Entry(out, out));
+        return out;
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+        Batch b = batch.get();
+        if (b != null)
+            b.changes.put(outpoint, out);
+        else
+            apply(outpoint, out, null);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+        StoredTransactionOutput spent = getTransactionOutput(out.getHash(), out.getIndex());
+        if (spent == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from CachingFullPrunedBlockStore that it didn't have!");
+        Batch b = batch.get();
+        if (b != null) {
+            if (b.changes.get(outpoint) != null && !b.spent.containsKey(outpoint)) {
+                // Created earlier in this batch, so the two cancel out and leave the output as it was before the batch.
+                // That's normally no output at all, which the underlying store must not be asked to remove.
+                b.changes.remove(outpoint);
+                spent = getTransactionOutput(out.getHash(), out.getIndex());
+                if (spent == null)
+                    return;
+            }
+            b.changes.put(outpoint, null);
+            if (!b.spent.containsKey(outpoint))
+                b.spent.put(outpoint, spent);
+        } else {
+            apply(outpoint, null, spent);
+        }
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch b = batch.get();
+        boolean anyKnown = false;
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, i);
+            StoredTransactionOutput out;
+            if (b != null && b.changes.containsKey(outpoint)) {
+                out = b.changes.get(outpoint);
+            } else {
+                Entry entry = getEntry(outpoint);
+                if (entry == null)
+                    continue;
+                out = entry.current;
+            }
+            if (out != null)
+                return true;
+            anyKnown = true;
+        }
+        // If none of the outputs have been spent since the last write-back the underlying store can answer in one go,
+        // otherwise ask about the rest one at a time.
+        if (!anyKnown)
+            return store.hasUnspentOutputs(hash, numOutputs);
+        for (int i = 0; i < numOutputs; i++)
+            if (getTransactionOutput(hash, i) != null)
+                return true;
+        return false;
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+        store.beginDatabaseBatchWrite();
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch b = batch.get();
+        batch.remove();
+        // The verified chain head only moves once the underlying store has committed the blocks leading up to it.
+        StoredBlock newVerifiedChainHead = verifiedChainHead;
+        int newBlocksSinceFlush = blocksSinceFlush;
+        if (b != null) {
+            for (Map.Entry<StoredTransactionOutPoint, StoredTransactionOutput> change : b.changes.entrySet())
+                apply(change.getKey(), change.getValue(), b.spent.get(change.getKey()));
+            if (b.verifiedChainHead != null) {
+                newVerifiedChainHead = b.verifiedChainHead;
+                newBlocksSinceFlush++;
+            }
+        }
+        evict();
+        if (cacheBytes > maxCacheBytes || newBlocksSinceFlush >= maxBlocksBetweenFlushes) {
+            // Write back as part of the underlying batch, so the blocks added in it are committed at the same time.
+            try {
+                writeBack(newVerifiedChainHead, newBlocksSinceFlush);
+            } catch (BlockStoreException e) {
+                store.abortDatabaseBatchWrite();
+                throw e;
+            }
+            store.commitDatabaseBatchWrite();
+            markClean();
+            evict();
+        } else {
+            store.commitDatabaseBatchWrite();
+            verifiedChainHead = newVerifiedChainHead;
+            blocksSinceFlush = newBlocksSinceFlush;
+        }
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+        store.abortDatabaseBatchWrite();
+    }
+
+    /** Writes all changes back to the underlying store. */
+    public synchronized void flush() throws BlockStoreException {
+        store.beginDatabaseBatchWrite();
+        try {
+            writeBack(verifiedChainHead, blocksSinceFlush);
+        } catch (BlockStoreException e) {
+            store.abortDatabaseBatchWrite();
+            throw e;
+        }
+        store.commitDatabaseBatchWrite();
+        markClean();
+        evict();
+    }
+
+    /** Writes all changes back and closes the underlying store. */
+    public synchronized void close() throws BlockStoreException {
+        flush();
+        store.close();
+    }
+
+    /** Returns the number of outputs that have been created or spent since the last write-back. */
+    public synchronized int getNumDirtyOutputs() {
+        return dirty.size();
+    }
+
+    /** Returns the number of outputs held in memory. */
+    public synchronized int size() {
+        return clean.size() + dirty.size();
+    }
+
+    private Entry getEntry(StoredTransactionOutPoint outpoint) {
+        Entry entry = dirty.get(outpoint);
+        return entry != null ? entry : clean.get(outpoint);
+    }
+
+    private void putClean(StoredTransactionOutPoint outpoint, Entry entry) {
+        clean.put(outpoint, entry);
+        cacheBytes += entry.size();
+    }
+
+    // Records a committed change: out is the new output, or null if spent is being spent.
+    private void apply(StoredTransactionOutPoint outpoint, StoredTransactionOutput out, StoredTransactionOutput spent) {
+        Entry entry = dirty.get(outpoint);
+        if (entry == null) {
+            entry = clean.remove(outpoint);
+            if (entry == null)
+                // Not looked up before, which means it isn't in the underlying store if it's new, or was evicted since.
+                entry = new Entry(spent, spent);
+            else
+                cacheBytes -= entry.size();
+        } else {
+            cacheBytes -= entry.size();
+        }
+        entry.current = out;
+        if (entry.current == null && entry.stored == null) {
+            // Created and spent before being written back, so the underlying store never needs to hear about it.
+            dirty.remove(outpoint);
+            return;
+        }
+        dirty.put(outpoint, entry);
+        cacheBytes += entry.size();
+    }
+
+    private void writeBack(@Nullable StoredBlock verifiedChainHead, int blocks) throws BlockStoreException {
+        long start = System.currentTimeMillis();
+        for (Entry entry : dirty.values()) {
+            if (entry.stored == entry.current)
+                continue;
+            if (entry.stored != null)
+                store.removeUnspentTransactionOutput(entry.stored);
+            if (entry.current != null)
+                store.addUnspentTransactionOutput(entry.current);
+        }
+        if (verifiedChainHead != null)
+            store.setVerifiedChainHead(verifiedChainHead);
+        log.info("Wrote back {} changed outputs and {} blocks in {}ms", new Object[] {dirty.size(), blocks,
+                System.currentTimeMillis() - start});
+    }
+
+    // Called once the underlying store has committed what writeBack wrote.
+    private void markClean() {
+        for (Map.Entry<StoredTransactionOutPoint, Entry> e : dirty.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.current != null) {
+                entry.stored = entry.current;
+                clean.put(e.getKey(), entry);
+            } else {
+                cacheBytes -= entry.size();
+            }
+        }
+        dirty.clear();
+        verifiedChainHead = null;
+        blocksSinceFlush = 0;
+    }
+
+    private void evict() {
+        Iterator<Entry> it = clean.values().iterator();
+        while (cacheBytes > maxCacheBytes && it.hasNext()) {
+            cacheBytes -= it.next().size();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * <p>A FullHeaderBlockStore keeps every block header it is given, forever, in an append-only memory mapped file of
+ * fixed size records. Unlike {@link SPVBlockStore} nothing is ever overwritten, so it can hold the whole Dogecoin
+ * chain, which makes it suitable for tools and services that need to look far back, such as building checkpoints.</p>
+ *
+ * <p>Headers can be found by hash, and the headers of the best chain can also be found by height, in constant time.
+ * Ancestors of a header are found by walking back to the best chain and then going by height.
+ * Both indexes are kept in memory and are rebuilt from the file when the store is opened. The parent block headers
+ * of merge mined (AuxPoW) blocks don't fit the fixed records, so they are kept in a side file next to the main one,
+ * named after it with {@link #PARENT_FILE_SUFFIX} appended.</p>
+ *
+ * <p>Any number of threads may read headers at the same time, only writes are exclusive.</p>
+ */
+public class FullHeaderBlockStore implements AncestorBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(FullHeaderBlockStore.class);
+
+    public static final String HEADER_MAGIC = "DHDR";
+    /** The version of the file format written by this class. */
+    public static final int FILE_FORMAT_VERSION = 1;
+    /** Appended to the name of the main file to get the name of the file holding AuxPoW parent headers. */
+    public static final String PARENT_FILE_SUFFIX = ".parents";
+
+    protected final NetworkParameters params;
+
+    // Readers share the lock, so that they only wait for puts. Reads use absolute gets or a duplicate of a segment,
+    // so that they don't disturb each other's positions.
+    protected final ReentrantReadWriteLock lock = Threading.readWriteLock("FullHeaderBlockStore");
+
+    // The prologue and the records are mapped separately, the records in segments that are mapped one by one as the
+    // file grows. This keeps each mapping well under the 2GB that a single buffer can address.
+    protected volatile MappedByteBuffer prologue;
+    protected final List<MappedByteBuffer> segments = new ArrayList<MappedByteBuffer>();
+    protected int numRecords;
+    protected int numParents;
+
+    // Open addressed hash table of record number plus one, zero for empty slots, keyed by the last bytes of the hash.
+    private int[] hashIndex;
+    // Record number plus one of the header at each height of the best chain, zero where it isn't known, for example
+    // below a checkpoint the chain was started from. Nothing above the chain head is set.
+    private int[] heightIndex;
+    protected StoredBlock chainHead;
+
+    // See the comments on the caches in SPVBlockStore, the same applies here.
+    protected final Cache<Sha256Hash, StoredBlock> blockCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
+
+    // Used to stop other applications/processes from opening the store.
+    protected FileLock fileLock = null;
+    protected RandomAccessFile randomAccessFile = null;
+    protected RandomAccessFile parentFile = null;
+
+    /**
+     * Opens the store kept in the given file, creating it with just the genesis block if it's missing. This will
+     * block on disk whilst the indexes are rebuilt, which takes time in proportion to the number of headers.
+     */
+    public FullHeaderBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        checkNotNull(file);
+        this.params = checkNotNull(params);
+        try {
+            boolean exists = file.exists() && file.length() > 0;
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            fileLock = channel.tryLock();
+            if (fileLock == null)
+                throw new BlockStoreException("Store file is already locked by another process");
+            parentFile = new RandomAccessFile(new File(file.getPath() + PARENT_FILE_SUFFIX), "rw");
+
+            prologue = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_PROLOGUE_BYTES);
+            if (exists) {
+                byte[] header = new byte[4];
+                prologue.get(header);
+                if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
+                    throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                int version = prologue.getInt(VERSION_OFFSET);
+                if (version != FILE_FORMAT_VERSION)
+                    throw new BlockStoreException("Unknown full header file version " + version);
+                numRecords = prologue.getInt(NUM_RECORDS_OFFSET);
+                // A parent header may have been written before the record that refers to it when the process died.
+                numParents = (int) (parentFile.length() / Block.HEADER_SIZE);
+                while (segments.size() * RECORDS_PER_SEGMENT < numRecords)
+                    mapSegment();
+                log.info("Indexing {} headers in {}", numRecords, file);
+                buildIndexes();
+            } else {
+                log.info("Creating new full header block chain file " + file);
+                prologue.put(HEADER_MAGIC.getBytes("US-ASCII"));
+                prologue.putInt(VERSION_OFFSET, FILE_FORMAT_VERSION);
+                parentFile.setLength(0);
+                hashIndex = new int[MIN_INDEX_SLOTS];
+                heightIndex = new int[RECORDS_PER_SEGMENT];
+                Block genesis = params.getGenesisBlock().cloneAsHeader();
+                StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
+                put(storedGenesis);
+                setChainHead(storedGenesis);
+            }
+        } catch (Exception e) {
+            try {
+                if (randomAccessFile != null) randomAccessFile.close();
+                if (parentFile != null) parentFile.close();
+            } catch (IOException e2) {
+                throw new BlockStoreException(e2);
+            }
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private void mapSegment() throws IOException {
+        // Mapping past the end of the file grows it.
+        long start = FILE_PROLOGUE_BYTES + (long) segments.size() * RECORDS_PER_SEGMENT * RECORD_SIZE;
+        segments.add(randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, start,
+                (long) RECORDS_PER_SEGMENT * RECORD_SIZE));
+    }
+
+    private void buildIndexes() throws BlockStoreException {
+        hashIndex = new int[indexSlotsFor(numRecords)];
+        for (int record = 0; record < numRecords; record++)
+            addToHashIndex(record);
+        byte[] headHash = new byte[32];
+        ByteBuffer view = prologue.duplicate();
+        view.position(CHAIN_HEAD_OFFSET);
+        view.get(headHash);
+        int headRecord = findRecord(headHash);
+        if (headRecord < 0)
+            throw new BlockStoreException("Corrupted block store: could not find chain head: " + new Sha256Hash(headHash));
+        chainHead = readRecord(headRecord);
+        heightIndex = new int[Math.max(chainHead.getHeight() + 1, RECORDS_PER_SEGMENT)];
+        updateHeightIndex(headRecord, chainHead.getHeight(), -1);
+    }
+
+    /** Returns the number of headers in the store. */
+    public int getNumHeaders() {
+        lock.readLock().lock();
+        try {
+            return numRecords;
+        } finally { lock.readLock().unlock(); }
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        if (prologue == null) throw new BlockStoreException("Store closed");
+
+        lock.writeLock().lock();
+        try {
+            Sha256Hash hash = block.getHeader().getHash();
+            byte[] hashBytes = hash.getBytes();
+            if (findRecord(hashBytes) >= 0)
+                return;  // Headers never change, so there is nothing to update.
+            int parent = 0;
+            Block parentBlock = block.getHeader().getParentBlock();
+            if (parentBlock != null) {
+                // Written first, so that a record never refers to a parent header that isn't there.
+                parentFile.seek((long) numParents * Block.HEADER_SIZE);
+                parentFile.write(parentBlock.unsafeBitcoinSerialize(), 0, Block.HEADER_SIZE);
+                parent = ++numParents;
+            }
+            if (numRecords == segments.size() * RECORDS_PER_SEGMENT)
+                mapSegment();
+            int record = numRecords;
+            ByteBuffer segment = segments.get(record / RECORDS_PER_SEGMENT);
+            segment.position((record % RECORDS_PER_SEGMENT) * RECORD_SIZE);
+            segment.put(hashBytes);
+            block.serializeCompact(segment);
+            segment.putInt(parent);
+            numRecords++;
+            prologue.putInt(NUM_RECORDS_OFFSET, numRecords);
+            if (numRecords * 3 > hashIndex.length * 2) {
+                hashIndex = new int[indexSlotsFor(numRecords)];
+                for (int i = 0; i < numRecords; i++)
+                    addToHashIndex(i);
+            } else {
+                addToHashIndex(record);
+            }
+            blockCache.put(hash, block);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        if (prologue == null) throw new BlockStoreException("Store closed");
+
+        StoredBlock cacheHit = blockCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        lock.readLock().lock();
+        try {
+            int record = findRecord(hash.getBytes());
+            if (record < 0)
+                return null;
+            StoredBlock block = readRecord(record);
+            blockCache.put(hash, block);
+            return block;
+        } finally { lock.readLock().unlock(); }
+    }
+
+    /**
+     * Returns the header at the given height in the chain that ends at the current chain head, or null if the height
+     * is above the chain head or below the first header the store has of that chain.
+     */
+    @Nullable
+    public StoredBlock get(int height) throws BlockStoreException {
+        if (prologue == null) throw new BlockStoreException("Store closed");
+
+        lock.readLock().lock();
+        try {
+            if (height < 0 || height > chainHead.getHeight() || heightIndex[height] == 0)
+                return null;
+            return readRecord(heightIndex[height] - 1);
+        } finally { lock.readLock().unlock(); }
+    }
+
+    @Nullable
+    public StoredBlock getAncestor(StoredBlock block, int height) throws BlockStoreException {
+        if (prologue == null) throw new BlockStoreException("Store closed");
+        checkArgument(height >= 0 && height <= block.getHeight(), "Height %s is not below block at %s", height,
+                block.getHeight());
+        if (height == block.getHeight())
+            return block;
+
+        lock.readLock().lock();
+        try {
+            // Walk back until the best chain is reached, which is usually straight away, then go by height.
+            byte[] hash = block.getHeader().getPrevBlockHash().getBytes().clone();  // Overwritten as we go.
+            int h = block.getHeight() - 1;
+            int record = findRecord(hash);
+            while (record >= 0 && h > height && !(h <= chainHead.getHeight() && heightIndex[h] == record + 1)) {
+                readPrevHash(record, hash);
+                record = findRecord(hash);
+                h--;
+            }
+            if (record < 0)
+                return null;
+            if (h == height)
+                return readRecord(record);
+            return heightIndex[height] != 0 ? readRecord(heightIndex[height] - 1) : null;
+        } finally { lock.readLock().unlock(); }
+    }
+
+    public StoredBlock getChainHead() throws BlockStoreException {
+        if (prologue == null) throw new BlockStoreException("Store closed");
+
+        lock.readLock().lock();
+        try {
+            return chainHead;
+        } finally { lock.readLock().unlock(); }
+    }
+
+    /**
+     * Sets the chain head, which must already have been put into the store, and moves the height index over to the
+     * chain that ends there.
+     */
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        if (prologue == null) throw new BlockStoreException("Store closed");
+
+        lock.writeLock().lock();
+        try {
+            byte[] headHash = chainHead.getHeader().getHash().getBytes();
+            int record = findRecord(headHash);
+            if (record < 0)
+                throw new BlockStoreException("Chain head is not in the store: " + chainHead);
+            int oldHeight = this.chainHead != null ? this.chainHead.getHeight() : -1;
+            int height = chainHead.getHeight();
+            if (height >= heightIndex.length)
+                heightIndex = Arrays.copyOf(heightIndex, Math.max(height + 1, heightIndex.length * 2));
+            updateHeightIndex(record, height, oldHeight);
+            this.chainHead = chainHead;
+            ByteBuffer view = prologue.duplicate();
+            view.position(CHAIN_HEAD_OFFSET);
+            view.put(headHash);
+        } finally { lock.writeLock().unlock(); }
+    }
+
+    // Points the height index at the chain ending with the given record, walking back until it joins the chain that
+    // is already indexed.
+    private void updateHeightIndex(int record, int height, int oldHeight) {
+        // Forget the part of the old chain that is above the new head, so that everything left below is one chain.
+        if (oldHeight > height)
+            Arrays.fill(heightIndex, height + 1, oldHeight + 1, 0);
+        byte[] prevHash = new byte[32];
+        int h = height;
+        while (h >= 0 && record >= 0) {
+            if (heightIndex[h] == record + 1)
+                return;  // Joined the old chain.
+            heightIndex[h] = record + 1;
+            readPrevHash(record, prevHash);
+            record = findRecord(prevHash);
+            h--;
+        }
+        // Ran out of headers, so the rest of the old chain can't be an ancestor of the new head.
+        if (h >= 0)
+            Arrays.fill(heightIndex, 0, h + 1, 0);
+    }
+
+    public void close() throws BlockStoreException {
+        lock.writeLock().lock();
+        try {
+            prologue.force();
+            for (MappedByteBuffer segment : segments)
+                segment.force();
+            // Allow them to be GCd and the underlying file mappings to go away.
+            prologue = null;
+            segments.clear();
+            randomAccessFile.close();
+            parentFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // File format:
+    //   4 header bytes = "DHDR"
+    //   4 bytes of file format version
+    //   4 bytes of the number of records
+    //   32 bytes for the hash of the chain head
+    //
+    // Then, from the first kilobyte on, for each header (132 bytes)
+    //   32 bytes hash of the header
+    //   12 bytes of chain work
+    //    4 bytes of height
+    //   80 bytes of block header data
+    //    4 bytes of the number of the AuxPoW parent header in the side file plus one, or zero if there is none
+    //
+    // The side file is just 80 byte parent block headers, one after another.
+    protected static final int FILE_PROLOGUE_BYTES = 1024;
+    protected static final int VERSION_OFFSET = 4;
+    protected static final int NUM_RECORDS_OFFSET = 8;
+    protected static final int CHAIN_HEAD_OFFSET = 12;
+    protected static final int RECORD_SIZE = 32 /* hash */ + StoredBlock.COMPACT_SERIALIZED_SIZE + 4 /* parent */;
+    protected static final int RECORDS_PER_SEGMENT = 1 << 16;
+    private static final int MIN_INDEX_SLOTS = 1 << 10;
+
+    // The hash index is kept at most two thirds full, so probe sequences stay short.
+    private static int indexSlotsFor(int records) {
+        int slots = MIN_INDEX_SLOTS;
+        while (records * 3 > slots * 2)
+            slots <<= 1;
+        return slots;
+    }
+
+    private static int hashSlot(byte[] hash) {
+        // The first bytes of a block hash are mostly zeros, the last ones are as good as random.
+        return ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+    }
+
+    private ByteBuffer segmentOf(int record) {
+        return segments.get(record / RECORDS_PER_SEGMENT);
+    }
+
+    private int offsetOf(int record) {
+        return (record % RECORDS_PER_SEGMENT) * RECORD_SIZE;
+    }
+
+    private void addToHashIndex(int record) {
+        final int mask = hashIndex.length - 1;
+        int slot = segmentOf(record).getInt(offsetOf(record) + 28) & mask;
+        while (hashIndex[slot] != 0)
+            slot = (slot + 1) & mask;
+        hashIndex[slot] = record + 1;
+    }
+
+    private int findRecord(byte[] hash) {
+        final int mask = hashIndex.length - 1;
+        final int key = hashSlot(hash);
+        byte[] scratch = null;
+        for (int slot = key & mask; hashIndex[slot] != 0; slot = (slot + 1) & mask) {
+            int record = hashIndex[slot] - 1;
+            ByteBuffer segment = segmentOf(record);
+            int offset = offsetOf(record);
+            // Most slots that are probed hold a different key, so check that first with a single read.
+            if (segment.getInt(offset + 28) != key)
+                continue;
+            if (scratch == null)
+                scratch = new byte[32];
+            ByteBuffer view = segment.duplicate();
+            view.position(offset);
+            view.get(scratch);
+            if (Arrays.equals(scratch, hash))
+                return record;
+        }
+        return -1;
+    }
+
+    // Reads the hash of the previous block, in the same byte order as Sha256Hash.getBytes().
+    private void readPrevHash(int record, byte[] prevHash) {
+        ByteBuffer view = segmentOf(record).duplicate();
+        view.position(offsetOf(record) + 32 + StoredBlock.CHAIN_WORK_BYTES + 4 + 4 /* version */);
+        view.get(prevHash);
+        // Headers hold it in wire order, which is reversed.
+        for (int i = 0; i < 16; i++) {
+            byte b = prevHash[i];
+            prevHash[i] = prevHash[31 - i];
+            prevHash[31 - i] = b;
+        }
+    }
+
+    private StoredBlock readRecord(int record) throws BlockStoreException {
+        try {
+            ByteBuffer view = segmentOf(record).duplicate();
+            view.position(offsetOf(record) + RECORD_SIZE - 4);
+            int parent = view.getInt();
+            Block parentBlock = parent != 0 ? readParent(parent - 1) : null;
+            view.position(offsetOf(record) + 32);
+            return StoredBlock.deserializeCompact(params, view, parentBlock);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        } catch (ProtocolException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    private Block readParent(int parent) throws IOException, ProtocolException {
+        // Positional reads don't move the file pointer, so they are safe alongside other readers.
+        byte[] bytes = new byte[Block.HEADER_SIZE + 1];  // Extra byte for the 00 transactions length.
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, Block.HEADER_SIZE);
+        long position = (long) parent * Block.HEADER_SIZE;
+        while (buffer.hasRemaining()) {
+            int read = parentFile.getChannel().read(buffer, position + buffer.position());
+            if (read < 0)
+                throw new IOException("Missing AuxPoW parent header " + parent);
+        }
+        return new Block(params, bytes);
+    }
+}
@@ -17,17 +17,16 @@
 package com.google.dogecoin.store;
 
 import com.google.dogecoin.core.*;
+import com.google.dogecoin.script.ScriptCompressor;
 import com.google.common.collect.Lists;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
 import java.sql.*;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 // Originally written for Apache Derby, but its DELETE (and general) performance was awful
 /**
@@ -50,6 +49,8 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     private List<Connection> allConnections;
     private String connectionURL;
     private int fullStoreDepth;
+    // Changes to openOutputs made inside a batch write on each thread, written in JDBC batches when it is committed.
+    private ThreadLocal<PendingOutputs> pendingOutputs;
 
     static final String driver = "org.h2.Driver";
     static final String CREATE_SETTINGS_TABLE = "CREATE TABLE settings ( "
@@ -59,6 +60,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CHAIN_HEAD_SETTING = "chainhead";
     static final String VERIFIED_CHAIN_HEAD_SETTING = "verifiedchainhead";
     static final String VERSION_SETTING = "version";
+    static final String SCHEMA_VERSION = "05";
 
     static final String CREATE_HEADERS_TABLE = "CREATE TABLE headers ( "
         + "hash BINARY(28) NOT NULL CONSTRAINT headers_pk PRIMARY KEY,"
@@ -71,19 +73,38 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     static final String CREATE_UNDOABLE_TABLE = "CREATE TABLE undoableBlocks ( "
         + "hash BINARY(28) NOT NULL CONSTRAINT undoableBlocks_pk PRIMARY KEY,"
         + "height INT NOT NULL,"
-        + "txOutChanges BLOB,"
-        + "transactions BLOB"
+        + "undoData BLOB NOT NULL"
         + ")";
     static final String CREATE_UNDOABLE_TABLE_INDEX = "CREATE INDEX heightIndex ON undoableBlocks (height)";
     
-    static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs ("
-        + "hash BINARY(32) NOT NULL,"
+    // Transaction hashes are truncated to this many bytes, which is still far too many to find a collision for.
+    static final int OPEN_OUTPUT_HASH_LENGTH = 24;
+    // Values are stored as unsigned 64 bit numbers, as MAX_MONEY doesn't fit in a signed one. Scripts are compressed
+    // with ScriptCompressor.
+    static final String OPEN_OUTPUT_COLUMNS = "hash BINARY(" + OPEN_OUTPUT_HASH_LENGTH + ") NOT NULL,"
         + "index INT NOT NULL,"
         + "height INT NOT NULL,"
-        + "value BLOB NOT NULL,"
-        + "scriptBytes BLOB NOT NULL,"
-        + "PRIMARY KEY (hash, index),"
-        + ")";
+        + "value BIGINT NOT NULL,"
+        + "script VARBINARY NOT NULL,"
+        + "PRIMARY KEY (hash, index)";
+    static final String CREATE_OPEN_OUTPUT_TABLE = "CREATE TABLE openOutputs (" + OPEN_OUTPUT_COLUMNS + ")";
+    // An output that is already there is kept rather than replaced, see addUnspentTransactionOutput().
+    static final String INSERT_OPEN_OUTPUT = "INSERT INTO openOutputs(hash, index, height, value, script) "
+        + "VALUES(?, ?, ?, ?, ?)";
+    // The error H2 gives when a row with the same primary key already exists.
+    private static final int DUPLICATE_KEY_ERROR_CODE = 23505;
+    static final String DELETE_OPEN_OUTPUT = "DELETE FROM openOutputs WHERE hash = ? AND index = ?";
+
+    // How many statements are sent to the database in one JDBC batch.
+    private static final int JDBC_BATCH_SIZE = 1000;
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    private static class PendingOutputs {
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> added =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Deleted before the added outputs are written, so an output can be spent and created again in one batch.
+        final Set<StoredTransactionOutPoint> removed = new LinkedHashSet<StoredTransactionOutPoint>();
+    }
 
     /**
      * Creates a new H2FullPrunedBlockStore
@@ -101,6 +122,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         conn = new ThreadLocal<Connection>();
         allConnections = new LinkedList<Connection>();
+        pendingOutputs = new ThreadLocal<PendingOutputs>();
 
         try {
             Class.forName(driver);
@@ -202,7 +224,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
 
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + CHAIN_HEAD_SETTING + "', NULL)");
         s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERIFIED_CHAIN_HEAD_SETTING + "', NULL)");
-        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '03')");
+        s.executeUpdate("INSERT INTO settings(name, value) VALUES('" + VERSION_SETTING + "', '" + SCHEMA_VERSION + "')");
         s.close();
         createNewStore(params);
     }
@@ -213,7 +235,20 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         while (rs.next())
             if (rs.getString(1).equalsIgnoreCase("openOutputsIndex"))
                 throw new BlockStoreException("Attempted to open a H2 database with an old schema, please reset database.");
-        
+        rs.close();
+
+        rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + VERSION_SETTING + "'");
+        String version = rs.next() ? Utils.bytesToHexString(rs.getBytes(1)) : null;
+        rs.close();
+        if ("03".equals(version)) {
+            migrateFromVersion03();
+            version = "04";
+        }
+        if ("04".equals(version))
+            migrateFromVersion04();
+        else if (!SCHEMA_VERSION.equals(version))
+            throw new BlockStoreException("Unknown H2 database schema version " + version + ", please reset database.");
+
         rs = s.executeQuery("SELECT value FROM settings WHERE name = '" + CHAIN_HEAD_SETTING + "'");
         if (!rs.next()) {
             throw new BlockStoreException("corrupt H2 block store - no chain head pointer");
@@ -242,6 +277,139 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Version 03 kept the full transaction hash, the value as a serialized BigInteger and the uncompressed script.
+    private void migrateFromVersion03() throws SQLException {
+        log.info("Converting the unspent outputs to the new schema, this may take a while");
+        Connection c = conn.get();
+        Statement s = c.createStatement();
+        try {
+            // Creating and dropping tables commits, so pick up where a conversion that was interrupted stopped.
+            if (!tableExists("openOutputs")) {
+                s.executeUpdate("ALTER TABLE openOutputsNew RENAME TO openOutputs");
+            } else if (!columnExists("openOutputs", "script")) {
+                s.executeUpdate("DROP TABLE IF EXISTS openOutputsNew");
+                s.executeUpdate("CREATE TABLE openOutputsNew (" + OPEN_OUTPUT_COLUMNS + ")");
+                c.setAutoCommit(false);
+                PreparedStatement insert = c.prepareStatement("INSERT INTO openOutputsNew(hash, index, height, value,"
+                        + " script) VALUES(?, ?, ?, ?, ?)");
+                ResultSet rs = s.executeQuery("SELECT hash, index, height, value, scriptBytes FROM openOutputs");
+                int count = 0;
+                while (rs.next()) {
+                    insert.setBytes(1, Arrays.copyOf(rs.getBytes(1), OPEN_OUTPUT_HASH_LENGTH));
+                    insert.setInt(2, rs.getInt(2));
+                    insert.setInt(3, rs.getInt(3));
+                    insert.setLong(4, new BigInteger(rs.getBytes(4)).longValue());
+                    insert.setBytes(5, ScriptCompressor.compress(rs.getBytes(5)));
+                    insert.addBatch();
+                    if (++count % JDBC_BATCH_SIZE == 0)
+                        insert.executeBatch();
+                }
+                insert.executeBatch();
+                insert.close();
+                rs.close();
+                c.commit();
+                c.setAutoCommit(true);
+                log.info("Converted {} unspent outputs", count);
+                s.executeUpdate("DROP TABLE openOutputs");
+                s.executeUpdate("ALTER TABLE openOutputsNew RENAME TO openOutputs");
+            }
+            s.executeUpdate("UPDATE settings SET value = '04' WHERE name = '" + VERSION_SETTING + "'");
+        } catch (SQLException e) {
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+            throw e;
+        } finally {
+            s.close();
+        }
+    }
+
+    // Version 04 kept the undoable blocks in the format TransactionOutputChanges and Transaction serialize to.
+    private void migrateFromVersion04() throws SQLException, BlockStoreException {
+        Connection c = conn.get();
+        Statement s = c.createStatement();
+        try {
+            // As above, pick up where a conversion that was interrupted stopped.
+            if (columnExists("undoableBlocks", "txOutChanges")) {
+                if (!columnExists("undoableBlocks", "undoData"))
+                    s.executeUpdate("ALTER TABLE undoableBlocks ADD COLUMN undoData BLOB");
+                c.setAutoCommit(false);
+                PreparedStatement update = c.prepareStatement("UPDATE undoableBlocks SET undoData = ? WHERE hash = ?");
+                ResultSet rs = s.executeQuery("SELECT hash, txOutChanges, transactions FROM undoableBlocks"
+                        + " WHERE undoData IS NULL");
+                int count = 0;
+                while (rs.next()) {
+                    // Only the stored part of the hash is known, which doesn't matter as it isn't serialized.
+                    StoredUndoableBlock block = parseVersion04UndoBlock(Sha256Hash.ZERO_HASH, rs.getBytes(2),
+                            rs.getBytes(3));
+                    update.setBytes(1, UndoableBlockSerializer.serialize(block));
+                    update.setBytes(2, rs.getBytes(1));
+                    update.addBatch();
+                    if (++count % JDBC_BATCH_SIZE == 0)
+                        update.executeBatch();
+                }
+                update.executeBatch();
+                update.close();
+                rs.close();
+                c.commit();
+                c.setAutoCommit(true);
+                log.info("Converted {} undoable blocks", count);
+                s.executeUpdate("ALTER TABLE undoableBlocks ALTER COLUMN undoData SET NOT NULL");
+                s.executeUpdate("ALTER TABLE undoableBlocks DROP COLUMN txOutChanges");
+                s.executeUpdate("ALTER TABLE undoableBlocks DROP COLUMN transactions");
+            }
+            s.executeUpdate("UPDATE settings SET value = '" + SCHEMA_VERSION + "' WHERE name = '" + VERSION_SETTING + "'");
+        } catch (SQLException e) {
+            if (!c.getAutoCommit()) {
+                c.rollback();
+                c.setAutoCommit(true);
+            }
+            throw e;
+        } finally {
+            s.close();
+        }
+    }
+
+    private StoredUndoableBlock parseVersion04UndoBlock(Sha256Hash hash, byte[] txOutChanges, byte[] transactions)
+            throws BlockStoreException {
+        try {
+            if (txOutChanges == null) {
+                int offset = 0;
+                int numTxn = ((transactions[offset++] & 0xFF) << 0) |
+                             ((transactions[offset++] & 0xFF) << 8) |
+                             ((transactions[offset++] & 0xFF) << 16) |
+                             ((transactions[offset++] & 0xFF) << 24);
+                List<Transaction> transactionList = new LinkedList<Transaction>();
+                for (int i = 0; i < numTxn; i++) {
+                    Transaction tx = new Transaction(params, transactions, offset);
+                    transactionList.add(tx);
+                    offset += tx.getMessageSize();
+                }
+                return new StoredUndoableBlock(hash, transactionList);
+            } else {
+                return new StoredUndoableBlock(hash,
+                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges)));
+            }
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private boolean columnExists(String table, String column) throws SQLException {
+        Statement s = conn.get().createStatement();
+        try {
+            s.executeQuery("SELECT " + column + " FROM " + table + " WHERE 1 = 2").close();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        } finally {
+            s.close();
+        }
+    }
+
     private void createNewStore(NetworkParameters params) throws BlockStoreException {
         try {
             // Set up the genesis block. When we start out fresh, it is by
@@ -305,17 +473,11 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         System.out.printf("Headers size: %d, count: %d, average size: %f%n", size, count, (double)size/count);
         
         totalSize += size; size = 0; count = 0;
-        rs = s.executeQuery("SELECT txOutChanges, transactions FROM undoableBlocks");
+        rs = s.executeQuery("SELECT undoData FROM undoableBlocks");
         while (rs.next()) {
             size += 28; // hash
             size += 4; // height
-            byte[] txOutChanges = rs.getBytes(1);
-            byte[] transactions = rs.getBytes(2);
-            if (txOutChanges == null)
-                size += transactions.length;
-            else
-                size += txOutChanges.length;
-            // size += the space to represent NULL
+            size += rs.getBytes(1).length;
             count++;
         }
         rs.close();
@@ -323,14 +485,14 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         
         totalSize += size; size = 0; count = 0;
         long scriptSize = 0;
-        rs = s.executeQuery("SELECT value, scriptBytes FROM openOutputs");
+        rs = s.executeQuery("SELECT script FROM openOutputs");
         while (rs.next()) {
-            size += 32; // hash
+            size += OPEN_OUTPUT_HASH_LENGTH; // hash
             size += 4; // index
             size += 4; // height
+            size += 8; // value
             size += rs.getBytes(1).length;
-            size += rs.getBytes(2).length;
-            scriptSize += rs.getBytes(2).length;
+            scriptSize += rs.getBytes(1).length;
             count++;
         }
         rs.close();
@@ -391,42 +553,16 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         byte[] hashBytes = new byte[28];
         System.arraycopy(storedBlock.getHeader().getHash().getBytes(), 3, hashBytes, 0, 28);
         int height = storedBlock.getHeight();
-        byte[] transactions = null;
-        byte[] txOutChanges = null;
-        try {
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            if (undoableBlock.getTxOutChanges() != null) {
-                undoableBlock.getTxOutChanges().serializeToStream(bos);
-                txOutChanges = bos.toByteArray();
-            } else {
-                int numTxn = undoableBlock.getTransactions().size();
-                bos.write((int) (0xFF & (numTxn >> 0)));
-                bos.write((int) (0xFF & (numTxn >> 8)));
-                bos.write((int) (0xFF & (numTxn >> 16)));
-                bos.write((int) (0xFF & (numTxn >> 24)));
-                for (Transaction tx : undoableBlock.getTransactions())
-                    tx.bitcoinSerialize(bos);
-                transactions = bos.toByteArray();
-            }
-            bos.close();
-        } catch (IOException e) {
-            throw new BlockStoreException(e);
-        }
-        
+        byte[] undoData = UndoableBlockSerializer.serialize(undoableBlock);
+
         try {
             try {
                 PreparedStatement s =
-                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, txOutChanges, transactions)"
-                                + " VALUES(?, ?, ?, ?)");
+                        conn.get().prepareStatement("INSERT INTO undoableBlocks(hash, height, undoData)"
+                                + " VALUES(?, ?, ?)");
                 s.setBytes(1, hashBytes);
                 s.setInt(2, height);
-                if (transactions == null) {
-                    s.setBytes(3, txOutChanges);
-                    s.setNull(4, Types.BLOB);
-                } else {
-                    s.setNull(3, Types.BLOB);
-                    s.setBytes(4, transactions);
-                }
+                s.setBytes(3, undoData);
                 s.executeUpdate();
                 s.close();
                 try {
@@ -440,16 +576,9 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 
                 // There is probably an update-or-insert statement, but it wasn't obvious from the docs
                 PreparedStatement s =
-                        conn.get().prepareStatement("UPDATE undoableBlocks SET txOutChanges=?, transactions=?"
-                                + " WHERE hash = ?");
-                s.setBytes(3, hashBytes);
-                if (transactions == null) {
-                    s.setBytes(1, txOutChanges);
-                    s.setNull(2, Types.BLOB);
-                } else {
-                    s.setNull(1, Types.BLOB);
-                    s.setBytes(2, transactions);
-                }
+                        conn.get().prepareStatement("UPDATE undoableBlocks SET undoData=? WHERE hash = ?");
+                s.setBytes(2, hashBytes);
+                s.setBytes(1, undoData);
                 s.executeUpdate();
                 s.close();
             }
@@ -518,7 +647,7 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         PreparedStatement s = null;
         try {
             s = conn.get()
-                .prepareStatement("SELECT txOutChanges, transactions FROM undoableBlocks WHERE hash = ?");
+                .prepareStatement("SELECT undoData FROM undoableBlocks WHERE hash = ?");
             // We skip the first 4 bytes because (on prodnet) the minimum target has 4 0-bytes
             byte[] hashBytes = new byte[28];
             System.arraycopy(hash.getBytes(), 3, hashBytes, 0, 28);
@@ -528,42 +657,12 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
                 return null;
             }
             // Parse it.
-            byte[] txOutChanges = results.getBytes(1);
-            byte[] transactions = results.getBytes(2);
-            StoredUndoableBlock block;
-            if (txOutChanges == null) {
-                int offset = 0;
-                int numTxn = ((transactions[offset++] & 0xFF) << 0) |
-                             ((transactions[offset++] & 0xFF) << 8) |
-                             ((transactions[offset++] & 0xFF) << 16) |
-                             ((transactions[offset++] & 0xFF) << 24);
-                List<Transaction> transactionList = new LinkedList<Transaction>();
-                for (int i = 0; i < numTxn; i++) {
-                    Transaction tx = new Transaction(params, transactions, offset);
-                    transactionList.add(tx);
-                    offset += tx.getMessageSize();
-                }
-                block = new StoredUndoableBlock(hash, transactionList);
-            } else {
-                TransactionOutputChanges outChangesObject =
-                        new TransactionOutputChanges(new ByteArrayInputStream(txOutChanges));
-                block = new StoredUndoableBlock(hash, outChangesObject);
-            }
-            return block;
+            return UndoableBlockSerializer.deserialize(params, hash, results.getBytes(1));
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
-        } catch (NullPointerException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
-        } catch (ClassCastException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
         } catch (ProtocolException e) {
             // Corrupted database.
             throw new BlockStoreException(e);
-        } catch (IOException e) {
-            // Corrupted database.
-            throw new BlockStoreException(e);
         } finally {
             if (s != null)
                 try {
@@ -629,14 +728,27 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private static byte[] truncateHash(Sha256Hash hash) {
+        return Arrays.copyOf(hash.getBytes(), OPEN_OUTPUT_HASH_LENGTH);
+    }
+
     public StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, index);
+            StoredTransactionOutput out = pending.added.get(outpoint);
+            if (out != null)
+                return out;
+            if (pending.removed.contains(outpoint))
+                return null;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get()
-                .prepareStatement("SELECT height, value, scriptBytes FROM openOutputs " +
+                .prepareStatement("SELECT height, value, script FROM openOutputs " +
                 		"WHERE hash = ? AND index = ?");
-            s.setBytes(1, hash.getBytes());
+            s.setBytes(1, truncateHash(hash));
             // index is actually an unsigned int
             s.setInt(2, (int)index);
             ResultSet results = s.executeQuery();
@@ -645,12 +757,18 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
             }
             // Parse it.
             int height = results.getInt(1);
-            BigInteger value = new BigInteger(results.getBytes(2));
+            BigInteger value = BigInteger.valueOf(results.getLong(2));
+            if (value.signum() < 0)
+                value = value.add(TWO_TO_THE_64);
+            byte[] scriptBytes = ScriptCompressor.decompress(results.getBytes(3));
             // Tell the StoredTransactionOutput that we are a coinbase, as that is encoded in height
-            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, results.getBytes(3));
+            StoredTransactionOutput txout = new StoredTransactionOutput(hash, index, value, height, true, scriptBytes);
             return txout;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
+        } catch (IllegalArgumentException e) {
+            // Corrupted database.
+            throw new BlockStoreException(e);
         } finally {
             if (s != null)
                 try {
@@ -660,21 +778,24 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        // If the output is already there, as happens for the few transactions that were repeated before BIP30, the one
+        // that was there first is kept.
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            // Only queue it if neither the batch nor the database has it, so reads within the batch see the same
+            // output the commit will keep.
+            if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                pending.added.put(new StoredTransactionOutPoint(out), out);
+            return;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
-            s = conn.get().prepareStatement("INSERT INTO openOutputs (hash, index, height, value, scriptBytes) " +
-            		"VALUES (?, ?, ?, ?, ?)");
-            s.setBytes(1, out.getHash().getBytes());
-            // index is actually an unsigned int
-            s.setInt(2, (int)out.getIndex());
-            s.setInt(3, out.getHeight());
-            s.setBytes(4, out.getValue().toByteArray());
-            s.setBytes(5, out.getScriptBytes());
+            s = conn.get().prepareStatement(INSERT_OPEN_OUTPUT);
+            setOpenOutput(s, out);
             s.executeUpdate();
-            s.close();
         } catch (SQLException e) {
-            if (e.getErrorCode() != 23505)
+            if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
                 throw new BlockStoreException(e);
         } finally {
             if (s != null)
@@ -684,15 +805,30 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    private static void setOpenOutput(PreparedStatement s, StoredTransactionOutput out) throws SQLException {
+        s.setBytes(1, truncateHash(out.getHash()));
+        // index is actually an unsigned int
+        s.setInt(2, (int)out.getIndex());
+        s.setInt(3, out.getHeight());
+        s.setLong(4, out.getValue().longValue());
+        s.setBytes(5, ScriptCompressor.compress(out.getScriptBytes()));
+    }
+
     public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
-        maybeConnect();
         // TODO: This should only need one query (maybe a stored procedure)
         if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
             throw new BlockStoreException("Tried to remove a StoredTransactionOutput from H2FullPrunedBlockStore that it didn't have!");
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+            pending.added.remove(outpoint);
+            pending.removed.add(outpoint);
+            return;
+        }
+        maybeConnect();
         try {
-            PreparedStatement s = conn.get()
-                .prepareStatement("DELETE FROM openOutputs WHERE hash = ? AND index = ?");
-            s.setBytes(1, out.getHash().getBytes());
+            PreparedStatement s = conn.get().prepareStatement(DELETE_OPEN_OUTPUT);
+            s.setBytes(1, truncateHash(out.getHash()));
             // index is actually an unsigned int
             s.setInt(2, (int)out.getIndex());
             s.executeUpdate();
@@ -702,6 +838,57 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         }
     }
 
+    // Sends the changes to openOutputs made during the batch write to the database, in as few round trips as possible.
+    private void writePendingOutputs(PendingOutputs pending) throws SQLException {
+        if (!pending.removed.isEmpty()) {
+            PreparedStatement s = conn.get().prepareStatement(DELETE_OPEN_OUTPUT);
+            try {
+                int count = 0;
+                for (StoredTransactionOutPoint outpoint : pending.removed) {
+                    s.setBytes(1, truncateHash(outpoint.getHash()));
+                    s.setInt(2, (int) outpoint.getIndex());
+                    s.addBatch();
+                    if (++count % JDBC_BATCH_SIZE == 0)
+                        s.executeBatch();
+                }
+                s.executeBatch();
+            } finally {
+                s.close();
+            }
+        }
+        if (!pending.added.isEmpty()) {
+            PreparedStatement s = conn.get().prepareStatement(INSERT_OPEN_OUTPUT);
+            try {
+                int count = 0;
+                for (StoredTransactionOutput out : pending.added.values()) {
+                    setOpenOutput(s, out);
+                    s.addBatch();
+                    if (++count % JDBC_BATCH_SIZE == 0)
+                        executeInsertBatch(s);
+                }
+                executeInsertBatch(s);
+            } finally {
+                s.close();
+            }
+        }
+        pending.removed.clear();
+        pending.added.clear();
+    }
+
+    // Runs a batch of inserts, ignoring those of outputs that are already there. H2 carries on with the rest of the
+    // batch when one fails and chains all the failures onto the exception.
+    private static void executeInsertBatch(PreparedStatement s) throws SQLException {
+        try {
+            s.executeBatch();
+        } catch (BatchUpdateException e) {
+            for (SQLException failure = e.getNextException(); failure != null; failure = failure.getNextException())
+                if (failure.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
+                    throw e;
+            if (e.getErrorCode() != DUPLICATE_KEY_ERROR_CODE)
+                throw e;
+        }
+    }
+
     public void beginDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
@@ -709,19 +896,27 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
         } catch (SQLException e) {
             throw new BlockStoreException(e);
         }
+        if (pendingOutputs.get() == null)
+            pendingOutputs.set(new PendingOutputs());
     }
 
     public void commitDatabaseBatchWrite() throws BlockStoreException {
         maybeConnect();
         try {
+            PendingOutputs pending = pendingOutputs.get();
+            if (pending != null)
+                writePendingOutputs(pending);
             conn.get().commit();
             conn.get().setAutoCommit(true);
         } catch (SQLException e) {
             throw new BlockStoreException(e);
+        } finally {
+            pendingOutputs.remove();
         }
     }
 
     public void abortDatabaseBatchWrite() throws BlockStoreException {
+        pendingOutputs.remove();
         maybeConnect();
         try {
             conn.get().rollback();
@@ -732,18 +927,26 @@ public class H2FullPrunedBlockStore implements FullPrunedBlockStore {
     }
 
     public boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        PendingOutputs pending = pendingOutputs.get();
+        if (pending != null) {
+            for (int i = 0; i < numOutputs; i++)
+                if (pending.added.containsKey(new StoredTransactionOutPoint(hash, i)))
+                    return true;
+        }
         maybeConnect();
         PreparedStatement s = null;
         try {
             s = conn.get()
-                .prepareStatement("SELECT COUNT(*) FROM openOutputs WHERE hash = ?");
-            s.setBytes(1, hash.getBytes());
+                .prepareStatement("SELECT index FROM openOutputs WHERE hash = ?");
+            s.setBytes(1, truncateHash(hash));
             ResultSet results = s.executeQuery();
-            if (!results.next()) {
-                throw new BlockStoreException("Got no results from a COUNT(*) query");
+            while (results.next()) {
+                // Outputs spent in the current batch write are still in the table.
+                long index = results.getInt(1) & 0xFFFFFFFFL;
+                if (pending == null || !pending.removed.contains(new StoredTransactionOutPoint(hash, index)))
+                    return true;
             }
-            int count = results.getInt(1);
-            return count != 0;
+            return false;
         } catch (SQLException ex) {
             throw new BlockStoreException(ex);
         } finally {
@@ -0,0 +1,897 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.script.ScriptCompressor;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A {@link FullPrunedBlockStore} that appends every change to a single log file, and keeps an index in memory of
+ * where the current version of each header, undoable block and unspent output is in that file. Nothing in the file is
+ * ever changed: spending an output appends a record saying so and the index forgets the output.</p>
+ *
+ * <p>Each batch write is appended in one go when it is committed, followed by a commit record holding a checksum of
+ * the batch. When the store is opened the log is replayed to rebuild the index, and anything after the last intact
+ * commit record, such as a batch that was only half written when the process died, is cut off.</p>
+ *
+ * <p>Once more than half of the file is taken up by records that are no longer needed, such as spent outputs and the
+ * undoable blocks more than <tt>fullStoreDepth</tt> blocks below the verified chain head, the records still in use are
+ * copied to a new file which then replaces the old one. Until the new file is in place the old one is kept, so there
+ * is always one complete copy of the store to open, even if the process dies part way through.</p>
+ *
+ * <p>The file starts with {@link #HEADER_MAGIC} and the version of the format, so that a file written by a later
+ * version that this class can't read is refused rather than misread.</p>
+ *
+ * <p>As with {@link MemoryFullPrunedBlockStore}, changes made in a batch write are only seen by the thread making
+ * them until they are committed. The index needs memory for every unspent output, so this store suits machines that
+ * can hold the keys of the whole unspent output set in RAM.</p>
+ */
+public class LogStructuredFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final Logger log = LoggerFactory.getLogger(LogStructuredFullPrunedBlockStore.class);
+
+    public static final String HEADER_MAGIC = "LSFP";
+    /** The version of the file format written by this class. */
+    public static final int FILE_FORMAT_VERSION = 1;
+    // The magic followed by the version, before the first record.
+    static final int FILE_HEADER_BYTES = 8;
+
+    static final int RECORD_HEADER = 1;
+    static final int RECORD_UNDOABLE_BLOCK = 2;
+    static final int RECORD_OUTPUT_ADDED = 3;
+    static final int RECORD_OUTPUT_REMOVED = 4;
+    static final int RECORD_CHAIN_HEAD = 5;
+    static final int RECORD_VERIFIED_CHAIN_HEAD = 6;
+    static final int RECORD_COMMIT = 7;
+
+    // Every record starts with its type and the length of the rest of it.
+    static final int RECORD_PREFIX_BYTES = 5;
+    // Anything longer is taken to be garbage at the end of the file.
+    private static final int MAX_RECORD_LENGTH = 64 * 1024 * 1024;
+    // The file isn't compacted until at least this many bytes could be reclaimed.
+    static final long DEFAULT_MIN_GARBAGE_BYTES = 64 * 1024 * 1024;
+    // Compaction commits after this many records, so replaying the new file doesn't hold all of them at once.
+    private static final int RECORDS_PER_COMPACTION_COMMIT = 10000;
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    // Where a record is in the file, including its prefix.
+    private static class Location {
+        long offset;
+        final int length;
+
+        Location(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class HeaderLocation extends Location {
+        final boolean wasUndoable;
+
+        HeaderLocation(long offset, int length, boolean wasUndoable) {
+            super(offset, length);
+            this.wasUndoable = wasUndoable;
+        }
+    }
+
+    private static class UndoableBlockLocation extends Location {
+        final int height;
+
+        UndoableBlockLocation(long offset, int length, int height) {
+            super(offset, length);
+            this.height = height;
+        }
+    }
+
+    // A record that has been read or encoded, but whose batch hasn't been committed yet.
+    private static class Record {
+        final int type;
+        final long offset;
+        final byte[] payload;
+
+        Record(int type, long offset, byte[] payload) {
+            this.type = type;
+            this.offset = offset;
+            this.payload = payload;
+        }
+
+        int length() {
+            return RECORD_PREFIX_BYTES + payload.length;
+        }
+    }
+
+    // The changes made by a batch write, which only the thread making them can see until they are committed.
+    private static class Batch {
+        final Map<Sha256Hash, StoredBlock> headers = new LinkedHashMap<Sha256Hash, StoredBlock>();
+        final Set<Sha256Hash> undoableHeaders = new HashSet<Sha256Hash>();
+        final Map<Sha256Hash, StoredUndoableBlock> undoableBlocks = new LinkedHashMap<Sha256Hash, StoredUndoableBlock>();
+        final Map<Sha256Hash, Integer> undoableBlockHeights = new HashMap<Sha256Hash, Integer>();
+        final Map<StoredTransactionOutPoint, StoredTransactionOutput> addedOutputs =
+                new LinkedHashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        // Written before the added outputs, so an output can be spent and created again in one batch.
+        final Set<StoredTransactionOutPoint> removedOutputs = new LinkedHashSet<StoredTransactionOutPoint>();
+        @Nullable StoredBlock chainHead;
+        @Nullable StoredBlock verifiedChainHead;
+    }
+
+    private final NetworkParameters params;
+    private final File file;
+    private final int fullStoreDepth;
+    private final long minGarbageBytes;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    // Where the last commit record ends. Anything after it is overwritten by the next commit.
+    private long fileLength;
+    // The total length of the records the index points to.
+    private long liveBytes;
+
+    private final Map<Sha256Hash, HeaderLocation> headers = new HashMap<Sha256Hash, HeaderLocation>();
+    private final Map<Sha256Hash, UndoableBlockLocation> undoableBlocks = new HashMap<Sha256Hash, UndoableBlockLocation>();
+    private final TreeMap<Integer, Set<Sha256Hash>> undoableBlocksByHeight = new TreeMap<Integer, Set<Sha256Hash>>();
+    private final Map<StoredTransactionOutPoint, Location> outputs = new HashMap<StoredTransactionOutPoint, Location>();
+    private Sha256Hash chainHeadHash, verifiedChainHeadHash;
+    private StoredBlock chainHead, verifiedChainHead;
+
+    private final ThreadLocal<Batch> batch = new ThreadLocal<Batch>();
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist.
+     *
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the file can't be read or written
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File file, int fullStoreDepth)
+            throws BlockStoreException {
+        this(params, file, fullStoreDepth, DEFAULT_MIN_GARBAGE_BYTES);
+    }
+
+    /**
+     * Opens the store in the given file, creating it if it doesn't exist. The file is compacted once more than half of
+     * it, and at least <tt>minGarbageBytes</tt>, is taken up by records that are no longer needed.
+     *
+     * @param fullStoreDepth The number of blocks of history stored in full (something like 1000 is pretty safe)
+     * @throws BlockStoreException if the file can't be read or written
+     */
+    public LogStructuredFullPrunedBlockStore(NetworkParameters params, File file, int fullStoreDepth,
+                                             long minGarbageBytes) throws BlockStoreException {
+        this.params = params;
+        this.file = file;
+        this.fullStoreDepth = fullStoreDepth;
+        this.minGarbageBytes = minGarbageBytes;
+        try {
+            recoverCompaction();
+            openFile();
+            readFileHeader();
+            replay();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        if (chainHeadHash == null) {
+            createNewStore();
+        } else {
+            chainHead = get(chainHeadHash);
+            verifiedChainHead = get(verifiedChainHeadHash);
+            if (chainHead == null || verifiedChainHead == null)
+                throw new BlockStoreException("Corrupt block store, chain head not found");
+        }
+    }
+
+    private void openFile() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+    }
+
+    private File compactedFile() {
+        return new File(file.getPath() + ".compact");
+    }
+
+    private File backupFile() {
+        return new File(file.getPath() + ".backup");
+    }
+
+    // Finishes or undoes a compaction that was interrupted whilst the files were being swapped, see replaceFile().
+    private void recoverCompaction() throws IOException {
+        File backup = backupFile();
+        if (backup.exists()) {
+            if (file.exists()) {
+                // The compacted file was put in place, only the backup wasn't deleted yet.
+                if (!backup.delete())
+                    throw new IOException("Could not delete " + backup);
+            } else {
+                log.warn("Restoring {} from {} after an interrupted compaction", file, backup);
+                if (!backup.renameTo(file))
+                    throw new IOException("Could not move " + backup + " back to " + file);
+            }
+        }
+        // Whatever is left of a compaction that didn't finish.
+        File compacted = compactedFile();
+        if (compacted.exists() && !compacted.delete())
+            throw new IOException("Could not delete " + compacted);
+    }
+
+    private static void writeFileHeader(ByteArrayOutputStream out) {
+        byte[] header = new byte[FILE_HEADER_BYTES];
+        try {
+            System.arraycopy(HEADER_MAGIC.getBytes("US-ASCII"), 0, header, 0, 4);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        Utils.uint32ToByteArrayLE(FILE_FORMAT_VERSION, header, 4);
+        out.write(header, 0, header.length);
+    }
+
+    // Checks the file starts with our magic and a version we can read, or writes them if the file is new.
+    private void readFileHeader() throws IOException, BlockStoreException {
+        if (channel.size() < FILE_HEADER_BYTES) {
+            // A new file, or one whose header was only partly written when it was created, so holds nothing yet.
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            writeFileHeader(header);
+            channel.truncate(0);
+            writeTo(channel, header, 0);
+            channel.force(true);
+            return;
+        }
+        byte[] header = new byte[FILE_HEADER_BYTES];
+        ByteBuffer buffer = ByteBuffer.wrap(header);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) < 0)
+                throw new EOFException();
+        }
+        if (!new String(header, 0, 4, "US-ASCII").equals(HEADER_MAGIC))
+            throw new BlockStoreException(file + " is not a LogStructuredFullPrunedBlockStore file");
+        long version = Utils.readUint32(header, 4);
+        if (version != FILE_FORMAT_VERSION)
+            throw new BlockStoreException("Unknown LogStructuredFullPrunedBlockStore file version " + version);
+    }
+
+    private void createNewStore() throws BlockStoreException {
+        try {
+            // The coinbase in the genesis block is not spendable, see H2FullPrunedBlockStore.
+            StoredBlock storedGenesis = new StoredBlock(params.getGenesisBlock().cloneAsHeader(),
+                    params.getGenesisBlock().getWork(), 0);
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            beginDatabaseBatchWrite();
+            put(storedGenesis, new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions));
+            setChainHead(storedGenesis);
+            setVerifiedChainHead(storedGenesis);
+            commitDatabaseBatchWrite();
+        } catch (VerificationException e) {
+            throw new RuntimeException(e); // Cannot happen.
+        }
+    }
+
+    // Rebuilds the index from the file, and cuts off anything after the last intact commit record.
+    private void replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        long position = FILE_HEADER_BYTES, committed = FILE_HEADER_BYTES;
+        List<Record> uncommitted = new ArrayList<Record>();
+        CRC32 checksum = new CRC32();
+        byte[] prefix = new byte[RECORD_PREFIX_BYTES];
+        try {
+            in.readFully(new byte[FILE_HEADER_BYTES]);
+            while (true) {
+                try {
+                    in.readFully(prefix);
+                } catch (EOFException e) {
+                    break;
+                }
+                int type = prefix[0];
+                long length = Utils.readUint32(prefix, 1);
+                if (length > MAX_RECORD_LENGTH)
+                    break;
+                byte[] payload = new byte[(int) length];
+                try {
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    break;
+                }
+                if (type == RECORD_COMMIT) {
+                    if (length != 4 || Utils.readUint32(payload, 0) != checksum.getValue())
+                        break;
+                    for (Record record : uncommitted)
+                        apply(record);
+                    uncommitted.clear();
+                    checksum.reset();
+                    position += RECORD_PREFIX_BYTES + length;
+                    committed = position;
+                    continue;
+                }
+                checksum.update(prefix);
+                checksum.update(payload);
+                uncommitted.add(new Record(type, position, payload));
+                position += RECORD_PREFIX_BYTES + length;
+            }
+        } finally {
+            in.close();
+        }
+        if (committed < channel.size()) {
+            log.warn("Discarding {} bytes after the last commit of {}", channel.size() - committed, file);
+            channel.truncate(committed);
+        }
+        fileLength = committed;
+    }
+
+    // Points the index at a committed record.
+    private void apply(Record record) {
+        ByteBuffer buffer = ByteBuffer.wrap(record.payload).order(ByteOrder.LITTLE_ENDIAN);
+        Location old;
+        switch (record.type) {
+            case RECORD_HEADER: {
+                Sha256Hash hash = readHash(buffer);
+                buffer.getInt();  // Height.
+                boolean wasUndoable = buffer.get() != 0;
+                old = headers.put(hash, new HeaderLocation(record.offset, record.length(), wasUndoable));
+                break;
+            }
+            case RECORD_UNDOABLE_BLOCK: {
+                Sha256Hash hash = readHash(buffer);
+                int height = buffer.getInt();
+                old = undoableBlocks.put(hash, new UndoableBlockLocation(record.offset, record.length(), height));
+                Set<Sha256Hash> atHeight = undoableBlocksByHeight.get(height);
+                if (atHeight == null) {
+                    atHeight = new HashSet<Sha256Hash>();
+                    undoableBlocksByHeight.put(height, atHeight);
+                }
+                atHeight.add(hash);
+                break;
+            }
+            case RECORD_OUTPUT_ADDED: {
+                StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(readHash(buffer),
+                        buffer.getInt() & 0xFFFFFFFFL);
+                old = outputs.put(outpoint, new Location(record.offset, record.length()));
+                break;
+            }
+            case RECORD_OUTPUT_REMOVED: {
+                StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(readHash(buffer),
+                        buffer.getInt() & 0xFFFFFFFFL);
+                old = outputs.remove(outpoint);
+                // The record saying so isn't needed once the output is gone.
+                liveBytes -= record.length();
+                break;
+            }
+            case RECORD_CHAIN_HEAD:
+                chainHeadHash = readHash(buffer);
+                old = null;
+                liveBytes -= record.length();
+                break;
+            case RECORD_VERIFIED_CHAIN_HEAD:
+                verifiedChainHeadHash = readHash(buffer);
+                pruneUndoableBlocks(buffer.getInt() - fullStoreDepth);
+                old = null;
+                liveBytes -= record.length();
+                break;
+            default:
+                throw new IllegalStateException("Unknown record type " + record.type);
+        }
+        liveBytes += record.length();
+        if (old != null)
+            liveBytes -= old.length;
+    }
+
+    private void pruneUndoableBlocks(int height) {
+        SortedMap<Integer, Set<Sha256Hash>> pruned = undoableBlocksByHeight.headMap(height);
+        for (Set<Sha256Hash> hashes : pruned.values()) {
+            for (Sha256Hash hash : hashes) {
+                Location old = undoableBlocks.remove(hash);
+                if (old != null)
+                    liveBytes -= old.length;
+            }
+        }
+        pruned.clear();
+    }
+
+    private static Sha256Hash readHash(ByteBuffer buffer) {
+        byte[] hash = new byte[32];
+        buffer.get(hash);
+        return new Sha256Hash(hash);
+    }
+
+    private byte[] readPayload(Location location) throws BlockStoreException {
+        byte[] payload = new byte[location.length - RECORD_PREFIX_BYTES];
+        ByteBuffer buffer = ByteBuffer.wrap(payload);
+        try {
+            long position = location.offset + RECORD_PREFIX_BYTES;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0)
+                    throw new BlockStoreException("Unexpected end of " + file);
+            }
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        return payload;
+    }
+
+    private static byte[] encodeHeader(StoredBlock block, boolean wasUndoable) {
+        byte[] chainWork = block.getChainWork().toByteArray();
+        byte[] header = block.getHeader().unsafeBitcoinSerialize();
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 4 + 1 + 1 + chainWork.length + header.length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(block.getHeader().getHash().getBytes());
+        buffer.putInt(block.getHeight());
+        buffer.put((byte) (wasUndoable ? 1 : 0));
+        buffer.put((byte) chainWork.length);
+        buffer.put(chainWork);
+        buffer.put(header);
+        return buffer.array();
+    }
+
+    private StoredBlock decodeHeader(byte[] payload) throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(32);
+        int height = buffer.getInt();
+        buffer.get();  // Was undoable, which is kept in the index.
+        byte[] chainWork = new byte[buffer.get() & 0xFF];
+        buffer.get(chainWork);
+        byte[] header = new byte[buffer.remaining()];
+        buffer.get(header);
+        try {
+            // The records are checksummed, so unlike H2FullPrunedBlockStore the proof of work isn't checked again.
+            return new StoredBlock(new Block(params, header), new BigInteger(chainWork), height);
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static byte[] encodeUndoableBlock(StoredUndoableBlock block, int height) {
+        byte[] undoData = UndoableBlockSerializer.serialize(block);
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 4 + undoData.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(block.getHash().getBytes());
+        buffer.putInt(height);
+        buffer.put(undoData);
+        return buffer.array();
+    }
+
+    private StoredUndoableBlock decodeUndoableBlock(Sha256Hash hash, byte[] payload) throws BlockStoreException {
+        try {
+            return UndoableBlockSerializer.deserialize(params, hash, Arrays.copyOfRange(payload, 32 + 4, payload.length));
+        } catch (ProtocolException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static byte[] encodeOutput(StoredTransactionOutput out) {
+        byte[] script = ScriptCompressor.compress(out.getScriptBytes());
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 4 + 4 + 8 + script.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(out.getHash().getBytes());
+        buffer.putInt((int) out.getIndex());
+        buffer.putInt(out.getHeight());
+        // Unsigned, as MAX_MONEY doesn't fit in a signed long.
+        buffer.putLong(out.getValue().longValue());
+        buffer.put(script);
+        return buffer.array();
+    }
+
+    private static StoredTransactionOutput decodeOutput(Sha256Hash hash, long index, byte[] payload)
+            throws BlockStoreException {
+        ByteBuffer buffer = ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(32 + 4);
+        int height = buffer.getInt();
+        BigInteger value = BigInteger.valueOf(buffer.getLong());
+        if (value.signum() < 0)
+            value = value.add(TWO_TO_THE_64);
+        byte[] script = new byte[buffer.remaining()];
+        buffer.get(script);
+        try {
+            // The height is stored as the output had it, so telling it that it's a coinbase keeps it unchanged.
+            return new StoredTransactionOutput(hash, index, value, height, true, ScriptCompressor.decompress(script));
+        } catch (IllegalArgumentException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static byte[] encodeOutPoint(StoredTransactionOutPoint outpoint) {
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(outpoint.getHash().getBytes());
+        buffer.putInt((int) outpoint.getIndex());
+        return buffer.array();
+    }
+
+    private static byte[] encodeChainHead(StoredBlock block) {
+        ByteBuffer buffer = ByteBuffer.allocate(32 + 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(block.getHeader().getHash().getBytes());
+        buffer.putInt(block.getHeight());
+        return buffer.array();
+    }
+
+    // Adds the record to the batch being written, and checksums it.
+    private static Record append(ByteArrayOutputStream out, CRC32 checksum, long base, int type, byte[] payload) {
+        byte[] prefix = new byte[RECORD_PREFIX_BYTES];
+        prefix[0] = (byte) type;
+        Utils.uint32ToByteArrayLE(payload.length, prefix, 1);
+        Record record = new Record(type, base + out.size(), payload);
+        out.write(prefix, 0, prefix.length);
+        out.write(payload, 0, payload.length);
+        checksum.update(prefix);
+        checksum.update(payload);
+        return record;
+    }
+
+    private static void appendCommit(ByteArrayOutputStream out, CRC32 checksum) {
+        byte[] record = new byte[RECORD_PREFIX_BYTES + 4];
+        record[0] = RECORD_COMMIT;
+        Utils.uint32ToByteArrayLE(4, record, 1);
+        Utils.uint32ToByteArrayLE(checksum.getValue(), record, RECORD_PREFIX_BYTES);
+        out.write(record, 0, record.length);
+        checksum.reset();
+    }
+
+    private synchronized void commit(Batch batch) throws BlockStoreException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CRC32 checksum = new CRC32();
+        List<Record> records = new ArrayList<Record>();
+        long base = fileLength;
+        for (StoredBlock block : batch.headers.values()) {
+            boolean wasUndoable = batch.undoableHeaders.contains(block.getHeader().getHash());
+            records.add(append(out, checksum, base, RECORD_HEADER, encodeHeader(block, wasUndoable)));
+        }
+        for (StoredUndoableBlock block : batch.undoableBlocks.values()) {
+            int height = batch.undoableBlockHeights.get(block.getHash());
+            records.add(append(out, checksum, base, RECORD_UNDOABLE_BLOCK, encodeUndoableBlock(block, height)));
+        }
+        for (StoredTransactionOutPoint outpoint : batch.removedOutputs)
+            records.add(append(out, checksum, base, RECORD_OUTPUT_REMOVED, encodeOutPoint(outpoint)));
+        for (StoredTransactionOutput output : batch.addedOutputs.values())
+            records.add(append(out, checksum, base, RECORD_OUTPUT_ADDED, encodeOutput(output)));
+        if (batch.chainHead != null)
+            records.add(append(out, checksum, base, RECORD_CHAIN_HEAD, encodeChainHead(batch.chainHead)));
+        if (batch.verifiedChainHead != null) {
+            records.add(append(out, checksum, base, RECORD_VERIFIED_CHAIN_HEAD,
+                    encodeChainHead(batch.verifiedChainHead)));
+        }
+        if (records.isEmpty())
+            return;
+        appendCommit(out, checksum);
+        try {
+            fileLength = base + writeTo(channel, out, base);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        for (Record record : records)
+            apply(record);
+        if (batch.chainHead != null)
+            chainHead = batch.chainHead;
+        if (batch.verifiedChainHead != null)
+            verifiedChainHead = batch.verifiedChainHead;
+        long garbage = fileLength - liveBytes;
+        if (garbage >= minGarbageBytes && garbage > liveBytes) {
+            try {
+                compact();
+            } catch (BlockStoreException e) {
+                // The batch is committed already, and the store carries on with the file it has.
+                log.error("Failed to compact " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Copies the records that are still needed to a new file, which then replaces the current one. If that fails the
+     * store carries on with the current file.
+     */
+    public synchronized void compact() throws BlockStoreException {
+        File compacted = compactedFile();
+        long before = fileLength;
+        List<Location> locations = new ArrayList<Location>(headers.size() + undoableBlocks.size() + outputs.size());
+        locations.addAll(headers.values());
+        locations.addAll(undoableBlocks.values());
+        locations.addAll(outputs.values());
+        // Copy the records in the order they are in the file, so reading them is mostly sequential.
+        Collections.sort(locations, new Comparator<Location>() {
+            @Override
+            public int compare(Location a, Location b) {
+                return a.offset < b.offset ? -1 : (a.offset == b.offset ? 0 : 1);
+            }
+        });
+        long[] newOffsets = new long[locations.size()];
+        long newLength;
+        try {
+            RandomAccessFile out = new RandomAccessFile(compacted, "rw");
+            try {
+                out.setLength(0);
+                FileChannel outChannel = out.getChannel();
+                ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+                writeFileHeader(chunk);
+                CRC32 checksum = new CRC32();
+                long position = 0;
+                for (int i = 0; i < locations.size(); i++) {
+                    Location location = locations.get(i);
+                    byte[] record = new byte[location.length];
+                    ByteBuffer buffer = ByteBuffer.wrap(record);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer, location.offset + buffer.position()) < 0)
+                            throw new EOFException();
+                    }
+                    newOffsets[i] = position + chunk.size();
+                    chunk.write(record, 0, record.length);
+                    checksum.update(record);
+                    if ((i + 1) % RECORDS_PER_COMPACTION_COMMIT == 0) {
+                        appendCommit(chunk, checksum);
+                        position += writeTo(outChannel, chunk, position);
+                    }
+                }
+                append(chunk, checksum, 0, RECORD_CHAIN_HEAD, encodeChainHead(chainHead));
+                append(chunk, checksum, 0, RECORD_VERIFIED_CHAIN_HEAD, encodeChainHead(verifiedChainHead));
+                appendCommit(chunk, checksum);
+                position += writeTo(outChannel, chunk, position);
+                outChannel.force(true);
+                newLength = position;
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            compacted.delete();
+            throw new BlockStoreException(e);
+        }
+        // The new file is complete, so the index can be pointed at it once it has replaced the current one.
+        try {
+            channel.close();
+            randomAccessFile.close();
+            replaceFile(compacted);
+        } catch (IOException e) {
+            compacted.delete();
+            reopenAfterFailedCompaction();
+            throw new BlockStoreException(e);
+        }
+        try {
+            openFile();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+        for (int i = 0; i < locations.size(); i++)
+            locations.get(i).offset = newOffsets[i];
+        fileLength = newLength;
+        liveBytes = 0;
+        for (Location location : headers.values())
+            liveBytes += location.length;
+        for (Location location : undoableBlocks.values())
+            liveBytes += location.length;
+        for (Location location : outputs.values())
+            liveBytes += location.length;
+        log.info("Compacted {} from {} to {} bytes", new Object[] {file, before, fileLength});
+    }
+
+    // Puts the compacted file in place of the current one. Where that can't be done in one step, as on Windows, the
+    // current one is kept as a backup until the compacted one is in place, and put back if it can't be. If the process
+    // dies in between, the constructor finishes the job, see recoverCompaction().
+    private void replaceFile(File compacted) throws IOException {
+        if (compacted.renameTo(file))
+            return;
+        File backup = backupFile();
+        if (backup.exists() && !backup.delete())
+            throw new IOException("Could not delete " + backup);
+        if (!file.renameTo(backup))
+            throw new IOException("Could not move " + file + " to " + backup);
+        if (!compacted.renameTo(file)) {
+            if (!backup.renameTo(file))
+                throw new IOException("Could not replace " + file + " with " + compacted + ", it is in " + backup);
+            throw new IOException("Could not replace " + file + " with " + compacted);
+        }
+        if (!backup.delete())
+            log.warn("Could not delete {}", backup);
+    }
+
+    // Opens the current file again, which the index still points into, so the store can carry on with it.
+    private void reopenAfterFailedCompaction() throws BlockStoreException {
+        // Don't create an empty file in its place if it was lost, the backup is then the only copy.
+        if (!file.exists())
+            throw new BlockStoreException(file + " is missing after a failed compaction, see " + backupFile());
+        try {
+            openFile();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+
+    private static long writeTo(FileChannel channel, ByteArrayOutputStream chunk, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.toByteArray());
+        while (buffer.hasRemaining())
+            channel.write(buffer, position + buffer.position());
+        chunk.reset();
+        return buffer.limit();
+    }
+
+    /** Returns the number of bytes in the file, up to the end of the last commit. */
+    public synchronized long getFileLength() {
+        return fileLength;
+    }
+
+    // Returns the batch of the current thread, or a new one that is committed by commitIfNotInBatch().
+    private Batch writeBatch() {
+        Batch current = batch.get();
+        return current != null ? current : new Batch();
+    }
+
+    private void commitIfNotInBatch(Batch writes) throws BlockStoreException {
+        if (batch.get() != writes)
+            commit(writes);
+    }
+
+    private synchronized boolean wasUndoable(Sha256Hash hash) {
+        Batch current = batch.get();
+        if (current != null && current.undoableHeaders.contains(hash))
+            return true;
+        HeaderLocation location = headers.get(hash);
+        return location != null && location.wasUndoable;
+    }
+
+    public void put(StoredBlock block) throws BlockStoreException {
+        Batch writes = writeBatch();
+        Sha256Hash hash = block.getHeader().getHash();
+        if (wasUndoable(hash))
+            writes.undoableHeaders.add(hash);
+        writes.headers.put(hash, block);
+        commitIfNotInBatch(writes);
+    }
+
+    public void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Batch writes = writeBatch();
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        writes.headers.put(hash, storedBlock);
+        writes.undoableHeaders.add(hash);
+        writes.undoableBlocks.put(hash, undoableBlock);
+        writes.undoableBlockHeights.put(hash, storedBlock.getHeight());
+        commitIfNotInBatch(writes);
+    }
+
+    private synchronized StoredBlock get(Sha256Hash hash, boolean wasUndoableOnly) throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.headers.containsKey(hash)) {
+            if (wasUndoableOnly && !current.undoableHeaders.contains(hash))
+                return null;
+            return current.headers.get(hash);
+        }
+        if (chainHead != null && chainHeadHash.equals(hash) && !wasUndoableOnly)
+            return chainHead;
+        HeaderLocation location = headers.get(hash);
+        if (location == null || (wasUndoableOnly && !location.wasUndoable))
+            return null;
+        return decodeHeader(readPayload(location));
+    }
+
+    public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, false);
+    }
+
+    public StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        return get(hash, true);
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.undoableBlocks.containsKey(hash))
+            return current.undoableBlocks.get(hash);
+        UndoableBlockLocation location = undoableBlocks.get(hash);
+        if (location == null)
+            return null;
+        return decodeUndoableBlock(hash, readPayload(location));
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.chainHead != null)
+            return current.chainHead;
+        return chainHead;
+    }
+
+    public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch writes = writeBatch();
+        writes.chainHead = chainHead;
+        commitIfNotInBatch(writes);
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Batch current = batch.get();
+        if (current != null && current.verifiedChainHead != null)
+            return current.verifiedChainHead;
+        return verifiedChainHead;
+    }
+
+    public void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Batch writes = writeBatch();
+        StoredBlock currentHead = getChainHead();
+        writes.verifiedChainHead = chainHead;
+        if (currentHead == null || currentHead.getHeight() < chainHead.getHeight())
+            writes.chainHead = chainHead;
+        commitIfNotInBatch(writes);
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index)
+            throws BlockStoreException {
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, index);
+        Batch current = batch.get();
+        if (current != null) {
+            StoredTransactionOutput out = current.addedOutputs.get(outpoint);
+            if (out != null)
+                return out;
+            if (current.removedOutputs.contains(outpoint))
+                return null;
+        }
+        Location location = outputs.get(outpoint);
+        if (location == null)
+            return null;
+        return decodeOutput(hash, index, readPayload(location));
+    }
+
+    public void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Batch writes = writeBatch();
+        writes.addedOutputs.put(new StoredTransactionOutPoint(out), out);
+        commitIfNotInBatch(writes);
+    }
+
+    public void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        if (getTransactionOutput(out.getHash(), out.getIndex()) == null)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from LogStructuredFullPrunedBlockStore that it didn't have!");
+        Batch writes = writeBatch();
+        StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(out);
+        writes.addedOutputs.remove(outpoint);
+        writes.removedOutputs.add(outpoint);
+        commitIfNotInBatch(writes);
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Batch current = batch.get();
+        for (int i = 0; i < numOutputs; i++) {
+            StoredTransactionOutPoint outpoint = new StoredTransactionOutPoint(hash, i);
+            if (current != null) {
+                if (current.addedOutputs.containsKey(outpoint))
+                    return true;
+                if (current.removedOutputs.contains(outpoint))
+                    continue;
+            }
+            if (outputs.containsKey(outpoint))
+                return true;
+        }
+        return false;
+    }
+
+    public void beginDatabaseBatchWrite() throws BlockStoreException {
+        if (batch.get() == null)
+            batch.set(new Batch());
+    }
+
+    public void commitDatabaseBatchWrite() throws BlockStoreException {
+        Batch writes = batch.get();
+        batch.remove();
+        if (writes != null)
+            commit(writes);
+    }
+
+    public void abortDatabaseBatchWrite() throws BlockStoreException {
+        batch.remove();
+    }
+
+    public synchronized void close() throws BlockStoreException {
+        try {
+            channel.close();
+            randomAccessFile.close();
+        } catch (IOException e) {
+            throw new BlockStoreException(e);
+        }
+    }
+}
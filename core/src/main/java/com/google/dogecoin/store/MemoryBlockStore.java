@@ -50,6 +50,7 @@ public class MemoryBlockStore implements BlockStore {
     public synchronized void put(StoredBlock block) throws BlockStoreException {
         if (blockMap == null) throw new BlockStoreException("MemoryBlockStore is closed");
         Sha256Hash hash = block.getHeader().getHash();
+        block.buildSkip(this);
         blockMap.put(hash, block);
     }
 
@@ -350,6 +350,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
     public synchronized void put(StoredBlock block) throws BlockStoreException {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         Sha256Hash hash = block.getHeader().getHash();
+        block.buildSkip(this);
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(block, false));
     }
     
@@ -357,6 +358,7 @@ public class MemoryFullPrunedBlockStore implements FullPrunedBlockStore {
         Preconditions.checkNotNull(blockMap, "MemoryFullPrunedBlockStore is closed");
         Sha256Hash hash = storedBlock.getHeader().getHash();
         fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        storedBlock.buildSkip(this);
         blockMap.put(hash, new StoredBlockAndWasUndoableFlag(storedBlock, true));
     }
 
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+/**
+ * <p>Keeps {@link StoredBlock}s, {@link StoredUndoableBlock}s and unspent outputs in memory, like
+ * {@link MemoryFullPrunedBlockStore}, but with the unspent outputs packed into the arrays of an
+ * {@link UnspentOutputTable} instead of a map of objects. That takes a fraction of the memory and gives the garbage
+ * collector far less to do, which suits benchmarks, regtest and caches of large numbers of outputs.</p>
+ *
+ * <p>The outputs a batch write adds and spends are kept in a table of each thread's own until the batch is committed,
+ * so as in {@link MemoryFullPrunedBlockStore} other threads don't see them before then. The table is reused by the
+ * next batch the thread writes.</p>
+ */
+public class PackedMemoryFullPrunedBlockStore implements FullPrunedBlockStore {
+    private static final int BATCH_CAPACITY = 4096;
+
+    private TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag> blockMap;
+    private TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock> fullBlockMap;
+    private UnspentOutputTable outputs;
+    private final ThreadLocal<UnspentOutputTable> batchOutputs = new ThreadLocal<UnspentOutputTable>() {
+        @Override
+        protected UnspentOutputTable initialValue() {
+            return new UnspentOutputTable(BATCH_CAPACITY);
+        }
+    };
+    private final ThreadLocal<Boolean> inBatch = new ThreadLocal<Boolean>();
+    private StoredBlock chainHead;
+    private StoredBlock verifiedChainHead;
+    private int fullStoreDepth;
+
+    /**
+     * Set up the PackedMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     * @param expectedOutputs About how many unspent outputs the store will hold, so it rarely has to grow
+     */
+    public PackedMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth, int expectedOutputs) {
+        blockMap = new TransactionalHashMap<Sha256Hash, MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag>();
+        fullBlockMap = new TransactionalMultiKeyHashMap<Sha256Hash, Integer, StoredUndoableBlock>();
+        outputs = new UnspentOutputTable(expectedOutputs);
+        this.fullStoreDepth = fullStoreDepth > 0 ? fullStoreDepth : 1;
+        // Insert the genesis block.
+        try {
+            StoredBlock storedGenesisHeader = new StoredBlock(params.getGenesisBlock().cloneAsHeader(), params.getGenesisBlock().getWork(), 0);
+            // The coinbase in the genesis block is not spendable
+            List<Transaction> genesisTransactions = Lists.newLinkedList();
+            StoredUndoableBlock storedGenesis = new StoredUndoableBlock(params.getGenesisBlock().getHash(), genesisTransactions);
+            put(storedGenesisHeader, storedGenesis);
+            setChainHead(storedGenesisHeader);
+            setVerifiedChainHead(storedGenesisHeader);
+        } catch (BlockStoreException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        } catch (VerificationException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+    }
+
+    /**
+     * Set up the PackedMemoryFullPrunedBlockStore
+     * @param params The network parameters of this block store - used to get genesis block
+     * @param fullStoreDepth The depth of blocks to keep FullStoredBlocks instead of StoredBlocks
+     */
+    public PackedMemoryFullPrunedBlockStore(NetworkParameters params, int fullStoreDepth) {
+        this(params, fullStoreDepth, 1 << 16);
+    }
+
+    private boolean isInBatch() {
+        return Boolean.TRUE.equals(inBatch.get());
+    }
+
+    public synchronized void put(StoredBlock block) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        Sha256Hash hash = block.getHeader().getHash();
+        block.buildSkip(this);
+        blockMap.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(block, false));
+    }
+
+    public synchronized void put(StoredBlock storedBlock, StoredUndoableBlock undoableBlock) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        Sha256Hash hash = storedBlock.getHeader().getHash();
+        fullBlockMap.put(hash, storedBlock.getHeight(), undoableBlock);
+        storedBlock.buildSkip(this);
+        blockMap.put(hash, new MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag(storedBlock, true));
+    }
+
+    public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return storedBlock == null ? null : storedBlock.block;
+    }
+
+    public synchronized StoredBlock getOnceUndoableStoredBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        MemoryFullPrunedBlockStore.StoredBlockAndWasUndoableFlag storedBlock = blockMap.get(hash);
+        return (storedBlock != null && storedBlock.wasUndoable) ? storedBlock.block : null;
+    }
+
+    public synchronized StoredUndoableBlock getUndoBlock(Sha256Hash hash) throws BlockStoreException {
+        Preconditions.checkNotNull(fullBlockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        return fullBlockMap.get(hash);
+    }
+
+    public synchronized StoredBlock getChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        return chainHead;
+    }
+
+    public synchronized void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        this.chainHead = chainHead;
+    }
+
+    public synchronized StoredBlock getVerifiedChainHead() throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        return verifiedChainHead;
+    }
+
+    public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+        Preconditions.checkNotNull(blockMap, "PackedMemoryFullPrunedBlockStore is closed");
+        this.verifiedChainHead = chainHead;
+        if (this.chainHead.getHeight() < chainHead.getHeight())
+            setChainHead(chainHead);
+        // As in MemoryFullPrunedBlockStore, this relies on every block being set as the verified chain head.
+        fullBlockMap.removeByMultiKey(chainHead.getHeight() - fullStoreDepth);
+    }
+
+    public synchronized void close() {
+        blockMap = null;
+        fullBlockMap = null;
+        outputs = null;
+    }
+
+    public synchronized StoredTransactionOutput getTransactionOutput(Sha256Hash hash, long index) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "PackedMemoryFullPrunedBlockStore is closed");
+        if (isInBatch()) {
+            UnspentOutputTable batch = batchOutputs.get();
+            if (batch.isRemoved(hash, index))
+                return null;
+            StoredTransactionOutput out = batch.get(hash, index);
+            if (out != null)
+                return out;
+        }
+        return outputs.get(hash, index);
+    }
+
+    public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "PackedMemoryFullPrunedBlockStore is closed");
+        if (isInBatch())
+            batchOutputs.get().put(out);
+        else
+            outputs.put(out);
+    }
+
+    public synchronized void removeUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "PackedMemoryFullPrunedBlockStore is closed");
+        boolean removed;
+        if (isInBatch()) {
+            UnspentOutputTable batch = batchOutputs.get();
+            removed = batch.contains(out.getHash(), out.getIndex()) ||
+                    (!batch.isRemoved(out.getHash(), out.getIndex()) && outputs.contains(out.getHash(), out.getIndex()));
+            if (removed)
+                batch.markRemoved(out.getHash(), out.getIndex());
+        } else {
+            removed = outputs.remove(out.getHash(), out.getIndex());
+        }
+        if (!removed)
+            throw new BlockStoreException("Tried to remove a StoredTransactionOutput from PackedMemoryFullPrunedBlockStore that it didn't have!");
+    }
+
+    public synchronized void beginDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.beginDatabaseBatchWrite();
+        fullBlockMap.BeginTransaction();
+        inBatch.set(true);
+    }
+
+    public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.commitDatabaseBatchWrite();
+        fullBlockMap.CommitTransaction();
+        if (isInBatch())
+            outputs.apply(batchOutputs.get());
+        abortOutputs();
+    }
+
+    public synchronized void abortDatabaseBatchWrite() throws BlockStoreException {
+        blockMap.abortDatabaseBatchWrite();
+        fullBlockMap.AbortTransaction();
+        abortOutputs();
+    }
+
+    private void abortOutputs() {
+        inBatch.set(false);
+        batchOutputs.get().clear();
+    }
+
+    public synchronized boolean hasUnspentOutputs(Sha256Hash hash, int numOutputs) throws BlockStoreException {
+        Preconditions.checkNotNull(outputs, "PackedMemoryFullPrunedBlockStore is closed");
+        UnspentOutputTable batch = isInBatch() ? batchOutputs.get() : null;
+        for (int i = 0; i < numOutputs; i++) {
+            if (batch != null) {
+                if (batch.contains(hash, i))
+                    return true;
+                if (batch.isRemoved(hash, i))
+                    continue;
+            }
+            if (outputs.contains(hash, i))
+                return true;
+        }
+        return false;
+    }
+}
@@ -18,6 +18,8 @@ package com.google.dogecoin.store;
 
 import com.google.dogecoin.core.*;
 import com.google.dogecoin.utils.Threading;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,17 +32,24 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 /**
- * An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
+ * <p>An SPVBlockStore holds a limited number of block headers in a memory mapped ring buffer. With such a store, you
  * may not be able to process very deep re-orgs and could be disconnected from the chain (requiring a replay),
- * but as they are virtually unheard of this is not a significant risk.
+ * but as they are virtually unheard of this is not a significant risk.</p>
+ *
+ * <p>Headers are found by hash through an open addressed hash table that is kept after the ring buffer in the same
+ * file, so looking up a header takes the same time however big the ring is. Files written by earlier versions, which
+ * didn't have the table, are upgraded when opened.</p>
+ *
+ * <p>The number of headers kept can be chosen when the store is created, and an existing file is grown if a bigger
+ * capacity is asked for. Any number of threads may read headers at the same time, only writes are exclusive.</p>
  */
 public class SPVBlockStore implements BlockStore {
     private static final Logger log = LoggerFactory.getLogger(SPVBlockStore.class);
@@ -48,11 +57,22 @@ public class SPVBlockStore implements BlockStore {
     /** The default number of headers that will be stored in the ring buffer. */
     public static final int DEFAULT_NUM_HEADERS = 5000;
     public static final String HEADER_MAGIC = "SPVB";
+    /** The version of the file format written by this class. Version 1 files had no hash index. */
+    public static final int FILE_FORMAT_VERSION = 2;
 
     protected volatile MappedByteBuffer buffer;
     protected int numHeaders;
     protected NetworkParameters params;
 
+    // Readers share the lock, so that they only wait for puts. Reads use absolute gets or a duplicate of the buffer,
+    // so that they don't disturb each other's positions.
+    private final ReentrantReadWriteLock readWriteLock = Threading.readWriteLock("SPVBlockStore");
+
+    /**
+     * No longer used by the store, which now lets reads run at the same time. Subclasses that need to exclude the
+     * store's reads or writes should use {@link #getReadWriteLock()}.
+     */
+    @Deprecated
     protected ReentrantLock lock = Threading.lock("SPVBlockStore");
 
     // The entire ring-buffer is mmapped and accessing it should be as fast as accessing regular memory once it's
@@ -62,55 +82,88 @@ public class SPVBlockStore implements BlockStore {
     // the OpenJDK/Oracle JVM calls into the get() methods are compiled down to inlined native code on Android each
     // get() call is actually a full-blown JNI method under the hood, meaning it's unbelievably slow. The caches
     // below let us stay in the JIT-compiled Java world without expensive JNI transitions and make a 10x difference!
-    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 2050;  // Slightly more than the difficulty transition period.
-        }
-    };
+    private final Cache<Sha256Hash, StoredBlock> headerCache = CacheBuilder.newBuilder()
+            .maximumSize(2050)  // Slightly more than the difficulty transition period.
+            .build();
     // Use a separate cache to track get() misses. This is to efficiently handle the case of an unconnected block
     // during chain download. Each new block will do a get() on the unconnected block so if we haven't seen it yet we
     // must efficiently respond.
     //
-    // We don't care about the value in this cache. It is always notFoundMarker. Unfortunately LinkedHashSet does not
-    // provide the removeEldestEntry control.
+    // We don't care about the value in this cache. It is always notFoundMarker.
     protected static final StoredBlock notFoundMarker = new StoredBlock(null, null, -1);
-    protected LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> entry) {
-            return size() > 100;  // This was chosen arbitrarily.
-        }
-    };
+    private final Cache<Sha256Hash, StoredBlock> notFoundHeaders = CacheBuilder.newBuilder()
+            .maximumSize(100)  // This was chosen arbitrarily.
+            .build();
+
+    /** No longer used by the store, which keeps its caches to itself so that they can be read without the lock. */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, StoredBlock> blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>();
+    /** No longer used by the store, which keeps its caches to itself so that they can be read without the lock. */
+    @Deprecated
+    protected LinkedHashMap<Sha256Hash, StoredBlock> notFoundCache = new LinkedHashMap<Sha256Hash, StoredBlock>();
     // Used to stop other applications/processes from opening the store.
     protected FileLock fileLock = null;
     protected RandomAccessFile randomAccessFile = null;
 
     /**
-     * Creates and initializes an SPV block store. Will create the given file if it's missing. This operation
-     * will block on disk.
+     * Creates and initializes an SPV block store that holds {@link #DEFAULT_NUM_HEADERS} headers. Will create the
+     * given file if it's missing. This operation will block on disk.
      */
     public SPVBlockStore(NetworkParameters params, File file) throws BlockStoreException {
+        this(params, file, DEFAULT_NUM_HEADERS);
+    }
+
+    /**
+     * Creates and initializes an SPV block store that holds the given number of headers. Will create the given file
+     * if it's missing, and grow it if it holds fewer headers, keeping the ones it has. A file that holds more headers
+     * is used as it is. This operation will block on disk.
+     */
+    public SPVBlockStore(NetworkParameters params, File file, int capacity) throws BlockStoreException {
         checkNotNull(file);
+        checkArgument(capacity > 0 && capacity <= MAX_NUM_HEADERS, "Capacity out of range: %s", capacity);
         this.params = checkNotNull(params);
         try {
-            this.numHeaders = DEFAULT_NUM_HEADERS;
             boolean exists = file.exists();
             // Set up the backing file.
             randomAccessFile = new RandomAccessFile(file, "rw");
-            long fileSize = getFileSize();
-            if (!exists) {
-                log.info("Creating new SPV block chain file " + file);
-                randomAccessFile.setLength(fileSize);
-            } else if (randomAccessFile.length() != fileSize) {
-                throw new BlockStoreException("File size on disk does not match expected size: " +
-                        randomAccessFile.length() + " vs " + fileSize);
-            }
-
             FileChannel channel = randomAccessFile.getChannel();
             fileLock = channel.tryLock();
             if (fileLock == null)
                 throw new BlockStoreException("Store file is already locked by another process");
 
+            boolean needsIndex = false;
+            if (!exists) {
+                log.info("Creating new SPV block chain file " + file);
+                this.numHeaders = capacity;
+                randomAccessFile.setLength(getFileSize());
+            } else {
+                randomAccessFile.seek(VERSION_OFFSET);
+                int version = randomAccessFile.readInt();
+                int storedCapacity = randomAccessFile.readInt();
+                long expectedSize;
+                if (version == 0) {
+                    // Version 1 files are just the prologue and the ring, which is the start of the new format.
+                    this.numHeaders = DEFAULT_NUM_HEADERS;
+                    expectedSize = getRingEnd();
+                } else if (version == FILE_FORMAT_VERSION) {
+                    // Files written before the capacity could be chosen have a zero there.
+                    this.numHeaders = storedCapacity != 0 ? storedCapacity : DEFAULT_NUM_HEADERS;
+                    expectedSize = getFileSize();
+                } else {
+                    throw new BlockStoreException("Unknown SPV block chain file version " + version);
+                }
+                if (randomAccessFile.length() != expectedSize)
+                    throw new BlockStoreException("File size on disk does not match expected size: " +
+                            randomAccessFile.length() + " vs " + expectedSize);
+                if (version == 0 || capacity > numHeaders) {
+                    log.info("Resizing SPV block chain file {} from {} to {} headers", new Object[] {file, numHeaders,
+                            Math.max(capacity, numHeaders)});
+                    resize(Math.max(capacity, numHeaders));
+                    needsIndex = true;
+                }
+            }
+            long fileSize = getFileSize();
+
             // Map it into memory read/write. The kernel will take care of flushing writes to disk at the most
             // efficient times, which may mean that until the map is deallocated the data on disk is randomly
             // inconsistent. However the only process accessing it is us, via this mapping, so our own view will
@@ -125,6 +178,11 @@ public class SPVBlockStore implements BlockStore {
                 buffer.get(header);
                 if (!new String(header, "US-ASCII").equals(HEADER_MAGIC))
                     throw new BlockStoreException("Header bytes do not equal " + HEADER_MAGIC);
+                if (needsIndex) {
+                    buildIndex(buffer);
+                    buffer.putInt(VERSION_OFFSET, FILE_FORMAT_VERSION);
+                    buffer.putInt(CAPACITY_OFFSET, numHeaders);
+                }
             } else {
                 initNewStore(params);
             }
@@ -142,12 +200,14 @@ public class SPVBlockStore implements BlockStore {
         byte[] header;
         header = HEADER_MAGIC.getBytes("US-ASCII");
         buffer.put(header);
+        buffer.putInt(VERSION_OFFSET, FILE_FORMAT_VERSION);
+        buffer.putInt(CAPACITY_OFFSET, numHeaders);
         // Insert the genesis block.
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             setRingCursor(buffer, FILE_PROLOGUE_BYTES);
         } finally {
-            lock.unlock();
+            readWriteLock.writeLock().unlock();
         }
         Block genesis = params.getGenesisBlock().cloneAsHeader();
         StoredBlock storedGenesis = new StoredBlock(genesis, genesis.getWork(), 0);
@@ -155,87 +215,152 @@ public class SPVBlockStore implements BlockStore {
         setChainHead(storedGenesis);
     }
 
+    /**
+     * Rewrites the ring of the file, which is not mapped yet, to hold the given number of headers, keeping the ones it
+     * has from oldest to newest. The index must be rebuilt afterwards.
+     */
+    private void resize(int newNumHeaders) throws IOException {
+        randomAccessFile.seek(4);
+        int cursor = randomAccessFile.readInt();
+        long oldFileSize = randomAccessFile.length();
+        byte[] ring = new byte[numHeaders * RECORD_SIZE];
+        randomAccessFile.seek(FILE_PROLOGUE_BYTES);
+        randomAccessFile.readFully(ring);
+        byte[] records = new byte[ring.length];
+        int length = 0;
+        int oldest = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        for (int i = 0; i < numHeaders; i++) {
+            int offset = ((oldest + i) % numHeaders) * RECORD_SIZE;
+            if (isEmptyRecord(ring, offset))
+                continue;  // Never written.
+            System.arraycopy(ring, offset, records, length, RECORD_SIZE);
+            length += RECORD_SIZE;
+        }
+        numHeaders = newNumHeaders;
+        randomAccessFile.setLength(getFileSize());
+        randomAccessFile.seek(FILE_PROLOGUE_BYTES);
+        randomAccessFile.write(records, 0, length);
+        // Clear whatever of the old ring and index is left, the rest of the file is new and so already zero.
+        byte[] zeros = new byte[64 * 1024];
+        for (long position = FILE_PROLOGUE_BYTES + length; position < oldFileSize; position += zeros.length)
+            randomAccessFile.write(zeros, 0, (int) Math.min(zeros.length, oldFileSize - position));
+        randomAccessFile.seek(4);
+        randomAccessFile.writeInt(FILE_PROLOGUE_BYTES + length);
+    }
+
+    private static boolean isEmptyRecord(byte[] ring, int offset) {
+        for (int i = 0; i < 32; i++)
+            if (ring[offset + i] != 0)
+                return false;
+        return true;
+    }
+
+    /** Returns the lock that reads of the store share and writes take exclusively. */
+    protected ReentrantReadWriteLock getReadWriteLock() {
+        return readWriteLock;
+    }
+
+    /** Returns the number of headers the store can hold before the oldest are overwritten. */
+    public int getCapacity() {
+        return numHeaders;
+    }
+
     /** Returns the size in bytes of the file that is used to store the chain with the current parameters. */
     public int getFileSize() {
+        return getRingEnd() + getIndexSlots() * INDEX_SLOT_SIZE;
+    }
+
+    // The offset just after the last record of the ring, where the hash index starts.
+    private int getRingEnd() {
         return RECORD_SIZE * numHeaders + FILE_PROLOGUE_BYTES /* extra kilobyte for stuff */;
     }
 
+    // The index has at least twice as many slots as there are records, so probe sequences stay short.
+    private int getIndexSlots() {
+        return Integer.highestOneBit(numHeaders * 2 - 1) << 1;
+    }
+
     public void put(StoredBlock block) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             int cursor = getRingCursor(buffer);
-            if (cursor == getFileSize()) {
+            if (cursor == getRingEnd()) {
                 // Wrapped around.
                 cursor = FILE_PROLOGUE_BYTES;
             }
+            int record = (cursor - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+            // The oldest header is about to be overwritten, so it can't be found any more.
+            removeFromIndex(buffer, record);
             buffer.position(cursor);
             Sha256Hash hash = block.getHeader().getHash();
-            notFoundCache.remove(hash);
+            notFoundHeaders.invalidate(hash);
             buffer.put(hash.getBytes());
             block.serializeCompact(buffer);
             setRingCursor(buffer, buffer.position());
-            blockCache.put(hash, block);
-        } finally { lock.unlock(); }
+            addToIndex(buffer, record);
+            headerCache.put(hash, block);
+        } finally { readWriteLock.writeLock().unlock(); }
     }
 
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        // The caches are safe to use without the lock. Entries are only added to them with the read lock held, so a put
+        // can't be overtaken by a reader caching that the header doesn't exist.
+        StoredBlock cacheHit = headerCache.getIfPresent(hash);
+        if (cacheHit != null)
+            return cacheHit;
+        readWriteLock.readLock().lock();
         try {
-            StoredBlock cacheHit = blockCache.get(hash);
-            if (cacheHit != null)
-                return cacheHit;
-            if (notFoundCache.get(hash) != null)
+            if (notFoundHeaders.getIfPresent(hash) != null)
                 return null;
 
-            // Starting from the current tip of the ring work backwards until we have either found the block or
-            // wrapped around.
-            int cursor = getRingCursor(buffer);
-            final int startingPoint = cursor;
-            final int fileSize = getFileSize();
+            final ByteBuffer view = buffer.duplicate();
             final byte[] targetHashBytes = hash.getBytes();
+            final int mask = getIndexSlots() - 1;
             byte[] scratch = new byte[32];
-            do {
-                cursor -= RECORD_SIZE;
-                if (cursor < FILE_PROLOGUE_BYTES) {
-                    // We hit the start, so wrap around.
-                    cursor = fileSize - RECORD_SIZE;
-                }
-                // Cursor is now at the start of the next record to check, so read the hash and compare it.
-                buffer.position(cursor);
-                buffer.get(scratch);
+            for (int slot = hashSlot(targetHashBytes) & mask; ; slot = (slot + 1) & mask) {
+                int record = getIndexSlot(view, slot) - 1;
+                if (record < 0)
+                    break;
+                // Read the hash of the record the slot points to and compare it.
+                view.position(recordOffset(record));
+                view.get(scratch);
                 if (Arrays.equals(scratch, targetHashBytes)) {
                     // Found the target.
-                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, buffer);
-                    blockCache.put(hash, storedBlock);
+                    StoredBlock storedBlock = StoredBlock.deserializeCompact(params, view);
+                    headerCache.put(hash, storedBlock);
                     return storedBlock;
                 }
-            } while (cursor != startingPoint);
+            }
             // Not found.
-            notFoundCache.put(hash, notFoundMarker);
+            notFoundHeaders.put(hash, notFoundMarker);
             return null;
         } catch (ProtocolException e) {
             throw new RuntimeException(e);  // Cannot happen.
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
-    protected StoredBlock lastChainHead = null;
+    protected volatile StoredBlock lastChainHead = null;
 
     public StoredBlock getChainHead() throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        StoredBlock chainHead = lastChainHead;
+        if (chainHead != null)
+            return chainHead;
+        readWriteLock.readLock().lock();
         try {
             if (lastChainHead == null) {
                 byte[] headHash = new byte[32];
-                buffer.position(8);
-                buffer.get(headHash);
+                ByteBuffer view = buffer.duplicate();
+                view.position(8);
+                view.get(headHash);
                 Sha256Hash hash = new Sha256Hash(headHash);
                 StoredBlock block = get(hash);
                 if (block == null)
@@ -243,29 +368,32 @@ public class SPVBlockStore implements BlockStore {
                 lastChainHead = block;
             }
             return lastChainHead;
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.readLock().unlock(); }
     }
 
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
         final MappedByteBuffer buffer = this.buffer;
         if (buffer == null) throw new BlockStoreException("Store closed");
 
-        lock.lock();
+        readWriteLock.writeLock().lock();
         try {
             lastChainHead = chainHead;
             byte[] headHash = chainHead.getHeader().getHash().getBytes();
             buffer.position(8);
             buffer.put(headHash);
-        } finally { lock.unlock(); }
+        } finally { readWriteLock.writeLock().unlock(); }
     }
 
     public void close() throws BlockStoreException {
+        readWriteLock.writeLock().lock();
         try {
             buffer.force();
             buffer = null;  // Allow it to be GCd and the underlying file mapping to go away.
             randomAccessFile.close();
         } catch (IOException e) {
             throw new BlockStoreException(e);
+        } finally {
+            readWriteLock.writeLock().unlock();
         }
     }
 
@@ -275,13 +403,108 @@ public class SPVBlockStore implements BlockStore {
     //   4 header bytes = "SPVB"
     //   4 cursor bytes, which indicate the offset from the first kb where the next block header should be written.
     //   32 bytes for the hash of the chain head
+    //   4 bytes of file format version, zero in version 1 files
+    //   4 bytes of the number of headers the ring holds, zero for DEFAULT_NUM_HEADERS
     //
     // For each header (128 bytes)
     //   32 bytes hash of the header
     //   12 bytes of chain work
     //    4 bytes of height
     //   80 bytes of block header data
+    //
+    // Then the hash index, a power of two number of slots (4 bytes each)
+    //    4 bytes of record number plus one, or zero if the slot is empty
+    //
+    // A header goes in the slot given by the last four bytes of its hash, or the next free one after it.
     protected static final int FILE_PROLOGUE_BYTES = 1024;
+    protected static final int VERSION_OFFSET = 40;
+    protected static final int CAPACITY_OFFSET = 44;
+    protected static final int INDEX_SLOT_SIZE = 4;
+    // Keeps the file within what can be mapped at once. The index has fewer than four slots per header.
+    protected static final int MAX_NUM_HEADERS =
+            (Integer.MAX_VALUE - FILE_PROLOGUE_BYTES) / (RECORD_SIZE + 4 * INDEX_SLOT_SIZE);
+
+    private int recordOffset(int record) {
+        return FILE_PROLOGUE_BYTES + record * RECORD_SIZE;
+    }
+
+    private static int hashSlot(byte[] hash) {
+        // The first bytes of a block hash are mostly zeros, the last ones are as good as random.
+        return ((hash[28] & 0xFF) << 24) | ((hash[29] & 0xFF) << 16) | ((hash[30] & 0xFF) << 8) | (hash[31] & 0xFF);
+    }
+
+    private int recordSlot(ByteBuffer buffer, int record) {
+        return buffer.getInt(recordOffset(record) + 28);
+    }
+
+    private int getIndexSlot(ByteBuffer buffer, int slot) {
+        return buffer.getInt(getRingEnd() + slot * INDEX_SLOT_SIZE);
+    }
+
+    private void setIndexSlot(ByteBuffer buffer, int slot, int value) {
+        buffer.putInt(getRingEnd() + slot * INDEX_SLOT_SIZE, value);
+    }
+
+    private boolean recordHashesEqual(ByteBuffer buffer, int a, int b) {
+        for (int i = 0; i < 32; i += 4)
+            if (buffer.getInt(recordOffset(a) + i) != buffer.getInt(recordOffset(b) + i))
+                return false;
+        return true;
+    }
+
+    // Points the index at the given record, replacing any older copy of the same header.
+    private void addToIndex(ByteBuffer buffer, int record) {
+        final int mask = getIndexSlots() - 1;
+        for (int slot = recordSlot(buffer, record) & mask; ; slot = (slot + 1) & mask) {
+            int existing = getIndexSlot(buffer, slot) - 1;
+            if (existing < 0 || existing == record || recordHashesEqual(buffer, existing, record)) {
+                setIndexSlot(buffer, slot, record + 1);
+                return;
+            }
+        }
+    }
+
+    // Removes the index slot pointing at the given record, if any, whilst its hash is still in the ring.
+    private void removeFromIndex(ByteBuffer buffer, int record) {
+        final int mask = getIndexSlots() - 1;
+        int slot = recordSlot(buffer, record) & mask;
+        while (true) {
+            int existing = getIndexSlot(buffer, slot) - 1;
+            if (existing < 0)
+                return;  // Never indexed, or a newer copy of the header replaced it.
+            if (existing == record)
+                break;
+            slot = (slot + 1) & mask;
+        }
+        // Shift later entries of the probe sequence back into the gap, so that lookups don't stop short at it.
+        int gap = slot;
+        for (int next = (gap + 1) & mask; ; next = (next + 1) & mask) {
+            int moving = getIndexSlot(buffer, next) - 1;
+            if (moving < 0)
+                break;
+            int home = recordSlot(buffer, moving) & mask;
+            // The entry can only move back if its home slot is not between the gap and where it is now.
+            boolean reachable = gap <= next ? (gap < home && home <= next) : (gap < home || home <= next);
+            if (reachable)
+                continue;
+            setIndexSlot(buffer, gap, moving + 1);
+            gap = next;
+        }
+        setIndexSlot(buffer, gap, 0);
+    }
+
+    // Indexes every record in the ring, oldest first so that newer copies of a header take precedence.
+    private void buildIndex(ByteBuffer buffer) {
+        int oldest = (getRingCursor(buffer) - FILE_PROLOGUE_BYTES) / RECORD_SIZE;
+        byte[] empty = new byte[32], scratch = new byte[32];
+        for (int i = 0; i < numHeaders; i++) {
+            int record = (oldest + i) % numHeaders;
+            buffer.position(recordOffset(record));
+            buffer.get(scratch);
+            if (!Arrays.equals(scratch, empty))
+                addToIndex(buffer, record);
+        }
+    }
 
     /** Returns the offset from the file start where the latest block should be written (end of prev block). */
     private int getRingCursor(ByteBuffer buffer) {
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.script.ScriptCompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.*;
+
+/**
+ * <p>Writes a {@link StoredUndoableBlock} in the compact form the full pruned block stores keep on disk.</p>
+ *
+ * <p>The data starts with a version byte and says whether it holds the outputs the block created and spent, or the
+ * transactions of the block. Outputs refer to their transaction hash by its position in a table at the start, so the
+ * hash is only written once however many outputs of a transaction the block touches. The index, height and value are
+ * written as var ints, and the script with {@link ScriptCompressor}. Transactions are written as they are on the
+ * wire.</p>
+ */
+public class UndoableBlockSerializer {
+    /** The version written at the start of the data. */
+    public static final int VERSION = 1;
+
+    private static final int KIND_TX_OUT_CHANGES = 0;
+    private static final int KIND_TRANSACTIONS = 1;
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    private UndoableBlockSerializer() {
+    }
+
+    /** Returns the given block in the compact form. */
+    public static byte[] serialize(StoredUndoableBlock block) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            bos.write(VERSION);
+            TransactionOutputChanges changes = block.getTxOutChanges();
+            if (changes != null) {
+                bos.write(KIND_TX_OUT_CHANGES);
+                // Most outputs a block spends or creates share their transaction with another one.
+                Map<Sha256Hash, Integer> hashes = new LinkedHashMap<Sha256Hash, Integer>();
+                for (StoredTransactionOutput out : changes.txOutsCreated)
+                    addHash(hashes, out.getHash());
+                for (StoredTransactionOutput out : changes.txOutsSpent)
+                    addHash(hashes, out.getHash());
+                bos.write(new VarInt(hashes.size()).encode());
+                for (Sha256Hash hash : hashes.keySet())
+                    bos.write(hash.getBytes());
+                writeOutputs(bos, hashes, changes.txOutsCreated);
+                writeOutputs(bos, hashes, changes.txOutsSpent);
+            } else {
+                bos.write(KIND_TRANSACTIONS);
+                bos.write(new VarInt(block.getTransactions().size()).encode());
+                for (Transaction tx : block.getTransactions())
+                    tx.bitcoinSerialize(bos);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);  // Cannot happen.
+        }
+        return bos.toByteArray();
+    }
+
+    private static void addHash(Map<Sha256Hash, Integer> hashes, Sha256Hash hash) {
+        if (!hashes.containsKey(hash))
+            hashes.put(hash, hashes.size());
+    }
+
+    private static void writeOutputs(ByteArrayOutputStream bos, Map<Sha256Hash, Integer> hashes,
+                                     List<StoredTransactionOutput> outputs) throws IOException {
+        bos.write(new VarInt(outputs.size()).encode());
+        for (StoredTransactionOutput out : outputs) {
+            bos.write(new VarInt(hashes.get(out.getHash())).encode());
+            bos.write(new VarInt(out.getIndex()).encode());
+            // Only coinbase outputs have a height, and it is never negative.
+            bos.write(new VarInt(out.getHeight() < 0 ? 0 : out.getHeight() + 1L).encode());
+            // Unsigned, as MAX_MONEY doesn't fit in a signed long.
+            bos.write(new VarInt(out.getValue().longValue()).encode());
+            byte[] script = ScriptCompressor.compress(out.getScriptBytes());
+            bos.write(new VarInt(script.length).encode());
+            bos.write(script);
+        }
+    }
+
+    /**
+     * Reads a block written by {@link #serialize(StoredUndoableBlock)}.
+     *
+     * @param hash The hash of the block, which isn't part of the data
+     * @throws ProtocolException if the data is not an undoable block in a version this class can read.
+     */
+    public static StoredUndoableBlock deserialize(NetworkParameters params, Sha256Hash hash, byte[] bytes)
+            throws ProtocolException {
+        try {
+            int[] cursor = new int[] {0};
+            if (bytes.length < 2)
+                throw new ProtocolException("Undoable block data too short");
+            int version = bytes[cursor[0]++];
+            if (version != VERSION)
+                throw new ProtocolException("Unknown undoable block version " + version);
+            int kind = bytes[cursor[0]++];
+            if (kind == KIND_TX_OUT_CHANGES) {
+                int numHashes = (int) readVarInt(bytes, cursor);
+                List<Sha256Hash> hashes = new ArrayList<Sha256Hash>(Math.min(numHashes, bytes.length / 32));
+                for (int i = 0; i < numHashes; i++)
+                    hashes.add(new Sha256Hash(readBytes(bytes, cursor, 32)));
+                List<StoredTransactionOutput> created = readOutputs(bytes, cursor, hashes);
+                List<StoredTransactionOutput> spent = readOutputs(bytes, cursor, hashes);
+                if (cursor[0] != bytes.length)
+                    throw new ProtocolException("Unexpected data after undoable block");
+                return new StoredUndoableBlock(hash, new TransactionOutputChanges(created, spent));
+            } else if (kind == KIND_TRANSACTIONS) {
+                long numTransactions = readVarInt(bytes, cursor);
+                List<Transaction> transactions = new LinkedList<Transaction>();
+                for (long i = 0; i < numTransactions; i++) {
+                    Transaction tx = new Transaction(params, bytes, cursor[0]);
+                    transactions.add(tx);
+                    cursor[0] += tx.getMessageSize();
+                }
+                return new StoredUndoableBlock(hash, transactions);
+            } else {
+                throw new ProtocolException("Unknown undoable block kind " + kind);
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new ProtocolException(e);
+        } catch (IllegalArgumentException e) {
+            throw new ProtocolException(e);
+        }
+    }
+
+    private static List<StoredTransactionOutput> readOutputs(byte[] bytes, int[] cursor, List<Sha256Hash> hashes) {
+        long numOutputs = readVarInt(bytes, cursor);
+        List<StoredTransactionOutput> outputs = new LinkedList<StoredTransactionOutput>();
+        for (long i = 0; i < numOutputs; i++) {
+            Sha256Hash hash = hashes.get((int) readVarInt(bytes, cursor));
+            long index = readVarInt(bytes, cursor);
+            long height = readVarInt(bytes, cursor);
+            BigInteger value = BigInteger.valueOf(readVarInt(bytes, cursor));
+            if (value.signum() < 0)
+                value = value.add(TWO_TO_THE_64);
+            int scriptLength = (int) readVarInt(bytes, cursor);
+            byte[] script = ScriptCompressor.decompress(readBytes(bytes, cursor, scriptLength));
+            outputs.add(new StoredTransactionOutput(hash, index, value, (int) height - 1, height != 0, script));
+        }
+        return outputs;
+    }
+
+    private static byte[] readBytes(byte[] bytes, int[] cursor, int length) {
+        if (length < 0 || cursor[0] + length > bytes.length)
+            throw new IndexOutOfBoundsException("Undoable block data too short");
+        byte[] result = Arrays.copyOfRange(bytes, cursor[0], cursor[0] + length);
+        cursor[0] += length;
+        return result;
+    }
+
+    private static long readVarInt(byte[] bytes, int[] cursor) {
+        VarInt varint = new VarInt(bytes, cursor[0]);
+        cursor[0] += varint.getOriginalSizeInBytes();
+        return varint.value;
+    }
+}
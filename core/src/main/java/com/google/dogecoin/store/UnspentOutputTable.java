@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.Sha256Hash;
+import com.google.dogecoin.core.StoredTransactionOutput;
+import com.google.dogecoin.core.Utils;
+import com.google.dogecoin.script.ScriptCompressor;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * <p>A hash table of unspent outputs that keeps everything in a few large arrays, so adding and removing outputs
+ * allocates nothing once the arrays are big enough.</p>
+ *
+ * <p>The transaction hash and index of each output are packed into one byte array, and found by linear probing.
+ * Removing an output moves the outputs after it back to where they would have been had it never been added, so the
+ * table never fills up with markers for removed outputs. The height, value and compressed script of the outputs are
+ * appended to another byte array, which is compacted once more than half of it belongs to removed outputs.</p>
+ *
+ * <p>An entry can also be marked as removed, which {@link PackedMemoryFullPrunedBlockStore} uses to record the outputs a
+ * batch write spends. This class is not thread-safe.</p>
+ */
+class UnspentOutputTable {
+    private static final int KEY_LENGTH = 32 + 4;
+    private static final int EMPTY = -1;
+    private static final int REMOVED = -2;
+    // Height, value and the length of the compressed script.
+    private static final int DATA_HEADER_LENGTH = 4 + 8 + 4;
+    private static final int MIN_COMPACT_BYTES = 1024 * 1024;
+    private static final BigInteger TWO_TO_THE_64 = BigInteger.ONE.shiftLeft(64);
+
+    private final int initialCapacity;
+    private byte[] keys;
+    // Where the data for each slot starts, or EMPTY or REMOVED.
+    private int[] offsets;
+    private int mask;
+    private int size;
+
+    private byte[] data;
+    private int dataLength;
+    private int garbage;
+
+    /** Creates a table with room for about the given number of outputs before it has to grow. */
+    UnspentOutputTable(int initialCapacity) {
+        this.initialCapacity = Integer.highestOneBit(Math.max(16, initialCapacity - 1) * 2);
+        allocate(this.initialCapacity);
+        data = new byte[this.initialCapacity * 32];
+    }
+
+    private void allocate(int capacity) {
+        keys = new byte[capacity * KEY_LENGTH];
+        offsets = new int[capacity];
+        Arrays.fill(offsets, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    /** Returns the number of entries, including those marked as removed. */
+    int size() {
+        return size;
+    }
+
+    // Returns the slot the output with the hash at the given offset would be in if nothing else were in the way.
+    private int home(byte[] hash, int hashOffset, long index) {
+        // Transaction hashes are already random, so a few bytes of them are enough.
+        int h = (hash[hashOffset] & 0xFF) | ((hash[hashOffset + 1] & 0xFF) << 8) |
+                ((hash[hashOffset + 2] & 0xFF) << 16) | ((hash[hashOffset + 3] & 0xFF) << 24);
+        h ^= (int) index * 0x9E3779B9;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private int homeOfSlot(byte[] keys, int slot) {
+        int base = slot * KEY_LENGTH;
+        return home(keys, base, Utils.readUint32(keys, base + 32));
+    }
+
+    private boolean keyEquals(int slot, byte[] hash, int hashOffset, long index) {
+        int base = slot * KEY_LENGTH;
+        if (Utils.readUint32(keys, base + 32) != index)
+            return false;
+        for (int i = 0; i < 32; i++)
+            if (keys[base + i] != hash[hashOffset + i])
+                return false;
+        return true;
+    }
+
+    // Returns the slot holding the given output, or the empty slot it would go in as ~slot.
+    private int find(byte[] hash, int hashOffset, long index) {
+        int slot = home(hash, hashOffset, index);
+        while (offsets[slot] != EMPTY) {
+            if (keyEquals(slot, hash, hashOffset, index))
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return ~slot;
+    }
+
+    /** Returns true if the output is in the table and not marked as removed. */
+    boolean contains(Sha256Hash hash, long index) {
+        int slot = find(hash.getBytes(), 0, index);
+        return slot >= 0 && offsets[slot] != REMOVED;
+    }
+
+    /** Returns true if the output is in the table and marked as removed. */
+    boolean isRemoved(Sha256Hash hash, long index) {
+        int slot = find(hash.getBytes(), 0, index);
+        return slot >= 0 && offsets[slot] == REMOVED;
+    }
+
+    /** Returns the output, or null if it isn't in the table or is marked as removed. */
+    StoredTransactionOutput get(Sha256Hash hash, long index) {
+        int slot = find(hash.getBytes(), 0, index);
+        if (slot < 0 || offsets[slot] == REMOVED)
+            return null;
+        return read(hash, index, data, offsets[slot]);
+    }
+
+    private static StoredTransactionOutput read(Sha256Hash hash, long index, byte[] data, int offset) {
+        int height = (int) Utils.readUint32(data, offset);
+        BigInteger value = BigInteger.valueOf(Utils.readInt64(data, offset + 4));
+        if (value.signum() < 0)
+            value = value.add(TWO_TO_THE_64);
+        int scriptLength = (int) Utils.readUint32(data, offset + 12);
+        byte[] script = Arrays.copyOfRange(data, offset + DATA_HEADER_LENGTH, offset + DATA_HEADER_LENGTH + scriptLength);
+        // The height is stored as the output had it, so telling it that it's a coinbase keeps it unchanged.
+        return new StoredTransactionOutput(hash, index, value, height, true, ScriptCompressor.decompress(script));
+    }
+
+    /** Adds the output, replacing any entry for the same outpoint. */
+    void put(StoredTransactionOutput out) {
+        byte[] script = ScriptCompressor.compress(out.getScriptBytes());
+        int offset = append(out.getHeight(), out.getValue().longValue(), script);
+        putOffset(out.getHash().getBytes(), 0, out.getIndex(), offset);
+    }
+
+    /** Marks the output as removed, adding an entry for it if there isn't one. */
+    void markRemoved(Sha256Hash hash, long index) {
+        putOffset(hash.getBytes(), 0, index, REMOVED);
+    }
+
+    private void putOffset(byte[] hash, int hashOffset, long index, int offset) {
+        int slot = find(hash, hashOffset, index);
+        if (slot >= 0) {
+            release(offsets[slot]);
+            offsets[slot] = offset;
+            return;
+        }
+        if ((size + 1) * 4 > offsets.length * 3) {
+            grow();
+            slot = find(hash, hashOffset, index);
+        }
+        slot = ~slot;
+        System.arraycopy(hash, hashOffset, keys, slot * KEY_LENGTH, 32);
+        Utils.uint32ToByteArrayLE(index, keys, slot * KEY_LENGTH + 32);
+        offsets[slot] = offset;
+        size++;
+    }
+
+    /** Removes any entry for the output, returning true if there was one that wasn't marked as removed. */
+    boolean remove(Sha256Hash hash, long index) {
+        return remove(hash.getBytes(), 0, index);
+    }
+
+    private boolean remove(byte[] hash, int hashOffset, long index) {
+        int slot = find(hash, hashOffset, index);
+        if (slot < 0)
+            return false;
+        boolean wasPresent = offsets[slot] != REMOVED;
+        release(offsets[slot]);
+        offsets[slot] = EMPTY;
+        size--;
+        // Move back the entries that probed past this slot, so lookups still find them.
+        int empty = slot;
+        int next = (slot + 1) & mask;
+        while (offsets[next] != EMPTY) {
+            int home = homeOfSlot(keys, next);
+            boolean canMove = empty <= next ? (home <= empty || home > next) : (home <= empty && home > next);
+            if (canMove) {
+                System.arraycopy(keys, next * KEY_LENGTH, keys, empty * KEY_LENGTH, KEY_LENGTH);
+                offsets[empty] = offsets[next];
+                offsets[next] = EMPTY;
+                empty = next;
+            }
+            next = (next + 1) & mask;
+        }
+        if (garbage > MIN_COMPACT_BYTES && garbage * 2 > dataLength)
+            compactData();
+        return wasPresent;
+    }
+
+    /** Empties the table, keeping the arrays unless they have grown large. */
+    void clear() {
+        if (offsets.length > initialCapacity * 4) {
+            allocate(initialCapacity);
+            data = new byte[initialCapacity * 32];
+        } else if (size > 0) {
+            Arrays.fill(offsets, EMPTY);
+            size = 0;
+        }
+        dataLength = 0;
+        garbage = 0;
+    }
+
+    /**
+     * Applies the entries of the given table to this one: outputs marked as removed there are removed here, and the
+     * others are added.
+     */
+    void apply(UnspentOutputTable changes) {
+        for (int slot = 0; slot < changes.offsets.length; slot++) {
+            int offset = changes.offsets[slot];
+            if (offset == EMPTY)
+                continue;
+            int base = slot * KEY_LENGTH;
+            long index = Utils.readUint32(changes.keys, base + 32);
+            if (offset == REMOVED) {
+                remove(changes.keys, base, index);
+            } else {
+                int length = DATA_HEADER_LENGTH + (int) Utils.readUint32(changes.data, offset + 12);
+                ensureData(length);
+                System.arraycopy(changes.data, offset, data, dataLength, length);
+                int newOffset = dataLength;
+                dataLength += length;
+                putOffset(changes.keys, base, index, newOffset);
+            }
+        }
+    }
+
+    private int append(int height, long value, byte[] script) {
+        int length = DATA_HEADER_LENGTH + script.length;
+        ensureData(length);
+        int offset = dataLength;
+        Utils.uint32ToByteArrayLE(height, data, offset);
+        Utils.uint32ToByteArrayLE(value, data, offset + 4);
+        Utils.uint32ToByteArrayLE(value >>> 32, data, offset + 8);
+        Utils.uint32ToByteArrayLE(script.length, data, offset + 12);
+        System.arraycopy(script, 0, data, offset + DATA_HEADER_LENGTH, script.length);
+        dataLength += length;
+        return offset;
+    }
+
+    private void ensureData(int length) {
+        if (dataLength + length <= data.length)
+            return;
+        if (dataLength + length < 0)
+            throw new IllegalStateException("Too much unspent output data for one table");
+        long newLength = Math.max((long) data.length * 2, dataLength + length);
+        data = Arrays.copyOf(data, (int) Math.min(newLength, Integer.MAX_VALUE - 8));
+    }
+
+    private void release(int offset) {
+        if (offset >= 0)
+            garbage += DATA_HEADER_LENGTH + (int) Utils.readUint32(data, offset + 12);
+    }
+
+    private void grow() {
+        byte[] oldKeys = keys;
+        int[] oldOffsets = offsets;
+        allocate(oldOffsets.length * 2);
+        for (int slot = 0; slot < oldOffsets.length; slot++) {
+            if (oldOffsets[slot] == EMPTY)
+                continue;
+            int newSlot = homeOfSlot(oldKeys, slot);
+            while (offsets[newSlot] != EMPTY)
+                newSlot = (newSlot + 1) & mask;
+            System.arraycopy(oldKeys, slot * KEY_LENGTH, keys, newSlot * KEY_LENGTH, KEY_LENGTH);
+            offsets[newSlot] = oldOffsets[slot];
+            size++;
+        }
+    }
+
+    // Copies the data of the entries in the table to a new array, leaving out that of removed outputs.
+    private void compactData() {
+        byte[] compacted = new byte[Math.max(initialCapacity * 32, (dataLength - garbage) * 2)];
+        int length = 0;
+        for (int slot = 0; slot < offsets.length; slot++) {
+            int offset = offsets[slot];
+            if (offset < 0)
+                continue;
+            int recordLength = DATA_HEADER_LENGTH + (int) Utils.readUint32(data, offset + 12);
+            System.arraycopy(data, offset, compacted, length, recordLength);
+            offsets[slot] = length;
+            length += recordLength;
+        }
+        data = compacted;
+        dataLength = length;
+        garbage = 0;
+    }
+}
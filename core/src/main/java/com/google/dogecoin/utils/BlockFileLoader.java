@@ -19,22 +19,37 @@ package com.google.dogecoin.utils;
 import com.google.dogecoin.core.Block;
 import com.google.dogecoin.core.NetworkParameters;
 import com.google.dogecoin.core.ProtocolException;
-import com.google.dogecoin.core.Utils;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * <p>This class reads block files stored in the reference/Satoshi client format. This is simply a way to concatenate
  * blocks together. Importing block data with this tool can be a lot faster than syncing over the network, if you
  * have the files available.</p>
  * 
+ * <p>Each file is memory mapped and scanned for the packet magic that starts every block, so no data is read through
+ * streams. Parsing the blocks is the expensive part, and {@link #parseAhead(ExecutorService, int)} can do it on several
+ * threads whilst still handing the blocks out in the order they appear in the files.</p>
+ * 
  * <p>In order to comply with Iterator&lt;Block>, this class swallows a lot of IOExceptions, which may result in a few
  * blocks being missed followed by a huge set of orphan blocks.</p>
  * 
@@ -46,6 +61,8 @@ import java.util.NoSuchElementException;
  * }</p>
  */
 public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileLoader.class);
+
     /**
      * Gets the list of files which contain blocks from the Satoshi client.
      */
@@ -67,21 +84,30 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         return list;
     }
     
-    private Iterator<File> fileIt;
-    private FileInputStream currentFileStream = null;
+    private final Iterator<File> fileIt;
+    // The part of the current file that hasn't been scanned yet, or null if there is none.
+    @Nullable private ByteBuffer currentFile = null;
     private Block nextBlock = null;
-    private NetworkParameters params;
+    private final NetworkParameters params;
+    private final byte[] magic;
     
     public BlockFileLoader(NetworkParameters params, List<File> files) {
         fileIt = files.iterator();
         this.params = params;
+        long packetMagic = params.getPacketMagic();
+        magic = new byte[] {(byte) (packetMagic >>> 24), (byte) (packetMagic >>> 16), (byte) (packetMagic >>> 8),
+                            (byte) packetMagic};
     }
     
     @Override
     public boolean hasNext() {
-        if (nextBlock == null)
-            loadNextBlock();
-        return nextBlock != null;
+        while (nextBlock == null) {
+            ByteBuffer slice = nextSlice();
+            if (slice == null)
+                return false;
+            nextBlock = parse(params, slice);
+        }
+        return true;
     }
 
     @Override
@@ -92,71 +118,140 @@ public class BlockFileLoader implements Iterable<Block>, Iterator<Block> {
         nextBlock = null;
         return next;
     }
-    
-    private void loadNextBlock() {
+
+    /**
+     * <p>Returns an iterator over the blocks in the files, in the same order as this loader would return them, which
+     * parses up to <tt>window</tt> blocks on the given executor ahead of the caller. Blocks from the next file are
+     * parsed whilst the end of the current one is still being consumed.</p>
+     *
+     * <p>The files are scanned from the thread calling the returned iterator, so this loader must not be used as an
+     * iterator itself as well.</p>
+     */
+    public Iterator<Block> parseAhead(final ExecutorService executor, final int window) {
+        checkArgument(window > 0);
+        return new Iterator<Block>() {
+            private final LinkedList<Future<Block>> pending = new LinkedList<Future<Block>>();
+            private Block next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    ByteBuffer slice;
+                    while (pending.size() < window && (slice = nextSlice()) != null) {
+                        final ByteBuffer blockBytes = slice;
+                        pending.add(executor.submit(new Callable<Block>() {
+                            @Override
+                            public Block call() {
+                                return parse(params, blockBytes);
+                            }
+                        }));
+                    }
+                    if (pending.isEmpty())
+                        return false;
+                    // Blocks that fail to parse come back as null and are skipped.
+                    next = waitFor(pending.poll());
+                }
+                return true;
+            }
+
+            @Override
+            public Block next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                Block block = next;
+                next = null;
+                return block;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    // Returns the bytes of the next block in the files, still backed by the mapped file, or null once all are read.
+    @Nullable
+    private ByteBuffer nextSlice() {
         while (true) {
-            try {
-                if (!fileIt.hasNext() && (currentFileStream == null || currentFileStream.available() < 1))
-                    break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            if (currentFile == null) {
                 if (!fileIt.hasNext())
-                    break;
+                    return null;
+                currentFile = map(fileIt.next());
+                continue;
             }
-            while (true) {
-                try {
-                    if (currentFileStream != null && currentFileStream.available() > 0)
-                        break;
-                } catch (IOException e1) {
-                    currentFileStream = null;
-                }
-                if (!fileIt.hasNext()) {
-                    nextBlock = null;
-                    currentFileStream = null;
-                    return;
-                }
-                try {
-                    currentFileStream = new FileInputStream(fileIt.next());
-                } catch (FileNotFoundException e) {
-                    currentFileStream = null;
-                }
+            ByteBuffer buffer = currentFile;
+            int pos = findMagic(buffer);
+            if (pos < 0 || buffer.limit() - pos < 4) {
+                currentFile = null;
+                continue;
             }
-            try {
-                int nextChar = currentFileStream.read();
-                while (nextChar != -1) {
-                    if (nextChar != ((params.getPacketMagic() >>> 24) & 0xff)) {
-                        nextChar = currentFileStream.read();
-                        continue;
-                    }
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 16) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar != ((params.getPacketMagic() >>> 8) & 0xff))
-                        continue;
-                    nextChar = currentFileStream.read();
-                    if (nextChar == (params.getPacketMagic() & 0xff))
-                        break;
-                }
-                byte[] bytes = new byte[4];
-                currentFileStream.read(bytes, 0, 4);
-                long size = Utils.readUint32BE(Utils.reverseBytes(bytes), 0);
-                // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
-                if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
-                    continue;
-                bytes = new byte[(int) size];
-                currentFileStream.read(bytes, 0, (int) size);
-                try {
-                    nextBlock = new Block(params, bytes);
-                } catch (ProtocolException e) {
-                    nextBlock = null;
-                    continue;
-                }
-                break;
-            } catch (IOException e) {
-                currentFileStream = null;
+            long size = buffer.getInt(pos) & 0xFFFFFFFFL;
+            pos += 4;
+            buffer.position(pos);
+            // We allow larger than MAX_BLOCK_SIZE because test code uses this as well.
+            if (size > Block.MAX_BLOCK_SIZE*2 || size <= 0)
+                continue;
+            if (size > buffer.limit() - pos) {
+                // The file was truncated in the middle of a block.
+                currentFile = null;
                 continue;
             }
+            ByteBuffer slice = buffer.duplicate();
+            slice.limit(pos + (int) size);
+            buffer.position(pos + (int) size);
+            return slice.slice();
+        }
+    }
+
+    // Returns the position just after the next packet magic in the buffer, or -1 if there is none.
+    private int findMagic(ByteBuffer buffer) {
+        int end = buffer.limit() - magic.length;
+        for (int i = buffer.position(); i <= end; i++) {
+            if (buffer.get(i) == magic[0] && buffer.get(i + 1) == magic[1] && buffer.get(i + 2) == magic[2] &&
+                    buffer.get(i + 3) == magic[3])
+                return i + magic.length;
+        }
+        return -1;
+    }
+
+    @Nullable
+    private static ByteBuffer map(File file) {
+        try {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = randomAccessFile.getChannel();
+                // The mapping stays valid once the file is closed. Block files are far smaller than 2GB.
+                ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        Math.min(channel.size(), Integer.MAX_VALUE));
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                return buffer;
+            } finally {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            log.warn("Could not read block file {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    // The parser needs the block in an array of its own, so this is the only copy made of it.
+    @Nullable
+    private static Block parse(NetworkParameters params, ByteBuffer slice) {
+        byte[] bytes = new byte[slice.remaining()];
+        slice.duplicate().get(bytes);
+        try {
+            return new Block(params, bytes);
+        } catch (ProtocolException e) {
+            return null;
+        }
+    }
+
+    private static <T> T waitFor(Future<T> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
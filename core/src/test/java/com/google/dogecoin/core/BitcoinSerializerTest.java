@@ -18,6 +18,9 @@ package com.google.dogecoin.core;
 
 
 import com.google.dogecoin.params.MainNetParams;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.utils.TestUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.junit.Test;
 import org.spongycastle.util.encoders.Hex;
 
@@ -229,5 +232,30 @@ public class BitcoinSerializerTest {
         assertEquals(thirdBlock.getNonce(), 2850094635L);
     }
 
+    @Test
+    public void serializeOnceForManyPeers() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer bs = new BitcoinSerializer(params);
+        Address address = new ECKey().toAddress(params);
+        Transaction tx = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), address);
+
+        ChannelBuffer first = bs.serialize(tx);
+        byte[] payload = tx.serializedPayload;
+        assertNotNull(payload);
+        ChannelBuffer second = bs.serialize(tx);
+        assertSame(payload, tx.serializedPayload);
+        assertEquals(first, second);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        assertEquals(tx, bs.deserialize(new ByteArrayInputStream(bos.toByteArray())));
 
+        // Changing the transaction drops what was kept, and the checksum is worked out again.
+        tx.addOutput(Utils.toNanoCoins(2, 0), address);
+        assertNull(tx.serializedPayload);
+        bos = new ByteArrayOutputStream();
+        bs.serialize(tx, bos);
+        Transaction tx2 = (Transaction) bs.deserialize(new ByteArrayInputStream(bos.toByteArray()));
+        assertEquals(3, tx2.getOutputs().size());
+        assertEquals(tx.getHash(), tx2.getHash());
+    }
 }
@@ -21,6 +21,7 @@ import com.google.dogecoin.params.MainNetParams;
 import com.google.dogecoin.params.TestNet2Params;
 import com.google.dogecoin.params.UnitTestParams;
 import com.google.dogecoin.store.BlockStore;
+import com.google.dogecoin.store.BlockStoreException;
 import com.google.dogecoin.store.MemoryBlockStore;
 import com.google.dogecoin.utils.BriefLogFormatter;
 import com.google.dogecoin.utils.TestUtils;
@@ -31,7 +32,9 @@ import org.junit.Test;
 
 import java.math.BigInteger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import static com.google.dogecoin.utils.TestUtils.createFakeBlock;
 import static com.google.dogecoin.utils.TestUtils.createFakeTx;
@@ -202,6 +205,91 @@ public class BlockChainTest {
         // Successfully traversed a difficulty transition period.
     }
 
+    // Unit test params that keep the original difficulty algorithm and its ten block interval at every height.
+    private static class OldDifficultyParams extends UnitTestParams {
+        OldDifficultyParams() {
+            diffChangeTarget = Integer.MAX_VALUE;
+        }
+    }
+
+    // A store that hands out copies of its blocks, so they have no skip pointers, and can pretend a block is missing.
+    private static class GapBlockStore implements BlockStore {
+        private final MemoryBlockStore store;
+        private Sha256Hash missing;
+
+        GapBlockStore(NetworkParameters params) {
+            store = new MemoryBlockStore(params);
+        }
+
+        public void put(StoredBlock block) throws BlockStoreException {
+            store.put(block);
+        }
+
+        public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+            StoredBlock block = store.get(hash);
+            if (block == null || hash.equals(missing))
+                return null;
+            return new StoredBlock(block.getHeader(), block.getChainWork(), block.getHeight());
+        }
+
+        public StoredBlock getChainHead() throws BlockStoreException {
+            return store.getChainHead();
+        }
+
+        public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+            store.setChainHead(chainHead);
+        }
+
+        public void close() throws BlockStoreException {
+            store.close();
+        }
+    }
+
+    // Builds a chain up to the block before the first difficulty transition and returns the blocks, genesis first.
+    private List<Block> buildToTransition(NetworkParameters params, BlockChain chain) throws Exception {
+        List<Block> blocks = new ArrayList<Block>();
+        Block prev = params.getGenesisBlock();
+        blocks.add(prev);
+        Utils.setMockClock(System.currentTimeMillis()/1000);
+        for (int i = 0; i < params.getInterval() - 1; i++) {
+            Block newBlock = prev.createNextBlock(new ECKey().toAddress(params), Utils.now().getTime()/1000);
+            assertTrue(chain.add(newBlock));
+            blocks.add(newBlock);
+            prev = newBlock;
+            Utils.rollMockClock(2);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void difficultyTransitionFromCheckpoint() throws Exception {
+        // A store that starts at a checkpoint has no block before it, so the transition can't be checked.
+        NetworkParameters params = new OldDifficultyParams();
+        GapBlockStore store = new GapBlockStore(params);
+        BlockChain chain = new BlockChain(params, store);
+        List<Block> blocks = buildToTransition(params, chain);
+        store.missing = blocks.get(0).getHash();
+        Block prev = blocks.get(blocks.size() - 1);
+        assertTrue(chain.add(prev.createNextBlock(new ECKey().toAddress(params), Utils.now().getTime()/1000)));
+    }
+
+    @Test
+    public void difficultyTransitionWithGap() throws Exception {
+        // But a block missing from further up the store doesn't turn the check off.
+        NetworkParameters params = new OldDifficultyParams();
+        GapBlockStore store = new GapBlockStore(params);
+        BlockChain chain = new BlockChain(params, store);
+        List<Block> blocks = buildToTransition(params, chain);
+        store.missing = blocks.get(params.getInterval() / 2).getHash();
+        Block prev = blocks.get(blocks.size() - 1);
+        try {
+            chain.add(prev.createNextBlock(new ECKey().toAddress(params), Utils.now().getTime()/1000));
+            fail();
+        } catch (VerificationException e) {
+            assertTrue(e.getMessage(), e.getCause().getMessage().contains("is missing"));
+        }
+    }
+
     @Test
     public void badDifficulty() throws Exception {
         assertTrue(testNetChain.add(getBlock1()));
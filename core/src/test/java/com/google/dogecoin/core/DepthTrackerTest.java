@@ -0,0 +1,163 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.common.collect.Lists;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class DepthTrackerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private DepthTracker tracker;
+    private TransactionConfidence confidence;
+    private StoredBlock b1, b2, b3;
+
+    @Before
+    public void setUp() throws Exception {
+        tracker = new DepthTracker();
+        confidence = new Transaction(params).getConfidence();
+        confidence.setDepthTracker(tracker);
+        Block genesis = params.getGenesisBlock();
+        StoredBlock b0 = new StoredBlock(genesis, genesis.getWork(), 0);
+        byte[] pubKey = new ECKey().getPubKey();
+        b1 = b0.build(genesis.createNextBlockWithCoinbase(pubKey));
+        b2 = b1.build(b1.getHeader().createNextBlockWithCoinbase(pubKey));
+        b3 = b2.build(b2.getHeader().createNextBlockWithCoinbase(pubKey));
+    }
+
+    // Does what Wallet.receive() does when the transaction appears in a block.
+    private void appearIn(StoredBlock block) throws Exception {
+        tracker.advance(block);
+        confidence.setWorkDone(block.getHeader().getWork());
+        confidence.setAppearedAtChainHeight(block.getHeight());
+    }
+
+    @Test
+    public void depthAndWorkFollowTracker() throws Exception {
+        appearIn(b1);
+        assertEquals(1, confidence.getDepthInBlocks());
+        assertEquals(b1.getHeader().getWork(), confidence.getWorkDone());
+        assertTrue(tracker.advance(b2));
+        assertTrue(tracker.advance(b3));
+        assertFalse(tracker.advance(b3));
+        assertEquals(3, confidence.getDepthInBlocks());
+        BigInteger work = b1.getHeader().getWork().add(b2.getHeader().getWork()).add(b3.getHeader().getWork());
+        assertEquals(work, confidence.getWorkDone());
+
+        tracker.rollBack(b1, Lists.newArrayList(b3, b2));
+        assertEquals(1, confidence.getDepthInBlocks());
+        assertEquals(b1.getHeader().getWork(), confidence.getWorkDone());
+    }
+
+    @Test
+    public void depthFreezesOffChain() throws Exception {
+        appearIn(b1);
+        tracker.advance(b2);
+        confidence.setOverridingTransaction(null);
+        tracker.advance(b3);
+        assertEquals(2, confidence.getDepthInBlocks());
+        confidence.setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        assertEquals(0, confidence.getDepthInBlocks());
+        assertEquals(BigInteger.ZERO, confidence.getWorkDone());
+    }
+
+    @Test
+    public void valuesKeptWhenAttached() throws Exception {
+        TransactionConfidence loaded = new Transaction(params).getConfidence();
+        loaded.setAppearedAtChainHeight(5);
+        loaded.setDepthInBlocks(10);
+        loaded.setWorkDone(BigInteger.TEN);
+        tracker.advance(b1);
+        loaded.setDepthTracker(tracker);
+        assertEquals(10, loaded.getDepthInBlocks());
+        tracker.advance(b2);
+        assertEquals(11, loaded.getDepthInBlocks());
+        assertEquals(BigInteger.TEN.add(b2.getHeader().getWork()), loaded.getWorkDone());
+    }
+
+    @Test
+    public void secondTrackerRefused() throws Exception {
+        appearIn(b1);
+        confidence.watchDepth(3);
+        DepthTracker other = new DepthTracker();
+        assertTrue(confidence.setDepthTracker(tracker));
+        assertFalse(confidence.setDepthTracker(other));
+        assertSame(tracker, confidence.getDepthTracker());
+        // The first tracker still drives the depth and still gets told when the threshold is reached.
+        other.advance(b2);
+        assertEquals(1, confidence.getDepthInBlocks());
+        tracker.advance(b2);
+        tracker.advance(b3);
+        assertEquals(3, confidence.getDepthInBlocks());
+        assertEquals(0, other.getNumWatched());
+        assertEquals(Lists.newArrayList(confidence), tracker.takeDue());
+    }
+
+    @Test
+    public void notifyWorkDoneWithoutTracker() throws Exception {
+        TransactionConfidence untracked = new Transaction(params).getConfidence();
+        untracked.setAppearedAtChainHeight(1);
+        assertTrue(untracked.notifyWorkDone(b2.getHeader()));
+        assertEquals(2, untracked.getDepthInBlocks());
+        assertEquals(b2.getHeader().getWork(), untracked.getWorkDone());
+
+        // Once tracked, the tracker counts the blocks and the old path changes nothing.
+        appearIn(b1);
+        assertFalse(confidence.notifyWorkDone(b2.getHeader()));
+        assertEquals(1, confidence.getDepthInBlocks());
+    }
+
+    @Test
+    public void thresholds() throws Exception {
+        confidence.watchDepth(3);
+        assertEquals(0, tracker.getNumWatched());  // Not in the chain yet.
+        appearIn(b1);
+        assertEquals(1, tracker.getNumWatched());
+        assertTrue(tracker.takeDue().isEmpty());
+        tracker.advance(b2);
+        assertTrue(tracker.takeDue().isEmpty());
+        tracker.advance(b3);
+        assertEquals(Lists.newArrayList(confidence), tracker.takeDue());
+        assertTrue(confidence.checkDepthThresholds());
+        assertEquals(0, tracker.getNumWatched());
+        // Already reached, so nothing more to watch.
+        confidence.watchDepth(2);
+        assertEquals(0, tracker.getNumWatched());
+    }
+
+    @Test
+    public void thresholdAfterReorg() throws Exception {
+        appearIn(b1);
+        confidence.watchDepth(3);
+        tracker.advance(b2);
+        tracker.rollBack(b1, Lists.newArrayList(b2));
+        tracker.advance(b2);
+        tracker.advance(b3);
+        assertEquals(3, confidence.getDepthInBlocks());
+        boolean reached = false;
+        for (TransactionConfidence due : tracker.takeDue())
+            reached |= due.checkDepthThresholds();
+        assertTrue(reached);
+        assertEquals(0, tracker.getNumWatched());
+    }
+}
@@ -21,13 +21,15 @@ import com.google.dogecoin.core.Transaction.SigHash;
 import com.google.dogecoin.params.MainNetParams;
 import com.google.dogecoin.params.UnitTestParams;
 import com.google.dogecoin.script.Script;
-import com.google.dogecoin.store.BlockStoreException;
-import com.google.dogecoin.store.FullPrunedBlockStore;
-import com.google.dogecoin.store.MemoryFullPrunedBlockStore;
+import com.google.dogecoin.store.*;
 import com.google.dogecoin.utils.BlockFileLoader;
 import com.google.dogecoin.utils.BriefLogFormatter;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,38 +37,96 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
 
 /**
- * We don't do any wallet tests here, we leave that to {@link ChainSplitTest}
+ * We don't do any wallet tests here, we leave that to {@link ChainSplitTest}. Each test is run against every kind of
+ * {@link FullPrunedBlockStore}, as connecting, undoing and reorganizing blocks is where they most differ.
  */
-
+@RunWith(Parameterized.class)
 public class FullPrunedBlockChainTest {
     private static final Logger log = LoggerFactory.getLogger(FullPrunedBlockChainTest.class);
 
+    enum StoreType { MEMORY, CACHING, H2, LOG_STRUCTURED, PACKED_MEMORY }
+
+    @Parameters
+    public static Collection<Object[]> storeTypes() {
+        List<Object[]> types = new ArrayList<Object[]>();
+        for (StoreType type : StoreType.values())
+            types.add(new Object[] {type});
+        return types;
+    }
+
+    private final StoreType storeType;
     private NetworkParameters params;
     private FullPrunedBlockChain chain;
     private FullPrunedBlockStore store;
+    private File tempDir;
+
+    public FullPrunedBlockChainTest(StoreType storeType) {
+        this.storeType = storeType;
+    }
 
     @Before
     public void setUp() throws Exception {
         BriefLogFormatter.init();
+        // Retargeting every block doesn't suit connecting a chain.
         params = new UnitTestParams() {
             @Override public int getInterval() {
                 return 10000;
             }
+
+            @Override public int getNewInterval() {
+                return 10000;
+            }
         };
     }
 
+    @After
+    public void tearDown() throws Exception {
+        if (store != null)
+            store.close();
+        if (tempDir != null) {
+            for (File file : tempDir.listFiles())
+                file.delete();
+            tempDir.delete();
+        }
+    }
+
+    private FullPrunedBlockStore createStore(NetworkParameters params, int fullStoreDepth) throws Exception {
+        switch (storeType) {
+            case MEMORY:
+                return new MemoryFullPrunedBlockStore(params, fullStoreDepth);
+            case CACHING:
+                // Write back every other block, so some changes are undone from the cache and some from the store.
+                return new CachingFullPrunedBlockStore(new MemoryFullPrunedBlockStore(params, fullStoreDepth),
+                        1024 * 1024, 2);
+            case PACKED_MEMORY:
+                return new PackedMemoryFullPrunedBlockStore(params, fullStoreDepth);
+            default:
+                tempDir = File.createTempFile("fullprunedblockchaintest", null);
+                tempDir.delete();
+                tempDir.mkdir();
+                File file = new File(tempDir, "store");
+                if (storeType == StoreType.H2)
+                    return new H2FullPrunedBlockStore(params, file.getAbsolutePath(), fullStoreDepth);
+                return new LogStructuredFullPrunedBlockStore(params, file, fullStoreDepth);
+        }
+    }
+
 //    @Test
 //    public void testGeneratedChain() throws Exception {
 //        // Tests various test cases from FullBlockTestGenerator
 //        FullBlockTestGenerator generator = new FullBlockTestGenerator(params);
 //        RuleList blockList = generator.getBlocksToTest(false, false, null);
 //
-//        store = new MemoryFullPrunedBlockStore(params, blockList.maximumReorgBlockCount);
+//        store = createStore(params, blockList.maximumReorgBlockCount);
 //        chain = new FullPrunedBlockChain(params, store);
 //
 //        for (Rule rule : blockList.list) {
@@ -107,6 +167,8 @@ public class FullPrunedBlockChainTest {
     
     @Test
     public void testFinalizedBlocks() throws Exception {
+        // Only the memory store hands out the objects it holds, rather than copies.
+        assumeTrue(storeType == StoreType.MEMORY);
         final int UNDOABLE_BLOCKS_STORED = 10;
         store = new MemoryFullPrunedBlockStore(params, UNDOABLE_BLOCKS_STORED);
         chain = new FullPrunedBlockChain(params, store);
@@ -178,8 +240,73 @@ public class FullPrunedBlockChainTest {
         }
     }
     
+    // Builds a block on prev that spends the given output to a new key.
+    private Block spendInNextBlock(Block prev, Transaction from, ECKey key) throws Exception {
+        Transaction spend = new Transaction(params);
+        spend.addOutput(Utils.toNanoCoins(10, 0), new ECKey());
+        addInputToTransaction(spend, new TransactionOutPoint(params, 0, from.getHash()),
+                from.getOutput(0).getScriptBytes(), key);
+        Block block = prev.createNextBlock(null);
+        block.addTransaction(spend);
+        block.solve();
+        return block;
+    }
+
+    @Test
+    public void testReorganize() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        assertTrue(chain.add(rollingBlock));
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            assertTrue(chain.add(rollingBlock));
+        }
+        Block forkPoint = rollingBlock;
+
+        // The first chain spends the coinbase one way.
+        Block a1 = spendInNextBlock(forkPoint, coinbase, outKey);
+        Transaction spendA = a1.getTransactions().get(1);
+        Block a2 = a1.createNextBlock(null);
+        assertTrue(chain.add(a1));
+        assertTrue(chain.add(a2));
+        assertNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(spendA.getHash(), 0));
+
+        // A longer chain spends it another way, so the first chain's changes are undone.
+        Block b1 = spendInNextBlock(forkPoint, coinbase, outKey);
+        Transaction spendB = b1.getTransactions().get(1);
+        Block b2 = b1.createNextBlock(null);
+        Block b3 = b2.createNextBlock(null);
+        assertTrue(chain.add(b1));
+        assertTrue(chain.add(b2));
+        assertEquals(a2.getHash(), chain.getChainHead().getHeader().getHash());
+        assertTrue(chain.add(b3));
+        assertEquals(b3.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(b3.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNull(store.getTransactionOutput(spendA.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(spendB.getHash(), 0));
+
+        // And back again, reconnecting the first chain's blocks from what was stored of them.
+        Block a3 = a2.createNextBlock(null);
+        Block a4 = a3.createNextBlock(null);
+        assertTrue(chain.add(a3));
+        assertTrue(chain.add(a4));
+        assertEquals(a4.getHash(), chain.getChainHead().getHeader().getHash());
+        assertEquals(a4.getHash(), store.getVerifiedChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNotNull(store.getTransactionOutput(spendA.getHash(), 0));
+        assertNull(store.getTransactionOutput(spendB.getHash(), 0));
+    }
+
     @Test
-    public void testFirst100KBlocks() throws BlockStoreException, VerificationException, PrunedException {
+    public void testFirst100KBlocks() throws Exception {
+        // Too slow to repeat for every store.
+        assumeTrue(storeType == StoreType.MEMORY);
         NetworkParameters params = MainNetParams.get();
         File blockFile = new File(getClass().getResource("first-100k-blocks.dat").getFile());
         BlockFileLoader loader = new BlockFileLoader(params, Arrays.asList(new File[] {blockFile}));
@@ -189,4 +316,152 @@ public class FullPrunedBlockChainTest {
         for (Block block : loader)
             chain.add(block);
     }
+
+    @Test
+    public void testAddAllRechecksPrefetchedOutputs() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        blocks.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            blocks.add(rollingBlock);
+        }
+        // Split the coinbase in two, then spend each half in its own block. The outputs the second and third blocks
+        // spend are looked up whilst the block before them, which creates or spends them, is still being connected.
+        Transaction split = new Transaction(params);
+        split.addOutput(Utils.toNanoCoins(10, 0), outKey);
+        split.addOutput(Utils.toNanoCoins(10, 0), outKey);
+        addInputToTransaction(split, new TransactionOutPoint(params, 0, coinbase.getHash()),
+                coinbase.getOutput(0).getScriptBytes(), outKey);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(split);
+        rollingBlock.solve();
+        blocks.add(rollingBlock);
+        for (int i = 0; i < 2; i++) {
+            Transaction spend = new Transaction(params);
+            spend.addOutput(Utils.toNanoCoins(10, 0), new ECKey());
+            addInputToTransaction(spend, new TransactionOutPoint(params, i, split.getHash()),
+                    split.getOutput(i).getScriptBytes(), outKey);
+            rollingBlock = rollingBlock.createNextBlock(null);
+            rollingBlock.addTransaction(spend);
+            rollingBlock.solve();
+            blocks.add(rollingBlock);
+        }
+        Block lastGood = rollingBlock;
+        // Finally spend the second half again.
+        Transaction doubleSpend = new Transaction(params);
+        doubleSpend.addOutput(Utils.toNanoCoins(10, 0), new ECKey());
+        addInputToTransaction(doubleSpend, new TransactionOutPoint(params, 1, split.getHash()),
+                split.getOutput(1).getScriptBytes(), outKey);
+        rollingBlock = rollingBlock.createNextBlock(null);
+        rollingBlock.addTransaction(doubleSpend);
+        rollingBlock.solve();
+        blocks.add(rollingBlock);
+
+        try {
+            chain.addAll(blocks.iterator());
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        assertEquals(lastGood.getHash(), chain.getChainHead().getHeader().getHash());
+        assertNull(store.getTransactionOutput(split.getHash(), 0));
+        assertNull(store.getTransactionOutput(split.getHash(), 1));
+    }
+
+    @Test
+    public void testImportBlocksRollsBackFailedBatch() throws Exception {
+        store = createStore(params, 10);
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        blocks.add(rollingBlock);
+        Transaction coinbase = rollingBlock.getTransactions().get(0);
+        for (int i = 1; i < params.getSpendableCoinbaseDepth(); i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            blocks.add(rollingBlock);
+        }
+        Block lastCoinbaseBlock = rollingBlock;
+        // Spend the first coinbase, then spend it again in the next block.
+        for (int i = 0; i < 2; i++) {
+            Transaction spend = new Transaction(params);
+            spend.addOutput(Utils.toNanoCoins(10, i), new ECKey());
+            addInputToTransaction(spend, new TransactionOutPoint(params, 0, coinbase.getHash()),
+                    coinbase.getOutput(0).getScriptBytes(), outKey);
+            rollingBlock = rollingBlock.createNextBlock(null);
+            rollingBlock.addTransaction(spend);
+            rollingBlock.solve();
+            blocks.add(rollingBlock);
+        }
+        Transaction firstSpend = blocks.get(blocks.size() - 2).getTransactions().get(1);
+
+        // The last batch holds the last coinbase block, the first spend and the double spend.
+        int blocksPerBatch = blocks.size() - 3;
+        try {
+            chain.importBlocks(blocks.iterator(), blocksPerBatch);
+            fail();
+        } catch (VerificationException e) {
+            // Expected.
+        }
+        StoredBlock head = chain.getChainHead();
+        assertEquals(blocksPerBatch, head.getHeight());
+        assertEquals(head, store.getVerifiedChainHead());
+        assertNotNull(store.getTransactionOutput(coinbase.getHash(), 0));
+        assertNull(store.getTransactionOutput(firstSpend.getHash(), 0));
+        Transaction lastCoinbase = lastCoinbaseBlock.getTransactions().get(0);
+        assertNull(store.getTransactionOutput(lastCoinbase.getHash(), 0));
+    }
+
+    @Test
+    public void testImportBlocksRollsBackStoreFailure() throws Exception {
+        // Fails a memory store on purpose, the rollback itself is the same for every store.
+        assumeTrue(storeType == StoreType.MEMORY);
+        final Sha256Hash[] failOn = new Sha256Hash[1];
+        store = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public synchronized void addUnspentTransactionOutput(StoredTransactionOutput out) throws BlockStoreException {
+                if (out.getHash().equals(failOn[0]))
+                    throw new IllegalStateException("Disk full");
+                super.addUnspentTransactionOutput(out);
+            }
+        };
+        chain = new FullPrunedBlockChain(params, store);
+        ECKey outKey = new ECKey();
+        List<Block> blocks = new ArrayList<Block>();
+
+        Block rollingBlock = params.getGenesisBlock().createNextBlockWithCoinbase(outKey.getPubKey());
+        blocks.add(rollingBlock);
+        for (int i = 1; i < 5; i++) {
+            rollingBlock = rollingBlock.createNextBlockWithCoinbase(outKey.getPubKey());
+            blocks.add(rollingBlock);
+        }
+        Block lastCoinbaseBlock = blocks.get(blocks.size() - 2);
+        // The store fails whilst the last block of the second batch is being connected.
+        failOn[0] = rollingBlock.getTransactions().get(0).getHash();
+
+        int blocksPerBatch = 3;
+        try {
+            chain.importBlocks(blocks.iterator(), blocksPerBatch);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        StoredBlock head = chain.getChainHead();
+        assertEquals(blocksPerBatch, head.getHeight());
+        assertEquals(head, store.getVerifiedChainHead());
+        Transaction lastCoinbase = lastCoinbaseBlock.getTransactions().get(0);
+        assertNull(store.getTransactionOutput(lastCoinbase.getHash(), 0));
+
+        // The import can carry on from there once the store works again.
+        failOn[0] = null;
+        assertEquals(2, chain.importBlocks(blocks.subList(blocksPerBatch, blocks.size()).iterator(), blocksPerBatch));
+        assertEquals(blocks.size(), chain.getBestChainHeight());
+    }
 }
@@ -0,0 +1,155 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.utils.TestUtils;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class MessageFrameDecoderTest {
+    private NetworkParameters params;
+    private BitcoinSerializer serializer;
+    private MessageFrameDecoder decoder;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        serializer = new BitcoinSerializer(params);
+        decoder = new MessageFrameDecoder(params, serializer);
+    }
+
+    private List<Message> decodeInChunks(byte[] bytes, int chunkSize) throws Exception {
+        return decodeInChunks(bytes, chunkSize, false);
+    }
+
+    private List<Message> decodeInChunks(byte[] bytes, int chunkSize, boolean direct) throws Exception {
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            int length = Math.min(chunkSize, bytes.length - i);
+            ChannelBuffer chunk;
+            if (direct) {
+                chunk = ChannelBuffers.directBuffer(length);
+                chunk.writeBytes(bytes, i, length);
+            } else {
+                chunk = ChannelBuffers.wrappedBuffer(bytes, i, length);
+            }
+            while (chunk.readable()) {
+                Message message = decoder.decode(chunk);
+                if (message != null)
+                    messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    @Test
+    public void splitMessages() throws Exception {
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        bos.write(new byte[] {1, 2, 3});  // Garbage before the first message is skipped.
+        serializer.serialize(block, bos);
+        serializer.serialize(new VersionAck(), bos);
+        serializer.serialize(new Ping(42), bos);
+        byte[] bytes = bos.toByteArray();
+
+        for (int chunkSize : new int[] {1, 7, 24, 100, bytes.length}) {
+            List<Message> messages = decodeInChunks(bytes, chunkSize);
+            assertEquals(3, messages.size());
+            assertEquals(block, messages.get(0));
+            assertTrue(messages.get(1) instanceof VersionAck);
+            assertEquals(42, ((Ping) messages.get(2)).getNonce());
+        }
+    }
+
+    @Test
+    public void badChecksum() throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(1), bos);
+        byte[] bad = bos.toByteArray();
+        bad[bad.length - 1] ^= 1;
+        try {
+            decodeInChunks(bad, 5);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        // The next message is read as normal.
+        bos = new ByteArrayOutputStream();
+        serializer.serialize(new Ping(2), bos);
+        List<Message> messages = decodeInChunks(bos.toByteArray(), 5);
+        assertEquals(1, messages.size());
+        assertEquals(2, ((Ping) messages.get(0)).getNonce());
+    }
+
+    @Test
+    public void parsedInPlace() throws Exception {
+        Address address = new ECKey().toAddress(params);
+        Transaction tx1 = TestUtils.createFakeTx(params, Utils.toNanoCoins(1, 0), address);
+        Transaction tx2 = TestUtils.createFakeTx(params, Utils.toNanoCoins(2, 0), address);
+        InventoryMessage inv = new InventoryMessage(params);
+        inv.addTransaction(tx1);
+        inv.addTransaction(tx2);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(tx1, bos);
+        serializer.serialize(inv, bos);
+        serializer.serialize(tx2, bos);
+        byte[] bytes = bos.toByteArray();
+
+        // Whole messages in one array backed buffer are parsed where they lie, the others are copied and hashed as
+        // they arrive. Either way the result is the same.
+        for (boolean direct : new boolean[] {false, true}) {
+            for (int chunkSize : new int[] {13, bytes.length}) {
+                List<Message> messages = decodeInChunks(bytes, chunkSize, direct);
+                assertEquals(3, messages.size());
+                assertArrayEquals(tx1.bitcoinSerialize(), messages.get(0).bitcoinSerialize());
+                assertEquals(tx1.getHash(), ((Transaction) messages.get(0)).getHash());
+                assertEquals(inv.getItems(), ((InventoryMessage) messages.get(1)).getItems());
+                assertArrayEquals(tx2.bitcoinSerialize(), messages.get(2).bitcoinSerialize());
+                assertEquals(tx2.getHash(), ((Transaction) messages.get(2)).getHash());
+            }
+        }
+    }
+
+    @Test
+    public void inPlaceOverrun() throws Exception {
+        // An inv that claims two items but only holds one, followed by another message. Parsing it in place must not
+        // read the next message as the second item.
+        byte[] payload = new byte[1 + InventoryItem.MESSAGE_LENGTH];
+        payload[0] = 2;
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize("inv", payload, bos);
+        serializer.serialize(new Ping(3), bos);
+        ChannelBuffer buffer = ChannelBuffers.wrappedBuffer(bos.toByteArray());
+        try {
+            decoder.decode(buffer);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+        assertEquals(3, ((Ping) decoder.decode(buffer)).getNonce());
+        assertFalse(buffer.readable());
+    }
+}
@@ -327,4 +327,76 @@ public class PeerGroupTest extends TestWithPeerGroup {
         Peer d = PeerGroup.peerFromChannel(connectPeer(5, versionMessage4));
         assertEquals(d, peerGroup.getDownloadPeer());
     }
+
+    @Test
+    public void headersFirstDownload() throws Exception {
+        // The headers come from one peer, then the blocks are fetched from both and added to the chain in order.
+        peerGroup.startAndWait();
+        peerGroup.setHeadersFirstDownload(true);
+        VersionMessage versionMessage = new VersionMessage(params, 4);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;  // No Bloom filtering, so whole blocks are fetched.
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        FakeChannel p2 = connectPeer(2, versionMessage);
+
+        Block b1 = TestUtils.makeSolvedTestBlock(params.getGenesisBlock());
+        Block b2 = TestUtils.makeSolvedTestBlock(b1);
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+        Block b4 = TestUtils.makeSolvedTestBlock(b3);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener());
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        assertNull(outbound(p2));
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader(),
+                b4.cloneAsHeader()));
+        // The requests are shared out between the peers.
+        GetDataMessage getdata1 = (GetDataMessage) outbound(p1);
+        GetDataMessage getdata2 = (GetDataMessage) outbound(p2);
+        assertEquals(2, getdata1.getItems().size());
+        assertEquals(b1.getHash(), getdata1.getItems().get(0).hash);
+        assertEquals(b3.getHash(), getdata1.getItems().get(1).hash);
+        assertEquals(2, getdata2.getItems().size());
+        assertEquals(b2.getHash(), getdata2.getItems().get(0).hash);
+        assertEquals(b4.getHash(), getdata2.getItems().get(1).hash);
+
+        // Blocks that arrive early wait for the ones before them.
+        inbound(p2, b2);
+        inbound(p2, b4);
+        inbound(p1, b3);
+        assertEquals(0, blockChain.getBestChainHeight());
+        inbound(p1, b1);
+        assertEquals(4, blockChain.getBestChainHeight());
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+
+        // Once finished, a single download peer follows the chain as usual.
+        peerGroup.checkBlockChainDownload();
+        Peer downloadPeer = peerGroup.getDownloadPeer();
+        assertNotNull(downloadPeer);
+        assertTrue(outbound(downloadPeer == peerOf(p1) ? p1 : p2) instanceof GetBlocksMessage);
+    }
+
+    @Test
+    public void headersFirstDownloadRejectsEasedHeaders() throws Exception {
+        // A header that makes the difficulty easier than a retarget can isn't fetched, and another peer is asked.
+        peerGroup.startAndWait();
+        peerGroup.setHeadersFirstDownload(true);
+        VersionMessage versionMessage = new VersionMessage(params, 4);
+        versionMessage.clientVersion = Pong.MIN_PROTOCOL_VERSION;
+        FakeChannel p1 = connectPeer(1, versionMessage);
+        FakeChannel p2 = connectPeer(2, versionMessage);
+
+        Block b1 = TestUtils.makeSolvedTestBlock(params.getGenesisBlock());
+        Block b2 = b1.createNextBlock(new ECKey().toAddress(params));
+        // About twice as easy as the block before, where the unit test params allow half again at most.
+        b2.setDifficultyTarget(0x2100ffffL);
+        b2.solve();
+        Block b3 = TestUtils.makeSolvedTestBlock(b2);
+
+        peerGroup.startBlockChainDownload(new AbstractPeerEventListener());
+        assertTrue(outbound(p1) instanceof GetHeadersMessage);
+        inbound(p1, new HeadersMessage(params, b1.cloneAsHeader(), b2.cloneAsHeader(), b3.cloneAsHeader()));
+        assertNull(outbound(p1));
+        assertTrue(outbound(p2) instanceof GetHeadersMessage);
+        assertNull(outbound(p2));
+        assertEquals(0, blockChain.getBestChainHeight());
+    }
 }
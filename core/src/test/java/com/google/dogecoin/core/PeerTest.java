@@ -190,6 +190,83 @@ public class PeerTest extends TestWithNetworkConnections {
         control.verify();
     }
 
+    @Test
+    public void blockDownloadWindow() throws Exception {
+        // No more blocks are requested at once than the window allows. The rest are requested as the earlier arrive.
+        peer.setMaxBlocksInFlight(2);
+        control.replay();
+        connect();
+
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        Block b2 = makeSolvedTestBlock(b1);
+        Block b3 = makeSolvedTestBlock(b2);
+        Block b4 = makeSolvedTestBlock(b3);
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        inv.addBlock(b2);
+        inv.addBlock(b3);
+        inv.addBlock(b4);
+        inbound(peer, inv);
+        GetDataMessage getdata = (GetDataMessage)outbound();
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(b2.getHash(), getdata.getItems().get(0).hash);
+        assertEquals(b3.getHash(), getdata.getItems().get(1).hash);
+        // Announcing them again doesn't request them again.
+        inbound(peer, inv);
+        inbound(peer, b2);
+        getdata = (GetDataMessage)outbound();
+        assertEquals(1, getdata.getItems().size());
+        assertEquals(b4.getHash(), getdata.getItems().get(0).hash);
+        inbound(peer, b3);
+        inbound(peer, b4);
+        assertFalse(event.hasCaptured());
+        assertEquals(b4.getHash(), blockChain.getChainHead().getHeader().getHash());
+        assertEquals(3, peer.getBlocksDownloaded());
+        closePeer(peer);
+        control.verify();
+    }
+
+    @Test
+    public void stalledBlockDownloads() throws Exception {
+        peer.setMaxBlocksInFlight(4);
+        control.replay();
+        connect();
+        Utils.rollMockClock(0);
+
+        Block b1 = createFakeBlock(blockStore).block;
+        blockChain.add(b1);
+        List<Block> blocks = new ArrayList<Block>();
+        InventoryMessage inv = new InventoryMessage(unitTestParams);
+        Block prev = b1;
+        for (int i = 0; i < 6; i++) {
+            prev = makeSolvedTestBlock(prev);
+            blocks.add(prev);
+            inv.addBlock(prev);
+        }
+        inbound(peer, inv);
+        GetDataMessage getdata = (GetDataMessage)outbound();
+        assertEquals(4, getdata.getItems().size());
+        // Answering one block doesn't send a getdata, that waits until half the window is free.
+        inbound(peer, blocks.get(0));
+        assertNull(outbound());
+
+        long timeout = HeadersFirstDownload.DEFAULT_STALL_TIMEOUT_MSEC;
+        assertFalse(peer.checkForStalledBlockDownloads(timeout));
+        Utils.rollMockClock((int) (timeout / 1000) + 1);
+        assertTrue(peer.checkForStalledBlockDownloads(timeout));
+        // The window is halved once, not once per stalled block.
+        assertEquals(2, peer.getRequestWindow().getSize());
+        assertEquals(0, peer.getRequestWindow().getOutstanding());
+        // With nobody else to ask, the stalled blocks are asked for again first.
+        peer.requestQueuedBlocks();
+        getdata = (GetDataMessage)outbound();
+        assertEquals(2, getdata.getItems().size());
+        assertEquals(blocks.get(1).getHash(), getdata.getItems().get(0).hash);
+        assertEquals(blocks.get(2).getHash(), getdata.getItems().get(1).hash);
+        closePeer(peer);
+        control.verify();
+    }
+
     // Check that an inventory tickle is processed correctly when downloading missing blocks is active.
     @Test
     public void invTickle() throws Exception {
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedList;
+
+import static org.junit.Assert.*;
+
+public class RequestWindowTest {
+    private RequestWindow window;
+    // When each outstanding request was made and when the peer will answer it.
+    private LinkedList<long[]> requests;
+    private long lastAnswerMsec;
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.setMockClock(1000000);
+        window = new RequestWindow();
+        requests = new LinkedList<long[]>();
+        lastAnswerMsec = 0;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.mockTime = null;
+    }
+
+    // A peer that sends one block a second, each arriving the given number of seconds after it was requested if the
+    // peer isn't still busy sending earlier ones. Runs for the given number of seconds, keeping the window full.
+    private void simulate(int roundTripSecs, int seconds) {
+        for (int i = 0; i <= seconds; i++) {
+            long now = Utils.now().getTime();
+            while (!requests.isEmpty() && requests.peek()[1] <= now)
+                window.onAnswer(requests.remove()[0], 1000);
+            while (window.available() > 0) {
+                window.onRequest();
+                lastAnswerMsec = Math.max(now + roundTripSecs * 1000, lastAnswerMsec + 1000);
+                requests.add(new long[] {now, lastAnswerMsec});
+            }
+            Utils.rollMockClock(1);
+        }
+    }
+
+    @Test
+    public void shrinksToRoundTrip() throws Exception {
+        // Requests beyond what covers the round trip only queue up at the peer.
+        simulate(1, 60);
+        assertEquals(3, window.getSize());
+        assertEquals(1.0, window.getBlocksPerSecond(), 0.01);
+        assertEquals(1000.0, window.getBytesPerSecond(), 0.1);
+        // Each waits for the two before it to be sent.
+        assertEquals(3000.0, window.getAverageLatencyMsec(), 100.0);
+    }
+
+    @Test
+    public void growsToRoundTrip() throws Exception {
+        window.setMaxSize(2);
+        window.setMaxSize(RequestWindow.DEFAULT_MAX_SIZE);
+        assertEquals(2, window.getSize());
+        // A peer far away needs many requests outstanding to be kept busy.
+        simulate(5, 60);
+        assertEquals(11, window.getSize());
+        assertEquals(1.0, window.getBlocksPerSecond(), 0.01);
+        // But no more than the maximum.
+        window.setMaxSize(8);
+        simulate(5, 60);
+        assertEquals(8, window.getSize());
+    }
+
+    @Test
+    public void timeouts() throws Exception {
+        window.onRequest();
+        window.onRequest();
+        assertEquals(RequestWindow.DEFAULT_INITIAL_SIZE - 2, window.available());
+        window.onTimeout();
+        assertEquals(RequestWindow.DEFAULT_INITIAL_SIZE / 2, window.getSize());
+        assertEquals(1, window.getOutstanding());
+        window.onCancel();
+        assertEquals(0, window.getOutstanding());
+        assertEquals(0, window.getBlocksReceived());
+    }
+}
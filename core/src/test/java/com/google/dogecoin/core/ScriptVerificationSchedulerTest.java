@@ -0,0 +1,149 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.crypto.TransactionSignature;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.Script;
+import com.google.dogecoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScriptVerificationSchedulerTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private ScriptVerificationScheduler scheduler;
+    private ECKey key;
+    private Transaction funding;
+
+    @Before
+    public void setUp() throws Exception {
+        scheduler = new ScriptVerificationScheduler(3);
+        key = new ECKey();
+        funding = new Transaction(params);
+        for (int i = 0; i < 10; i++)
+            funding.addOutput(Utils.COIN, key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scheduler.shutdown();
+    }
+
+    // Spends the given outputs of the funding transaction, signing all inputs but the bad one, if any.
+    private Transaction spend(int from, int to, int bad, List<Script> prevOutScripts) throws ScriptException {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, key);
+        for (int i = from; i < to; i++) {
+            tx.addInput(funding.getOutput(i));
+            prevOutScripts.add(funding.getOutput(i).getScriptPubKey());
+        }
+        for (int i = 0; i < to - from; i++) {
+            Script scriptPubKey = funding.getOutput(from + i).getScriptPubKey();
+            TransactionSignature signature =
+                    tx.calculateSignature(i, key, scriptPubKey, Transaction.SigHash.ALL, false);
+            if (from + i == bad)
+                signature = tx.calculateSignature(i, new ECKey(), scriptPubKey, Transaction.SigHash.ALL, false);
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(signature));
+        }
+        return tx;
+    }
+
+    @Test
+    public void validInputs() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        List<Script> prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(0, 6, -1, prevOutScripts), prevOutScripts, true);
+        prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(6, 10, -1, prevOutScripts), prevOutScripts, true);
+        assertEquals(10, batch.getNumChecks());
+        batch.verify();
+    }
+
+    @Test
+    public void validInputsOnCallingThread() throws Exception {
+        ScriptVerificationScheduler inline = new ScriptVerificationScheduler(0);
+        ScriptVerificationScheduler.Batch batch = inline.newBatch();
+        List<Script> prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(0, 10, -1, prevOutScripts), prevOutScripts, true);
+        batch.verify();
+        inline.shutdown();
+    }
+
+    @Test
+    public void batchOutlivesShutdown() throws Exception {
+        // A batch started before its scheduler was replaced and shut down still checks everything.
+        ScriptVerificationScheduler replaced = new ScriptVerificationScheduler(2);
+        ScriptVerificationScheduler.Batch batch = replaced.newBatch();
+        replaced.shutdown();
+        List<Script> prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(0, 10, -1, prevOutScripts), prevOutScripts, true);
+        assertEquals(10, batch.getNumChecks());
+        batch.verify();
+        // Failures are still found.
+        batch = replaced.newBatch();
+        prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(0, 10, 3, prevOutScripts), prevOutScripts, true);
+        try {
+            batch.verify();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void badInputFails() throws Exception {
+        ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+        List<Script> prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(0, 10, 7, prevOutScripts), prevOutScripts, true);
+        try {
+            batch.verify();
+            fail();
+        } catch (ScriptException e) {
+            // Expected.
+        }
+        // The scheduler can still be used for the next block.
+        batch = scheduler.newBatch();
+        prevOutScripts = new ArrayList<Script>();
+        batch.add(spend(0, 5, -1, prevOutScripts), prevOutScripts, true);
+        batch.verify();
+    }
+
+    @Test
+    public void inputsDontShareTransaction() throws Exception {
+        // Checking an input rewrites the scripts of the transaction while its hash is worked out, which mustn't be
+        // seen by the other inputs being checked at the same time or by whoever else is holding the transaction.
+        for (int i = 0; i < 20; i++) {
+            ScriptVerificationScheduler.Batch batch = scheduler.newBatch();
+            List<Script> prevOutScripts = new ArrayList<Script>();
+            Transaction tx = spend(0, 10, -1, prevOutScripts);
+            byte[] bytes = tx.bitcoinSerialize();
+            batch.add(tx, prevOutScripts, true);
+            for (int j = 0; j < 10; j++)
+                assertArrayEquals(bytes, tx.bitcoinSerialize());
+            batch.verify();
+            assertArrayEquals(bytes, tx.bitcoinSerialize());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.params.MainNetParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScryptHashPipelineTest {
+    private static final NetworkParameters params = MainNetParams.get();
+
+    private ScryptHashPipeline pipeline;
+
+    @Before
+    public void setUp() throws Exception {
+        pipeline = new ScryptHashPipeline(3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pipeline.shutdown();
+    }
+
+    private static List<Block> makeHeaders(int count) {
+        Block genesis = params.getGenesisBlock();
+        List<Transaction> noTransactions = Collections.emptyList();
+        List<Block> headers = new ArrayList<Block>();
+        for (int i = 0; i < count; i++)
+            headers.add(new Block(params, Block.BLOCK_VERSION_DEFAULT, genesis.getHash(), genesis.getMerkleRoot(),
+                    genesis.getTimeSeconds() + i, genesis.getDifficultyTarget(), i, noTransactions));
+        return headers;
+    }
+
+    @Test
+    public void precompute() throws Exception {
+        List<Block> headers = makeHeaders(50);
+        pipeline.precompute(headers);
+        for (Block header : headers) {
+            // A freshly parsed copy has to calculate the hash itself.
+            Block copy = new Block(params, header.cloneAsHeader().bitcoinSerialize());
+            assertEquals(copy.getProofOfWorkHash(), header.getProofOfWorkHash());
+        }
+    }
+
+    @Test
+    public void genesisProofOfWork() throws Exception {
+        List<Block> headers = new ArrayList<Block>();
+        headers.add(new Block(params, params.getGenesisBlock().bitcoinSerialize()));
+        pipeline.precompute(headers);
+        headers.get(0).verifyHeader();
+    }
+
+    @Test
+    public void readAheadKeepsOrder() throws Exception {
+        List<Block> headers = makeHeaders(30);
+        Iterator<Block> it = pipeline.readAhead(headers.iterator(), 4);
+        for (Block header : headers) {
+            assertTrue(it.hasNext());
+            assertSame(header, it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.crypto.TransactionSignature;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.Script;
+import com.google.dogecoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class SignatureCacheTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private SignatureCache originalCache;
+    private SignatureCache cache;
+    private ECKey key;
+    private TransactionOutput output;
+
+    @Before
+    public void setUp() throws Exception {
+        originalCache = SignatureCache.get();
+        cache = new SignatureCache(100);
+        SignatureCache.set(cache);
+        key = new ECKey();
+        Transaction funding = new Transaction(params);
+        output = funding.addOutput(Utils.COIN, key);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SignatureCache.set(originalCache);
+    }
+
+    private Transaction spend(ECKey signingKey) throws Exception {
+        Transaction tx = new Transaction(params);
+        tx.addOutput(Utils.COIN, key);
+        tx.addInput(output);
+        TransactionSignature signature =
+                tx.calculateSignature(0, signingKey, output.getScriptPubKey(), Transaction.SigHash.ALL, false);
+        tx.getInput(0).setScriptSig(ScriptBuilder.createInputScript(signature));
+        return tx;
+    }
+
+    private void check(Transaction tx) throws Exception {
+        Script scriptSig = tx.getInput(0).getScriptSig();
+        scriptSig.correctlySpends(tx, 0, output.getScriptPubKey(), true);
+    }
+
+    @Test
+    public void validSignatureRemembered() throws Exception {
+        Transaction tx = spend(key);
+        check(tx);
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+        // The same transaction arriving again, eg in a block, parsed into a new object.
+        check(new Transaction(params, tx.bitcoinSerialize()));
+        assertEquals(1, cache.getHits());
+        assertEquals(0.5, cache.getHitRate(), 0);
+        cache.resetCounters();
+        assertEquals(0, cache.getHitRate(), 0);
+    }
+
+    @Test
+    public void invalidSignatureNotRemembered() throws Exception {
+        Transaction tx = spend(new ECKey());
+        for (int i = 0; i < 2; i++) {
+            try {
+                check(tx);
+                fail();
+            } catch (ScriptException e) {
+                // Expected.
+            }
+        }
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        SignatureCache.set(new SignatureCache(0));
+        Transaction tx = spend(key);
+        check(tx);
+        check(tx);
+        assertEquals(0, SignatureCache.get().getHits());
+        assertEquals(2, SignatureCache.get().getMisses());
+    }
+
+    @Test
+    public void keysDontCollide() throws Exception {
+        // The same bytes split differently between the signature and the public key, with lengths that only differ
+        // by multiples of 256.
+        Sha256Hash sigHash = Sha256Hash.create(new byte[] {1});
+        byte[] data = new byte[513];
+        new Random(1).nextBytes(data);
+        byte[] sig1 = Arrays.copyOfRange(data, 0, 257), pubKey1 = Arrays.copyOfRange(data, 257, 513);
+        byte[] sig2 = Arrays.copyOfRange(data, 0, 1), pubKey2 = Arrays.copyOfRange(data, 1, 513);
+        assertFalse(SignatureCache.keyFor(sigHash, sig1, pubKey1).equals(SignatureCache.keyFor(sigHash, sig2, pubKey2)));
+        assertEquals(SignatureCache.keyFor(sigHash, sig1, pubKey1), SignatureCache.keyFor(sigHash, sig1, pubKey1));
+    }
+}
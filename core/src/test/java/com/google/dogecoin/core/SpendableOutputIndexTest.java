@@ -0,0 +1,137 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SpendableOutputIndexTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private DepthTracker tracker;
+    private SpendableOutputIndex index;
+    private LinkedList<TransactionOutput> candidates;
+    private Random random;
+
+    @Before
+    public void setUp() throws Exception {
+        tracker = new DepthTracker();
+        Block genesis = params.getGenesisBlock();
+        StoredBlock block = new StoredBlock(genesis, genesis.getWork(), 0);
+        byte[] pubKey = new ECKey().getPubKey();
+        for (int i = 0; i < 20; i++) {
+            block = block.build(block.getHeader().createNextBlockWithCoinbase(pubKey));
+            tracker.advance(block);
+        }
+        index = new SpendableOutputIndex(tracker);
+        candidates = new LinkedList<TransactionOutput>();
+        random = new Random(1);
+    }
+
+    // Makes a transaction paying the given value, at the given depth or pending if zero.
+    private TransactionOutput addOutput(int id, BigInteger value, int depth) {
+        Transaction tx = new Transaction(params);
+        TransactionOutput output = new TransactionOutput(params, tx, value, new byte[] {(byte) id, (byte) (id >> 8)});
+        tx.addOutput(output);
+        TransactionConfidence confidence = tx.getConfidence();
+        confidence.setDepthTracker(tracker);
+        if (depth > 0) {
+            confidence.setAppearedAtChainHeight(tracker.getHeight() - depth + 1);
+            confidence.setDepthInBlocks(depth);
+        } else {
+            confidence.setSource(TransactionConfidence.Source.SELF);
+        }
+        index.add(output);
+        candidates.add(output);
+        return output;
+    }
+
+    private void addRandomOutputs(int count) {
+        for (int i = 0; i < count; i++) {
+            // Few distinct values and depths, so that there are plenty of ties to break.
+            BigInteger value = Utils.CENT.multiply(BigInteger.valueOf(1 + random.nextInt(8)));
+            addOutput(candidates.size(), value, random.nextInt(6));
+        }
+    }
+
+    // The index must pick exactly the coins the list based selector does, for every target.
+    private void assertSelectsLikeList(Wallet.DefaultCoinSelector selector) {
+        BigInteger total = BigInteger.ZERO;
+        for (TransactionOutput output : candidates)
+            total = total.add(output.getValue());
+        for (BigInteger target = BigInteger.ZERO; target.compareTo(total) <= 0; target = target.add(Utils.CENT)) {
+            Wallet.CoinSelection fromList = selector.select(target, candidates);
+            Wallet.CoinSelection fromIndex = selector.select(target, index);
+            assertEquals(fromList.valueGathered, fromIndex.valueGathered);
+            assertEquals(new HashSet<TransactionOutput>(fromList.gathered),
+                    new HashSet<TransactionOutput>(fromIndex.gathered));
+        }
+        assertEquals(selector.select(NetworkParameters.MAX_MONEY, candidates).valueGathered,
+                selector.select(NetworkParameters.MAX_MONEY, index).valueGathered);
+    }
+
+    @Test
+    public void selectsInCoinDepthOrder() throws Exception {
+        addRandomOutputs(200);
+        assertEquals(200, index.size());
+        assertSelectsLikeList(Wallet.AllowUnconfirmedCoinSelector.get());
+        // Unbroadcast pending outputs are skipped by the default selector.
+        assertSelectsLikeList(new Wallet.DefaultCoinSelector());
+    }
+
+    @Test
+    public void orderFollowsTracker() throws Exception {
+        addRandomOutputs(100);
+        Block top = params.getGenesisBlock().createNextBlockWithCoinbase(new ECKey().getPubKey());
+        for (int i = 0; i < 10; i++) {
+            top = top.createNextBlockWithCoinbase(new ECKey().getPubKey());
+            tracker.advance(new StoredBlock(top, top.getWork(), i));
+        }
+        // Everything confirmed got ten blocks deeper, which changes the relative worth of value and depth.
+        assertSelectsLikeList(Wallet.AllowUnconfirmedCoinSelector.get());
+    }
+
+    @Test
+    public void removeAndTotals() throws Exception {
+        TransactionOutput a = addOutput(1, Utils.COIN, 3);
+        TransactionOutput b = addOutput(2, Utils.CENT, 10);
+        TransactionOutput c = addOutput(3, Utils.CENT, 0);
+        assertEquals(Utils.COIN.add(Utils.CENT).add(Utils.CENT), index.getTotalValue());
+        Iterator<TransactionOutput> deepest = index.deepestFirst();
+        assertEquals(b, deepest.next());
+        assertEquals(a, deepest.next());
+        assertEquals(c, deepest.next());
+        assertFalse(deepest.hasNext());
+        // 1 COIN * 3 beats 1 CENT * 10.
+        assertEquals(a, index.highestCoinDepthFirst().next());
+
+        index.remove(a.getParentTransaction().getHash());
+        index.remove(a.getParentTransaction().getHash());
+        assertEquals(2, index.size());
+        assertEquals(Utils.CENT.add(Utils.CENT), index.getTotalValue());
+        Iterator<TransactionOutput> byValue = index.iterator();
+        assertEquals(b, byValue.next());
+        assertEquals(c, byValue.next());
+        assertFalse(byValue.hasNext());
+    }
+}
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.core;
+
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.store.BlockStoreException;
+import com.google.dogecoin.store.MemoryBlockStore;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StoredBlockTest {
+    private NetworkParameters params;
+    private int lookups;
+    private MemoryBlockStore store;
+    private List<StoredBlock> chain;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = new MemoryBlockStore(params) {
+            @Override
+            public synchronized StoredBlock get(Sha256Hash hash) throws BlockStoreException {
+                lookups++;
+                return super.get(hash);
+            }
+        };
+        chain = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        chain.add(prev);
+        for (int i = 1; i <= 3000; i++) {
+            // Headers don't need to be solved to be linked together.
+            Block header = new Block(params);
+            header.setPrevBlockHash(prev.getHeader().getHash());
+            header.setDifficultyTarget(prev.getHeader().getDifficultyTarget());
+            header.setNonce(i);
+            prev = prev.build(header);
+            store.put(prev);
+            chain.add(prev);
+        }
+    }
+
+    @Test
+    public void skipHeights() {
+        for (int height = 2; height < 100000; height++) {
+            int skipHeight = StoredBlock.getSkipHeight(height);
+            assertTrue(skipHeight >= 0 && skipHeight < height);
+        }
+        assertEquals(0, StoredBlock.getSkipHeight(1));
+        assertEquals(0, StoredBlock.getSkipHeight(2));
+        assertEquals(1024, StoredBlock.getSkipHeight(1536));
+    }
+
+    @Test
+    public void ancestorsThroughSkipPointers() throws Exception {
+        StoredBlock head = chain.get(chain.size() - 1);
+        for (int height = 0; height < chain.size(); height += 7) {
+            lookups = 0;
+            assertEquals(chain.get(height), head.getAncestor(store, height));
+            // Walking back one block at a time would take thousands.
+            assertTrue("Took " + lookups + " lookups", lookups < 100);
+        }
+        assertEquals(head, head.getAncestor(store, head.getHeight()));
+    }
+
+    @Test
+    public void ancestorsWithoutSkipPointers() throws Exception {
+        // A copy of the block isn't the object the store was given, so it has no skip pointer.
+        StoredBlock block = chain.get(500);
+        StoredBlock copy = new StoredBlock(block.getHeader(), block.getChainWork(), block.getHeight());
+        assertEquals(chain.get(123), copy.getAncestor(store, 123));
+        assertEquals(chain.get(0), copy.getAncestor(store, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ancestorAboveBlock() throws Exception {
+        chain.get(10).getAncestor(store, 11);
+    }
+}
@@ -20,6 +20,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.math.BigInteger;
+import java.util.Arrays;
 
 import static com.google.dogecoin.core.Utils.*;
 import static junit.framework.Assert.assertEquals;
@@ -105,6 +106,26 @@ public class UtilsTest {
         assertEquals("8", bitcoinValueToPlainString(toNanoCoins("8.00000000")));
     }    
     
+    @Test
+    public void testDigests() throws Exception {
+        byte[] input = "hello".getBytes("UTF-8");
+        // sha256("hello") and sha256(sha256("hello")).
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+                bytesToHexString(singleDigest(input, 0, input.length)));
+        String expected = "9595c9df90075148eb06860365df33584b75bff782a510c6cd4883a419833d50";
+        assertEquals(expected, bytesToHexString(doubleDigest(input)));
+        assertEquals(expected, bytesToHexString(doubleDigestTwoBuffers(input, 0, 2, input, 2, 3)));
+        // The allocation free versions write into the given buffer at the given offset.
+        byte[] output = new byte[40];
+        doubleDigest(input, 0, input.length, output, 4);
+        assertEquals(expected, bytesToHexString(Arrays.copyOfRange(output, 4, 36)));
+        // Output may overlap the input.
+        byte[] buffer = new byte[32];
+        System.arraycopy(input, 0, buffer, 0, input.length);
+        doubleDigestTwoBuffers(buffer, 0, 2, buffer, 2, 3, buffer, 0);
+        assertEquals(expected, bytesToHexString(buffer));
+    }
+
     @Test
     public void testReverseBytes() {
         Assert.assertArrayEquals(new byte[] {1,2,3,4,5}, Utils.reverseBytes(new byte[] {5,4,3,2,1}));
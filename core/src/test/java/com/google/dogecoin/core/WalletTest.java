@@ -301,6 +301,27 @@ public class WalletTest extends TestWithWallet {
         assertEquals(2, wallet.getPoolSize(WalletTransaction.Pool.ALL));
     }
 
+    @Test
+    public void listOnlyCoinSelector() throws Exception {
+        // A selector that only overrides the list version of select is given the list, so its policy still applies.
+        sendMoneyToWallet(Utils.COIN, AbstractBlockChain.NewBlockType.BEST_CHAIN);
+        final int[] calls = new int[1];
+        Wallet.DefaultCoinSelector selectNothing = new Wallet.DefaultCoinSelector() {
+            @Override
+            public Wallet.CoinSelection select(BigInteger target, LinkedList<TransactionOutput> candidates) {
+                calls[0]++;
+                return new Wallet.CoinSelection(BigInteger.ZERO, new ArrayList<TransactionOutput>());
+            }
+        };
+        assertEquals(BigInteger.ZERO, wallet.getBalance(selectNothing));
+        SendRequest req = SendRequest.to(new ECKey().toAddress(params), CENT);
+        req.coinSelector = selectNothing;
+        assertFalse(wallet.completeTx(req));
+        assertTrue(calls[0] >= 2);
+        // Selectors that don't override it pick from the index.
+        assertEquals(Utils.COIN, wallet.getBalance(new Wallet.DefaultCoinSelector()));
+    }
+
     @Test
     public void sideChain() throws Exception {
         // The wallet receives a coin on the main chain, then on a side chain. Balance is equal to both added together
@@ -810,6 +831,84 @@ public class WalletTest extends TestWithWallet {
         assertEquals(3, transactions.size());
     }
 
+    @Test
+    public void keyLookups() throws Exception {
+        ECKey key = new ECKey();
+        assertFalse(wallet.hasKey(key));
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(wallet.addKey(key));
+        assertTrue(wallet.hasKey(key));
+        assertEquals(key, wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertEquals(key, wallet.findKeyFromPubKey(key.getPubKey()));
+        // A watching key with the same public key is a duplicate.
+        assertFalse(wallet.addKey(new ECKey((byte[]) null, key.getPubKey())));
+        assertEquals(2, wallet.getKeychainSize());
+
+        // Encrypting and decrypting replaces the key objects, the lookups must find the new ones.
+        wallet.encrypt(keyCrypter, aesKey);
+        assertTrue(wallet.findKeyFromPubHash(key.getPubKeyHash()).isEncrypted());
+        assertTrue(wallet.hasKey(key));
+        wallet.decrypt(aesKey);
+        assertFalse(wallet.findKeyFromPubKey(key.getPubKey()).isEncrypted());
+
+        assertTrue(wallet.removeKey(key));
+        assertFalse(wallet.hasKey(key));
+        assertNull(wallet.findKeyFromPubHash(key.getPubKeyHash()));
+        assertNull(wallet.findKeyFromPubKey(key.getPubKey()));
+        assertTrue(wallet.isPubKeyMine(myKey.getPubKey()));
+    }
+
+    @Test
+    public void cachedBalances() throws Exception {
+        // Pays to the raw key and builds the blocks by hand, so no addresses are involved.
+        BigInteger coin = Utils.toNanoCoins(1, 0);
+        Block genesis = params.getGenesisBlock();
+        StoredBlock head = new StoredBlock(genesis, genesis.getWork(), 0);
+        Transaction t1 = createFakeTx(params, coin, myKey);
+        wallet.receivePending(t1, null);
+        assertEquals(coin, wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+
+        // Confirm it in a block whose coinbase also pays us.
+        head = head.build(genesis.createNextBlockWithCoinbase(myKey.getPubKey()));
+        Transaction coinbase = head.getHeader().getTransactions().get(0);
+        BigInteger reward = coinbase.getOutput(0).getValue();
+        wallet.receiveFromBlock(coinbase, head, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        wallet.receiveFromBlock(t1, head, AbstractBlockChain.NewBlockType.BEST_CHAIN, 1);
+        wallet.notifyNewBestBlock(head);
+        assertEquals(coin, wallet.getBalance());
+        assertEquals(coin.add(reward), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        assertTrue(wallet.isBalanceCacheConsistent());
+        assertTrue(wallet.isSpendableIndexConsistent());
+
+        // Spend half of it back to ourselves. It's only available once the network has seen our spend.
+        BigInteger half = Utils.toNanoCoins(0, 50);
+        Transaction t2 = new Transaction(params);
+        t2.addOutput(new TransactionOutput(params, t2, half, myKey));
+        t2.addInput(t1.getOutput(0));
+        t2.getConfidence().setSource(TransactionConfidence.Source.SELF);
+        wallet.commitTx(t2);
+        assertEquals(BigInteger.ZERO, wallet.getBalance());
+        assertEquals(half.add(reward), wallet.getBalance(Wallet.BalanceType.ESTIMATED));
+        t2.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{1, 2, 3, 4})));
+        t2.getConfidence().markBroadcastBy(new PeerAddress(InetAddress.getByAddress(new byte[]{5, 6, 7, 8})));
+        assertEquals(half, wallet.getBalance());
+        assertTrue(wallet.isBalanceCacheConsistent());
+        assertTrue(wallet.isSpendableIndexConsistent());
+
+        // The coinbase becomes available when it matures.
+        for (int depth = 1; depth < params.getSpendableCoinbaseDepth(); depth++) {
+            assertEquals(half, wallet.getBalance());
+            head = head.build(head.getHeader().createNextBlockWithCoinbase(new ECKey().getPubKey()));
+            wallet.notifyNewBestBlock(head);
+        }
+        assertEquals(half.add(reward), wallet.getBalance());
+        assertEquals(wallet.getBalance(new Wallet.DefaultCoinSelector()), wallet.getBalance());
+        assertTrue(wallet.isBalanceCacheConsistent());
+        assertTrue(wallet.isSpendableIndexConsistent());
+    }
+
     @Test
     public void keyCreationTime() throws Exception {
         wallet = new Wallet(params);
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.script;
+
+import com.google.dogecoin.core.Address;
+import com.google.dogecoin.core.ECKey;
+import com.google.dogecoin.core.NetworkParameters;
+import com.google.dogecoin.params.MainNetParams;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ScriptCompressorTest {
+    private static final NetworkParameters params = MainNetParams.get();
+
+    private static void assertRoundTrip(int type, int compressedLength, byte[] script) {
+        byte[] compressed = ScriptCompressor.compress(script);
+        assertEquals(type, compressed[0]);
+        assertEquals(compressedLength, compressed.length);
+        assertArrayEquals(script, ScriptCompressor.decompress(compressed));
+    }
+
+    @Test
+    public void templates() throws Exception {
+        ECKey key = new ECKey();
+        byte[] payToAddress = ScriptBuilder.createOutputScript(key.toAddress(params)).getProgram();
+        assertRoundTrip(ScriptCompressor.TYPE_PAY_TO_ADDRESS, 21, payToAddress);
+        byte[] payToScriptHash = ScriptBuilder.createOutputScript(
+                Address.fromP2SHHash(params, new byte[20])).getProgram();
+        assertRoundTrip(ScriptCompressor.TYPE_PAY_TO_SCRIPT_HASH, 21, payToScriptHash);
+    }
+
+    @Test
+    public void otherScripts() throws Exception {
+        byte[] payToPubKey = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        assertRoundTrip(ScriptCompressor.TYPE_RAW, payToPubKey.length + 1, payToPubKey);
+        assertRoundTrip(ScriptCompressor.TYPE_RAW, 1, new byte[0]);
+        // Looks like pay to address, but the push is a non-standard encoding of the same 20 bytes.
+        byte[] payToAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        byte[] nonStandard = new byte[payToAddress.length + 1];
+        nonStandard[0] = payToAddress[0];
+        nonStandard[1] = payToAddress[1];
+        nonStandard[2] = (byte) ScriptOpCodes.OP_PUSHDATA1;
+        System.arraycopy(payToAddress, 2, nonStandard, 3, payToAddress.length - 2);
+        assertRoundTrip(ScriptCompressor.TYPE_RAW, nonStandard.length + 1, nonStandard);
+        byte[] truncated = Arrays.copyOf(payToAddress, payToAddress.length - 1);
+        assertRoundTrip(ScriptCompressor.TYPE_RAW, truncated.length + 1, truncated);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badType() throws Exception {
+        ScriptCompressor.decompress(new byte[] {7, 1, 2});
+    }
+}
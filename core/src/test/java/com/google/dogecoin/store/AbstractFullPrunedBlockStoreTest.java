@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.ScriptBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests every {@link FullPrunedBlockStore} must pass. The test of each store extends this and says how to create it.
+ */
+public abstract class AbstractFullPrunedBlockStoreTest<S extends FullPrunedBlockStore> {
+    protected NetworkParameters params;
+    protected S store;
+
+    /** Creates an empty store that keeps the undo data of the given number of blocks. */
+    protected abstract S createStore(NetworkParameters params, int fullStoreDepth) throws Exception;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        store = createStore(params, 10);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    protected StoredTransactionOutput makeOutput(int txNumber, int index, BigInteger value) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) txNumber;
+        hash[1] = (byte) (txNumber >> 8);
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, value, 5, true, script);
+    }
+
+    protected void assertStored(StoredTransactionOutput expected) throws Exception {
+        StoredTransactionOutput out = store.getTransactionOutput(expected.getHash(), expected.getIndex());
+        assertNotNull(out);
+        assertEquals(expected.getValue(), out.getValue());
+        assertEquals(expected.getHeight(), out.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), out.getScriptBytes());
+    }
+
+    @Test
+    public void outputs() throws Exception {
+        // MAX_MONEY doesn't fit in a signed 64 bit number.
+        StoredTransactionOutput big = makeOutput(1, 0, NetworkParameters.MAX_MONEY);
+        StoredTransactionOutput small = makeOutput(1, 1, BigInteger.ONE);
+        store.addUnspentTransactionOutput(big);
+        store.addUnspentTransactionOutput(small);
+        assertStored(big);
+        assertStored(small);
+        assertTrue(store.hasUnspentOutputs(big.getHash(), 2));
+        store.removeUnspentTransactionOutput(big);
+        assertNull(store.getTransactionOutput(big.getHash(), 0));
+        assertTrue(store.hasUnspentOutputs(big.getHash(), 2));
+        store.removeUnspentTransactionOutput(small);
+        assertFalse(store.hasUnspentOutputs(big.getHash(), 2));
+        try {
+            store.removeUnspentTransactionOutput(small);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void batchWrites() throws Exception {
+        StoredTransactionOutput a = makeOutput(1, 0, BigInteger.TEN);
+        StoredTransactionOutput b = makeOutput(2, 0, BigInteger.TEN);
+        StoredTransactionOutput c = makeOutput(3, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(a);
+
+        // Changes made in the batch are visible to it before they are written.
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.addUnspentTransactionOutput(c);
+        store.removeUnspentTransactionOutput(c);
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertFalse(store.hasUnspentOutputs(a.getHash(), 1));
+        assertStored(b);
+        assertTrue(store.hasUnspentOutputs(b.getHash(), 1));
+        assertNull(store.getTransactionOutput(c.getHash(), 0));
+        store.abortDatabaseBatchWrite();
+        assertStored(a);
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+
+        // An output spent and created again in the same batch is kept.
+        StoredTransactionOutput recreated = makeOutput(1, 0, BigInteger.ONE);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(recreated);
+        store.addUnspentTransactionOutput(b);
+        store.commitDatabaseBatchWrite();
+        assertStored(recreated);
+        assertStored(b);
+    }
+
+    @Test
+    public void chainHeads() throws Exception {
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock().getHash(), genesis.getHeader().getHash());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        StoredBlock next = genesis.build(genesis.getHeader().createNextBlock(null).cloneAsHeader());
+        store.put(next);
+        store.setChainHead(next);
+        assertEquals(next, store.getChainHead());
+        assertEquals(genesis, store.getVerifiedChainHead());
+        assertEquals(next.getChainWork(), store.get(next.getHeader().getHash()).getChainWork());
+    }
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CachingFullPrunedBlockStoreTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private MemoryFullPrunedBlockStore underlying;
+
+    @Before
+    public void setUp() throws Exception {
+        underlying = new MemoryFullPrunedBlockStore(params, 10);
+    }
+
+    private static StoredTransactionOutput output(int index) {
+        return new StoredTransactionOutput(Sha256Hash.create(new byte[] {(byte) index}), index, Utils.COIN, 1, false,
+                new byte[] {1, 2, 3});
+    }
+
+    private static StoredBlock nextBlock(StoredBlock prev) throws VerificationException {
+        return prev.build(prev.getHeader().createNextBlock(null).cloneAsHeader());
+    }
+
+    @Test
+    public void createdAndSpentOutputsNeverWrittenBack() throws Exception {
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying, 1024 * 1024, 100);
+        StoredTransactionOutput kept = output(1), spent = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.commitDatabaseBatchWrite();
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(spent);
+        StoredBlock head = nextBlock(store.getVerifiedChainHead());
+        store.setVerifiedChainHead(head);
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(1, store.getNumDirtyOutputs());
+        assertEquals(kept, store.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertEquals(head, store.getVerifiedChainHead());
+        assertEquals(head, store.getChainHead());
+        // Nothing has been written back yet.
+        assertNull(underlying.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertFalse(head.equals(underlying.getVerifiedChainHead()));
+
+        store.flush();
+        assertEquals(0, store.getNumDirtyOutputs());
+        assertEquals(kept, underlying.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(underlying.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        assertEquals(head, underlying.getVerifiedChainHead());
+    }
+
+    @Test
+    public void createdAndSpentInOneBatch() throws Exception {
+        // The underlying store refuses to remove outputs it doesn't have.
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying, 1024 * 1024, 100);
+        StoredTransactionOutput kept = output(1), spent = output(2);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(kept);
+        store.addUnspentTransactionOutput(spent);
+        store.removeUnspentTransactionOutput(spent);
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        store.commitDatabaseBatchWrite();
+
+        assertEquals(1, store.getNumDirtyOutputs());
+        assertNull(store.getTransactionOutput(spent.getHash(), spent.getIndex()));
+        store.flush();
+        assertEquals(kept, underlying.getTransactionOutput(kept.getHash(), kept.getIndex()));
+        assertNull(underlying.getTransactionOutput(spent.getHash(), spent.getIndex()));
+    }
+
+    @Test
+    public void writesBackAfterEnoughBlocks() throws Exception {
+        StoredTransactionOutput existing = output(1);
+        underlying.addUnspentTransactionOutput(existing);
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying, 1024 * 1024, 2);
+        StoredBlock head = store.getVerifiedChainHead();
+        for (int i = 0; i < 2; i++) {
+            assertNotNull(underlying.getTransactionOutput(existing.getHash(), existing.getIndex()));
+            store.beginDatabaseBatchWrite();
+            if (i == 0)
+                store.removeUnspentTransactionOutput(existing);
+            else
+                assertFalse(store.hasUnspentOutputs(existing.getHash(), 2));
+            head = nextBlock(head);
+            store.setVerifiedChainHead(head);
+            store.commitDatabaseBatchWrite();
+        }
+        assertNull(underlying.getTransactionOutput(existing.getHash(), existing.getIndex()));
+        assertEquals(head, underlying.getVerifiedChainHead());
+    }
+
+    @Test
+    public void uncommittedChangesInvisible() throws Exception {
+        final CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying);
+        final StoredTransactionOutput out = output(1);
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(out);
+        assertTrue(store.hasUnspentOutputs(out.getHash(), 2));
+        final AtomicReference<StoredTransactionOutput> seen = new AtomicReference<StoredTransactionOutput>(out);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen.set(store.getTransactionOutput(out.getHash(), out.getIndex()));
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        reader.start();
+        reader.join();
+        assertNull(seen.get());
+        store.abortDatabaseBatchWrite();
+        assertNull(store.getTransactionOutput(out.getHash(), out.getIndex()));
+        assertEquals(0, store.getNumDirtyOutputs());
+    }
+
+    @Test
+    public void verifiedHeadKeptWhenCommitFails() throws Exception {
+        final boolean[] fail = {false};
+        underlying = new MemoryFullPrunedBlockStore(params, 10) {
+            @Override
+            public synchronized void commitDatabaseBatchWrite() throws BlockStoreException {
+                if (fail[0]) {
+                    super.abortDatabaseBatchWrite();
+                    throw new BlockStoreException("Commit failed");
+                }
+                super.commitDatabaseBatchWrite();
+            }
+
+            @Override
+            public synchronized void setVerifiedChainHead(StoredBlock chainHead) throws BlockStoreException {
+                if (fail[0])
+                    throw new BlockStoreException("Write failed");
+                super.setVerifiedChainHead(chainHead);
+            }
+        };
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying, 1024 * 1024, 2);
+        StoredBlock genesis = store.getVerifiedChainHead();
+        StoredBlock b1 = nextBlock(genesis);
+        StoredBlock b2 = nextBlock(b1);
+
+        // The underlying commit fails without a write-back.
+        fail[0] = true;
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(b1);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertEquals(genesis, store.getVerifiedChainHead());
+
+        fail[0] = false;
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(b1);
+        store.commitDatabaseBatchWrite();
+        assertEquals(b1, store.getVerifiedChainHead());
+
+        // The second block triggers a write-back, which fails.
+        fail[0] = true;
+        store.beginDatabaseBatchWrite();
+        store.setVerifiedChainHead(b2);
+        try {
+            store.commitDatabaseBatchWrite();
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        assertEquals(b1, store.getVerifiedChainHead());
+
+        fail[0] = false;
+        store.flush();
+        assertEquals(b1, underlying.getVerifiedChainHead());
+    }
+
+    @Test
+    public void evictsOldestCleanOutputs() throws Exception {
+        for (int i = 0; i < 10; i++)
+            underlying.addUnspentTransactionOutput(output(i));
+        // Room for a few outputs only.
+        CachingFullPrunedBlockStore store = new CachingFullPrunedBlockStore(underlying, 1000, 100);
+        for (int i = 0; i < 10; i++)
+            assertEquals(output(i), store.getTransactionOutput(output(i).getHash(), i));
+        store.beginDatabaseBatchWrite();
+        store.commitDatabaseBatchWrite();
+        assertTrue(store.size() < 10);
+        assertTrue(store.size() > 0);
+        // Evicted outputs are read from the underlying store again.
+        for (int i = 0; i < 10; i++)
+            assertEquals(output(i), store.getTransactionOutput(output(i).getHash(), i));
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FullHeaderBlockStoreTest {
+    private NetworkParameters params;
+    private File file;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        file = File.createTempFile("fullheaderblockstore", null);
+        file.delete();
+        file.deleteOnExit();
+        new File(file.getPath() + FullHeaderBlockStore.PARENT_FILE_SUFFIX).deleteOnExit();
+    }
+
+    // Makes a header on top of the given one without solving it. Headers with a parent are marked as merge mined.
+    private StoredBlock makeHeader(StoredBlock prev, int nonce, Block parent) throws Exception {
+        byte[] bytes = new byte[Block.HEADER_SIZE + 1];
+        Utils.uint32ToByteArrayLE(parent != null ? Block.BLOCK_VERSION_AUXPOW_AUXBLOCK : Block.BLOCK_VERSION_DEFAULT,
+                bytes, 0);
+        System.arraycopy(Utils.reverseBytes(prev.getHeader().getHash().getBytes()), 0, bytes, 4, 32);
+        Utils.uint32ToByteArrayLE(prev.getHeader().getTimeSeconds() + 60, bytes, 68);
+        Utils.uint32ToByteArrayLE(prev.getHeader().getDifficultyTarget(), bytes, 72);
+        Utils.uint32ToByteArrayLE(nonce, bytes, 76);
+        return prev.build(new Block(params, bytes, parent));
+    }
+
+    private List<StoredBlock> makeChain(StoredBlock from, int length, int nonce) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = from;
+        for (int i = 0; i < length; i++) {
+            prev = makeHeader(prev, nonce + i, null);
+            blocks.add(prev);
+        }
+        return blocks;
+    }
+
+    @Test
+    public void basics() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        StoredBlock genesis = store.getChainHead();
+        assertEquals(params.getGenesisBlock(), genesis.getHeader());
+        assertEquals(genesis, store.get(0));
+
+        // More headers than fit in one mapped segment, and more than the initial hash index was sized for.
+        List<StoredBlock> blocks = makeChain(genesis, FullHeaderBlockStore.RECORDS_PER_SEGMENT + 10, 1);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        StoredBlock head = blocks.get(blocks.size() - 1);
+        store.setChainHead(head);
+        store.close();
+
+        // Reopen so that lookups can't be answered from the in-memory cache, and nothing was dropped.
+        store = new FullHeaderBlockStore(params, file);
+        assertEquals(blocks.size() + 1, store.getNumHeaders());
+        assertEquals(head, store.getChainHead());
+        assertEquals(params.getGenesisBlock(), store.get(params.getGenesisBlock().getHash()).getHeader());
+        for (StoredBlock block : blocks) {
+            assertEquals(block, store.get(block.getHeader().getHash()));
+            assertEquals(block, store.get(block.getHeight()));
+        }
+        assertNull(store.get(head.getHeight() + 1));
+        assertNull(store.get(makeHeader(head, 0, null).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void reorgMovesHeightIndex() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        List<StoredBlock> main = makeChain(store.getChainHead(), 20, 1);
+        for (StoredBlock block : main)
+            store.put(block);
+        store.setChainHead(main.get(19));
+
+        // A shorter side chain forking off at height 10 takes over, then grows past the old head.
+        List<StoredBlock> side = makeChain(main.get(9), 5, 1000);
+        for (StoredBlock block : side)
+            store.put(block);
+        store.setChainHead(side.get(4));
+        assertEquals(main.get(9), store.get(10));
+        assertEquals(side.get(0), store.get(11));
+        assertEquals(side.get(4), store.get(15));
+        assertNull(store.get(16));
+
+        // Going back to the old chain must not leave any of the side chain behind.
+        store.setChainHead(main.get(19));
+        for (StoredBlock block : main)
+            assertEquals(block, store.get(block.getHeight()));
+        store.close();
+
+        store = new FullHeaderBlockStore(params, file);
+        for (StoredBlock block : main)
+            assertEquals(block, store.get(block.getHeight()));
+        for (StoredBlock block : side)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void ancestors() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        StoredBlock genesis = store.getChainHead();
+        List<StoredBlock> main = makeChain(genesis, 30, 1);
+        for (StoredBlock block : main)
+            store.put(block);
+        store.setChainHead(main.get(29));
+        List<StoredBlock> side = makeChain(main.get(9), 5, 1000);
+        for (StoredBlock block : side)
+            store.put(block);
+
+        assertEquals(genesis, main.get(29).getAncestor(store, 0));
+        assertEquals(main.get(4), main.get(29).getAncestor(store, 5));
+        assertEquals(main.get(29), main.get(29).getAncestor(store, 30));
+        // Off the best chain the walk goes back to the fork first.
+        assertEquals(side.get(1), side.get(4).getAncestor(store, 12));
+        assertEquals(main.get(9), side.get(4).getAncestor(store, 10));
+        assertEquals(main.get(2), side.get(4).getAncestor(store, 3));
+        // A block that isn't stored yet, on top of one that is.
+        StoredBlock next = makeHeader(side.get(4), 1, null);
+        assertEquals(side.get(4), next.getAncestor(store, 15));
+        assertEquals(main.get(0), next.getAncestor(store, 1));
+        store.close();
+    }
+
+    @Test
+    public void keepsAuxPoWParents() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        StoredBlock genesis = store.getChainHead();
+        Block parent = makeHeader(genesis, 42, null).getHeader();
+        StoredBlock merged = makeHeader(genesis, 1, parent);
+        StoredBlock next = makeHeader(merged, 2, null);
+        store.put(merged);
+        store.put(next);
+        store.setChainHead(next);
+        store.close();
+
+        store = new FullHeaderBlockStore(params, file);
+        StoredBlock found = store.get(merged.getHeader().getHash());
+        assertEquals(merged, found);
+        assertEquals(parent.getHash(), found.getHeader().getParentBlock().getHash());
+        assertEquals(parent.getScryptHash(), found.getHeader().getProofOfWorkHash());
+        assertNull(store.get(next.getHeader().getHash()).getHeader().getParentBlock());
+        store.close();
+    }
+
+    @Test(expected = BlockStoreException.class)
+    public void chainHeadMustBeStored() throws Exception {
+        FullHeaderBlockStore store = new FullHeaderBlockStore(params, file);
+        store.setChainHead(makeHeader(store.getChainHead(), 1, null));
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.math.BigInteger;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class H2FullPrunedBlockStoreTest extends AbstractFullPrunedBlockStoreTest<H2FullPrunedBlockStore> {
+    private File dir;
+    private String dbName;
+
+    @Override
+    protected H2FullPrunedBlockStore createStore(NetworkParameters params, int fullStoreDepth) throws Exception {
+        dir = File.createTempFile("h2fullprunedblockstore", null);
+        dir.delete();
+        dir.mkdir();
+        dbName = new File(dir, "store").getAbsolutePath();
+        return new H2FullPrunedBlockStore(params, dbName, fullStoreDepth);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        for (File file : dir.listFiles())
+            file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void duplicateOutputsKeepTheOriginal() throws Exception {
+        // Transactions repeated before BIP30 create outputs that are already there, which are left as they were.
+        StoredTransactionOutput original = makeOutput(1, 0, BigInteger.TEN);
+        StoredTransactionOutput other = makeOutput(2, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(original);
+        store.addUnspentTransactionOutput(makeOutput(1, 0, BigInteger.ONE));
+        assertStored(original);
+
+        store.beginDatabaseBatchWrite();
+        store.addUnspentTransactionOutput(makeOutput(1, 0, BigInteger.ONE));
+        store.addUnspentTransactionOutput(other);
+        store.addUnspentTransactionOutput(makeOutput(2, 0, BigInteger.ONE));
+        // Reads within the batch agree with what the commit will keep.
+        assertStored(original);
+        assertStored(other);
+        store.commitDatabaseBatchWrite();
+        assertStored(original);
+        assertStored(other);
+    }
+
+    @Test
+    public void migratesVersion03() throws Exception {
+        StoredTransactionOutput out = makeOutput(1, 3, NetworkParameters.MAX_MONEY);
+        store.close();
+        Connection conn = DriverManager.getConnection("jdbc:h2:" + dbName);
+        Statement s = conn.createStatement();
+        s.executeUpdate("DROP TABLE openOutputs");
+        s.executeUpdate("CREATE TABLE openOutputs (hash BINARY(32) NOT NULL, index INT NOT NULL, height INT NOT NULL,"
+                + " value BLOB NOT NULL, scriptBytes BLOB NOT NULL, PRIMARY KEY (hash, index))");
+        s.executeUpdate("UPDATE settings SET value = '03' WHERE name = 'version'");
+        s.close();
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO openOutputs (hash, index, height, value,"
+                + " scriptBytes) VALUES (?, ?, ?, ?, ?)");
+        insert.setBytes(1, out.getHash().getBytes());
+        insert.setInt(2, (int) out.getIndex());
+        insert.setInt(3, out.getHeight());
+        insert.setBytes(4, out.getValue().toByteArray());
+        insert.setBytes(5, out.getScriptBytes());
+        insert.executeUpdate();
+        insert.close();
+        conn.close();
+
+        store = new H2FullPrunedBlockStore(params, dbName, 10);
+        assertStored(out);
+        assertEquals(params.getGenesisBlock().getHash(), store.getVerifiedChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void migratesVersion04() throws Exception {
+        Sha256Hash genesis = params.getGenesisBlock().getHash();
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        created.add(makeOutput(1, 0, NetworkParameters.MAX_MONEY));
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, new ArrayList<StoredTransactionOutput>());
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        changes.serializeToStream(bos);
+        store.close();
+        Connection conn = DriverManager.getConnection("jdbc:h2:" + dbName);
+        Statement s = conn.createStatement();
+        s.executeUpdate("DROP TABLE undoableBlocks");
+        s.executeUpdate("CREATE TABLE undoableBlocks (hash BINARY(28) NOT NULL PRIMARY KEY, height INT NOT NULL,"
+                + " txOutChanges BLOB, transactions BLOB)");
+        s.executeUpdate("UPDATE settings SET value = '04' WHERE name = 'version'");
+        s.close();
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO undoableBlocks (hash, height, txOutChanges,"
+                + " transactions) VALUES (?, 0, ?, NULL)");
+        insert.setBytes(1, Arrays.copyOfRange(genesis.getBytes(), 3, 31));
+        insert.setBytes(2, bos.toByteArray());
+        insert.executeUpdate();
+        insert.close();
+        conn.close();
+
+        store = new H2FullPrunedBlockStore(params, dbName, 10);
+        StoredUndoableBlock block = store.getUndoBlock(genesis);
+        assertEquals(1, block.getTxOutChanges().txOutsCreated.size());
+        assertEquals(NetworkParameters.MAX_MONEY, block.getTxOutChanges().txOutsCreated.get(0).getValue());
+    }
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LogStructuredFullPrunedBlockStoreTest
+        extends AbstractFullPrunedBlockStoreTest<LogStructuredFullPrunedBlockStore> {
+    private File file;
+
+    @Override
+    protected LogStructuredFullPrunedBlockStore createStore(NetworkParameters params, int fullStoreDepth)
+            throws Exception {
+        file = File.createTempFile("logstructuredfullprunedblockstore", null);
+        file.delete();
+        return new LogStructuredFullPrunedBlockStore(params, file, fullStoreDepth);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        super.tearDown();
+        file.delete();
+        new File(file.getPath() + ".compact").delete();
+        new File(file.getPath() + ".backup").delete();
+    }
+
+    private void reopen(long minGarbageBytes) throws Exception {
+        store.close();
+        store = new LogStructuredFullPrunedBlockStore(params, file, 10, minGarbageBytes);
+    }
+
+    // Builds a chain of headers on top of the genesis block, with an undoable block for each.
+    private List<StoredBlock> putChain(int length) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        StoredBlock prev = store.getChainHead();
+        ECKey key = new ECKey();
+        for (int i = 0; i < length; i++) {
+            StoredBlock next = prev.build(prev.getHeader().createNextBlockWithCoinbase(key.getPubKey(),
+                    Utils.toNanoCoins(50, 0)).cloneAsHeader());
+            List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+            created.add(makeOutput(1000 + i, 0, BigInteger.TEN));
+            store.put(next, new StoredUndoableBlock(next.getHeader().getHash(),
+                    new TransactionOutputChanges(created, new ArrayList<StoredTransactionOutput>())));
+            blocks.add(next);
+            prev = next;
+        }
+        return blocks;
+    }
+
+    @Test
+    public void batchWrittenOnCommit() throws Exception {
+        StoredTransactionOutput a = makeOutput(1, 0, BigInteger.TEN);
+        StoredTransactionOutput b = makeOutput(2, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(a);
+        long length = store.getFileLength();
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        // Nothing is written until the batch is committed.
+        assertEquals(length, store.getFileLength());
+        store.abortDatabaseBatchWrite();
+        assertEquals(length, store.getFileLength());
+
+        StoredTransactionOutput recreated = makeOutput(1, 0, BigInteger.ONE);
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(recreated);
+        store.commitDatabaseBatchWrite();
+        reopen(LogStructuredFullPrunedBlockStore.DEFAULT_MIN_GARBAGE_BYTES);
+        assertStored(recreated);
+        assertNull(store.getTransactionOutput(b.getHash(), 0));
+    }
+
+    @Test
+    public void reopen() throws Exception {
+        StoredTransactionOutput a = makeOutput(1, 0, BigInteger.TEN);
+        StoredTransactionOutput b = makeOutput(2, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        store.removeUnspentTransactionOutput(a);
+        List<StoredBlock> chain = putChain(3);
+        store.setChainHead(chain.get(2));
+        store.setVerifiedChainHead(chain.get(1));
+
+        reopen(LogStructuredFullPrunedBlockStore.DEFAULT_MIN_GARBAGE_BYTES);
+        assertNull(store.getTransactionOutput(a.getHash(), 0));
+        assertStored(b);
+        assertEquals(chain.get(2), store.getChainHead());
+        assertEquals(chain.get(1), store.getVerifiedChainHead());
+        StoredBlock block = store.get(chain.get(0).getHeader().getHash());
+        assertEquals(chain.get(0).getChainWork(), block.getChainWork());
+        assertEquals(chain.get(0).getHeight(), block.getHeight());
+        assertNotNull(store.getOnceUndoableStoredBlock(chain.get(0).getHeader().getHash()));
+        StoredUndoableBlock undo = store.getUndoBlock(chain.get(0).getHeader().getHash());
+        assertEquals(1, undo.getTxOutChanges().txOutsCreated.size());
+    }
+
+    @Test
+    public void discardsTornWrite() throws Exception {
+        StoredTransactionOutput a = makeOutput(1, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(a);
+        long length = store.getFileLength();
+        store.close();
+
+        // Half of an output record that has no commit record after it.
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(raf.length());
+        raf.write(new byte[] {LogStructuredFullPrunedBlockStore.RECORD_OUTPUT_ADDED, 80, 0, 0, 0, 1, 2, 3});
+        raf.close();
+
+        store = new LogStructuredFullPrunedBlockStore(params, file, 10);
+        assertEquals(length, store.getFileLength());
+        assertEquals(length, file.length());
+        assertStored(a);
+        StoredTransactionOutput b = makeOutput(2, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(b);
+        reopen(LogStructuredFullPrunedBlockStore.DEFAULT_MIN_GARBAGE_BYTES);
+        assertStored(a);
+        assertStored(b);
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        reopen(0);
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 100; i++) {
+            StoredTransactionOutput out = makeOutput(i, 0, BigInteger.valueOf(i));
+            outputs.add(out);
+            store.addUnspentTransactionOutput(out);
+        }
+        long full = store.getFileLength();
+        for (int i = 0; i < 90; i++)
+            store.removeUnspentTransactionOutput(outputs.get(i));
+        assertTrue(store.getFileLength() < full);
+        for (int i = 90; i < 100; i++)
+            assertStored(outputs.get(i));
+
+        reopen(LogStructuredFullPrunedBlockStore.DEFAULT_MIN_GARBAGE_BYTES);
+        for (int i = 0; i < 90; i++)
+            assertNull(store.getTransactionOutput(outputs.get(i).getHash(), 0));
+        for (int i = 90; i < 100; i++)
+            assertStored(outputs.get(i));
+        assertEquals(params.getGenesisBlock().getHash(), store.getVerifiedChainHead().getHeader().getHash());
+    }
+
+    @Test
+    public void prunesUndoableBlocks() throws Exception {
+        List<StoredBlock> chain = putChain(20);
+        store.setVerifiedChainHead(chain.get(19));
+        // The verified head is at height 20, so blocks below height 10 can no longer be reorganised away.
+        assertNull(store.getUndoBlock(chain.get(8).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(chain.get(9).getHeader().getHash()));
+        // The headers are kept, and still say they were undoable.
+        assertNotNull(store.getOnceUndoableStoredBlock(chain.get(0).getHeader().getHash()));
+
+        store.compact();
+        reopen(LogStructuredFullPrunedBlockStore.DEFAULT_MIN_GARBAGE_BYTES);
+        assertNull(store.getUndoBlock(chain.get(8).getHeader().getHash()));
+        assertNotNull(store.getUndoBlock(chain.get(9).getHeader().getHash()));
+        assertEquals(chain.get(19), store.getChainHead());
+    }
+
+    @Test
+    public void fileHeader() throws Exception {
+        store.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        byte[] magic = new byte[4];
+        raf.readFully(magic);
+        assertEquals(LogStructuredFullPrunedBlockStore.HEADER_MAGIC, new String(magic, "US-ASCII"));
+        assertEquals(LogStructuredFullPrunedBlockStore.FILE_FORMAT_VERSION, Integer.reverseBytes(raf.readInt()));
+        // A version this class doesn't know is refused rather than misread.
+        raf.seek(4);
+        raf.writeInt(Integer.reverseBytes(LogStructuredFullPrunedBlockStore.FILE_FORMAT_VERSION + 1));
+        raf.close();
+        try {
+            store = new LogStructuredFullPrunedBlockStore(params, file, 10);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        raf = new RandomAccessFile(file, "rw");
+        raf.seek(4);
+        raf.writeInt(Integer.reverseBytes(LogStructuredFullPrunedBlockStore.FILE_FORMAT_VERSION));
+        raf.close();
+        store = new LogStructuredFullPrunedBlockStore(params, file, 10);
+    }
+
+    @Test
+    public void recoversInterruptedCompaction() throws Exception {
+        StoredTransactionOutput a = makeOutput(1, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(a);
+        store.compact();
+        assertStored(a);
+        store.close();
+        File compacted = new File(file.getPath() + ".compact");
+        File backup = new File(file.getPath() + ".backup");
+
+        // Died after moving the store aside, before the compacted file was put in its place.
+        assertTrue(file.renameTo(backup));
+        assertTrue(compacted.createNewFile());
+        store = new LogStructuredFullPrunedBlockStore(params, file, 10);
+        assertStored(a);
+        assertFalse(backup.exists());
+        assertFalse(compacted.exists());
+        store.close();
+
+        // Died after the compacted file was put in place, before the backup was deleted.
+        assertTrue(backup.createNewFile());
+        store = new LogStructuredFullPrunedBlockStore(params, file, 10);
+        assertStored(a);
+        assertFalse(backup.exists());
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import org.junit.Test;
+
+import java.math.BigInteger;
+
+import static org.junit.Assert.*;
+
+public class PackedMemoryFullPrunedBlockStoreTest
+        extends AbstractFullPrunedBlockStoreTest<PackedMemoryFullPrunedBlockStore> {
+    @Override
+    protected PackedMemoryFullPrunedBlockStore createStore(NetworkParameters params, int fullStoreDepth) {
+        return new PackedMemoryFullPrunedBlockStore(params, fullStoreDepth);
+    }
+
+    @Test
+    public void batchInvisibleToOtherThreads() throws Exception {
+        final StoredTransactionOutput a = makeOutput(1, 0, BigInteger.TEN);
+        final StoredTransactionOutput b = makeOutput(2, 0, BigInteger.TEN);
+        store.addUnspentTransactionOutput(a);
+
+        store.beginDatabaseBatchWrite();
+        store.removeUnspentTransactionOutput(a);
+        store.addUnspentTransactionOutput(b);
+        try {
+            store.removeUnspentTransactionOutput(a);
+            fail();
+        } catch (BlockStoreException e) {
+            // Expected.
+        }
+        // Other threads don't see the batch until it is committed.
+        final boolean[] seen = new boolean[2];
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    seen[0] = store.getTransactionOutput(a.getHash(), 0) != null;
+                    seen[1] = store.getTransactionOutput(b.getHash(), 0) != null;
+                } catch (BlockStoreException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertTrue(seen[0]);
+        assertFalse(seen[1]);
+        store.abortDatabaseBatchWrite();
+        assertStored(a);
+    }
+}
@@ -16,16 +16,17 @@
 
 package com.google.dogecoin.store;
 
-import com.google.dogecoin.core.Address;
-import com.google.dogecoin.core.ECKey;
-import com.google.dogecoin.core.NetworkParameters;
-import com.google.dogecoin.core.StoredBlock;
+import com.google.dogecoin.core.*;
 import com.google.dogecoin.params.UnitTestParams;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class SPVBlockStoreTest {
 
@@ -58,4 +59,120 @@ public class SPVBlockStoreTest {
         StoredBlock chainHead = store.getChainHead();
         assertEquals(b1, chainHead);
     }
+
+    // Makes headers with distinct hashes quickly, without solving them.
+    private static List<StoredBlock> makeHeaders(NetworkParameters params, int count) throws Exception {
+        List<StoredBlock> blocks = new ArrayList<StoredBlock>();
+        Block genesis = params.getGenesisBlock();
+        for (int i = 1; i <= count; i++) {
+            Block header = genesis.cloneAsHeader();
+            header.setNonce(i);
+            blocks.add(new StoredBlock(header, genesis.getWork().multiply(BigInteger.valueOf(i)), i));
+        }
+        return blocks;
+    }
+
+    @Test
+    public void wrapAround() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        List<StoredBlock> blocks = makeHeaders(params, SPVBlockStore.DEFAULT_NUM_HEADERS + 100);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(blocks.size() - 1));
+        store.close();
+
+        // Reopen so that lookups can't be answered from the in-memory caches.
+        store = new SPVBlockStore(params, f);
+        // The genesis block and the first headers were overwritten.
+        assertNull(store.get(params.getGenesisBlock().getHash()));
+        for (int i = 0; i < 100; i++)
+            assertNull(store.get(blocks.get(i).getHeader().getHash()));
+        for (int i = 100; i < blocks.size(); i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        // Storing a header again overwrites the oldest one, and the newest copy is the one found.
+        store.put(blocks.get(blocks.size() - 1));
+        store.close();
+        store = new SPVBlockStore(params, f);
+        assertEquals(blocks.get(blocks.size() - 1), store.getChainHead());
+        assertNull(store.get(blocks.get(100).getHeader().getHash()));
+        assertEquals(blocks.get(101), store.get(blocks.get(101).getHeader().getHash()));
+        store.close();
+    }
+
+    @Test
+    public void upgradeVersion1File() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f);
+        List<StoredBlock> blocks = makeHeaders(params, 10);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(9));
+        store.close();
+
+        // Turn it into a file as written by version 1, which had no version field and no index.
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(SPVBlockStore.FILE_PROLOGUE_BYTES + SPVBlockStore.RECORD_SIZE * SPVBlockStore.DEFAULT_NUM_HEADERS);
+        raf.seek(SPVBlockStore.VERSION_OFFSET);
+        raf.writeInt(0);
+        raf.close();
+
+        store = new SPVBlockStore(params, f);
+        assertEquals(store.getFileSize(), f.length());
+        assertEquals(blocks.get(9), store.getChainHead());
+        for (StoredBlock block : blocks)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        assertEquals(params.getGenesisBlock(), store.get(params.getGenesisBlock().getHash()).getHeader());
+        store.close();
+        raf = new RandomAccessFile(f, "r");
+        raf.seek(SPVBlockStore.VERSION_OFFSET);
+        assertEquals(SPVBlockStore.FILE_FORMAT_VERSION, raf.readInt());
+        raf.close();
+    }
+
+    @Test
+    public void growCapacity() throws Exception {
+        NetworkParameters params = UnitTestParams.get();
+        File f = File.createTempFile("spvblockstore", null);
+        f.delete();
+        f.deleteOnExit();
+        SPVBlockStore store = new SPVBlockStore(params, f, 100);
+        assertEquals(100, store.getCapacity());
+        List<StoredBlock> blocks = makeHeaders(params, 150);
+        for (StoredBlock block : blocks)
+            store.put(block);
+        store.setChainHead(blocks.get(149));
+        store.close();
+
+        // Asking for fewer headers than the file holds leaves it alone.
+        store = new SPVBlockStore(params, f, 50);
+        assertEquals(100, store.getCapacity());
+        store.close();
+
+        // Growing keeps the headers that were there, and the new room is used before any of them are overwritten.
+        store = new SPVBlockStore(params, f, 200);
+        assertEquals(200, store.getCapacity());
+        assertEquals(store.getFileSize(), f.length());
+        assertEquals(blocks.get(149), store.getChainHead());
+        List<StoredBlock> more = makeHeaders(params, 250).subList(150, 250);
+        for (StoredBlock block : more)
+            store.put(block);
+        store.close();
+
+        store = new SPVBlockStore(params, f);
+        assertEquals(200, store.getCapacity());
+        for (int i = 0; i < 50; i++)
+            assertNull(store.get(blocks.get(i).getHeader().getHash()));
+        for (int i = 50; i < 150; i++)
+            assertEquals(blocks.get(i), store.get(blocks.get(i).getHeader().getHash()));
+        for (StoredBlock block : more)
+            assertEquals(block, store.get(block.getHeader().getHash()));
+        store.close();
+    }
 }
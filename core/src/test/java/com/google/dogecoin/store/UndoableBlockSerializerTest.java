@@ -0,0 +1,134 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.ScriptBuilder;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class UndoableBlockSerializerTest {
+    private NetworkParameters params;
+    private Sha256Hash blockHash;
+
+    @Before
+    public void setUp() throws Exception {
+        params = UnitTestParams.get();
+        blockHash = params.getGenesisBlock().getHash();
+    }
+
+    private static Sha256Hash txHash(int n) {
+        byte[] hash = new byte[32];
+        hash[0] = (byte) n;
+        return new Sha256Hash(hash);
+    }
+
+    private void assertOutputsEqual(List<StoredTransactionOutput> expected, List<StoredTransactionOutput> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            StoredTransactionOutput a = expected.get(i), b = actual.get(i);
+            assertEquals(a.getHash(), b.getHash());
+            assertEquals(a.getIndex(), b.getIndex());
+            assertEquals(a.getHeight(), b.getHeight());
+            assertEquals(a.getValue(), b.getValue());
+            assertArrayEquals(a.getScriptBytes(), b.getScriptBytes());
+        }
+    }
+
+    @Test
+    public void txOutChanges() throws Exception {
+        byte[] payToAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        byte[] payToKey = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        created.add(new StoredTransactionOutput(txHash(1), 0, Utils.toNanoCoins(50, 0), 12, true, payToKey));
+        created.add(new StoredTransactionOutput(txHash(2), 0, NetworkParameters.MAX_MONEY, 12, false, payToAddress));
+        created.add(new StoredTransactionOutput(txHash(2), 70000, BigInteger.ZERO, 12, false, new byte[0]));
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        spent.add(new StoredTransactionOutput(txHash(3), 1, BigInteger.ONE, 0, true, payToAddress));
+        spent.add(new StoredTransactionOutput(txHash(2), 0, NetworkParameters.MAX_MONEY, 12, false, payToAddress));
+
+        byte[] bytes = UndoableBlockSerializer.serialize(
+                new StoredUndoableBlock(blockHash, new TransactionOutputChanges(created, spent)));
+        StoredUndoableBlock block = UndoableBlockSerializer.deserialize(params, blockHash, bytes);
+        assertEquals(blockHash, block.getHash());
+        assertNull(block.getTransactions());
+        assertOutputsEqual(created, block.getTxOutChanges().txOutsCreated);
+        assertOutputsEqual(spent, block.getTxOutChanges().txOutsSpent);
+    }
+
+    @Test
+    public void transactions() throws Exception {
+        Block block = params.getGenesisBlock().createNextBlock(new ECKey().toAddress(params));
+        List<Transaction> transactions = block.getTransactions();
+        byte[] bytes = UndoableBlockSerializer.serialize(new StoredUndoableBlock(blockHash, transactions));
+        StoredUndoableBlock read = UndoableBlockSerializer.deserialize(params, blockHash, bytes);
+        assertNull(read.getTxOutChanges());
+        assertEquals(transactions, read.getTransactions());
+    }
+
+    @Test
+    public void smallerThanTransactionOutputChanges() throws Exception {
+        // A typical transaction spends one output and creates two that pay to addresses.
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < 100; i++) {
+            created.add(new StoredTransactionOutput(txHash(i), 0, Utils.toNanoCoins(10, 0), 0, false, script));
+            created.add(new StoredTransactionOutput(txHash(i), 1, Utils.toNanoCoins(5, 0), 0, false, script));
+            spent.add(new StoredTransactionOutput(txHash(i + 100), 0, Utils.toNanoCoins(15, 0), 0, false, script));
+        }
+        TransactionOutputChanges changes = new TransactionOutputChanges(created, spent);
+        ByteArrayOutputStream old = new ByteArrayOutputStream();
+        changes.serializeToStream(old);
+        byte[] compact = UndoableBlockSerializer.serialize(new StoredUndoableBlock(blockHash, changes));
+        assertTrue(compact.length * 2 < old.size());
+    }
+
+    @Test
+    public void rejectsBadData() throws Exception {
+        byte[] bytes = UndoableBlockSerializer.serialize(new StoredUndoableBlock(blockHash,
+                new TransactionOutputChanges(new ArrayList<StoredTransactionOutput>(),
+                        new ArrayList<StoredTransactionOutput>())));
+        bytes[0] = (byte) (UndoableBlockSerializer.VERSION + 1);
+        try {
+            UndoableBlockSerializer.deserialize(params, blockHash, bytes);
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        created.add(new StoredTransactionOutput(txHash(1), 0, BigInteger.TEN, 0, false, new byte[] {1, 2, 3}));
+        bytes = UndoableBlockSerializer.serialize(new StoredUndoableBlock(blockHash,
+                new TransactionOutputChanges(created, new ArrayList<StoredTransactionOutput>())));
+        try {
+            UndoableBlockSerializer.deserialize(params, blockHash, Arrays.copyOf(bytes, bytes.length - 2));
+            fail();
+        } catch (ProtocolException e) {
+            // Expected.
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.store;
+
+import com.google.dogecoin.core.NetworkParameters;
+import com.google.dogecoin.core.Sha256Hash;
+import com.google.dogecoin.core.StoredTransactionOutput;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class UnspentOutputTableTest {
+    private static StoredTransactionOutput makeOutput(Random random, int index) {
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        // Outputs with the same first bytes end up next to each other in the table.
+        hash[0] = hash[1] = hash[2] = hash[3] = 0;
+        byte[] script = new byte[random.nextInt(100)];
+        random.nextBytes(script);
+        return new StoredTransactionOutput(new Sha256Hash(hash), index, BigInteger.valueOf(random.nextInt(1000000)),
+                random.nextInt(1000), random.nextBoolean(), script);
+    }
+
+    private static void assertOutput(StoredTransactionOutput expected, StoredTransactionOutput actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getValue(), actual.getValue());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getScriptBytes(), actual.getScriptBytes());
+    }
+
+    @Test
+    public void matchesHashMap() throws Exception {
+        // Start small so the table grows, and remove enough for the data to be compacted.
+        UnspentOutputTable table = new UnspentOutputTable(16);
+        Map<StoredTransactionOutPoint, StoredTransactionOutput> expected =
+                new HashMap<StoredTransactionOutPoint, StoredTransactionOutput>();
+        List<StoredTransactionOutput> added = new ArrayList<StoredTransactionOutput>();
+        Random random = new Random(1);
+        for (int i = 0; i < 100000; i++) {
+            if (added.isEmpty() || random.nextInt(3) != 0) {
+                StoredTransactionOutput out = makeOutput(random, random.nextInt(3));
+                table.put(out);
+                expected.put(new StoredTransactionOutPoint(out), out);
+                added.add(out);
+            } else {
+                StoredTransactionOutput out = added.remove(random.nextInt(added.size()));
+                boolean wasPresent = expected.remove(new StoredTransactionOutPoint(out)) != null;
+                assertEquals(wasPresent, table.remove(out.getHash(), out.getIndex()));
+            }
+        }
+        assertEquals(expected.size(), table.size());
+        for (StoredTransactionOutput out : expected.values())
+            assertOutput(out, table.get(out.getHash(), out.getIndex()));
+        for (StoredTransactionOutput out : added)
+            if (!expected.containsKey(new StoredTransactionOutPoint(out)))
+                assertNull(table.get(out.getHash(), out.getIndex()));
+    }
+
+    @Test
+    public void applyChanges() throws Exception {
+        Random random = new Random(2);
+        UnspentOutputTable table = new UnspentOutputTable(16);
+        UnspentOutputTable changes = new UnspentOutputTable(16);
+        StoredTransactionOutput spent = makeOutput(random, 0);
+        StoredTransactionOutput kept = makeOutput(random, 1);
+        table.put(spent);
+        table.put(kept);
+        changes.markRemoved(spent.getHash(), spent.getIndex());
+        assertTrue(changes.isRemoved(spent.getHash(), spent.getIndex()));
+        assertNull(changes.get(spent.getHash(), spent.getIndex()));
+        StoredTransactionOutput created = new StoredTransactionOutput(kept.getHash(), 5, NetworkParameters.MAX_MONEY, 0,
+                false, new byte[] {1});
+        changes.put(created);
+
+        table.apply(changes);
+        assertNull(table.get(spent.getHash(), spent.getIndex()));
+        assertOutput(kept, table.get(kept.getHash(), kept.getIndex()));
+        assertOutput(created, table.get(created.getHash(), created.getIndex()));
+
+        changes.clear();
+        assertEquals(0, changes.size());
+        assertFalse(changes.contains(created.getHash(), created.getIndex()));
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.utils;
+
+import com.google.dogecoin.core.Block;
+import com.google.dogecoin.core.ECKey;
+import com.google.dogecoin.core.NetworkParameters;
+import com.google.dogecoin.core.Utils;
+import com.google.dogecoin.params.UnitTestParams;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class BlockFileLoaderTest {
+    private static final NetworkParameters params = UnitTestParams.get();
+
+    private List<Block> blocks;
+    private List<File> files;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        blocks = new ArrayList<Block>();
+        Block block = params.getGenesisBlock();
+        for (int i = 0; i < 10; i++) {
+            block = block.createNextBlockWithCoinbase(new ECKey().getPubKey(), Utils.toNanoCoins(50, 0));
+            blocks.add(block);
+        }
+        // The reference client pre-allocates its files, so there are zeros between and after the blocks. The second
+        // file also has a record with an impossible size, and ends half way through a block.
+        ByteArrayOutputStream first = new ByteArrayOutputStream();
+        for (Block b : blocks.subList(0, 6)) {
+            writeRecord(first, b.bitcoinSerialize());
+            first.write(new byte[3]);
+        }
+        first.write(new byte[1000]);
+        ByteArrayOutputStream second = new ByteArrayOutputStream();
+        writeRecord(second, blocks.get(6).bitcoinSerialize());
+        writeMagic(second);
+        Utils.uint32ToByteStreamLE(Block.MAX_BLOCK_SIZE * 3, second);
+        for (Block b : blocks.subList(7, 10))
+            writeRecord(second, b.bitcoinSerialize());
+        byte[] truncated = blocks.get(0).bitcoinSerialize();
+        writeMagic(second);
+        Utils.uint32ToByteStreamLE(truncated.length, second);
+        second.write(truncated, 0, truncated.length / 2);
+        files = Arrays.asList(writeFile(first.toByteArray()), writeFile(second.toByteArray()));
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdown();
+    }
+
+    private static void writeMagic(ByteArrayOutputStream stream) {
+        long magic = params.getPacketMagic();
+        stream.write((int) (magic >>> 24));
+        stream.write((int) (magic >>> 16));
+        stream.write((int) (magic >>> 8));
+        stream.write((int) magic);
+    }
+
+    private static void writeRecord(ByteArrayOutputStream stream, byte[] block) throws Exception {
+        writeMagic(stream);
+        Utils.uint32ToByteStreamLE(block.length, stream);
+        stream.write(block);
+    }
+
+    private static File writeFile(byte[] bytes) throws Exception {
+        File file = File.createTempFile("blk", ".dat");
+        file.deleteOnExit();
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            stream.write(bytes);
+        } finally {
+            stream.close();
+        }
+        return file;
+    }
+
+    private static List<Block> toList(Iterator<Block> iterator) {
+        List<Block> list = new ArrayList<Block>();
+        while (iterator.hasNext())
+            list.add(iterator.next());
+        return list;
+    }
+
+    @Test
+    public void iterator() throws Exception {
+        assertEquals(blocks, toList(new BlockFileLoader(params, files)));
+    }
+
+    @Test
+    public void parseAhead() throws Exception {
+        assertEquals(blocks, toList(new BlockFileLoader(params, files).parseAhead(executor, 4)));
+        // A window smaller than a file, and one larger than all of them.
+        assertEquals(blocks, toList(new BlockFileLoader(params, files).parseAhead(executor, 1)));
+        assertEquals(blocks, toList(new BlockFileLoader(params, files).parseAhead(executor, 100)));
+    }
+
+    @Test
+    public void missingFile() throws Exception {
+        List<File> withMissing = Arrays.asList(new File(files.get(0).getPath() + ".missing"), files.get(0));
+        assertEquals(blocks.subList(0, 6), toList(new BlockFileLoader(params, withMissing)));
+    }
+}
@@ -1,6 +1,10 @@
 package com.google.dogecoin.tools;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.google.dogecoin.core.AbstractBlockChain;
 import com.google.dogecoin.core.Block;
@@ -8,27 +12,36 @@ import com.google.dogecoin.core.BlockChain;
 import com.google.dogecoin.core.FullPrunedBlockChain;
 import com.google.dogecoin.core.NetworkParameters;
 import com.google.dogecoin.core.PrunedException;
+import com.google.dogecoin.core.ScryptHashPipeline;
 import com.google.dogecoin.core.VerificationException;
 import com.google.dogecoin.params.MainNetParams;
 import com.google.dogecoin.params.TestNet3Params;
 import com.google.dogecoin.store.BlockStore;
 import com.google.dogecoin.store.BlockStoreException;
 import com.google.dogecoin.store.BoundedOverheadBlockStore;
+import com.google.dogecoin.store.CachingFullPrunedBlockStore;
 import com.google.dogecoin.store.FullPrunedBlockStore;
 import com.google.dogecoin.store.H2FullPrunedBlockStore;
+import com.google.dogecoin.store.LogStructuredFullPrunedBlockStore;
 import com.google.dogecoin.store.MemoryBlockStore;
 import com.google.dogecoin.store.MemoryFullPrunedBlockStore;
+import com.google.dogecoin.store.PackedMemoryFullPrunedBlockStore;
 import com.google.dogecoin.store.SPVBlockStore;
 import com.google.dogecoin.utils.BlockFileLoader;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /** Very thin wrapper around {@link com.google.dogecoin.util.BlockFileLoader} */
 public class BlockImporter {
     public static void main(String[] args) throws BlockStoreException, VerificationException, PrunedException {
-        System.out.println("USAGE: BlockImporter (prod|test) (H2|BoundedOverhead|Disk|MemFull|Mem|SPV) [blockStore]");
-        System.out.println("       blockStore is required unless type is Mem or MemFull");
+        System.out.println("USAGE: BlockImporter (prod|test) (H2|Log|BoundedOverhead|Disk|MemFull|PackedMemFull|Mem|SPV) [blockStore] [prefetch]");
+        System.out.println("       blockStore is required unless type is Mem, MemFull or PackedMemFull");
+        System.out.println("       prefetch adds blocks one at a time whilst looking up the outputs of the next, instead of in batches");
         System.out.println("       eg BlockImporter prod H2 /home/user/bitcoinj.h2store");
         System.out.println("       Does full verification if the store supports it");
+        boolean prefetch = args.length > 0 && args[args.length - 1].equals("prefetch");
+        if (prefetch)
+            args = Arrays.copyOf(args, args.length - 1);
         Preconditions.checkArgument(args.length == 2 || args.length == 3);
         
         NetworkParameters params = null;
@@ -40,13 +53,20 @@ public class BlockImporter {
         BlockStore store = null;
         if (args[1].equals("H2")) {
             Preconditions.checkArgument(args.length == 3);
-            store = new H2FullPrunedBlockStore(params, args[2], 100);
+            // Keep the unspent outputs that are created and spent again soon after out of the database.
+            store = new CachingFullPrunedBlockStore(new H2FullPrunedBlockStore(params, args[2], 100));
+        } else if (args[1].equals("Log")) {
+            Preconditions.checkArgument(args.length == 3);
+            store = new LogStructuredFullPrunedBlockStore(params, new File(args[2]), 100);
         } else if (args[1].equals("BoundedOverhead")) {
             Preconditions.checkArgument(args.length == 3);
             store = new BoundedOverheadBlockStore(params, new File(args[2]));
         } else if (args[1].equals("MemFull")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryFullPrunedBlockStore(params, 100);
+        } else if (args[1].equals("PackedMemFull")) {
+            Preconditions.checkArgument(args.length == 2);
+            store = new PackedMemoryFullPrunedBlockStore(params, 100, 1 << 20);
         } else if (args[1].equals("Mem")) {
             Preconditions.checkArgument(args.length == 2);
             store = new MemoryBlockStore(params);
@@ -62,8 +82,24 @@ public class BlockImporter {
             chain = new BlockChain(params, store);
         
         BlockFileLoader loader = new BlockFileLoader(params, BlockFileLoader.getReferenceClientBlockFileList());
+        ScryptHashPipeline hashPipeline = new ScryptHashPipeline();
         
-        for (Block block : loader)
-            chain.add(block);
+        // Parse blocks on a few threads, then hash them on the pipeline's, ahead of the chain.
+        ExecutorService parser = Executors.newFixedThreadPool(Math.max(1, hashPipeline.getNumThreads() / 2),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Block parsing thread %d").build());
+        Iterator<Block> blocks = hashPipeline.readAhead(loader.parseAhead(parser, ScryptHashPipeline.DEFAULT_READ_AHEAD));
+        if (chain instanceof FullPrunedBlockChain && prefetch) {
+            // Keeps the disk busy looking up outputs whilst scripts are checked, for stores that don't fit in memory.
+            ((FullPrunedBlockChain) chain).addAll(blocks);
+        } else if (chain instanceof FullPrunedBlockChain) {
+            // Blocks are in chain order in the reference client's files, so commit them in large batches.
+            ((FullPrunedBlockChain) chain).importBlocks(blocks, 500);
+        } else {
+            while (blocks.hasNext())
+                chain.add(blocks.next());
+        }
+        parser.shutdown();
+        hashPipeline.shutdown();
+        store.close();
     }
 }
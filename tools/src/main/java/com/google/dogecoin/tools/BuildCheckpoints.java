@@ -2,12 +2,11 @@ package com.google.dogecoin.tools;
 
 import com.google.dogecoin.core.*;
 import com.google.dogecoin.params.MainNetParams;
-import com.google.dogecoin.store.BlockStore;
-import com.google.dogecoin.store.MemoryBlockStore;
+import com.google.dogecoin.store.FullHeaderBlockStore;
 import com.google.dogecoin.utils.BriefLogFormatter;
-import com.google.dogecoin.utils.Threading;
 
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.net.InetAddress;
@@ -21,7 +20,8 @@ import static com.google.common.base.Preconditions.checkState;
 
 /**
  * Downloads and verifies a full chain from your local peer, emitting checkpoints at each difficulty transition period
- * to a file which is then signed with your key.
+ * to a file which is then signed with your key. The headers are kept in a {@link FullHeaderBlockStore}, so later runs
+ * only need to download the headers that are new since the last one.
  */
 public class BuildCheckpoints {
     public static void main(String[] args) throws Exception {
@@ -31,10 +31,12 @@ public class BuildCheckpoints {
         // Sorted map of UNIX time of block to StoredBlock object.
         final TreeMap<Integer, StoredBlock> checkpoints = new TreeMap<Integer, StoredBlock>();
 
-        // Configure bitcoinj to fetch only headers, not save them to disk, connect to a local fully synced/validated
-        // node and to save block headers that are on interval boundaries, as long as they are <1 month old.
-        final BlockStore store = new MemoryBlockStore(params);
+        // Configure bitcoinj to fetch only headers, keep all of them on disk and connect to a local fully
+        // synced/validated node. Block headers that are on interval boundaries are saved as checkpoints, as long as
+        // they are <1 month old.
+        final FullHeaderBlockStore store = new FullHeaderBlockStore(params, new File("checkpoints.headers"));
         final BlockChain chain = new BlockChain(params, store);
+        chain.setScryptHashPipeline(new ScryptHashPipeline());
         final PeerGroup peerGroup = new PeerGroup(params, chain);
         peerGroup.addAddress(InetAddress.getLocalHost());
         long now = new Date().getTime() / 1000;
@@ -42,21 +44,20 @@ public class BuildCheckpoints {
 
         final long oneMonthAgo = now - (86400 * 14); //TODO: Make it higher later on
 
-        chain.addListener(new AbstractBlockChainListener() {
-            @Override
-            public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
-                int height = block.getHeight();
-                if (height % params.getInterval() == 0 && block.getHeader().getTimeSeconds() <= oneMonthAgo) {
-                    System.out.println(String.format("Checkpointing block %s at height %d",
-                            block.getHeader().getHash(), block.getHeight()));
-                    checkpoints.put(height, block);
-                }
-            }
-        }, Threading.SAME_THREAD);
-
         peerGroup.startAndWait();
         peerGroup.downloadBlockChain();
 
+        // Every header of the best chain can be looked up by height, so there's no need to watch them go by.
+        int bestHeight = store.getChainHead().getHeight();
+        for (int height = params.getInterval(); height <= bestHeight; height += params.getInterval()) {
+            StoredBlock block = store.get(height);
+            if (block.getHeader().getTimeSeconds() > oneMonthAgo)
+                continue;
+            System.out.println(String.format("Checkpointing block %s at height %d",
+                    block.getHeader().getHash(), block.getHeight()));
+            checkpoints.put(height, block);
+        }
+
         checkState(checkpoints.size() > 0);
 
         // Write checkpoint data out.
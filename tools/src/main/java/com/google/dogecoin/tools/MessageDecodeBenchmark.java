@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Compares how fast a large block that arrives in TCP segment sized pieces is decoded by {@link MessageFrameDecoder}
+ * and by parsing everything received so far again each time a piece arrives, which is what the replaying decoder the
+ * network code used before did.
+ */
+public class MessageDecodeBenchmark {
+    private static final int SEGMENT_SIZE = 1460;  // A typical TCP segment on ethernet.
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: MessageDecodeBenchmark [transactionsPerBlock] [iterations]");
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        NetworkParameters params = UnitTestParams.get();
+        BitcoinSerializer serializer = new BitcoinSerializer(params);
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        serializer.serialize(generate(params, numTransactions), bos);
+        byte[] bytes = bos.toByteArray();
+        System.out.println(String.format("%d byte block in %d segments", bytes.length,
+                (bytes.length + SEGMENT_SIZE - 1) / SEGMENT_SIZE));
+
+        // Warm up the JIT before taking any measurements.
+        decodeFramed(params, serializer, bytes);
+        decodeReplaying(serializer, bytes);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            decodeFramed(params, serializer, bytes);
+        report("framed", iterations, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            decodeReplaying(serializer, bytes);
+        report("replaying", iterations, System.nanoTime() - start);
+    }
+
+    private static void report(String op, int count, long elapsedNanos) {
+        System.out.println(String.format("%-10s %10.1f blocks/sec", op, count / (elapsedNanos / 1e9)));
+    }
+
+    private static Message decodeFramed(NetworkParameters params, BitcoinSerializer serializer, byte[] bytes)
+            throws ProtocolException {
+        MessageFrameDecoder decoder = new MessageFrameDecoder(params, serializer);
+        Message message = null;
+        for (int i = 0; i < bytes.length; i += SEGMENT_SIZE) {
+            ChannelBuffer segment = ChannelBuffers.wrappedBuffer(bytes, i, Math.min(SEGMENT_SIZE, bytes.length - i));
+            while (segment.readable())
+                message = decoder.decode(segment);
+        }
+        if (message == null)
+            throw new IllegalStateException("Block wasn't decoded");
+        return message;
+    }
+
+    private static Message decodeReplaying(BitcoinSerializer serializer, byte[] bytes) throws ProtocolException {
+        for (int received = SEGMENT_SIZE; ; received += SEGMENT_SIZE) {
+            try {
+                return serializer.deserialize(new ByteArrayInputStream(bytes, 0, Math.min(received, bytes.length)));
+            } catch (IOException e) {
+                if (received >= bytes.length)
+                    throw new IllegalStateException(e);
+                // Not all of it is here yet, so try again from the start once the next segment arrives.
+            }
+        }
+    }
+
+    // Each transaction spends one output of an earlier one and creates two, paying to addresses.
+    private static Block generate(NetworkParameters params, int numTransactions) {
+        Random random = new Random(0);
+        Address address = new ECKey().toAddress(params);
+        Block block = params.getGenesisBlock().createNextBlock(address);
+        for (int i = 0; i < numTransactions; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            byte[] scriptSig = new byte[107];  // About the size of a signature and public key.
+            random.nextBytes(scriptSig);
+            Transaction tx = new Transaction(params);
+            tx.addInput(new TransactionInput(params, tx, scriptSig, new TransactionOutPoint(params, 0, new Sha256Hash(hash))));
+            tx.addOutput(Utils.toNanoCoins(1, 0), address);
+            tx.addOutput(Utils.toNanoCoins(2, 0), address);
+            block.addTransaction(tx);
+        }
+        return block;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.ScriptBuilder;
+import com.google.dogecoin.store.MemoryFullPrunedBlockStore;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a generated chain of blocks full of signed pay-to-pubkey spends into a {@link FullPrunedBlockChain}, and
+ * measures how many inputs per second it verifies with an increasing number of script verification threads, up to the
+ * number of available processors.
+ */
+public class ScriptVerificationBenchmark {
+    // Every other block fans a coinbase out into this many outputs, and the block after spends them all.
+    private static final int OUTPUTS_PER_ROUND = 1000;
+    private static final int INPUTS_PER_TRANSACTION = 10;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: ScriptVerificationBenchmark [rounds]");
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        // The unit test parameters retarget every block, which doesn't suit replaying a chain.
+        NetworkParameters params = new UnitTestParams() {
+            @Override public int getInterval() {
+                return 10000;
+            }
+
+            @Override public int getNewInterval() {
+                return 10000;
+            }
+        };
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        System.out.println("Generating blocks ...");
+        List<Block> blocks = generate(params, rounds);
+        int inputs = 0;
+        for (Block block : blocks)
+            for (Transaction tx : block.getTransactions())
+                if (!tx.isCoinBase())
+                    inputs += tx.getInputs().size();
+
+        // Warm up the JIT before taking any measurements.
+        replay(params, blocks, cores);
+
+        System.out.println(String.format("Replaying %d blocks with %d inputs, %d processors available", blocks.size(),
+                inputs, cores));
+        double baseline = 0;
+        for (int threads = 0; threads <= cores; threads++) {
+            double rate = inputs / replay(params, blocks, threads);
+            if (threads == 0)
+                baseline = rate;
+            System.out.println(String.format("%3d threads: %10.1f inputs/sec (%.2fx)", threads, rate, rate / baseline));
+        }
+    }
+
+    // Returns how many seconds it took to connect all the blocks.
+    private static double replay(NetworkParameters params, List<Block> blocks, int threads) throws Exception {
+        FullPrunedBlockChain chain = new FullPrunedBlockChain(params, new MemoryFullPrunedBlockStore(params, 10));
+        ScriptVerificationScheduler scheduler = new ScriptVerificationScheduler(threads);
+        chain.setScriptVerificationScheduler(scheduler);
+        long start = System.nanoTime();
+        for (Block block : blocks) {
+            if (!chain.add(block))
+                throw new RuntimeException("Block did not connect: " + block.getHashAsString());
+        }
+        long elapsed = System.nanoTime() - start;
+        scheduler.shutdown();
+        return elapsed / 1e9;
+    }
+
+    private static List<Block> generate(NetworkParameters params, int rounds) throws Exception {
+        ECKey key = new ECKey();
+        BigInteger reward = Utils.COIN;
+        List<Block> blocks = new ArrayList<Block>();
+        Block top = params.getGenesisBlock();
+        // Mine enough blocks for the first coinbase to be spendable.
+        for (int i = 0; i < params.getSpendableCoinbaseDepth(); i++) {
+            top = top.createNextBlockWithCoinbase(key.getPubKey(), reward);
+            blocks.add(top);
+        }
+        for (int round = 0; round < rounds; round++) {
+            Transaction coinbase = blocks.get(round).getTransactions().get(0);
+            Transaction fanOut = new Transaction(params);
+            BigInteger value = reward.divide(BigInteger.valueOf(OUTPUTS_PER_ROUND));
+            for (int i = 0; i < OUTPUTS_PER_ROUND; i++)
+                fanOut.addOutput(value, key);
+            fanOut.addInput(coinbase.getOutput(0));
+            sign(fanOut, key);
+            top = top.createNextBlockWithCoinbase(key.getPubKey(), reward);
+            top.addTransaction(fanOut);
+            top.solve();
+            blocks.add(top);
+
+            top = top.createNextBlockWithCoinbase(key.getPubKey(), reward);
+            for (int i = 0; i < OUTPUTS_PER_ROUND; i += INPUTS_PER_TRANSACTION) {
+                Transaction spend = new Transaction(params);
+                spend.addOutput(value.multiply(BigInteger.valueOf(INPUTS_PER_TRANSACTION)), key);
+                for (int j = i; j < i + INPUTS_PER_TRANSACTION; j++)
+                    spend.addInput(fanOut.getOutput(j));
+                sign(spend, key);
+                top.addTransaction(spend);
+            }
+            top.solve();
+            blocks.add(top);
+        }
+        return blocks;
+    }
+
+    private static void sign(Transaction tx, ECKey key) throws ScriptException {
+        for (int i = 0; i < tx.getInputs().size(); i++) {
+            TransactionOutput connected = tx.getInput(i).getConnectedOutput();
+            tx.getInput(i).setScriptSig(ScriptBuilder.createInputScript(
+                    tx.calculateSignature(i, key, connected.getScriptPubKey(), Transaction.SigHash.ALL, false)));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.Block;
+import com.google.dogecoin.core.NetworkParameters;
+import com.google.dogecoin.core.ScryptHashPipeline;
+import com.google.dogecoin.core.Sha256Hash;
+import com.google.dogecoin.core.Transaction;
+import com.google.dogecoin.params.MainNetParams;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how many block headers per second {@link ScryptHashPipeline} can hash with an increasing number of threads,
+ * up to the number of available processors.
+ */
+public class ScryptHashBenchmark {
+    public static void main(String[] args) {
+        System.out.println("USAGE: ScryptHashBenchmark [numHeaders]");
+        int numHeaders = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        NetworkParameters params = MainNetParams.get();
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Warm up the JIT before taking any measurements.
+        run(params, 1, Math.min(numHeaders, 2000));
+
+        System.out.println(String.format("Hashing %d headers, %d processors available", numHeaders, cores));
+        double baseline = 0;
+        for (int threads = 1; threads <= cores; threads++) {
+            double rate = run(params, threads, numHeaders);
+            if (threads == 1)
+                baseline = rate;
+            System.out.println(String.format("%3d threads: %10.1f headers/sec (%.2fx)", threads, rate, rate / baseline));
+        }
+    }
+
+    private static double run(NetworkParameters params, int threads, int numHeaders) {
+        List<Block> headers = makeHeaders(params, numHeaders);
+        ScryptHashPipeline pipeline = new ScryptHashPipeline(threads);
+        long start = System.nanoTime();
+        pipeline.precompute(headers);
+        long elapsed = System.nanoTime() - start;
+        pipeline.shutdown();
+        return numHeaders / (elapsed / 1e9);
+    }
+
+    private static List<Block> makeHeaders(NetworkParameters params, int numHeaders) {
+        Block genesis = params.getGenesisBlock();
+        List<Transaction> noTransactions = Collections.emptyList();
+        List<Block> headers = new ArrayList<Block>(numHeaders);
+        for (int i = 0; i < numHeaders; i++) {
+            // Only the nonce differs, which is enough to make every hash unique.
+            headers.add(new Block(params, Block.BLOCK_VERSION_DEFAULT, Sha256Hash.ZERO_HASH, genesis.getMerkleRoot(),
+                    genesis.getTimeSeconds(), genesis.getDifficultyTarget(), i, noTransactions));
+        }
+        return headers;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.Utils;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the throughput of {@link Utils#doubleDigest(byte[], int, int, byte[], int)} on transaction sized inputs as
+ * the number of hashing threads grows, to check that hashing scales with cores rather than queueing on a shared
+ * digest.
+ */
+public class Sha256Benchmark {
+    private static final int INPUT_SIZE = 250;  // Roughly a one input, two output transaction.
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: Sha256Benchmark [secondsPerRun]");
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        // Warm up the JIT before taking any measurements.
+        run(1, 1);
+
+        System.out.println(String.format("%d processors available", cores));
+        double baseline = 0;
+        for (int threads = 1; threads <= cores * 2; threads *= 2) {
+            double rate = run(threads, seconds);
+            if (threads == 1)
+                baseline = rate;
+            System.out.println(String.format("%3d threads: %12.0f double hashes/sec (%.2fx)", threads, rate,
+                    rate / baseline));
+        }
+    }
+
+    private static double run(int threads, final int seconds) throws InterruptedException {
+        final AtomicLong total = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final byte[] input = new byte[INPUT_SIZE];
+            new Random(i).nextBytes(input);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] output = new byte[32];
+                    long count = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    long end = System.nanoTime() + seconds * 1000000000L;
+                    while (System.nanoTime() < end) {
+                        for (int j = 0; j < 1000; j++) {
+                            Utils.doubleDigest(input, 0, input.length, output, 0);
+                            // Feed the result back in so the work can't be optimised away.
+                            input[j % INPUT_SIZE] ^= output[0];
+                        }
+                        count += 1000;
+                    }
+                    total.addAndGet(count);
+                    done.countDown();
+                }
+            }, "Hashing thread " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+        return total.get() / (elapsed / 1e9);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.ScriptBuilder;
+import com.google.dogecoin.store.UndoableBlockSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the size of the undo data the full pruned block stores keep for a block, and how fast it is written and
+ * read, between {@link TransactionOutputChanges#serializeToStream(java.io.OutputStream)} and
+ * {@link UndoableBlockSerializer}.
+ */
+public class UndoDataBenchmark {
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: UndoDataBenchmark [transactionsPerBlock] [iterations]");
+        int numTransactions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        NetworkParameters params = UnitTestParams.get();
+        Sha256Hash blockHash = params.getGenesisBlock().getHash();
+        StoredUndoableBlock block = new StoredUndoableBlock(blockHash, generate(params, numTransactions));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        block.getTxOutChanges().serializeToStream(bos);
+        byte[] old = bos.toByteArray();
+        byte[] compact = UndoableBlockSerializer.serialize(block);
+        System.out.println(String.format("%d transactions per block: %d bytes before, %d bytes now (%.1f%%)",
+                numTransactions, old.length, compact.length, 100.0 * compact.length / old.length));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            bos = new ByteArrayOutputStream();
+            block.getTxOutChanges().serializeToStream(bos);
+        }
+        report("old write", iterations, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            new TransactionOutputChanges(new ByteArrayInputStream(old));
+        report("old read", iterations, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            UndoableBlockSerializer.serialize(block);
+        report("write", iterations, System.nanoTime() - start);
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            UndoableBlockSerializer.deserialize(params, blockHash, compact);
+        report("read", iterations, System.nanoTime() - start);
+    }
+
+    private static void report(String op, int count, long elapsedNanos) {
+        System.out.println(String.format("%-10s %10.1f blocks/sec", op, count / (elapsedNanos / 1e9)));
+    }
+
+    // Each transaction spends one output of an earlier one and creates two, mostly paying to addresses.
+    private static TransactionOutputChanges generate(NetworkParameters params, int numTransactions) {
+        Random random = new Random(0);
+        byte[] payToAddress = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        byte[] payToKey = ScriptBuilder.createOutputScript(new ECKey()).getProgram();
+        List<StoredTransactionOutput> created = new ArrayList<StoredTransactionOutput>();
+        List<StoredTransactionOutput> spent = new ArrayList<StoredTransactionOutput>();
+        for (int i = 0; i < numTransactions; i++) {
+            byte[] hash = new byte[32];
+            random.nextBytes(hash);
+            for (int j = 0; j < 2; j++) {
+                BigInteger value = BigInteger.valueOf(random.nextInt(Integer.MAX_VALUE)).multiply(BigInteger.valueOf(1000));
+                byte[] script = random.nextInt(10) == 0 ? payToKey : payToAddress;
+                created.add(new StoredTransactionOutput(new Sha256Hash(hash.clone()), j, value, 1000, false, script));
+            }
+            random.nextBytes(hash);
+            BigInteger value = BigInteger.valueOf(random.nextInt(Integer.MAX_VALUE)).multiply(BigInteger.valueOf(1000));
+            spent.add(new StoredTransactionOutput(new Sha256Hash(hash.clone()), random.nextInt(3), value, 1000, false,
+                    payToAddress));
+        }
+        return new TransactionOutputChanges(created, spent);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.UnitTestParams;
+import com.google.dogecoin.script.ScriptBuilder;
+import com.google.dogecoin.store.FullPrunedBlockStore;
+import com.google.dogecoin.store.H2FullPrunedBlockStore;
+import com.google.dogecoin.store.LogStructuredFullPrunedBlockStore;
+import com.google.dogecoin.store.MemoryFullPrunedBlockStore;
+import com.google.dogecoin.store.PackedMemoryFullPrunedBlockStore;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how many unspent outputs per second a {@link FullPrunedBlockStore} can add, look up and remove, with the
+ * changes made in batch writes of the size a block would make.
+ */
+public class UnspentOutputStoreBenchmark {
+    // Roughly how many outputs a busy block creates and spends.
+    private static final int OUTPUTS_PER_BATCH = 2000;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: UnspentOutputStoreBenchmark (H2|Log|MemFull|PackedMemFull) [numOutputs] [database]");
+        String type = args.length > 0 ? args[0] : "MemFull";
+        int numOutputs = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        NetworkParameters params = UnitTestParams.get();
+
+        FullPrunedBlockStore store;
+        if (type.equals("H2")) {
+            H2FullPrunedBlockStore h2 = new H2FullPrunedBlockStore(params,
+                    args.length > 2 ? args[2] : "UnspentOutputStoreBenchmark", 100);
+            h2.resetStore();
+            store = h2;
+        } else if (type.equals("Log")) {
+            File file = new File(args.length > 2 ? args[2] : "UnspentOutputStoreBenchmark.log");
+            file.delete();
+            store = new LogStructuredFullPrunedBlockStore(params, file, 100);
+        } else if (type.equals("MemFull")) {
+            store = new MemoryFullPrunedBlockStore(params, 100);
+        } else if (type.equals("PackedMemFull")) {
+            store = new PackedMemoryFullPrunedBlockStore(params, 100, numOutputs);
+        } else {
+            throw new IllegalArgumentException("Unknown store type " + type);
+        }
+
+        List<StoredTransactionOutput> outputs = generate(params, numOutputs);
+        System.out.println(String.format("%d unspent outputs, %d per batch write", numOutputs, OUTPUTS_PER_BATCH));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < outputs.size(); i += OUTPUTS_PER_BATCH) {
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : outputs.subList(i, Math.min(i + OUTPUTS_PER_BATCH, outputs.size())))
+                store.addUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+        }
+        report("add", numOutputs, System.nanoTime() - start);
+
+        // Spends don't come in the order the outputs were created.
+        Collections.shuffle(outputs, new Random(1));
+        start = System.nanoTime();
+        for (StoredTransactionOutput out : outputs)
+            if (store.getTransactionOutput(out.getHash(), out.getIndex()) == null)
+                throw new IllegalStateException("Lost " + out);
+        report("get", numOutputs, System.nanoTime() - start);
+
+        start = System.nanoTime();
+        for (int i = 0; i < outputs.size(); i += OUTPUTS_PER_BATCH) {
+            store.beginDatabaseBatchWrite();
+            for (StoredTransactionOutput out : outputs.subList(i, Math.min(i + OUTPUTS_PER_BATCH, outputs.size())))
+                store.removeUnspentTransactionOutput(out);
+            store.commitDatabaseBatchWrite();
+        }
+        report("remove", numOutputs, System.nanoTime() - start);
+        store.close();
+    }
+
+    private static void report(String op, int count, long elapsedNanos) {
+        System.out.println(String.format("%-8s %10.1f outputs/sec", op, count / (elapsedNanos / 1e9)));
+    }
+
+    private static List<StoredTransactionOutput> generate(NetworkParameters params, int numOutputs) {
+        Random random = new Random(0);
+        // Most outputs pay to an address, so the scripts can be compressed.
+        byte[] script = ScriptBuilder.createOutputScript(new ECKey().toAddress(params)).getProgram();
+        List<StoredTransactionOutput> outputs = new ArrayList<StoredTransactionOutput>(numOutputs);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < numOutputs; i++) {
+            // Two outputs per transaction.
+            if (i % 2 == 0)
+                random.nextBytes(hash);
+            BigInteger value = BigInteger.valueOf(random.nextInt(Integer.MAX_VALUE)).multiply(BigInteger.valueOf(1000));
+            outputs.add(new StoredTransactionOutput(new Sha256Hash(hash.clone()), i % 2, value, i / 1000, false,
+                    script));
+        }
+        return outputs;
+    }
+}
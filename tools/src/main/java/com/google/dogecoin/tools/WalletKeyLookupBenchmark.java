@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.dogecoin.tools;
+
+import com.google.dogecoin.core.*;
+import com.google.dogecoin.params.MainNetParams;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how many {@link Wallet#isTransactionRelevant(Transaction)} checks per second a wallet can do as the number
+ * of keys in it grows. The keys are watching keys built from random bytes, as only their hashes matter here and
+ * deriving 100,000 real public keys would dominate the run time.
+ */
+public class WalletKeyLookupBenchmark {
+    private static final int NUM_TRANSACTIONS = 2000;
+    private static final int OUTPUTS_PER_TRANSACTION = 2;
+
+    public static void main(String[] args) throws Exception {
+        System.out.println("USAGE: WalletKeyLookupBenchmark [iterations]");
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        NetworkParameters params = MainNetParams.get();
+        Random random = new Random(1);
+
+        List<Transaction> transactions = new ArrayList<Transaction>(NUM_TRANSACTIONS);
+        for (int i = 0; i < NUM_TRANSACTIONS; i++) {
+            Transaction tx = new Transaction(params);
+            for (int j = 0; j < OUTPUTS_PER_TRANSACTION; j++)
+                tx.addOutput(Utils.COIN, new ECKey((byte[]) null, randomPubKey(random)).toAddress(params));
+            transactions.add(tx);
+        }
+
+        for (int numKeys : new int[] {1000, 10000, 100000}) {
+            Wallet wallet = new Wallet(params);
+            List<ECKey> keys = new ArrayList<ECKey>(numKeys);
+            for (int i = 0; i < numKeys; i++)
+                keys.add(new ECKey((byte[]) null, randomPubKey(random)));
+            wallet.addKeys(keys);
+
+            // Warm up, then measure.
+            check(wallet, transactions);
+            long start = System.nanoTime();
+            int relevant = 0;
+            for (int i = 0; i < iterations; i++)
+                relevant += check(wallet, transactions);
+            long elapsed = System.nanoTime() - start;
+            double checks = (double) iterations * NUM_TRANSACTIONS;
+            System.out.println(String.format("%7d keys: %12.0f relevance checks/sec (%d relevant)", numKeys,
+                    checks / (elapsed / 1e9), relevant));
+        }
+    }
+
+    private static int check(Wallet wallet, List<Transaction> transactions) throws ScriptException {
+        int relevant = 0;
+        for (Transaction tx : transactions)
+            if (wallet.isTransactionRelevant(tx))
+                relevant++;
+        return relevant;
+    }
+
+    private static byte[] randomPubKey(Random random) {
+        byte[] pubKey = new byte[33];
+        random.nextBytes(pubKey);
+        pubKey[0] = 0x02;
+        return pubKey;
+    }
+}